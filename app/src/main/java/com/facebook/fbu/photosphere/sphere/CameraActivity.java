@@ -16,12 +16,16 @@ import android.widget.ViewSwitcher;
 
 import com.facebook.fbu.photosphere.spherelib.CameraView;
 
+import java.io.File;
+
 /**
  * Camera activity hosts spherical camera as well as potential to upload existing photo.
  */
 public class CameraActivity extends Activity {
 
     public static final String TAG = CameraActivity.class.getSimpleName();
+    // the packages of tiles are written in the files of the app, then moved into the upload
+    private static final String TILES_DIRECTORY_PREFIX = "tiles_";
     private CameraView mCameraView;
     private FrameLayout mFrameLayout;
 
@@ -103,6 +107,12 @@ public class CameraActivity extends Activity {
         doneButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                // the photosphere is uploaded from its file by SphereUploadService, along with
+                // the package of tiles viewers load it from
+                String name = Long.toString(System.currentTimeMillis());
+                mCameraView.savePictureToFileWhenDone(name);
+                mCameraView.saveTiledPanoramaWhenDone(
+                        new File(getFilesDir(), TILES_DIRECTORY_PREFIX + name));
                 mCameraView.startConstruction();
                 Intent uploadPhotoIntent = new Intent(
                         CameraActivity.this,
@@ -24,9 +24,11 @@ import com.facebook.fbu.photosphere.sphere.api.SphereAPI;
 import com.facebook.fbu.photosphere.sphere.api.SphereAPI.SpheresLoadedCallback;
 import com.facebook.fbu.photosphere.sphere.api.SphereUser;
 import com.facebook.fbu.photosphere.spherelib.SphereView;
+import com.parse.ParseUser;
 import com.squareup.picasso.Picasso;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
@@ -41,6 +43,8 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
     private static final String SPHERE = "SPHERE";
 
     private String mPhotoId;
+    // the last version of the sphere bound, the cached one until it is refreshed
+    private Date mSphereUpdatedAt;
 
     private ImageButton mCancelButton;
     private TextView mUsername;
@@ -72,7 +76,7 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
     public static DetailViewFragment newInstance(Sphere sphere) {
         DetailViewFragment detailViewFragment = new DetailViewFragment();
         Bundle pinData = new Bundle();
-        pinData.putParcelable(SPHERE, sphere);
+        pinData.putParcelable(SPHERE, SphereHandle.from(sphere));
         detailViewFragment.setArguments(pinData);
         return detailViewFragment;
     }
@@ -107,7 +111,7 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
             return view;
         }
         // else get the associated info and create view
-        bindSphereToView((Sphere) sphereData.getParcelable(SPHERE), false);
+        bindSphereToView((SphereHandle) sphereData.getParcelable(SPHERE), false);
         return view;
     }
 
@@ -138,9 +142,21 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
 
     @Override
     public void onSpheresLoaded(List<Sphere> photoSpheres) {
-        assert photoSpheres.size() == 1;
+        // the refreshed sphere may come after the fragment was popped
+        if (!isAdded()) {
+            return;
+        }
+        if (photoSpheres.isEmpty()) {
+            Log.e(TAG, "sphere not found: " + mPhotoId);
+            return;
+        }
         final Sphere sphere = photoSpheres.get(0);
-        bindSphereToView(sphere, true);
+        // the refreshed sphere is only bound again if it changed
+        if (mSphereUpdatedAt != null && mSphereUpdatedAt.equals(sphere.getUpdatedAt())) {
+            return;
+        }
+        mSphereUpdatedAt = sphere.getUpdatedAt();
+        bindSphereToView(SphereHandle.from(sphere), true);
     }
 
     /**
@@ -149,18 +165,46 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
      * @param sphere              - sphere whose info will be shown in view
      * @param isProfileLaunchable - indicates whether or not profile navigation is allowed
      */
-    private void bindSphereToView(final Sphere sphere, boolean isProfileLaunchable) {
-        // create new sphere user
-        final SphereUser user = SphereUser.from(sphere.getUser());
+    private void bindSphereToView(SphereHandle sphere, final boolean isProfileLaunchable) {
         // sphere view
-        setSphereViewImage(sphere.getImage().getUrl());
+        setSphereViewImage(sphere);
+        //Location
+        if (sphere.hasCoordinates()) {
+            mLocation.setText(createReadableLocation(
+                    getActivity(),
+                    sphere.getLatitude(),
+                    sphere.getLongitude()));
+        }
+        // the user is bound once loaded, at once if it is cached
+        mFrameLayout.setOnClickListener(null);
+        if (sphere.getUserId() == null) {
+            return;
+        }
+        final String userId = sphere.getUserId();
+        SphereAPI.fetchUser(userId, new SphereAPI.UserLoadedCallback() {
+            @Override
+            public void onUserLoaded(ParseUser user) {
+                if (isAdded()) {
+                    bindUserToView(SphereUser.from(user), isProfileLaunchable);
+                }
+            }
+
+            @Override
+            public void onUserLoadFailed() {
+                Log.e(TAG, "user not found: " + userId);
+            }
+        });
+    }
+
+    /**
+     * attach the user of the sphere to the view
+     *
+     * @param user                - user who took the sphere
+     * @param isProfileLaunchable - indicates whether or not profile navigation is allowed
+     */
+    private void bindUserToView(final SphereUser user, boolean isProfileLaunchable) {
         //Username
         mUsername.setText(user.getFullName());
-        //Location
-        mLocation.setText(createReadableLocation(
-                getActivity(),
-                sphere.getCoordinates().getLatitude(),
-                sphere.getCoordinates().getLongitude()));
         //Icon
         String iconURL = user.getUserPhotoUrl();
         if (iconURL != null) {
@@ -188,20 +232,27 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
     /**
      * set up sphere view image and on click listener to launch viewer
      *
-     * @param thumbnailUrl - url to load into SphereView
+     * @param sphere - sphere whose smallest image wide enough for each view is loaded into it
      */
-    private void setSphereViewImage(final String thumbnailUrl) {
-        if (thumbnailUrl == null) {
+    private void setSphereViewImage(final SphereHandle sphere) {
+        if (sphere.getImageUrl() == null) {
             return;
         }
-        mPhotosphereThumbnail.setImageUrl(thumbnailUrl);
+        mPhotosphereThumbnail.setImageUrls(sphere.getImageUrls());
         mPhotosphereThumbnail.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
                 Intent startViewerIntent = new Intent(
                         getActivity(),
                         ViewerActivity.class);
-                startViewerIntent.putExtra(IMAGE_URL, thumbnailUrl);
+                startViewerIntent.putExtra(IMAGE_URL, sphere.getImageUrl());
+                startViewerIntent.putExtra(
+                        ViewerActivity.IMAGE_WIDTHS,
+                        sphere.getImageWidthArray());
+                startViewerIntent.putExtra(
+                        ViewerActivity.IMAGE_URLS,
+                        sphere.getImageUrlArray());
+                startViewerIntent.putExtra(ViewerActivity.TILES_URL, sphere.getTilesUrl());
                 //keeps activity from being added to history stack
                 //return to DetailViewFragment onBackPressed()
                 startViewerIntent
@@ -215,6 +266,9 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
 
     @Override
     public void onSphereLoadFailed() {
+        if (!isAdded()) {
+            return;
+        }
         Toast.makeText(getActivity(), R.string.error_loading, Toast.LENGTH_SHORT);
         getActivity().getSupportFragmentManager().popBackStack();
     }
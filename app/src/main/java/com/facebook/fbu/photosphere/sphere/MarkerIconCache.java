@@ -0,0 +1,138 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The rendered icons of the map markers, keyed by sphere id and icon size, kept for the life of
+ * the process in memory and across launches on disk as PNGs, so that markers shown before are
+ * added back without downloading, decoding or drawing anything
+ *
+ * The memory cache is read and written on the main thread, the disk cache on the threads of the
+ * MarkerIconLoader
+ */
+public class MarkerIconCache {
+
+    private static final String TAG = MarkerIconCache.class.getSimpleName();
+    private static final String DIRECTORY_NAME = "marker_icons";
+    private static final String EXTENSION = ".png";
+
+    // the number of icons kept in memory, a few screens of markers
+    private static final int MEMORY_ENTRY_COUNT = 256;
+    // the number of icons kept on disk, the oldest are deleted beyond it
+    private static final int DISK_ENTRY_COUNT = 1000;
+
+    private static MarkerIconCache sInstance;
+
+    private final LruCache<String, BitmapDescriptor> mMemoryCache =
+            new LruCache<String, BitmapDescriptor>(MEMORY_ENTRY_COUNT);
+    private final File mDirectory;
+    private boolean mIsDiskTrimmed;
+
+    public static synchronized MarkerIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MarkerIconCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+        }
+        return sInstance;
+    }
+
+    private MarkerIconCache(File directory) {
+        mDirectory = directory;
+    }
+
+    private static String getKey(String sphereId, int iconSize) {
+        return sphereId + "_" + iconSize;
+    }
+
+    public BitmapDescriptor get(String sphereId, int iconSize) {
+        return mMemoryCache.get(getKey(sphereId, iconSize));
+    }
+
+    public void put(String sphereId, int iconSize, BitmapDescriptor icon) {
+        mMemoryCache.put(getKey(sphereId, iconSize), icon);
+    }
+
+    // the icon rendered earlier, or null if there is none on disk
+    Bitmap readFromDisk(String sphereId, int iconSize) {
+        File file = getFile(sphereId, iconSize);
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap icon = BitmapFactory.decodeFile(file.getPath());
+        if (icon == null) {
+            // a file truncated by the process dying while it was written
+            file.delete();
+        } else {
+            // the disk cache is trimmed from the least recently used
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return icon;
+    }
+
+    void writeToDisk(String sphereId, int iconSize, Bitmap icon) {
+        trimDiskOnce();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        // written aside and renamed, so that a reader never sees part of it
+        File file = getFile(sphereId, iconSize);
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                icon.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            } finally {
+                outputStream.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error when caching icon of " + sphereId + ": " + e);
+            temporaryFile.delete();
+        }
+    }
+
+    private File getFile(String sphereId, int iconSize) {
+        return new File(mDirectory, getKey(sphereId, iconSize) + EXTENSION);
+    }
+
+    // deletes the least recently used icons beyond DISK_ENTRY_COUNT, once per process since
+    // listing the directory isn't free
+    private synchronized void trimDiskOnce() {
+        if (mIsDiskTrimmed) {
+            return;
+        }
+        mIsDiskTrimmed = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= DISK_ENTRY_COUNT) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - DISK_ENTRY_COUNT; i++) {
+            files[i].delete();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.parse.ParseException;
+import com.parse.ParseFile;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads the thumbnails of spheres and renders them as rounded map marker icons, on a small
+ * pool of background threads, handing the icons back on the main thread. Icons rendered before
+ * are taken from the MarkerIconCache instead
+ */
+public class MarkerIconLoader {
+
+    private static final String TAG = MarkerIconLoader.class.getSimpleName();
+
+    // thumbnails are downloaded and drawn by at most this many threads at once
+    private static final int THREAD_COUNT = 3;
+
+    /**
+     * Receives the icon of a sphere on the main thread
+     */
+    public interface Callback {
+        void onIconLoaded(String sphereId, BitmapDescriptor icon);
+    }
+
+    private final MarkerIconCache mMarkerIconCache;
+    private final int mIconSize;
+    private final int mStrokeColor;
+    private final int mBorderThickness;
+    private final int mRoundedEdgeFactor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutorService = new ThreadPoolExecutor(
+            THREAD_COUNT,
+            THREAD_COUNT,
+            0,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private volatile boolean mIsShutDown;
+
+    public MarkerIconLoader(
+            MarkerIconCache markerIconCache,
+            int iconSize,
+            int strokeColor,
+            int borderThickness,
+            int roundedEdgeFactor) {
+        mMarkerIconCache = markerIconCache;
+        mIconSize = iconSize;
+        mStrokeColor = strokeColor;
+        mBorderThickness = borderThickness;
+        mRoundedEdgeFactor = roundedEdgeFactor;
+    }
+
+    public int getIconSize() {
+        return mIconSize;
+    }
+
+    // the icon of the sphere if it is cached in memory, to be called on the main thread
+    public BitmapDescriptor getCachedIcon(String sphereId) {
+        return mMarkerIconCache.get(sphereId, mIconSize);
+    }
+
+    /**
+     * Reads the icon from the disk cache, or downloads, decodes and renders the thumbnail, in the
+     * background, calling back unless it fails or the loader is shut down first
+     */
+    public void load(final String sphereId, final ParseFile thumbnailFile, final Callback callback) {
+        if (mIsShutDown) {
+            return;
+        }
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsShutDown) {
+                    return;
+                }
+                Bitmap cachedIcon = mMarkerIconCache.readFromDisk(sphereId, mIconSize);
+                if (cachedIcon == null) {
+                    try {
+                        cachedIcon = renderIcon(thumbnailFile.getData());
+                    } catch (ParseException e) {
+                        Log.e(TAG, "error when loading thumbnail of " + sphereId + ": " + e);
+                        return;
+                    }
+                    if (cachedIcon == null) {
+                        return;
+                    }
+                    mMarkerIconCache.writeToDisk(sphereId, mIconSize, cachedIcon);
+                }
+                final Bitmap icon = cachedIcon;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        BitmapDescriptor descriptor = BitmapDescriptorFactory.fromBitmap(icon);
+                        mMarkerIconCache.put(sphereId, mIconSize, descriptor);
+                        if (!mIsShutDown) {
+                            callback.onIconLoaded(sphereId, descriptor);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // drops the icons not loaded yet
+    public void shutDown() {
+        mIsShutDown = true;
+        mExecutorService.shutdownNow();
+    }
+
+    // decodes the thumbnail just large enough to fill the icon, and draws the icon from it
+    Bitmap renderIcon(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, mIconSize);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        return getRoundedRectBitmap(
+                bitmap,
+                mStrokeColor,
+                mIconSize,
+                mBorderThickness,
+                mRoundedEdgeFactor);
+    }
+
+    // the largest power of two by which the picture can be shrunk while still covering a square
+    // of the given size
+    private static int getSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    //Customized rectangle with rounded corners pin bitmap function
+    static Bitmap getRoundedRectBitmap(
+            Bitmap bitmap,
+            int strokeColor,
+            int iconSize,
+            int borderThickness,
+            int roundedEdgeFactor) {
+
+        if (bitmap == null) {
+            return null;
+        }
+        // Crop original 2:1 bitmap into a square
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, iconSize, iconSize);
+        if (thumbnail != bitmap) {
+            bitmap.recycle();
+        }
+        // Create plain bitmap
+        int srcHeight = thumbnail.getHeight();
+        int srcWidth = thumbnail.getWidth();
+        Bitmap canvasBitmap = Bitmap.createBitmap(
+                srcWidth,
+                srcHeight,
+                Bitmap.Config.ARGB_8888);
+
+        Canvas canvas = new Canvas(canvasBitmap);
+        canvas.drawARGB(0, 0, 0, 0);
+
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+
+        Rect rect = new Rect(0, 0, srcWidth, srcHeight);
+        RectF rectF = new RectF(rect);
+        canvas.drawRoundRect(rectF, roundedEdgeFactor, roundedEdgeFactor, paint);
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
+        canvas.drawBitmap(thumbnail, rect, rect, paint);
+        thumbnail.recycle();
+
+        //Draw border
+        Paint borderStroke = new Paint();
+        borderStroke.setAntiAlias(true);
+        borderStroke.setColor(strokeColor);
+        borderStroke.setStyle(Paint.Style.STROKE);
+        borderStroke.setStrokeWidth(borderThickness);
+        borderStroke.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
+        canvas.drawRoundRect(rectF, roundedEdgeFactor, roundedEdgeFactor, borderStroke);
+
+        return canvasBitmap;
+    }
+
+    // a rounded icon of a single color, shown until the thumbnail is loaded
+    static Bitmap getPlaceholderBitmap(
+            int color,
+            int strokeColor,
+            int iconSize,
+            int borderThickness,
+            int roundedEdgeFactor) {
+        Bitmap bitmap = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return getRoundedRectBitmap(
+                bitmap,
+                strokeColor,
+                iconSize,
+                borderThickness,
+                roundedEdgeFactor);
+    }
+
+    // a round badge showing the label, the number of spheres of a cluster
+    static Bitmap getClusterBitmap(
+            String label,
+            int color,
+            int textColor,
+            int iconSize,
+            int borderThickness) {
+        Bitmap bitmap = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        float center = iconSize / 2f;
+
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setColor(textColor);
+        canvas.drawCircle(center, center, center, paint);
+        paint.setColor(color);
+        canvas.drawCircle(center, center, center - borderThickness, paint);
+
+        Paint textPaint = new Paint();
+        textPaint.setAntiAlias(true);
+        textPaint.setColor(textColor);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setFakeBoldText(true);
+        textPaint.setTextSize(iconSize / 3f);
+        // centers the text vertically around its baseline
+        float baseline = center - (textPaint.descent() + textPaint.ascent()) / 2;
+        canvas.drawText(label, center, baseline, textPaint);
+
+        return bitmap;
+    }
+}
@@ -43,6 +43,8 @@ public class ProfileFragment extends Fragment implements SpheresLoadedCallback,
     private ParseUser mCurrUser;
     private View mHeaderView;
     private SphereUser mSphereUser;
+    // set with the first spheres loaded, and updated with the refreshed ones
+    private ProfileListViewAdapter mAdapter;
 
     /**
      * creates a new ProfileFragment creating a bundle for the user who's data you wish to present
@@ -65,6 +67,8 @@ public class ProfileFragment extends Fragment implements SpheresLoadedCallback,
         View view = inflater.inflate(R.layout.profile_fragment, container, false);
         mHeaderView = inflater.inflate(R.layout.profile_header, null, false);
         mListView = (ListView) view.findViewById(R.id.list_view);
+        // a new list, when the fragment comes back from the back stack
+        mAdapter = null;
         mListView.addHeaderView(mHeaderView);
         ImageButton settingsButton = (ImageButton) view.findViewById(R.id.settings_button);
         if (getArguments() != null) {
@@ -100,9 +104,19 @@ public class ProfileFragment extends Fragment implements SpheresLoadedCallback,
 
     @Override
     public void onSpheresLoaded(List<Sphere> photoSpheres) {
+        // the refreshed spheres may come after the fragment was popped
+        if (!isAdded()) {
+            return;
+        }
+        if (mAdapter != null) {
+            // keeps the scroll position
+            mAdapter.setSpheres(photoSpheres);
+            return;
+        }
         mListView.setDivider(null);
         mListView.setDividerHeight(0);
-        mListView.setAdapter(new ProfileListViewAdapter(photoSpheres, getActivity()));
+        mAdapter = new ProfileListViewAdapter(photoSpheres, getActivity());
+        mListView.setAdapter(mAdapter);
     }
 
     @Override
@@ -133,6 +147,9 @@ public class ProfileFragment extends Fragment implements SpheresLoadedCallback,
 
     @Override
     public void onUserLoaded(ParseUser currUser) {
+        if (!isAdded()) {
+            return;
+        }
         mCurrUser = currUser;
         fetchUserSpheres(mCurrUser, ProfileFragment.this);
     }
@@ -140,6 +157,9 @@ public class ProfileFragment extends Fragment implements SpheresLoadedCallback,
     @Override
     public void onUserLoadFailed() {
         Log.e(TAG, "profile not found");
+        if (!isAdded()) {
+            return;
+        }
         FragmentManager fragmentManager = getActivity()
                 .getSupportFragmentManager();
         fragmentManager.popBackStack();
@@ -160,6 +180,11 @@ public class ProfileFragment extends Fragment implements SpheresLoadedCallback,
             mInflater = LayoutInflater.from(context);
         }
 
+        public void setSpheres(List<Sphere> spheres) {
+            mSpheres = spheres;
+            notifyDataSetChanged();
+        }
+
         @Override
         public int getCount() {
             return (mSpheres.size() + THUMBNAILS_PER_ROW - 1) / THUMBNAILS_PER_ROW;
@@ -2,23 +2,21 @@
 
 package com.facebook.fbu.photosphere.sphere;
 
-import android.os.Bundle;
-import android.os.Parcel;
-import android.os.Parcelable;
-import android.util.Log;
-
-import com.facebook.fbu.photosphere.sphere.api.SphereUser;
-import com.google.android.gms.maps.model.LatLng;
 import com.parse.ParseClassName;
-import com.parse.ParseException;
 import com.parse.ParseFile;
 import com.parse.ParseGeoPoint;
 import com.parse.ParseObject;
 import com.parse.ParseQuery;
 import com.parse.ParseUser;
 
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A sphere stored in parse, passed between screens as a SphereHandle
+ */
 @ParseClassName("Sphere")
-public class Sphere extends ParseObject implements Parcelable {
+public class Sphere extends ParseObject {
     public static final String MODEL_NAME = Sphere.class.getSimpleName();
 
     // column tags for storage in parse
@@ -29,7 +27,15 @@ public class Sphere extends ParseObject implements Parcelable {
     public static final String COORDINATES = "coordinates";
     public static final String USER = "user_id";
     public static final String PHOTO_ID = "objectId";
-    private static final String SPHERE_USER = "sphere_user";
+    public static final String IMAGE_WIDTH = "image_width";
+    public static final String TILES = "tiles";
+
+    // the width of the thumbnail, and of the images scaled down from the image at upload, each in
+    // a column of its own
+    public static final int THUMBNAIL_WIDTH = 480;
+    // steps of a quarter of the 1024 wide one up to the 2000 wide spheres of the camera, so
+    // that a viewer seldom loads much more than it shows
+    public static final int[] DERIVATIVE_WIDTHS = new int[]{1024, 1280, 1536, 1792, 2048};
 
     public enum SpherePhotoType {
         PANORAMA,
@@ -85,6 +91,56 @@ public class Sphere extends ParseObject implements Parcelable {
         put(IMAGE, image);
     }
 
+    // the image scaled down to the width, or null if the image isn't wider or is older than them
+    public ParseFile getDerivative(int width) {
+        return getParseFile(IMAGE + "_" + width);
+    }
+
+    public void setDerivative(int width, ParseFile derivative) {
+        put(IMAGE + "_" + width, derivative);
+    }
+
+    // the manifest of the tiles of the image, see ManifestTileSource, or null if it has none
+    public ParseFile getTiles() {
+        return getParseFile(TILES);
+    }
+
+    public void setTiles(ParseFile tiles) {
+        put(TILES, tiles);
+    }
+
+    // the width of the image, or 0 for the spheres uploaded before it was stored
+    public int getImageWidth() {
+        return getInt(IMAGE_WIDTH);
+    }
+
+    public void setImageWidth(int imageWidth) {
+        put(IMAGE_WIDTH, imageWidth);
+    }
+
+    /**
+     * returns the urls of the thumbnail, the derivatives and the image by width, for viewers to
+     * load the smallest one wide enough
+     *
+     * @return the urls by width, with the image last, at Integer.MAX_VALUE if its width is unknown
+     */
+    public SortedMap<Integer, String> getImageUrls() {
+        SortedMap<Integer, String> imageUrls = new TreeMap<Integer, String>();
+        if (getThumbnail() != null) {
+            imageUrls.put(THUMBNAIL_WIDTH, getThumbnail().getUrl());
+        }
+        for (int width : DERIVATIVE_WIDTHS) {
+            if (getDerivative(width) != null) {
+                imageUrls.put(width, getDerivative(width).getUrl());
+            }
+        }
+        if (getImage() != null) {
+            int imageWidth = getImageWidth();
+            imageUrls.put(imageWidth > 0 ? imageWidth : Integer.MAX_VALUE, getImage().getUrl());
+        }
+        return imageUrls;
+    }
+
     public ParseGeoPoint getCoordinates() {
         return getParseGeoPoint(COORDINATES);
     }
@@ -105,61 +161,11 @@ public class Sphere extends ParseObject implements Parcelable {
         return getObjectId();
     }
 
+    // the spheres that can be shown, leaving out the drafts of uploads, which get their image
+    // last, see SphereAPI.createDraftSphere
     public static ParseQuery<Sphere> getQuery() {
-        return ParseQuery.getQuery(Sphere.class);
-    }
-
-    @Override
-    public int describeContents() {
-        return 0;
-    }
-
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        Bundle bundle = new Bundle();
-
-        bundle.putString(PHOTO_ID, getObjectId());
-        bundle.putString(PHOTO_TYPE, getPhotoType().toString());
-        try {
-            bundle.putByteArray(THUMBNAIL, getThumbnail().getData());
-            bundle.putByteArray(IMAGE, getImage().getData());
-        } catch (ParseException e) {
-            Log.e(MODEL_NAME, e.getMessage());
-        }
-        bundle.putString(CAPTION, getCaption());
-        bundle.putParcelable(COORDINATES, new LatLng(
-                getCoordinates().getLatitude(),
-                getCoordinates().getLongitude()));
-        bundle.putParcelable(SPHERE_USER, SphereUser.from(getUser()));
-
-        dest.writeBundle(bundle);
+        ParseQuery<Sphere> query = ParseQuery.getQuery(Sphere.class);
+        query.whereExists(IMAGE);
+        return query;
     }
-
-    /**
-     * Creator for creating a Sphere from parcelable
-     */
-    public static final Parcelable.Creator<Sphere> CREATOR = new Creator<Sphere>() {
-
-        @Override
-        public Sphere createFromParcel(Parcel source) {
-            Bundle bundle = source.readBundle();
-
-            Sphere sphere = ParseObject.createWithoutData(Sphere.class, bundle.getString(PHOTO_ID));
-            sphere.setPhotoType(SpherePhotoType.valueOf(bundle.getString(PHOTO_TYPE)));
-            sphere.setThumbnail(new ParseFile(bundle.getByteArray(THUMBNAIL)));
-            sphere.setImage(new ParseFile(bundle.getByteArray(IMAGE)));
-            sphere.setCaption(bundle.getString(CAPTION));
-            LatLng location = bundle.getParcelable(COORDINATES);
-            sphere.setCoordinates(new ParseGeoPoint(location.latitude, location.longitude));
-            sphere.setUser((SphereUser) bundle.getParcelable(SPHERE_USER));
-
-            return sphere;
-        }
-
-        @Override
-        public Sphere[] newArray(int size) {
-            return new Sphere[size];
-        }
-
-    };
 }
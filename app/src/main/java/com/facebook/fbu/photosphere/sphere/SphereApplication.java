@@ -4,6 +4,7 @@ package com.facebook.fbu.photosphere.sphere;
 
 import android.app.Application;
 
+import com.facebook.fbu.photosphere.sphere.api.SphereQueryCache;
 import com.facebook.fbu.photosphere.sphere.api.SphereUser;
 import com.parse.Parse;
 import com.parse.ParseCrashReporting;
@@ -23,6 +24,9 @@ public class SphereApplication extends Application {
         Parse.initialize(this, APPLICATION_ID, CLIENT_KEY);
         ParseObject.registerSubclass(Sphere.class);
         ParseUser.registerSubclass(SphereUser.class);
+        SphereQueryCache.initialize(this);
+        // the uploads left by a process that died
+        SphereUploadService.start(this);
     }
 
 }
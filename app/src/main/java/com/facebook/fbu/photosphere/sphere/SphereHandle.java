@@ -0,0 +1,202 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.parse.ParseFile;
+import com.parse.ParseGeoPoint;
+import com.parse.ParseUser;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * What is shown of a Sphere, to be passed in a Bundle: its ids and the urls of its files, never
+ * their data, including those of the images scaled down from it. The user is resolved by id
+ * through SphereAPI.fetchUser
+ */
+public class SphereHandle implements Parcelable {
+
+    private static final String PHOTO_ID = "photo_id";
+    private static final String PHOTO_TYPE = "photo_type";
+    private static final String THUMBNAIL_URL = "thumbnail_url";
+    private static final String IMAGE_URL = "image_url";
+    private static final String IMAGE_WIDTHS = "image_widths";
+    private static final String IMAGE_URLS = "image_urls";
+    private static final String TILES_URL = "tiles_url";
+    private static final String CAPTION = "caption";
+    private static final String LATITUDE = "latitude";
+    private static final String LONGITUDE = "longitude";
+    private static final String USER_ID = "user_id";
+
+    private String mPhotoId;
+    private String mPhotoType;
+    private String mThumbnailUrl;
+    private String mImageUrl;
+    private int[] mImageWidths;
+    private String[] mImageUrls;
+    private String mTilesUrl;
+    private String mCaption;
+    private boolean mHasCoordinates;
+    private double mLatitude;
+    private double mLongitude;
+    private String mUserId;
+
+    public static SphereHandle from(Sphere sphere) {
+        SphereHandle handle = new SphereHandle();
+        handle.mPhotoId = sphere.getPhotoId();
+        handle.mPhotoType = sphere.getString(Sphere.PHOTO_TYPE);
+        handle.mThumbnailUrl = getUrl(sphere.getThumbnail());
+        handle.mImageUrl = getUrl(sphere.getImage());
+        SortedMap<Integer, String> imageUrls = sphere.getImageUrls();
+        handle.mImageWidths = new int[imageUrls.size()];
+        handle.mImageUrls = new String[imageUrls.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : imageUrls.entrySet()) {
+            handle.mImageWidths[i] = entry.getKey();
+            handle.mImageUrls[i] = entry.getValue();
+            i++;
+        }
+        handle.mTilesUrl = getUrl(sphere.getTiles());
+        handle.mCaption = sphere.getCaption();
+        ParseGeoPoint coordinates = sphere.getCoordinates();
+        if (coordinates != null) {
+            handle.mHasCoordinates = true;
+            handle.mLatitude = coordinates.getLatitude();
+            handle.mLongitude = coordinates.getLongitude();
+        }
+        ParseUser user = sphere.getUser();
+        if (user != null) {
+            handle.mUserId = user.getObjectId();
+        }
+        return handle;
+    }
+
+    private SphereHandle() {
+    }
+
+    private static String getUrl(ParseFile file) {
+        return file == null ? null : file.getUrl();
+    }
+
+    public String getPhotoId() {
+        return mPhotoId;
+    }
+
+    public Sphere.SpherePhotoType getPhotoType() {
+        return mPhotoType == null ? null : Sphere.SpherePhotoType.valueOf(mPhotoType);
+    }
+
+    public String getThumbnailUrl() {
+        return mThumbnailUrl;
+    }
+
+    public String getImageUrl() {
+        return mImageUrl;
+    }
+
+    // see Sphere.getImageUrls
+    public SortedMap<Integer, String> getImageUrls() {
+        SortedMap<Integer, String> imageUrls = new TreeMap<Integer, String>();
+        for (int i = 0; i < mImageWidths.length; i++) {
+            imageUrls.put(mImageWidths[i], mImageUrls[i]);
+        }
+        return imageUrls;
+    }
+
+    // the widths of getImageUrls, to be passed to an intent along with getImageUrlArray
+    public int[] getImageWidthArray() {
+        return mImageWidths.clone();
+    }
+
+    public String[] getImageUrlArray() {
+        return mImageUrls.clone();
+    }
+
+    // the manifest of the tiles of the image, or null, see Sphere.getTiles
+    public String getTilesUrl() {
+        return mTilesUrl;
+    }
+
+    public String getCaption() {
+        return mCaption;
+    }
+
+    public boolean hasCoordinates() {
+        return mHasCoordinates;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public String getUserId() {
+        return mUserId;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Bundle bundle = new Bundle();
+
+        bundle.putString(PHOTO_ID, mPhotoId);
+        bundle.putString(PHOTO_TYPE, mPhotoType);
+        bundle.putString(THUMBNAIL_URL, mThumbnailUrl);
+        bundle.putString(IMAGE_URL, mImageUrl);
+        bundle.putIntArray(IMAGE_WIDTHS, mImageWidths);
+        bundle.putStringArray(IMAGE_URLS, mImageUrls);
+        bundle.putString(TILES_URL, mTilesUrl);
+        bundle.putString(CAPTION, mCaption);
+        if (mHasCoordinates) {
+            bundle.putDouble(LATITUDE, mLatitude);
+            bundle.putDouble(LONGITUDE, mLongitude);
+        }
+        bundle.putString(USER_ID, mUserId);
+
+        dest.writeBundle(bundle);
+    }
+
+    /**
+     * Creator for creating a SphereHandle from parcelable
+     */
+    public static final Parcelable.Creator<SphereHandle> CREATOR = new Creator<SphereHandle>() {
+
+        @Override
+        public SphereHandle createFromParcel(Parcel source) {
+            Bundle bundle = source.readBundle();
+
+            SphereHandle handle = new SphereHandle();
+            handle.mPhotoId = bundle.getString(PHOTO_ID);
+            handle.mPhotoType = bundle.getString(PHOTO_TYPE);
+            handle.mThumbnailUrl = bundle.getString(THUMBNAIL_URL);
+            handle.mImageUrl = bundle.getString(IMAGE_URL);
+            handle.mImageWidths = bundle.getIntArray(IMAGE_WIDTHS);
+            handle.mImageUrls = bundle.getStringArray(IMAGE_URLS);
+            handle.mTilesUrl = bundle.getString(TILES_URL);
+            handle.mCaption = bundle.getString(CAPTION);
+            handle.mHasCoordinates = bundle.containsKey(LATITUDE);
+            handle.mLatitude = bundle.getDouble(LATITUDE);
+            handle.mLongitude = bundle.getDouble(LONGITUDE);
+            handle.mUserId = bundle.getString(USER_ID);
+
+            return handle;
+        }
+
+        @Override
+        public SphereHandle[] newArray(int size) {
+            return new SphereHandle[size];
+        }
+    };
+}
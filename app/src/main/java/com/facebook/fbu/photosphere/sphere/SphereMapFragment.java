@@ -5,21 +5,15 @@ package com.facebook.fbu.photosphere.sphere;
 import android.content.IntentSender;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
-import android.graphics.RectF;
 import android.location.Location;
-import android.media.ThumbnailUtils;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.FragmentTransaction;
 import android.util.Log;
 
+import com.facebook.fbu.photosphere.sphere.api.SphereGeoBoxQuery;
+import com.facebook.fbu.photosphere.spherelib.MarkerClusterer;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.LocationListener;
@@ -30,18 +24,25 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
-import com.parse.ParseException;
 import com.parse.ParseFile;
 import com.parse.ParseGeoPoint;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.facebook.fbu.photosphere.sphere.api.SphereAPI.SpheresLoadedCallback;
-import static com.facebook.fbu.photosphere.sphere.api.SphereAPI.fetchAllSpheres;
+import static com.facebook.fbu.photosphere.sphere.api.SphereAPI.fetchSpheresInBox;
 import static com.google.android.gms.common.api.GoogleApiClient.Builder;
 import static com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
 import static com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
@@ -49,12 +50,18 @@ import static com.google.android.gms.location.LocationServices.FusedLocationApi;
 
 /**
  * Map view with photospheres loaded onto it, loads onto users current position
+ *
+ * Only the spheres in the visible region are fetched, once the camera has stopped moving. The
+ * spheres fetched are grouped by a MarkerClusterer, and only the clusters in view get a marker,
+ * a badge with their size, or the thumbnail of the sphere for the clusters of a single sphere.
+ * The markers are diffed as the camera moves, and the thumbnails are kept by the MarkerIconCache
  */
 public class SphereMapFragment extends SupportMapFragment implements
         SpheresLoadedCallback,
         OnConnectionFailedListener,
         LocationListener,
-        GoogleMap.OnMarkerClickListener {
+        GoogleMap.OnMarkerClickListener,
+        MarkerIconLoader.Callback {
 
     private static final String TAG = SphereMapFragment.class.getSimpleName();
     private static final int CONNECTION_FAILURE_RESOLUTION_REQUEST = 9000;
@@ -62,15 +69,54 @@ public class SphereMapFragment extends SupportMapFragment implements
     private static final String LONGITUDE = "Longitude";
     private static final String LATITUDE = "Latitude";
     private static final LatLng sMenloParkLatLng = new LatLng(37.48, -122.14);
-  
+    // how long the camera has to stay still before the visible spheres are fetched
+    private static final long CAMERA_IDLE_DELAY_MS = 300;
+    // the spheres within a square of this many dp are grouped in a cluster, about two markers
+    private static final int CLUSTER_CELL_SIZE_DP = 100;
+    // the sizes from which clusters show a rounded size, so that their badges are shared
+    private static final int[] CLUSTER_LABEL_SIZES = {10, 20, 50, 100, 200, 500, 1000};
+    // how much a click on a cluster zooms in
+    private static final float CLUSTER_ZOOM_STEP = 2;
+
     private GoogleApiClient mGoogleApiClient;
     private GoogleMap mMap;
     private LatLng mCurrentLocation;
-    
+
+    private final Handler mHandler = new Handler();
+    private final Set<String> mLoadedSphereIds = new HashSet<String>();
+    private SphereGeoBoxQuery mSphereQuery;
+    private final MarkerClusterer<Sphere> mClusterer =
+            new MarkerClusterer<Sphere>(CLUSTER_CELL_SIZE_DP);
+    private final List<MarkerClusterer.Cluster<Sphere>> mVisibleClusters =
+            new ArrayList<MarkerClusterer.Cluster<Sphere>>();
+    // the markers on the map, by sphere id for single spheres and by cluster key for clusters
+    private Map<String, Marker> mMarkers = new HashMap<String, Marker>();
+    // the labels of the badges of the cluster markers, by cluster key
+    private final Map<String, String> mClusterLabels = new HashMap<String, String>();
+    private final Map<String, BitmapDescriptor> mClusterIcons =
+            new HashMap<String, BitmapDescriptor>();
+    private MarkerIconLoader mMarkerIconLoader;
+    private BitmapDescriptor mPlaceholderIcon;
+    // the hidden marker of the current location, added once and moved as the location changes
+    private Marker mLocationMarker;
+    private final Runnable mFetchVisibleSpheres = new Runnable() {
+        @Override
+        public void run() {
+            fetchVisibleSpheres();
+        }
+    };
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Resources resources = getResources();
+        mMarkerIconLoader = new MarkerIconLoader(
+                MarkerIconCache.getInstance(getActivity()),
+                resources.getDimensionPixelSize(R.dimen.pin_icon_size),
+                Color.WHITE,
+                resources.getDimensionPixelSize(R.dimen.border_thickness),
+                resources.getDimensionPixelSize(R.dimen.corner_round_factor));
         mGoogleApiClient = new Builder(getActivity())
                 .addApi(LocationServices.API)
                 .addConnectionCallbacks(new ConnectionCallbacks() {
@@ -91,7 +137,13 @@ public class SphereMapFragment extends SupportMapFragment implements
           public void onMapReady(GoogleMap googleMap) {
             mMap = googleMap;
             mMap.setOnMarkerClickListener(SphereMapFragment.this);
-            fetchAllSpheres(SphereMapFragment.this);
+            mMap.setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+                @Override
+                public void onCameraChange(CameraPosition cameraPosition) {
+                    updateMarkers();
+                    scheduleFetchVisibleSpheres();
+                }
+            });
             updateUI();
           }
         });
@@ -112,7 +164,11 @@ public class SphereMapFragment extends SupportMapFragment implements
     public boolean onMarkerClick(Marker marker) {
         String photoID = marker.getSnippet();
         if (photoID == null) {
-            return false;
+            // a cluster, which is split by zooming in
+            mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(
+                    marker.getPosition(),
+                    mMap.getCameraPosition().zoom + CLUSTER_ZOOM_STEP));
+            return true;
         }
         //Replace container with detail view fragment
         DetailViewFragment fragment = DetailViewFragment.newInstance(photoID);
@@ -125,6 +181,29 @@ public class SphereMapFragment extends SupportMapFragment implements
         return true;
     }
 
+    // fetches the visible spheres once the camera has been still for CAMERA_IDLE_DELAY_MS
+    private void scheduleFetchVisibleSpheres() {
+        mHandler.removeCallbacks(mFetchVisibleSpheres);
+        mHandler.postDelayed(mFetchVisibleSpheres, CAMERA_IDLE_DELAY_MS);
+    }
+
+    // fetches the spheres of the visible region that don't have a marker yet, giving up on the
+    // region fetched before
+    private void fetchVisibleSpheres() {
+        if (mMap == null) {
+            return;
+        }
+        if (mSphereQuery != null) {
+            mSphereQuery.cancel();
+        }
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        mSphereQuery = fetchSpheresInBox(
+                new ParseGeoPoint(bounds.southwest.latitude, bounds.southwest.longitude),
+                new ParseGeoPoint(bounds.northeast.latitude, bounds.northeast.longitude),
+                mLoadedSphereIds,
+                this);
+    }
+
     // creates location request, on location updated sets current location and calls the method to
     // load spheres
     private void getLocation() {
@@ -146,41 +225,144 @@ public class SphereMapFragment extends SupportMapFragment implements
 
 
     /**
-     * handles the loading of the spheres, adding them as markers to the map, and to the hashmap
-     * @param photoSpheres- list of PhotoOrbs returned from parse query
+     * handles the loading of the spheres, adding them to the clusters of the spheres loaded
+     * before and updating the markers in view
+     * @param photoSpheres- list of PhotoOrbs returned from parse query, not loaded before
      */
     @Override
     public void onSpheresLoaded(List<Sphere> photoSpheres) {
-        Resources resources = getResources();
-        int iconSize = resources.getDimensionPixelSize(R.dimen.pin_icon_size);
-        int roundedCorner = resources.getDimensionPixelSize(R.dimen.corner_round_factor);
-        int borderThickness = resources.getDimensionPixelSize(R.dimen.border_thickness);
-        mMap.clear();
-        for(Sphere sphere : photoSpheres) {
-            ParseFile thumbnailFile = sphere.getThumbnail();
-            try {
-                byte[] byteData = new byte[0];
-                byteData = thumbnailFile.getData();
-                Bitmap bitmap = BitmapFactory.decodeByteArray(byteData, 0, byteData.length);
-                ParseGeoPoint sphereLoc = sphere.getCoordinates();
-                // creates marker with thumbnail as icon and ObjectId as snippet
-                MarkerOptions sphereMarker = new MarkerOptions()
-                    .position(new LatLng(sphereLoc.getLatitude(), sphereLoc.getLongitude()))
-                    .icon(BitmapDescriptorFactory
-                            .fromBitmap(getRoundedRectBitmap(
-                            bitmap,
-                            Color.WHITE,
-                            iconSize,
-                            borderThickness,
-                            roundedCorner)))
-                    .snippet(sphere.getObjectId());
-                mMap.addMarker(sphereMarker);
-
-            } catch (ParseException e) {
-                Log.e(TAG, "error when handling loaded spheres: " + e);
+        for (Sphere sphere : photoSpheres) {
+            ParseGeoPoint sphereLoc = sphere.getCoordinates();
+            if (sphereLoc != null) {
+                mClusterer.add(sphere, sphereLoc.getLatitude(), sphereLoc.getLongitude());
             }
         }
-        updateUI();
+        updateMarkers();
+    }
+
+    // gives a marker to each cluster in view, keeping the markers of the clusters that were
+    // already in view and removing those that aren't anymore
+    private void updateMarkers() {
+        if (mMap == null) {
+            return;
+        }
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        mClusterer.getClusters(
+                mMap.getCameraPosition().zoom,
+                bounds.southwest.latitude,
+                bounds.southwest.longitude,
+                bounds.northeast.latitude,
+                bounds.northeast.longitude,
+                mVisibleClusters);
+
+        Map<String, Marker> markers = new HashMap<String, Marker>();
+        for (MarkerClusterer.Cluster<Sphere> cluster : mVisibleClusters) {
+            if (cluster.getSize() == 1) {
+                Sphere sphere = cluster.getItems().iterator().next();
+                Marker marker = mMarkers.remove(sphere.getObjectId());
+                if (marker == null) {
+                    marker = addSphereMarker(sphere);
+                }
+                markers.put(sphere.getObjectId(), marker);
+            } else {
+                markers.put(cluster.getKey(), updateClusterMarker(cluster));
+            }
+        }
+
+        for (Map.Entry<String, Marker> entry : mMarkers.entrySet()) {
+            entry.getValue().remove();
+            mClusterLabels.remove(entry.getKey());
+        }
+        mMarkers = markers;
+    }
+
+    // adds the marker of a single sphere, with its thumbnail if it is cached in memory or a
+    // placeholder until it is loaded in the background
+    private Marker addSphereMarker(Sphere sphere) {
+        ParseGeoPoint sphereLoc = sphere.getCoordinates();
+        BitmapDescriptor icon = mMarkerIconLoader.getCachedIcon(sphere.getObjectId());
+        // creates marker with ObjectId as snippet
+        MarkerOptions sphereMarker = new MarkerOptions()
+            .position(new LatLng(sphereLoc.getLatitude(), sphereLoc.getLongitude()))
+            .icon(icon != null ? icon : getPlaceholderIcon())
+            .snippet(sphere.getObjectId());
+        Marker marker = mMap.addMarker(sphereMarker);
+
+        ParseFile thumbnailFile = sphere.getThumbnail();
+        if (icon == null && thumbnailFile != null) {
+            mMarkerIconLoader.load(sphere.getObjectId(), thumbnailFile, this);
+        }
+        return marker;
+    }
+
+    // moves the marker of the cluster to the spheres it has now, and changes its badge if its
+    // label changed, or adds it if it had none
+    private Marker updateClusterMarker(MarkerClusterer.Cluster<Sphere> cluster) {
+        String key = cluster.getKey();
+        String label = getClusterLabel(cluster.getSize());
+        LatLng position = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+        Marker marker = mMarkers.remove(key);
+        if (marker == null) {
+            // without snippet, which tells clusters apart when clicked
+            marker = mMap.addMarker(new MarkerOptions()
+                    .position(position)
+                    .icon(getClusterIcon(label)));
+        } else {
+            marker.setPosition(position);
+            if (!label.equals(mClusterLabels.get(key))) {
+                marker.setIcon(getClusterIcon(label));
+            }
+        }
+        mClusterLabels.put(key, label);
+        return marker;
+    }
+
+    private static String getClusterLabel(int size) {
+        for (int i = CLUSTER_LABEL_SIZES.length - 1; i >= 0; i--) {
+            if (size >= CLUSTER_LABEL_SIZES[i]) {
+                return CLUSTER_LABEL_SIZES[i] + "+";
+            }
+        }
+        return String.valueOf(size);
+    }
+
+    // the badge of the clusters with the label, drawn once
+    private BitmapDescriptor getClusterIcon(String label) {
+        BitmapDescriptor icon = mClusterIcons.get(label);
+        if (icon == null) {
+            Resources resources = getResources();
+            icon = BitmapDescriptorFactory.fromBitmap(MarkerIconLoader.getClusterBitmap(
+                    label,
+                    resources.getColor(R.color.teal),
+                    Color.WHITE,
+                    resources.getDimensionPixelSize(R.dimen.pin_icon_size),
+                    resources.getDimensionPixelSize(R.dimen.border_thickness)));
+            mClusterIcons.put(label, icon);
+        }
+        return icon;
+    }
+
+    @Override
+    public void onIconLoaded(String sphereId, BitmapDescriptor icon) {
+        Marker marker = mMarkers.get(sphereId);
+        if (marker != null) {
+            marker.setIcon(icon);
+        }
+    }
+
+    // the icon of the markers whose thumbnail isn't loaded yet, drawn once
+    private BitmapDescriptor getPlaceholderIcon() {
+        if (mPlaceholderIcon == null) {
+            Resources resources = getResources();
+            mPlaceholderIcon = BitmapDescriptorFactory.fromBitmap(
+                    MarkerIconLoader.getPlaceholderBitmap(
+                            resources.getColor(R.color.light_medium_grey),
+                            Color.WHITE,
+                            resources.getDimensionPixelSize(R.dimen.pin_icon_size),
+                            resources.getDimensionPixelSize(R.dimen.border_thickness),
+                            resources.getDimensionPixelSize(R.dimen.corner_round_factor)));
+        }
+        return mPlaceholderIcon;
     }
 
     @Override
@@ -198,9 +380,13 @@ public class SphereMapFragment extends SupportMapFragment implements
         if (mCurrentLocation == null) {
             mCurrentLocation = sMenloParkLatLng;
         }
-        MarkerOptions myMarker = new MarkerOptions()
-            .position(mCurrentLocation);
-        mMap.addMarker(myMarker).setVisible(false);
+        if (mLocationMarker == null) {
+            mLocationMarker = mMap.addMarker(new MarkerOptions()
+                .position(mCurrentLocation)
+                .visible(false));
+        } else {
+            mLocationMarker.setPosition(mCurrentLocation);
+        }
         CameraUpdate update = CameraUpdateFactory.newLatLngZoom(mCurrentLocation, 10.0f);
         mMap.animateCamera(update);
     }
@@ -235,13 +421,18 @@ public class SphereMapFragment extends SupportMapFragment implements
     public void onResume() {
         super.onResume();
         setLastKnownLocation();
-        fetchAllSpheres(SphereMapFragment.this);
+        scheduleFetchVisibleSpheres();
         mGoogleApiClient.connect();
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mHandler.removeCallbacks(mFetchVisibleSpheres);
+        if (mSphereQuery != null) {
+            mSphereQuery.cancel();
+            mSphereQuery = null;
+        }
         //Store last known location for load speed purposes
         double longitude = mCurrentLocation.longitude;
         double latitude = mCurrentLocation.latitude;
@@ -258,48 +449,9 @@ public class SphereMapFragment extends SupportMapFragment implements
         }
     }
 
-  //Customized rectangle with rounded corners pin bitmap function
-  private static Bitmap getRoundedRectBitmap(
-      Bitmap bitmap,
-      int strokeColor,
-      int iconSize,
-      int borderThickness,
-      int roundedEdgeFactor) {
-
-    if (bitmap == null) {
-      return null;
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mMarkerIconLoader.shutDown();
     }
-    // Crop original 2:1 bitmap into a square
-    bitmap = ThumbnailUtils.extractThumbnail(bitmap, iconSize, iconSize);
-    // Create plain bitmap
-    int srcHeight = bitmap.getHeight();
-    int srcWidth = bitmap.getWidth();
-    Bitmap canvasBitmap = Bitmap.createBitmap(
-        srcWidth,
-        srcHeight,
-        Bitmap.Config.ARGB_8888);
-
-    Canvas canvas = new Canvas(canvasBitmap);
-    canvas.drawARGB(0, 0, 0, 0);
-
-    Paint paint = new Paint();
-    paint.setAntiAlias(true);
-
-    Rect rect = new Rect(0, 0, srcWidth, srcHeight);
-    RectF rectF = new RectF(rect);
-    canvas.drawRoundRect(rectF, roundedEdgeFactor, roundedEdgeFactor, paint);
-    paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-    canvas.drawBitmap(bitmap, rect, rect, paint);
-
-    //Draw border
-    Paint borderStroke = new Paint();
-    borderStroke.setAntiAlias(true);
-    borderStroke.setColor(strokeColor);
-    borderStroke.setStyle(Paint.Style.STROKE);
-    borderStroke.setStrokeWidth(borderThickness);
-    borderStroke.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-    canvas.drawRoundRect(rectF, roundedEdgeFactor, roundedEdgeFactor, borderStroke);
-
-    return canvasBitmap;
-  }
 }
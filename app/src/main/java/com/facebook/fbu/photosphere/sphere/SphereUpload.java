@@ -0,0 +1,500 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.net.Uri;
+import android.util.Log;
+
+import com.facebook.fbu.photosphere.sphere.Sphere.SpherePhotoType;
+import com.facebook.fbu.photosphere.spherelib.TiledPanorama;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sphere waiting in the upload queue, persisted in a directory of its own so that it survives
+ * the process: its description in upload.json, and once encoded its image, the derivatives of
+ * the image and its thumbnail, along with the TiledPanorama package of a sphere of the camera.
+ * The description also records how far the upload went, the draft sphere it created and the url
+ * of each file saved, so that an attempt goes on where the last one stopped
+ *
+ * An upload is built in a staging directory next to the queue, with a copy of its picture as its
+ * source, and moved into the queue once whole. The uploads are listed in the order they were
+ * queued, by the name of their directories
+ */
+public class SphereUpload {
+
+    private static final String TAG = SphereUpload.class.getSimpleName();
+    private static final String DESCRIPTION_FILE_NAME = "upload.json";
+    private static final String IMAGE_FILE_NAME = "image.jpg";
+    private static final String THUMBNAIL_FILE_NAME = "thumbnail.jpg";
+    private static final String SOURCE_FILE_NAME = "source.jpg";
+    private static final String DERIVATIVE_FILE_PREFIX = "image_";
+    private static final String TILES_DIRECTORY_NAME = "tiles";
+    private static final String TILES_MANIFEST_FILE_NAME = "tiles_manifest.txt";
+    private static final String STAGING_SUFFIX = "_staging";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_STAGING_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static final String SOURCE = "source";
+    private static final String PHOTO_TYPE = "photo_type";
+    private static final String CAPTION = "caption";
+    private static final String LATITUDE = "latitude";
+    private static final String LONGITUDE = "longitude";
+    private static final String IS_ENCODED = "is_encoded";
+    private static final String IMAGE_WIDTH = "image_width";
+    private static final String ATTEMPT_COUNT = "attempt_count";
+    private static final String NEXT_ATTEMPT_TIME = "next_attempt_time";
+    private static final String HAS_FAILED = "has_failed";
+    private static final String SPHERE_ID = "sphere_id";
+    private static final String SAVED_FILES = "saved_files";
+
+    private File mDirectory;
+    // the picture of an upload queued by an older version, or null if it is the source file
+    private Uri mSource;
+    private SpherePhotoType mPhotoType;
+    private String mCaption;
+    private boolean mHasLocation;
+    private double mLatitude;
+    private double mLongitude;
+    private boolean mIsEncoded;
+    private int mImageWidth;
+    private int mAttemptCount;
+    private long mNextAttemptTime;
+    private boolean mHasFailed;
+    private String mSphereId;
+    // the urls of the files saved, by their paths in the directory of the upload
+    private final Map<String, String> mSavedFiles = new HashMap<String, String>();
+
+    /**
+     * Queues a sphere, copying its picture in the upload as its source, so that it stays
+     * readable whatever happens to the picture or the permission to read it
+     *
+     * @param queueDirectory - the directory of the queue
+     * @param source         - the picture, read until its end and not closed
+     * @param tilesDirectory - the package of tiles of the picture, moved into the upload, or null
+     * @param location       - where the picture was taken, or null
+     */
+    public static SphereUpload create(
+            File queueDirectory,
+            InputStream source,
+            File tilesDirectory,
+            SpherePhotoType photoType,
+            String caption,
+            Location location) throws IOException {
+        File directory = createDirectory(getStagingDirectory(queueDirectory));
+        try {
+            copy(source, new File(directory, SOURCE_FILE_NAME));
+            return queue(directory, queueDirectory, tilesDirectory, photoType, caption, location);
+        } catch (IOException e) {
+            deleteRecursively(directory);
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a sphere whose picture is only in memory, writing it in the upload as its source,
+     * for when it couldn't be saved anywhere else
+     *
+     * @param queueDirectory - the directory of the queue
+     * @param tilesDirectory - the package of tiles of the picture, moved into the upload, or null
+     * @param location       - where the picture was taken, or null
+     */
+    public static SphereUpload create(
+            File queueDirectory,
+            Bitmap bitmap,
+            File tilesDirectory,
+            SpherePhotoType photoType,
+            String caption,
+            Location location) throws IOException {
+        File directory = createDirectory(getStagingDirectory(queueDirectory));
+        try {
+            writeJpeg(bitmap, new File(directory, SOURCE_FILE_NAME));
+            return queue(directory, queueDirectory, tilesDirectory, photoType, caption, location);
+        } catch (IOException e) {
+            deleteRecursively(directory);
+            throw e;
+        }
+    }
+
+    // Writes the description of an upload built in the staging directory, then moves it into the
+    // queue, so that the service only ever lists uploads that are whole
+    private static SphereUpload queue(
+            File stagingDirectory,
+            File queueDirectory,
+            File tilesDirectory,
+            SpherePhotoType photoType,
+            String caption,
+            Location location) throws IOException {
+        SphereUpload upload = new SphereUpload(stagingDirectory);
+        upload.mPhotoType = photoType;
+        upload.mCaption = caption;
+        if (location != null) {
+            upload.mHasLocation = true;
+            upload.mLatitude = location.getLatitude();
+            upload.mLongitude = location.getLongitude();
+        }
+        upload.save();
+        moveTiles(tilesDirectory, stagingDirectory);
+
+        if (!queueDirectory.isDirectory() && !queueDirectory.mkdirs()) {
+            throw new IOException("Could not create " + queueDirectory);
+        }
+        File directory = new File(queueDirectory, stagingDirectory.getName());
+        // two uploads queued within the same millisecond
+        while (directory.exists()) {
+            directory = new File(queueDirectory, directory.getName() + "_");
+        }
+        if (!stagingDirectory.renameTo(directory)) {
+            throw new IOException("Could not move " + stagingDirectory + " to " + directory);
+        }
+        upload.mDirectory = directory;
+        return upload;
+    }
+
+    // where uploads are built before they are moved into the queue, next to it
+    private static File getStagingDirectory(File queueDirectory) {
+        return new File(queueDirectory.getParentFile(), queueDirectory.getName() + STAGING_SUFFIX);
+    }
+
+    private static File createDirectory(File parentDirectory) throws IOException {
+        File directory = new File(parentDirectory, Long.toString(System.currentTimeMillis()));
+        // two uploads created within the same millisecond
+        while (directory.exists()) {
+            directory = new File(parentDirectory, directory.getName() + "_");
+        }
+        if (!directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    // the sphere is uploaded without its tiles if they can't be moved, viewers then loading its
+    // images
+    private static void moveTiles(File tilesDirectory, File directory) {
+        if (tilesDirectory != null
+                && !tilesDirectory.renameTo(new File(directory, TILES_DIRECTORY_NAME))) {
+            Log.e(TAG, "could not move " + tilesDirectory + " into upload " + directory.getName());
+        }
+    }
+
+    /**
+     * Lists the uploads of the queue, oldest first. An upload whose description can't be read is
+     * skipped, and deleted if it is corrupt. The uploads left in the staging directory by a
+     * process that died while creating them are deleted once they are old enough that none can
+     * still be in the making
+     */
+    public static List<SphereUpload> list(File queueDirectory) {
+        File[] stagingDirectories = getStagingDirectory(queueDirectory).listFiles();
+        if (stagingDirectories != null) {
+            for (File directory : stagingDirectories) {
+                if (directory.lastModified() + MAX_STAGING_AGE_MS < System.currentTimeMillis()) {
+                    deleteRecursively(directory);
+                }
+            }
+        }
+
+        List<SphereUpload> uploads = new ArrayList<SphereUpload>();
+        File[] directories = queueDirectory.listFiles();
+        if (directories == null) {
+            return uploads;
+        }
+        Arrays.sort(directories);
+        for (File directory : directories) {
+            SphereUpload upload = new SphereUpload(directory);
+            try {
+                upload.load();
+                uploads.add(upload);
+            } catch (IOException e) {
+                Log.e(TAG, "skipped upload " + directory.getName() + ": " + e);
+            } catch (JSONException e) {
+                Log.e(TAG, "dropped upload " + directory.getName() + ": " + e);
+                upload.delete();
+            }
+        }
+        return uploads;
+    }
+
+    private SphereUpload(File directory) {
+        mDirectory = directory;
+    }
+
+    // the picture to encode, see getSourceFile
+    public Uri getSource() {
+        return mSource != null ? mSource : Uri.fromFile(getSourceFile());
+    }
+
+    public SpherePhotoType getPhotoType() {
+        return mPhotoType;
+    }
+
+    public String getCaption() {
+        return mCaption;
+    }
+
+    public boolean hasLocation() {
+        return mHasLocation;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    // whether the files are written, so the source isn't needed anymore
+    public boolean isEncoded() {
+        return mIsEncoded;
+    }
+
+    public void setEncoded(int imageWidth) {
+        mIsEncoded = true;
+        mImageWidth = imageWidth;
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    // the time in milliseconds since the epoch before which the upload isn't tried again
+    public long getNextAttemptTime() {
+        return mNextAttemptTime;
+    }
+
+    public void setFailedAttempt(long nextAttemptTime) {
+        mAttemptCount++;
+        mNextAttemptTime = nextAttemptTime;
+    }
+
+    // whether the upload was given up on after its last attempt, it stays in the queue until it
+    // is retried
+    public boolean hasFailed() {
+        return mHasFailed;
+    }
+
+    public void setFailed() {
+        mHasFailed = true;
+    }
+
+    // tries the upload again from its first attempt, keeping what it already saved
+    public void resetAttempts() {
+        mHasFailed = false;
+        mAttemptCount = 0;
+        mNextAttemptTime = 0;
+    }
+
+    // the draft sphere created for the upload, or null before it is
+    public String getSphereId() {
+        return mSphereId;
+    }
+
+    public void setSphereId(String sphereId) {
+        mSphereId = sphereId;
+    }
+
+    // whether the file was saved and set on the draft sphere
+    public boolean isFileSaved(File file) {
+        return mSavedFiles.containsKey(getPath(file));
+    }
+
+    public void setFileSaved(File file, String url) {
+        mSavedFiles.put(getPath(file), url);
+    }
+
+    // the url the file was saved to, or null if it wasn't
+    public String getSavedUrl(File file) {
+        return mSavedFiles.get(getPath(file));
+    }
+
+    // the path of a file of the upload from its directory, the tiles of different levels having
+    // the same names
+    private String getPath(File file) {
+        String directoryPath = mDirectory.getPath() + File.separator;
+        return file.getPath().startsWith(directoryPath)
+                ? file.getPath().substring(directoryPath.length())
+                : file.getName();
+    }
+
+    public File getImageFile() {
+        return new File(mDirectory, IMAGE_FILE_NAME);
+    }
+
+    // the image scaled down to one of Sphere.DERIVATIVE_WIDTHS, missing if it isn't wider
+    public File getDerivativeFile(int width) {
+        return new File(mDirectory, DERIVATIVE_FILE_PREFIX + width + ".jpg");
+    }
+
+    public File getThumbnailFile() {
+        return new File(mDirectory, THUMBNAIL_FILE_NAME);
+    }
+
+    // whether the upload has a whole package of tiles, whose index is written last
+    public boolean hasTiles() {
+        return new File(getTilesDirectory(), TiledPanorama.INDEX_FILE).exists();
+    }
+
+    // the TiledPanorama package of the sphere, see hasTiles
+    public File getTilesDirectory() {
+        return new File(mDirectory, TILES_DIRECTORY_NAME);
+    }
+
+    // the urls of the tiles once saved, see ManifestTileSource
+    public File getTilesManifestFile() {
+        return new File(mDirectory, TILES_MANIFEST_FILE_NAME);
+    }
+
+    // the copy of the picture of the upload, not needed once the upload is encoded
+    public File getSourceFile() {
+        return new File(mDirectory, SOURCE_FILE_NAME);
+    }
+
+    // writes the description aside and renames it, so that it is never read half written
+    public void save() throws IOException {
+        JSONObject description = new JSONObject();
+        try {
+            if (mSource != null) {
+                description.put(SOURCE, mSource.toString());
+            }
+            description.put(PHOTO_TYPE, mPhotoType.name());
+            description.put(CAPTION, mCaption);
+            if (mHasLocation) {
+                description.put(LATITUDE, mLatitude);
+                description.put(LONGITUDE, mLongitude);
+            }
+            description.put(IS_ENCODED, mIsEncoded);
+            description.put(IMAGE_WIDTH, mImageWidth);
+            description.put(ATTEMPT_COUNT, mAttemptCount);
+            description.put(NEXT_ATTEMPT_TIME, mNextAttemptTime);
+            description.put(HAS_FAILED, mHasFailed);
+            if (mSphereId != null) {
+                description.put(SPHERE_ID, mSphereId);
+            }
+            description.put(SAVED_FILES, new JSONObject(mSavedFiles));
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+        File file = new File(mDirectory, DESCRIPTION_FILE_NAME);
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        OutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(description.toString().getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    private void load() throws IOException, JSONException {
+        File file = new File(mDirectory, DESCRIPTION_FILE_NAME);
+        JSONObject description = new JSONObject(new String(readFile(file), "UTF-8"));
+        String source = description.optString(SOURCE, null);
+        mSource = source != null ? Uri.parse(source) : null;
+        mPhotoType = SpherePhotoType.valueOf(description.getString(PHOTO_TYPE));
+        mCaption = description.optString(CAPTION, null);
+        mHasLocation = description.has(LATITUDE);
+        mLatitude = description.optDouble(LATITUDE);
+        mLongitude = description.optDouble(LONGITUDE);
+        mIsEncoded = description.getBoolean(IS_ENCODED);
+        mImageWidth = description.optInt(IMAGE_WIDTH);
+        mAttemptCount = description.getInt(ATTEMPT_COUNT);
+        mNextAttemptTime = description.getLong(NEXT_ATTEMPT_TIME);
+        mHasFailed = description.optBoolean(HAS_FAILED);
+        mSphereId = description.optString(SPHERE_ID, null);
+        JSONObject savedFiles = description.optJSONObject(SAVED_FILES);
+        if (savedFiles != null) {
+            Iterator<String> names = savedFiles.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                mSavedFiles.put(name, savedFiles.getString(name));
+            }
+        }
+    }
+
+    // removes the upload from the queue
+    public void delete() {
+        deleteRecursively(mDirectory);
+    }
+
+    static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // writes the bitmap aside and renames it, so that a file is either whole or missing
+    static void writeJpeg(Bitmap bitmap, File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        OutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            bitmap.compress(
+                    Bitmap.CompressFormat.JPEG,
+                    UXUtils.BITMAP_UPLOAD_QUALITY,
+                    outputStream);
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    private static void copy(InputStream inputStream, File file) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = inputStream.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += count;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+}
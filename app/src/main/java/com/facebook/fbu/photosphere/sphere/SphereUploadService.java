@@ -0,0 +1,525 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.location.Location;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.facebook.fbu.photosphere.sphere.Sphere.SpherePhotoType;
+import com.facebook.fbu.photosphere.sphere.api.SphereAPI;
+import com.facebook.fbu.photosphere.spherelib.ManifestTileSource;
+import com.facebook.fbu.photosphere.spherelib.TiledPanorama;
+import com.parse.ParseException;
+import com.parse.ParseFile;
+import com.parse.ParseGeoPoint;
+import com.parse.ProgressCallback;
+import com.parse.SaveCallback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Uploads the spheres of the queue one after the other in the background, so that the user can
+ * keep shooting, and reports on them through a notification
+ *
+ * Each upload is encoded once from its source into a JPEG image, the derivatives of the image
+ * narrower than it and a thumbnail, kept with it in the queue. Then a draft sphere is created,
+ * each file is saved and set on it, and it is published. The tiles of a sphere of the camera are
+ * saved one by one, and the manifest of their urls is set on it, for ViewerActivity. Every step
+ * is recorded in the upload, so that a later attempt neither saves a file twice nor creates a
+ * second sphere.
+ *
+ * An upload that fails is tried again after a delay doubling each time, and the service is woken
+ * up for it by an alarm. After MAX_ATTEMPT_COUNT it is kept in the queue as failed, and a
+ * notification offers to try it again. The queue is also drained when the application starts,
+ * for the uploads of a process that died
+ */
+public class SphereUploadService extends IntentService {
+
+    private static final String TAG = SphereUploadService.class.getSimpleName();
+    private static final String QUEUE_DIRECTORY_NAME = "uploads";
+    // set on the intent that tries the failed uploads again
+    private static final String EXTRA_RETRY_FAILED = "retry_failed";
+    private static final int NOTIFICATION_ID = 1;
+    // the delay before the first retry, doubled for each one after it up to MAX_RETRY_DELAY_MS
+    private static final long RETRY_DELAY_MS = 30 * 1000L;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 60 * 1000L;
+    private static final int MAX_ATTEMPT_COUNT = 8;
+
+    // the progress of an upload once encoded and once its files are saved, in percent, the files
+    // taking their share of the progress in between by size
+    private static final int ENCODED_PROGRESS = 10;
+    private static final int SAVED_PROGRESS = 95;
+
+    private NotificationManager mNotificationManager;
+
+    public SphereUploadService() {
+        super(TAG);
+    }
+
+    /**
+     * Queues a sphere and starts uploading it, the picture being copied into the queue
+     *
+     * @param source         - the picture, a content or file uri
+     * @param tilesDirectory - the TiledPanorama package of the picture, moved into the queue, or
+     *                       null
+     * @param location       - where the picture was taken, or null
+     * @throws IOException if it couldn't be queued
+     */
+    public static void upload(
+            Context context,
+            Uri source,
+            File tilesDirectory,
+            SpherePhotoType photoType,
+            String caption,
+            Location location) throws IOException {
+        InputStream inputStream = context.getContentResolver().openInputStream(source);
+        if (inputStream == null) {
+            throw new IOException("Could not open " + source);
+        }
+        try {
+            SphereUpload.create(
+                    getQueueDirectory(context),
+                    inputStream,
+                    tilesDirectory,
+                    photoType,
+                    caption,
+                    location);
+        } finally {
+            inputStream.close();
+        }
+        start(context);
+    }
+
+    /**
+     * Queues a sphere whose picture is only in memory and starts uploading it, the picture being
+     * written into the queue
+     *
+     * @param tilesDirectory - the TiledPanorama package of the picture, moved into the queue, or
+     *                       null
+     * @param location       - where the picture was taken, or null
+     * @throws IOException if it couldn't be queued
+     */
+    public static void upload(
+            Context context,
+            Bitmap bitmap,
+            File tilesDirectory,
+            SpherePhotoType photoType,
+            String caption,
+            Location location) throws IOException {
+        SphereUpload.create(
+                getQueueDirectory(context),
+                bitmap,
+                tilesDirectory,
+                photoType,
+                caption,
+                location);
+        start(context);
+    }
+
+    // uploads whatever is left in the queue
+    public static void start(Context context) {
+        context.startService(new Intent(context, SphereUploadService.class));
+    }
+
+    // the intent of the notification of failed uploads, which tries them again
+    private static Intent getRetryFailedIntent(Context context) {
+        return new Intent(context, SphereUploadService.class)
+                .putExtra(EXTRA_RETRY_FAILED, true);
+    }
+
+    private static File getQueueDirectory(Context context) {
+        return new File(context.getFilesDir(), QUEUE_DIRECTORY_NAME);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        boolean isRetryingFailed = intent != null
+                && intent.getBooleanExtra(EXTRA_RETRY_FAILED, false);
+        List<SphereUpload> uploads = SphereUpload.list(getQueueDirectory(this));
+        long nextAttemptTime = Long.MAX_VALUE;
+        int uploadedCount = 0;
+        int failedCount = 0;
+        for (int i = 0; i < uploads.size(); i++) {
+            SphereUpload upload = uploads.get(i);
+            if (upload.hasFailed()) {
+                if (!isRetryingFailed) {
+                    failedCount++;
+                    continue;
+                }
+                upload.resetAttempts();
+            }
+            if (upload.getNextAttemptTime() > System.currentTimeMillis()) {
+                nextAttemptTime = Math.min(nextAttemptTime, upload.getNextAttemptTime());
+                continue;
+            }
+            try {
+                upload(upload, i + 1, uploads.size());
+                upload.delete();
+                uploadedCount++;
+            } catch (IOException e) {
+                Log.e(TAG, "error when uploading sphere: " + e);
+                if (retryLater(upload)) {
+                    nextAttemptTime = Math.min(nextAttemptTime, upload.getNextAttemptTime());
+                } else {
+                    failedCount++;
+                }
+            } catch (ParseException e) {
+                Log.e(TAG, "error when uploading sphere: " + e);
+                if (retryLater(upload)) {
+                    nextAttemptTime = Math.min(nextAttemptTime, upload.getNextAttemptTime());
+                } else {
+                    failedCount++;
+                }
+            } catch (RuntimeException e) {
+                // such as a SecurityException from an upload queued with a content uri by an
+                // older version, which would otherwise crash the service on every launch
+                Log.e(TAG, "error when uploading sphere: " + e);
+                if (retryLater(upload)) {
+                    nextAttemptTime = Math.min(nextAttemptTime, upload.getNextAttemptTime());
+                } else {
+                    failedCount++;
+                }
+            } catch (OutOfMemoryError e) {
+                // a picture too large to decode, which may fit once the memory is freed
+                Log.e(TAG, "error when uploading sphere: " + e);
+                if (retryLater(upload)) {
+                    nextAttemptTime = Math.min(nextAttemptTime, upload.getNextAttemptTime());
+                } else {
+                    failedCount++;
+                }
+            }
+        }
+
+        if (nextAttemptTime != Long.MAX_VALUE) {
+            scheduleAttempt(nextAttemptTime);
+        }
+        if (failedCount > 0) {
+            notifyFailure();
+        } else if (uploadedCount > 0 && nextAttemptTime == Long.MAX_VALUE) {
+            notify(getString(R.string.upload_done), -1);
+        } else if (nextAttemptTime != Long.MAX_VALUE) {
+            notify(getString(R.string.upload_waiting), -1);
+        }
+    }
+
+    // delays the next attempt at the upload, or marks it as failed and returns false after the
+    // last, the upload being kept until the user tries it again
+    private static boolean retryLater(SphereUpload upload) {
+        boolean isRetried = upload.getAttemptCount() + 1 < MAX_ATTEMPT_COUNT;
+        if (isRetried) {
+            long delay = Math.min(RETRY_DELAY_MS << upload.getAttemptCount(), MAX_RETRY_DELAY_MS);
+            upload.setFailedAttempt(System.currentTimeMillis() + delay);
+        } else {
+            upload.setFailed();
+        }
+        try {
+            upload.save();
+        } catch (IOException e) {
+            Log.e(TAG, "error when saving upload: " + e);
+        }
+        return isRetried;
+    }
+
+    // wakes the service up at the time, replacing the alarm set before
+    private void scheduleAttempt(long time) {
+        PendingIntent pendingIntent = PendingIntent.getService(
+                this,
+                0,
+                new Intent(this, SphereUploadService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC, time, pendingIntent);
+    }
+
+    private void upload(SphereUpload upload, int index, int count)
+            throws IOException, ParseException {
+        String text = getString(R.string.upload_progress, index, count);
+        notify(text, 0);
+        if (!upload.isEncoded()) {
+            upload.setEncoded(encode(upload));
+            upload.save();
+            upload.getSourceFile().delete();
+        }
+        notify(text, ENCODED_PROGRESS);
+
+        // the sphere is created first, and recorded before anything is set on it, so that it is
+        // created once. A draft left by a process that died before recording it is never shown
+        Sphere sphere;
+        if (upload.getSphereId() == null) {
+            ParseGeoPoint coordinates = null;
+            if (upload.hasLocation()) {
+                coordinates = new ParseGeoPoint(upload.getLatitude(), upload.getLongitude());
+            }
+            sphere = SphereAPI.createDraftSphere(
+                    upload.getImageWidth(),
+                    upload.getPhotoType(),
+                    upload.getCaption(),
+                    coordinates);
+            upload.setSphereId(sphere.getObjectId());
+            upload.save();
+        } else {
+            sphere = SphereAPI.getDraftSphere(upload.getSphereId());
+        }
+
+        // the files from the smallest, the image last since the sphere is listed once it has it.
+        // The manifest of the tiles follows them, being written from their urls
+        List<File> files = new ArrayList<File>();
+        files.add(upload.getThumbnailFile());
+        for (int width : Sphere.DERIVATIVE_WIDTHS) {
+            if (upload.getDerivativeFile(width).exists()) {
+                files.add(upload.getDerivativeFile(width));
+            }
+        }
+        TiledPanorama panorama = null;
+        if (upload.hasTiles()) {
+            panorama = readTiledPanorama(upload);
+            files.addAll(getTileFiles(upload, panorama));
+            files.add(upload.getTilesManifestFile());
+        }
+        files.add(upload.getImageFile());
+        long totalLength = 0;
+        for (File file : files) {
+            totalLength += file.length();
+        }
+
+        // Parse only takes the data of a file in memory, read once the previous one is saved.
+        // Each file is set on the sphere as soon as it is saved, then recorded, so that the files
+        // of an earlier attempt are skipped
+        long savedLength = 0;
+        for (File file : files) {
+            if (!upload.isFileSaved(file)) {
+                if (file.equals(upload.getTilesManifestFile())) {
+                    writeTilesManifest(upload, panorama);
+                }
+                ParseFile parseFile = new ParseFile(file.getName(), SphereUpload.readFile(file));
+                save(
+                        parseFile,
+                        text,
+                        getProgress(savedLength, totalLength),
+                        getProgress(savedLength + file.length(), totalLength));
+                // the tiles are only reached through the manifest
+                if (setFile(sphere, upload, file, parseFile)) {
+                    sphere.save();
+                }
+                upload.setFileSaved(file, parseFile.getUrl());
+                upload.save();
+            }
+            savedLength += file.length();
+        }
+
+        SphereAPI.publishSphere(sphere);
+    }
+
+    // sets the file on the column of the sphere it was encoded for, returning false if it has
+    // none
+    private static boolean setFile(
+            Sphere sphere,
+            SphereUpload upload,
+            File file,
+            ParseFile parseFile) {
+        if (file.equals(upload.getThumbnailFile())) {
+            sphere.setThumbnail(parseFile);
+        } else if (file.equals(upload.getImageFile())) {
+            sphere.setImage(parseFile);
+        } else if (file.equals(upload.getTilesManifestFile())) {
+            sphere.setTiles(parseFile);
+        } else {
+            for (int width : Sphere.DERIVATIVE_WIDTHS) {
+                if (file.equals(upload.getDerivativeFile(width))) {
+                    sphere.setDerivative(width, parseFile);
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static TiledPanorama readTiledPanorama(SphereUpload upload) throws IOException {
+        InputStream inputStream = new FileInputStream(
+                new File(upload.getTilesDirectory(), TiledPanorama.INDEX_FILE));
+        try {
+            return TiledPanorama.readIndex(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // the tiles of the package, the coarsest level first
+    private static List<File> getTileFiles(SphereUpload upload, TiledPanorama panorama) {
+        List<File> files = new ArrayList<File>();
+        for (int level = 0; level <= panorama.getFinestLevel(); level++) {
+            for (int row = 0; row < panorama.getRowCount(level); row++) {
+                for (int column = 0; column < panorama.getColumnCount(level); column++) {
+                    files.add(new File(
+                            upload.getTilesDirectory(),
+                            TiledPanorama.getTilePath(level, column, row)));
+                }
+            }
+        }
+        return files;
+    }
+
+    // writes the urls the tiles were saved to, once they all are
+    private static void writeTilesManifest(SphereUpload upload, TiledPanorama panorama)
+            throws IOException {
+        Map<String, String> tileUrls = new TreeMap<String, String>();
+        for (int level = 0; level <= panorama.getFinestLevel(); level++) {
+            for (int row = 0; row < panorama.getRowCount(level); row++) {
+                for (int column = 0; column < panorama.getColumnCount(level); column++) {
+                    String path = TiledPanorama.getTilePath(level, column, row);
+                    tileUrls.put(
+                            path,
+                            upload.getSavedUrl(new File(upload.getTilesDirectory(), path)));
+                }
+            }
+        }
+        OutputStream outputStream = new FileOutputStream(upload.getTilesManifestFile());
+        try {
+            ManifestTileSource.writeManifest(panorama, tileUrls, outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static int getProgress(long savedLength, long totalLength) {
+        return ENCODED_PROGRESS
+                + (int) ((SAVED_PROGRESS - ENCODED_PROGRESS) * savedLength / totalLength);
+    }
+
+    /**
+     * Writes the image, its derivatives and the thumbnail of the upload from its source, each
+     * scaled down from the one before, which is both quicker and smoother than from the image
+     *
+     * @return the width of the image
+     */
+    private int encode(SphereUpload upload) throws IOException {
+        InputStream inputStream = getContentResolver().openInputStream(upload.getSource());
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + upload.getSource());
+        }
+        int imageWidth = bitmap.getWidth();
+        SphereUpload.writeJpeg(bitmap, upload.getImageFile());
+        for (int i = Sphere.DERIVATIVE_WIDTHS.length - 1; i >= 0; i--) {
+            int width = Sphere.DERIVATIVE_WIDTHS[i];
+            if (width < bitmap.getWidth()) {
+                bitmap = scaleDown(bitmap, width);
+                SphereUpload.writeJpeg(bitmap, upload.getDerivativeFile(width));
+            }
+        }
+        bitmap = scaleDown(bitmap, Sphere.THUMBNAIL_WIDTH);
+        SphereUpload.writeJpeg(bitmap, upload.getThumbnailFile());
+        bitmap.recycle();
+        return imageWidth;
+    }
+
+    // the bitmap filtered down to the width, recycling it
+    private static Bitmap scaleDown(Bitmap bitmap, int width) {
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(
+                bitmap,
+                width,
+                width * bitmap.getHeight() / bitmap.getWidth(),
+                true);
+        if (scaledBitmap != bitmap) {
+            bitmap.recycle();
+        }
+        return scaledBitmap;
+    }
+
+    // saves the file, showing its progress between the two percentages of the upload
+    private void save(
+            ParseFile file,
+            final String text,
+            final int startProgress,
+            final int endProgress) throws ParseException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ParseException[] error = new ParseException[1];
+        file.saveInBackground(
+                new SaveCallback() {
+                    @Override
+                    public void done(ParseException e) {
+                        error[0] = e;
+                        latch.countDown();
+                    }
+                },
+                new ProgressCallback() {
+                    @Override
+                    public void done(Integer percentDone) {
+                        SphereUploadService.this.notify(
+                                text,
+                                startProgress + (endProgress - startProgress) * percentDone / 100);
+                    }
+                });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ParseException(ParseException.OTHER_CAUSE, "interrupted");
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    // tells the user about the uploads given up on, which are tried again when it is touched
+    private void notifyFailure() {
+        PendingIntent pendingIntent = PendingIntent.getService(
+                this,
+                1,
+                getRetryFailedIntent(this),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.app_icon)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.upload_failed))
+                .setContentIntent(pendingIntent)
+                .setAutoCancel(true);
+        mNotificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    // shows the text, with a progress bar unless progress is negative
+    private void notify(String text, int progress) {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.app_icon)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text);
+        if (progress >= 0) {
+            builder.setProgress(100, progress, false).setOngoing(true);
+        } else {
+            builder.setAutoCancel(true);
+        }
+        mNotificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+}
@@ -11,7 +11,7 @@ import java.io.ByteArrayOutputStream;
 
 public class UXUtils {
 
-    private static final int BITMAP_UPLOAD_QUALITY = 100;
+    public static final int BITMAP_UPLOAD_QUALITY = 100;
 
     public static void hideSoftKeyboard(Activity activity) {
         InputMethodManager inputMethodManager = (InputMethodManager) activity
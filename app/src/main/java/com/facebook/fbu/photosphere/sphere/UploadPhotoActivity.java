@@ -2,8 +2,6 @@
 
 package com.facebook.fbu.photosphere.sphere;
 
-import android.app.Dialog;
-import android.app.ProgressDialog;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.graphics.Bitmap;
@@ -29,16 +27,14 @@ import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
+import java.io.File;
 import java.io.IOException;
 
 import static com.facebook.fbu.photosphere.sphere.Sphere.SpherePhotoType.PANORAMA;
 import static com.facebook.fbu.photosphere.sphere.Sphere.SpherePhotoType.PHOTOSPHERE;
-import static com.facebook.fbu.photosphere.sphere.api.SphereAPI.SphereAddedCallback;
-import static com.facebook.fbu.photosphere.sphere.api.SphereAPI.addSphere;
 
 
 public class UploadPhotoActivity extends FragmentActivity implements
-        SphereAddedCallback,
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener,
         LocationListener {
@@ -46,14 +42,12 @@ public class UploadPhotoActivity extends FragmentActivity implements
     private static final String TAG = UploadPhotoActivity.class.getSimpleName();
     private static final int PICK_IMAGE_REQUEST = 1;
     private static final int CONNECTION_FAILURE_RESOLUTION_REQUEST = 9000;
-    private static final int MAX_UPLOAD_WIDTH_PX = 480; // in pixels
     private static final int LOCATION_UPDATE_INTERVAL = 10000; // in milliseconds
     private static final int LOCATION_UPDATE_FASTEST_INTERVAL = 1000; // in milliseconds
 
     // UI components
     private ImageView mPhotoImage;
     private EditText mCaptionEditText;
-    private Dialog mProgressDialog;
     private SpherePhotoType mSpherePhotoType;
     private ImageView mImageType;
     private ImageView mUploadIcon;
@@ -61,6 +55,11 @@ public class UploadPhotoActivity extends FragmentActivity implements
 
     private Location mLocation;
     private Bitmap mBitmap;
+    // the picture shown, copied into the queue by SphereUploadService, or null if it is only in
+    // mBitmap
+    private Uri mSource;
+    // the package of tiles written by the constructor, moved into the upload when posted
+    private File mTilesDirectory;
     private GoogleApiClient mGoogleApiClient;
     private LocationRequest mLocationRequest;
 
@@ -71,6 +70,13 @@ public class UploadPhotoActivity extends FragmentActivity implements
         public void run() {
             if (mPhotoSphereConstructor.isConstructionDone()) {
                 mBitmap = mPhotoSphereConstructor.getBitmap();
+                // saved by the constructor once done, see CameraActivity
+                if (mPhotoSphereConstructor.isFileSaved()) {
+                    mSource = Uri.fromFile(mPhotoSphereConstructor.getFile());
+                }
+                if (mPhotoSphereConstructor.isTiledPanoramaSaved()) {
+                    mTilesDirectory = mPhotoSphereConstructor.getTiledOutputDirectory();
+                }
                 mPostButton.setBackgroundColor(getResources().getColor(R.color.teal));
                 mPostButton.setEnabled(true);
             } else {
@@ -155,6 +161,7 @@ public class UploadPhotoActivity extends FragmentActivity implements
 
             try {
                 mBitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), selectedImage);
+                mSource = selectedImage;
                 mPhotoImage.setImageBitmap(mBitmap);
                 //remove from view
                 mUploadIcon.setImageDrawable(null);
@@ -175,48 +182,44 @@ public class UploadPhotoActivity extends FragmentActivity implements
     }
 
     /**
-     * handles the uploading of the user's entry data to parse
+     * queues the user's entry data for SphereUploadService to encode and upload to parse in the
+     * background, and returns to shooting
      */
     private void post() {
-        mProgressDialog = ProgressDialog.show(
-                UploadPhotoActivity.this,
-                getResources().getString(R.string.app_name),
-                getResources().getString(R.string.uploading),
-                true);
         String caption = UXUtils.getText(mCaptionEditText);
         // if no img selected exit post
         if (mBitmap == null || !isPanoOrSphere(mBitmap)) {
             Toast.makeText(this, R.string.no_photo, Toast.LENGTH_SHORT).show();
             return;
         }
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(
-                mBitmap,
-                MAX_UPLOAD_WIDTH_PX,
-                MAX_UPLOAD_WIDTH_PX * mBitmap.getHeight() / mBitmap.getWidth(),
-                false);
-        byte[] thumbnailByteArray = UXUtils.getByteArray(scaledBitmap);
-        byte[] imageByteArray = UXUtils.getByteArray(mBitmap);
-        addSphere(
-                imageByteArray,
-                thumbnailByteArray,
-                mSpherePhotoType,
-                caption,
-                mLocation,
-                UploadPhotoActivity.this);
-    }
-
-    @Override
-    public void onSphereAdded() {
-        mProgressDialog.dismiss();
+        try {
+            if (mSource != null) {
+                SphereUploadService.upload(
+                        this,
+                        mSource,
+                        mTilesDirectory,
+                        mSpherePhotoType,
+                        caption,
+                        mLocation);
+            } else {
+                // the constructor couldn't save the sphere in external storage
+                SphereUploadService.upload(
+                        this,
+                        mBitmap,
+                        mTilesDirectory,
+                        mSpherePhotoType,
+                        caption,
+                        mLocation);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error when queuing upload: " + e);
+            Toast.makeText(this, R.string.upload_error, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Toast.makeText(this, R.string.uploading, Toast.LENGTH_SHORT).show();
         finish();
     }
 
-    @Override
-    public void onSphereAddFailed() {
-        mProgressDialog.dismiss();
-        Toast.makeText(this, R.string.upload_error, Toast.LENGTH_SHORT).show();
-    }
-
     @Override
     public void onConnected(Bundle bundle) {
         Location location = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
@@ -290,4 +293,13 @@ public class UploadPhotoActivity extends FragmentActivity implements
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // the package is moved into the upload when posted, so it is left only if nothing was
+        if (isFinishing() && mTilesDirectory != null) {
+            SphereUpload.deleteRecursively(mTilesDirectory);
+        }
+    }
+
 }
@@ -8,11 +8,20 @@ import android.view.View;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.facebook.fbu.photosphere.spherelib.ManifestTileSource;
 import com.facebook.fbu.photosphere.spherelib.SphereView;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class ViewerActivity extends FragmentActivity {
     private static final String TAG = ViewerActivity.class.getSimpleName();
     public static final String IMAGE_URL = "IMAGE_URL";
+    // the widths and urls of the images of the sphere, the smallest wide enough being loaded
+    public static final String IMAGE_WIDTHS = "IMAGE_WIDTHS";
+    public static final String IMAGE_URLS = "IMAGE_URLS";
+    // the manifest of the tiles of the sphere, which are loaded as they come into view instead
+    public static final String TILES_URL = "TILES_URL";
     private SphereView mPhotosphereView;
 
     @Override
@@ -34,7 +43,20 @@ public class ViewerActivity extends FragmentActivity {
             mPhotosphereView.setIsZoomAllowed(true);
             mPhotosphereView.setIsDoubleClickSwitchAllowed(true);
             mPhotosphereView.setKeepScreenOn(true);
-            mPhotosphereView.setImageUrl(imageUrl);
+            String tilesUrl = extras.getString(TILES_URL);
+            int[] imageWidths = extras.getIntArray(IMAGE_WIDTHS);
+            String[] imageUrls = extras.getStringArray(IMAGE_URLS);
+            if (tilesUrl != null) {
+                mPhotosphereView.setTileSource(new ManifestTileSource(tilesUrl));
+            } else if (imageWidths != null && imageUrls != null) {
+                Map<Integer, String> imageUrlsByWidth = new HashMap<Integer, String>();
+                for (int i = 0; i < imageWidths.length; i++) {
+                    imageUrlsByWidth.put(imageWidths[i], imageUrls[i]);
+                }
+                mPhotosphereView.setImageUrls(imageUrlsByWidth);
+            } else {
+                mPhotosphereView.setImageUrl(imageUrl);
+            }
             final ImageView modeButton = (ImageView) findViewById(R.id.modes);
             modeButton.bringToFront();
             modeButton.setOnClickListener(new View.OnClickListener() {
@@ -16,6 +16,7 @@ import com.parse.ParseACL;
 import com.parse.ParseException;
 import com.parse.ParseFile;
 import com.parse.ParseGeoPoint;
+import com.parse.ParseObject;
 import com.parse.ParseQuery;
 import com.parse.ParseUser;
 import com.parse.SaveCallback;
@@ -23,17 +24,23 @@ import com.parse.SignUpCallback;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import static com.facebook.fbu.photosphere.sphere.Sphere.*;
 
 /**
  * SphereAPI is used to communicate with the backend
  * Handles the following:
- * 1) adding a sphere to database
+ * 1) adding a sphere to database, in the background through SphereUploadService
  * 2) loading spheres from the database and specific queries:
  * - fetchAllSpheres - fetching all spheres
+ * - fetchSpheresInBox - fetching the spheres in a region of the map, a page at a time
  * - fetchSphere - fetch a single sphere by id
  * - fetchUserSpheres - fetch a user's spheres
+ * - fetchUser - fetch a user by id, in a batch with the users fetched at the same time
+ * the queries of spheres but fetchSpheresInBox are served from the local datastore first, then
+ * refreshed from the network once older than their time to live, see SphereQueryCache, so their
+ * callbacks may be triggered twice
  * 3) user login
  * 4) adding a user to parse
  * 5) logging out current parse user
@@ -47,6 +54,13 @@ public class SphereAPI {
     public static final String DOB = "date_of_birth";
     public static final String USER_ID = "objectId";
 
+    // the number of spheres fetched by each query of fetchSpheresInBox
+    public static final int SPHERE_PAGE_SIZE = 100;
+
+    // how long the cached results of a query are shown before they are fetched again
+    private static final long SPHERE_LIST_TIME_TO_LIVE_MS = 5 * 60 * 1000L;
+    private static final long SPHERE_TIME_TO_LIVE_MS = 60 * 60 * 1000L;
+
     /**
      * Adds a new sphere to database
      *
@@ -64,19 +78,16 @@ public class SphereAPI {
                                  Location location,
                                  final SphereAddedCallback sphereAddedCallback) {
 
-        Sphere sphere = createForUpload(ParseUser.getCurrentUser());
-        sphere.setImage(new ParseFile(imageByteArray));
-        sphere.setThumbnail(new ParseFile(thumbnailByteArray));
-        sphere.setPhotoType(spherePhotoType);
-        sphere.setCaption(caption);
+        ParseGeoPoint coordinates = null;
         if (location != null) {
-            sphere.setCoordinates(new ParseGeoPoint(
-                    location.getLatitude(),
-                    location.getLongitude()));
+            coordinates = new ParseGeoPoint(location.getLatitude(), location.getLongitude());
         }
-        ParseACL acl = new ParseACL();
-        acl.setPublicReadAccess(true);
-        sphere.setACL(acl);
+        Sphere sphere = createSphere(
+                new ParseFile(imageByteArray),
+                new ParseFile(thumbnailByteArray),
+                spherePhotoType,
+                caption,
+                coordinates);
         sphere.saveInBackground(new SaveCallback() {
             @Override
             public void done(ParseException e) {
@@ -90,13 +101,108 @@ public class SphereAPI {
         });
     }
 
+    /**
+     * Adds a new sphere without its files to database, blocking until it is saved, for uploads
+     * in the background. The files are set on it as they are saved, the image last, and it is
+     * neither listed nor readable by other users until publishSphere
+     *
+     * @param imageWidth      - the width of the image
+     * @param spherePhotoType - is the sphere a photosphere or not
+     * @param caption         - the caption of the photo
+     * @param coordinates     - where the photo was taken, or null
+     * @throws ParseException if the sphere couldn't be saved
+     */
+    public static Sphere createDraftSphere(int imageWidth,
+                                           SpherePhotoType spherePhotoType,
+                                           String caption,
+                                           ParseGeoPoint coordinates) throws ParseException {
+        Sphere sphere = createForUpload(ParseUser.getCurrentUser());
+        sphere.setImageWidth(imageWidth);
+        sphere.setPhotoType(spherePhotoType);
+        sphere.setCaption(caption);
+        if (coordinates != null) {
+            sphere.setCoordinates(coordinates);
+        }
+        sphere.setACL(new ParseACL(ParseUser.getCurrentUser()));
+        sphere.save();
+        return sphere;
+    }
+
+    // the draft created by an earlier attempt at an upload, to set the files left on
+    public static Sphere getDraftSphere(String objectId) {
+        return ParseObject.createWithoutData(Sphere.class, objectId);
+    }
+
+    /**
+     * Makes a draft whose files are all set readable by everyone, blocking until it is saved.
+     * The user keeps the right to write it, so that publishing it again is harmless
+     *
+     * @throws ParseException if the sphere couldn't be saved
+     */
+    public static void publishSphere(Sphere sphere) throws ParseException {
+        ParseACL acl = new ParseACL(ParseUser.getCurrentUser());
+        acl.setPublicReadAccess(true);
+        sphere.setACL(acl);
+        sphere.save();
+    }
+
+    // a sphere of the current user, readable by everyone
+    private static Sphere createSphere(ParseFile image,
+                                       ParseFile thumbnail,
+                                       SpherePhotoType spherePhotoType,
+                                       String caption,
+                                       ParseGeoPoint coordinates) {
+        Sphere sphere = createForUpload(ParseUser.getCurrentUser());
+        sphere.setImage(image);
+        sphere.setThumbnail(thumbnail);
+        sphere.setPhotoType(spherePhotoType);
+        sphere.setCaption(caption);
+        if (coordinates != null) {
+            sphere.setCoordinates(coordinates);
+        }
+        ParseACL acl = new ParseACL();
+        acl.setPublicReadAccess(true);
+        sphere.setACL(acl);
+        return sphere;
+    }
+
     /**
      * Query all spheres in the database
      *
      * @param spheresLoadedCallback - callback to trigger on successful query
      */
     public static void fetchAllSpheres(final SpheresLoadedCallback spheresLoadedCallback) {
-        loadSpheres(getQuery(), spheresLoadedCallback);
+        loadSpheres(
+                getQuery(),
+                "spheres_all",
+                SPHERE_LIST_TIME_TO_LIVE_MS,
+                spheresLoadedCallback);
+    }
+
+    /**
+     * Query the spheres within a region of the map, a page at a time, calling back with the
+     * spheres of each page that are not loaded yet
+     *
+     * @param southwest             - the southwest corner of the region
+     * @param northeast             - the northeast corner of the region
+     * @param loadedIds             - the ids of the spheres already loaded, which the ids of the
+     *                              spheres loaded are added to
+     * @param spheresLoadedCallback - callback to trigger on each page and on failure
+     * @return the query, to cancel when the region isn't needed anymore
+     */
+    public static SphereGeoBoxQuery fetchSpheresInBox(
+            ParseGeoPoint southwest,
+            ParseGeoPoint northeast,
+            Set<String> loadedIds,
+            SpheresLoadedCallback spheresLoadedCallback) {
+        SphereGeoBoxQuery query = new SphereGeoBoxQuery(
+                southwest,
+                northeast,
+                loadedIds,
+                SPHERE_PAGE_SIZE,
+                spheresLoadedCallback);
+        query.start();
+        return query;
     }
 
     /**
@@ -109,7 +215,26 @@ public class SphereAPI {
                                    final SpheresLoadedCallback spheresLoadedCallback) {
         ParseQuery<Sphere> query = getQuery();
         query.whereEqualTo(PHOTO_ID, objectId);
-        loadSpheres(query, spheresLoadedCallback);
+        // the user is shown with the sphere, so it comes along rather than in another query
+        query.include(USER);
+        loadSpheres(
+                query,
+                "sphere_" + objectId,
+                SPHERE_TIME_TO_LIVE_MS,
+                new SpheresLoadedCallback() {
+                    @Override
+                    public void onSpheresLoaded(List<Sphere> photoSpheres) {
+                        for (Sphere sphere : photoSpheres) {
+                            SphereUserCache.getInstance().put(sphere.getUser());
+                        }
+                        spheresLoadedCallback.onSpheresLoaded(photoSpheres);
+                    }
+
+                    @Override
+                    public void onSphereLoadFailed() {
+                        spheresLoadedCallback.onSphereLoadFailed();
+                    }
+                });
     }
 
     /**
@@ -123,7 +248,11 @@ public class SphereAPI {
         ParseQuery<Sphere> query = getQuery();
         query.whereEqualTo(USER, user);
         query.orderByDescending("updatedAt");
-        loadSpheres(query, spheresLoadedCallback);
+        loadSpheres(
+                query,
+                "spheres_user_" + user.getObjectId(),
+                SPHERE_LIST_TIME_TO_LIVE_MS,
+                spheresLoadedCallback);
     }
 
     /**
@@ -134,7 +263,24 @@ public class SphereAPI {
      */
     public static void loadSpheres(ParseQuery<Sphere> query,
                                    final SpheresLoadedCallback spheresLoadedCallback) {
-        query.findInBackground(new FindCallback<Sphere>() {
+        query.findInBackground(getSpheresFoundCallback(spheresLoadedCallback));
+    }
+
+    // queries spheres through the cache, pinned as pinName
+    private static void loadSpheres(ParseQuery<Sphere> query,
+                                    String pinName,
+                                    long timeToLiveMs,
+                                    SpheresLoadedCallback spheresLoadedCallback) {
+        SphereQueryCache.find(
+                query,
+                pinName,
+                timeToLiveMs,
+                getSpheresFoundCallback(spheresLoadedCallback));
+    }
+
+    private static FindCallback<Sphere> getSpheresFoundCallback(
+            final SpheresLoadedCallback spheresLoadedCallback) {
+        return new FindCallback<Sphere>() {
             @Override
             public void done(List<Sphere> list, ParseException e) {
                 if (e != null) {
@@ -144,7 +290,7 @@ public class SphereAPI {
                 }
                 spheresLoadedCallback.onSpheresLoaded(list);
             }
-        });
+        };
     }
 
     /**
@@ -246,25 +392,14 @@ public class SphereAPI {
 
     /**
      * fetches a user by id and then responds based on success
+     * the users fetched within a few milliseconds of each other are fetched by a single query,
+     * and kept in memory for as long as the process lives
      *
      * @param userId             - userId being queried for
      * @param userLoadedCallback - callback to trigger on completed query for user
      */
-    public static void fetchUser(String userId, final UserLoadedCallback userLoadedCallback) {
-        ParseQuery<ParseUser> query = ParseUser.getQuery();
-        query.whereEqualTo(USER_ID, userId);
-        query.findInBackground(new FindCallback<ParseUser>() {
-            public void done(List<ParseUser> users, ParseException e) {
-                if (e == null) {
-                    Log.i(TAG, "Num users" + users.size());
-                    assert users.size() == 1;
-                    userLoadedCallback.onUserLoaded(users.get(0));
-                } else {
-                    Log.e(TAG, "Error incorrect user list size found: " + e.getMessage());
-                    userLoadedCallback.onUserLoadFailed();
-                }
-            }
-        });
+    public static void fetchUser(String userId, UserLoadedCallback userLoadedCallback) {
+        SphereUserCache.getInstance().load(userId, userLoadedCallback);
     }
 
     /**
@@ -300,7 +435,8 @@ public class SphereAPI {
      */
     public interface SpheresLoadedCallback {
         /**
-         * used to create a response to successful parse query
+         * used to create a response to successful parse query, triggered again with the
+         * refreshed Spheres when the query was served from the cache
          *
          * @param photoSpheres- the list of Spheres returned from a parse query
          */
@@ -0,0 +1,139 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere.api;
+
+import android.util.Log;
+
+import com.facebook.fbu.photosphere.sphere.Sphere;
+import com.parse.FindCallback;
+import com.parse.ParseException;
+import com.parse.ParseGeoPoint;
+import com.parse.ParseQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.facebook.fbu.photosphere.sphere.Sphere.COORDINATES;
+import static com.facebook.fbu.photosphere.sphere.Sphere.PHOTO_ID;
+
+/**
+ * Loads the spheres within a region of the map, a page at a time, created by
+ * SphereAPI.fetchSpheresInBox
+ *
+ * Pages are ordered by object id and each one starts after the last id of the previous one, so
+ * that every page costs the same however far the query goes, unlike skipping. Spheres whose id
+ * is already in the loaded ids are left out, and the ids of the others are added to it. Parse
+ * can't query a box that crosses the antimeridian or is wider than half the globe, so such a
+ * region is split in narrower boxes, queried one after the other
+ */
+public class SphereGeoBoxQuery {
+
+    private static final String TAG = SphereGeoBoxQuery.class.getSimpleName();
+
+    // the widest box queried at once, in degrees of longitude
+    private static final double MAX_BOX_WIDTH = 90;
+
+    private final List<ParseGeoPoint[]> mBoxes = new ArrayList<ParseGeoPoint[]>();
+    private final Set<String> mLoadedIds;
+    private final int mPageSize;
+    private final SphereAPI.SpheresLoadedCallback mSpheresLoadedCallback;
+    private boolean mIsCancelled;
+
+    SphereGeoBoxQuery(ParseGeoPoint southwest,
+                      ParseGeoPoint northeast,
+                      Set<String> loadedIds,
+                      int pageSize,
+                      SphereAPI.SpheresLoadedCallback spheresLoadedCallback) {
+        mLoadedIds = loadedIds;
+        mPageSize = pageSize;
+        mSpheresLoadedCallback = spheresLoadedCallback;
+
+        double west = southwest.getLongitude();
+        double east = northeast.getLongitude();
+        // a region crossing the antimeridian ends east of 180
+        if (east < west) {
+            east += 360;
+        }
+        int boxCount = Math.max((int) Math.ceil((east - west) / MAX_BOX_WIDTH), 1);
+        for (int i = 0; i < boxCount; i++) {
+            double boxWest = west + (east - west) * i / boxCount;
+            double boxEast = west + (east - west) * (i + 1) / boxCount;
+            addBox(southwest.getLatitude(), boxWest, northeast.getLatitude(), boxEast);
+        }
+    }
+
+    // adds the box, split in two where it crosses the antimeridian
+    private void addBox(double south, double west, double north, double east) {
+        if (west < 180 && east > 180) {
+            addBox(south, west, north, 180);
+            addBox(south, -180, north, east - 360);
+            return;
+        }
+        if (west >= 180) {
+            west -= 360;
+            east -= 360;
+        }
+        mBoxes.add(new ParseGeoPoint[]{
+                new ParseGeoPoint(south, west),
+                new ParseGeoPoint(north, east)});
+    }
+
+    void start() {
+        loadPage(0, null);
+    }
+
+    /**
+     * Stops loading pages, the callback won't be called anymore
+     */
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    private void loadPage(final int box, String lastId) {
+        if (box == mBoxes.size()) {
+            return;
+        }
+        ParseQuery<Sphere> query = Sphere.getQuery();
+        query.whereWithinGeoBox(COORDINATES, mBoxes.get(box)[0], mBoxes.get(box)[1]);
+        query.orderByAscending(PHOTO_ID);
+        if (lastId != null) {
+            query.whereGreaterThan(PHOTO_ID, lastId);
+        }
+        query.setLimit(mPageSize);
+        query.findInBackground(new FindCallback<Sphere>() {
+            @Override
+            public void done(List<Sphere> list, ParseException e) {
+                if (mIsCancelled) {
+                    return;
+                }
+                if (e != null) {
+                    Log.e(TAG, "error:" + e);
+                    mSpheresLoadedCallback.onSphereLoadFailed();
+                    return;
+                }
+
+                List<Sphere> newSpheres = new ArrayList<Sphere>();
+                for (Sphere sphere : list) {
+                    if (mLoadedIds.add(sphere.getObjectId())) {
+                        newSpheres.add(sphere);
+                    }
+                }
+                if (!newSpheres.isEmpty()) {
+                    mSpheresLoadedCallback.onSpheresLoaded(newSpheres);
+                }
+
+                // a full page means there may be more in the box
+                if (list.size() == mPageSize && !mIsCancelled) {
+                    loadPage(box, list.get(list.size() - 1).getObjectId());
+                } else if (!mIsCancelled) {
+                    loadPage(box + 1, null);
+                }
+            }
+        });
+    }
+}
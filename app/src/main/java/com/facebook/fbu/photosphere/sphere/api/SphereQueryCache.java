@@ -0,0 +1,170 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.parse.DeleteCallback;
+import com.parse.FindCallback;
+import com.parse.ParseException;
+import com.parse.ParseObject;
+import com.parse.ParseQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the queries of SphereAPI from the local datastore of Parse, and refreshes them from the
+ * network in the background once they are older than their time to live
+ *
+ * The results of each query are pinned under its own name, and the time they were last fetched
+ * from the network is kept in shared preferences. A query with a result pinned calls back with
+ * it at once, and again with the network result if the pin was stale. The pins are evicted once
+ * they are older than MAX_AGE_MS, or from the least recently fetched when there are more than
+ * MAX_PIN_COUNT. Without initialize, queries go straight to the network
+ *
+ * Objects looked up by id, such as users, are rather added to a single pin shared by every
+ * lookup, see addToPin, and read back from the local datastore by id
+ */
+public class SphereQueryCache {
+
+    private static final String TAG = SphereQueryCache.class.getSimpleName();
+    private static final String PREFERENCES_NAME = "sphere_query_cache";
+
+    // the number of queries kept, a few screens each
+    private static final int MAX_PIN_COUNT = 64;
+    // the age after which a pin is evicted rather than shown stale
+    private static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static SharedPreferences sPreferences;
+
+    private SphereQueryCache() {
+    }
+
+    // to be called once, before the first query
+    public static void initialize(Context context) {
+        sPreferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        evict();
+    }
+
+    /**
+     * Finds the results of the query, calling back with the pinned results if there are some,
+     * then with the network results unless the pinned ones are younger than timeToLiveMs
+     *
+     * @param pinName - names the query, the same for every query asking for the same objects
+     */
+    static <T extends ParseObject> void find(
+            final ParseQuery<T> query,
+            final String pinName,
+            final long timeToLiveMs,
+            final FindCallback<T> callback) {
+        if (sPreferences == null) {
+            query.findInBackground(callback);
+            return;
+        }
+
+        final long fetchedAt = sPreferences.getLong(pinName, 0);
+        ParseQuery<T> pinnedQuery = new ParseQuery<T>(query);
+        pinnedQuery.fromPin(pinName);
+        pinnedQuery.findInBackground(new FindCallback<T>() {
+            @Override
+            public void done(List<T> list, ParseException e) {
+                // an empty result may be what's left of a pin evicted by Parse, so it isn't shown
+                final boolean isCached = e == null && fetchedAt != 0 && !list.isEmpty();
+                if (isCached) {
+                    callback.done(list, null);
+                    if (System.currentTimeMillis() - fetchedAt < timeToLiveMs) {
+                        return;
+                    }
+                }
+                refresh(query, pinName, isCached, callback);
+            }
+        });
+    }
+
+    // whether the results of queries are pinned, which is not the case before initialize
+    static boolean isInitialized() {
+        return sPreferences != null;
+    }
+
+    /**
+     * Adds objects fetched from the network to a pin shared by the lookups of different objects,
+     * which find them with fromLocalDatastore. The pin is evicted as a whole, MAX_AGE_MS after
+     * objects were last added to it
+     */
+    static <T extends ParseObject> void addToPin(String pinName, List<T> objects) {
+        if (sPreferences == null) {
+            return;
+        }
+        ParseObject.pinAllInBackground(pinName, objects);
+        sPreferences.edit().putLong(pinName, System.currentTimeMillis()).apply();
+        evict();
+    }
+
+    private static <T extends ParseObject> void refresh(
+            ParseQuery<T> query,
+            final String pinName,
+            final boolean isCached,
+            final FindCallback<T> callback) {
+        query.findInBackground(new FindCallback<T>() {
+            @Override
+            public void done(final List<T> list, ParseException e) {
+                if (e != null) {
+                    // the cached results stay shown when offline
+                    if (isCached) {
+                        Log.w(TAG, "kept stale " + pinName + ": " + e);
+                    } else {
+                        callback.done(null, e);
+                    }
+                    return;
+                }
+                ParseObject.unpinAllInBackground(pinName, new DeleteCallback() {
+                    @Override
+                    public void done(ParseException e) {
+                        ParseObject.pinAllInBackground(pinName, list);
+                    }
+                });
+                sPreferences.edit().putLong(pinName, System.currentTimeMillis()).apply();
+                evict();
+                callback.done(list, null);
+            }
+        });
+    }
+
+    // unpins the queries older than MAX_AGE_MS, and the least recently fetched beyond
+    // MAX_PIN_COUNT
+    private static void evict() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, ?>> pins = new ArrayList<Map.Entry<String, ?>>();
+        for (Map.Entry<String, ?> entry : sPreferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                pins.add(entry);
+            }
+        }
+        Collections.sort(pins, new Comparator<Map.Entry<String, ?>>() {
+            @Override
+            public int compare(Map.Entry<String, ?> lhs, Map.Entry<String, ?> rhs) {
+                long lhsFetchedAt = (Long) lhs.getValue();
+                long rhsFetchedAt = (Long) rhs.getValue();
+                return lhsFetchedAt > rhsFetchedAt ? -1 : (lhsFetchedAt == rhsFetchedAt ? 0 : 1);
+            }
+        });
+
+        SharedPreferences.Editor editor = sPreferences.edit();
+        for (int i = 0; i < pins.size(); i++) {
+            String pinName = pins.get(i).getKey();
+            long fetchedAt = (Long) pins.get(i).getValue();
+            if (i >= MAX_PIN_COUNT || now - fetchedAt > MAX_AGE_MS) {
+                editor.remove(pinName);
+                ParseObject.unpinAllInBackground(pinName);
+            }
+        }
+        editor.apply();
+    }
+}
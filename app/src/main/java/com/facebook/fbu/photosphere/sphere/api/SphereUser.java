@@ -5,50 +5,53 @@ package com.facebook.fbu.photosphere.sphere.api;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
 
 import com.parse.ParseClassName;
-import com.parse.ParseException;
 import com.parse.ParseFile;
 import com.parse.ParseUser;
 
 /**
  * Adapter class used for interacting with attributes of user data stored in parse
+ * Only holds what is already loaded, users are fetched by id through SphereUserCache, and is
+ * parceled as its id, names and photo url
  */
 @ParseClassName("SphereUser")
 public class SphereUser extends ParseUser implements Parcelable {
 
-    private static final String TAG = SphereUser.class.getSimpleName();
     private static final String FULL_NAME = "full_name";
     private static final String TAG_LINE = "tag_line";
     private static final String USER_PHOTO = "user_photo";
     private static final String USER_ID = "user_id";
-    private static final String USER_PHOTO_FILE = "user_photo_file";
+    private static final String USER_PHOTO_URL = "user_photo_url";
 
-    private ParseUser mSphereUser;
     private String mFullName;
     private String mUsername;
     private String mEmail;
     private String mTagLine;
-    private ParseFile mUserPhotoFile;
+    private String mUserPhotoUrl;
     private String mUserId;
 
+    /**
+     * reads the attributes of a user without fetching it, so only its id is set unless its data
+     * is available
+     */
     public static SphereUser from(ParseUser user) {
         SphereUser sphereUser = new SphereUser(user);
         return sphereUser;
     }
 
     private SphereUser(ParseUser sphereUser) {
-        try {
-            mSphereUser = sphereUser.fetch();
-            mUsername = mSphereUser.getUsername();
-            mEmail = mSphereUser.getEmail();
-            mUserId = mSphereUser.getObjectId();
-            mFullName = mSphereUser.getString(FULL_NAME);
-            mTagLine = mSphereUser.getString(TAG_LINE);
-            mUserPhotoFile = mSphereUser.getParseFile(USER_PHOTO);
-        } catch (ParseException e) {
-            Log.e(TAG, "error creating sphere user");
+        mUserId = sphereUser.getObjectId();
+        if (!sphereUser.isDataAvailable()) {
+            return;
+        }
+        mUsername = sphereUser.getUsername();
+        mEmail = sphereUser.getEmail();
+        mFullName = sphereUser.getString(FULL_NAME);
+        mTagLine = sphereUser.getString(TAG_LINE);
+        ParseFile userPhotoFile = sphereUser.getParseFile(USER_PHOTO);
+        if (userPhotoFile != null) {
+            mUserPhotoUrl = userPhotoFile.getUrl();
         }
     }
 
@@ -84,27 +87,11 @@ public class SphereUser extends ParseUser implements Parcelable {
         return mTagLine;
     }
 
-    public byte[] getUserPhotoByteArray() {
-        if (mUserPhotoFile == null) {
-            return null;
-        }
-        byte[] iconByteData = new byte[0];
-        try {
-            iconByteData = mUserPhotoFile.getData();
-        } catch (ParseException e) {
-            Log.e(TAG, "error getting byte[] " + e.getMessage());
-        }
-        return iconByteData;
-    }
-
     /**
      * @return string url of user's photo
      */
     public String getUserPhotoUrl() {
-        if (mUserPhotoFile == null) {
-            return null;
-        }
-        return mUserPhotoFile.getUrl();
+        return mUserPhotoUrl;
     }
 
     /**
@@ -113,7 +100,7 @@ public class SphereUser extends ParseUser implements Parcelable {
      * @return true if yes, false if no
      */
     public boolean hasProfilePhoto() {
-        return mUserPhotoFile != null;
+        return mUserPhotoUrl != null;
     }
 
     /**
@@ -137,7 +124,7 @@ public class SphereUser extends ParseUser implements Parcelable {
         bundle.putString(FULL_NAME, getFullName());
         bundle.putString(TAG_LINE, getTagLine());
         bundle.putString(USER_ID, getUserId());
-        bundle.putByteArray(USER_PHOTO_FILE, getUserPhotoByteArray());
+        bundle.putString(USER_PHOTO_URL, getUserPhotoUrl());
 
         dest.writeBundle(bundle);
     }
@@ -156,7 +143,7 @@ public class SphereUser extends ParseUser implements Parcelable {
             user.mFullName = bundle.getString(FULL_NAME);
             user.mTagLine = bundle.getString(TAG_LINE);
             user.mUserId = bundle.getString(USER_ID);
-            user.mUserPhotoFile = new ParseFile(bundle.getByteArray(USER_PHOTO_FILE));
+            user.mUserPhotoUrl = bundle.getString(USER_PHOTO_URL);
 
             return user;
         }
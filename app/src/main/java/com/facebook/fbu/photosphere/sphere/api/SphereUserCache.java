@@ -0,0 +1,188 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.sphere.api;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.facebook.fbu.photosphere.sphere.api.SphereAPI.UserLoadedCallback;
+import com.parse.FindCallback;
+import com.parse.ParseException;
+import com.parse.ParseQuery;
+import com.parse.ParseUser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users looked up by SphereAPI.fetchUser, by id, kept in memory for the life of the process
+ * and shared by every screen
+ *
+ * The users asked for within BATCH_WINDOW_MS are fetched together by a single query, so that a
+ * screen of spheres by many users costs one round trip. Every user fetched is pinned under
+ * USERS_PIN, so that users seen in earlier launches are found offline, by id, in the local
+ * datastore. The methods are to be called on the main thread, where the callbacks are triggered
+ */
+class SphereUserCache {
+
+    private static final String TAG = SphereUserCache.class.getSimpleName();
+
+    // the number of users kept, a few screens of spheres
+    private static final int ENTRY_COUNT = 256;
+    // how long lookups are gathered before they are queried, short enough not to be seen
+    private static final long BATCH_WINDOW_MS = 50;
+    // how long a user found in the local datastore is shown before it is fetched again
+    private static final long TIME_TO_LIVE_MS = 60 * 60 * 1000L;
+    // the single pin of every user fetched, see SphereQueryCache.addToPin
+    private static final String USERS_PIN = "users";
+
+    private static SphereUserCache sInstance;
+
+    private final LruCache<String, ParseUser> mUsers =
+            new LruCache<String, ParseUser>(ENTRY_COUNT);
+    // when the users were last fetched from the network since the launch
+    private final LruCache<String, Long> mFetchTimes = new LruCache<String, Long>(ENTRY_COUNT);
+    // the callbacks waiting for each user of the next query
+    private final Map<String, List<UserLoadedCallback>> mPendingCallbacks =
+            new HashMap<String, List<UserLoadedCallback>>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFetchPendingUsers = new Runnable() {
+        @Override
+        public void run() {
+            fetchPendingUsers();
+        }
+    };
+
+    static SphereUserCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SphereUserCache();
+        }
+        return sInstance;
+    }
+
+    private SphereUserCache() {
+    }
+
+    // the user if it is cached, or null
+    ParseUser get(String userId) {
+        return mUsers.get(userId);
+    }
+
+    // caches a user loaded along with something else, if its data is there
+    void put(ParseUser user) {
+        if (user != null && user.isDataAvailable()) {
+            mUsers.put(user.getObjectId(), user);
+        }
+    }
+
+    /**
+     * Calls back with the user at once if it is cached, or once it is fetched with the other
+     * users asked for within BATCH_WINDOW_MS
+     */
+    void load(String userId, UserLoadedCallback callback) {
+        ParseUser user = mUsers.get(userId);
+        if (user != null) {
+            callback.onUserLoaded(user);
+            return;
+        }
+        if (mPendingCallbacks.isEmpty()) {
+            mMainHandler.postDelayed(mFetchPendingUsers, BATCH_WINDOW_MS);
+        }
+        List<UserLoadedCallback> callbacks = mPendingCallbacks.get(userId);
+        if (callbacks == null) {
+            callbacks = new ArrayList<UserLoadedCallback>();
+            mPendingCallbacks.put(userId, callbacks);
+        }
+        callbacks.add(callback);
+    }
+
+    private void fetchPendingUsers() {
+        final Map<String, List<UserLoadedCallback>> pendingCallbacks =
+                new HashMap<String, List<UserLoadedCallback>>(mPendingCallbacks);
+        mPendingCallbacks.clear();
+        final List<String> userIds = new ArrayList<String>(pendingCallbacks.keySet());
+        if (!SphereQueryCache.isInitialized()) {
+            fetchUsers(userIds, pendingCallbacks);
+            return;
+        }
+
+        ParseQuery<ParseUser> pinnedQuery = ParseUser.getQuery();
+        pinnedQuery.fromLocalDatastore();
+        pinnedQuery.whereContainedIn(SphereAPI.USER_ID, userIds);
+        pinnedQuery.findInBackground(new FindCallback<ParseUser>() {
+            @Override
+            public void done(List<ParseUser> users, ParseException e) {
+                if (e != null) {
+                    Log.w(TAG, "error when reading pinned users: " + e);
+                } else {
+                    for (ParseUser user : users) {
+                        mUsers.put(user.getObjectId(), user);
+                        deliver(pendingCallbacks.remove(user.getObjectId()), user);
+                    }
+                }
+                // the users missing, and those shown from the pin that are stale, are fetched
+                long now = System.currentTimeMillis();
+                List<String> fetchedIds = new ArrayList<String>();
+                for (String userId : userIds) {
+                    Long fetchedAt = mFetchTimes.get(userId);
+                    if (pendingCallbacks.containsKey(userId)
+                            || fetchedAt == null
+                            || now - fetchedAt > TIME_TO_LIVE_MS) {
+                        fetchedIds.add(userId);
+                    }
+                }
+                if (!fetchedIds.isEmpty()) {
+                    fetchUsers(fetchedIds, pendingCallbacks);
+                }
+            }
+        });
+    }
+
+    // fetches the users from the network and pins them, the users shown from the pin being
+    // only cached again
+    private void fetchUsers(
+            List<String> userIds,
+            final Map<String, List<UserLoadedCallback>> pendingCallbacks) {
+        ParseQuery<ParseUser> query = ParseUser.getQuery();
+        query.whereContainedIn(SphereAPI.USER_ID, userIds);
+        query.setLimit(userIds.size());
+        query.findInBackground(new FindCallback<ParseUser>() {
+            @Override
+            public void done(List<ParseUser> users, ParseException e) {
+                if (e != null) {
+                    Log.e(TAG, "error when loading users: " + e);
+                } else {
+                    SphereQueryCache.addToPin(USERS_PIN, users);
+                    long now = System.currentTimeMillis();
+                    for (ParseUser user : users) {
+                        mUsers.put(user.getObjectId(), user);
+                        mFetchTimes.put(user.getObjectId(), now);
+                        deliver(pendingCallbacks.remove(user.getObjectId()), user);
+                    }
+                }
+                // the users that failed or don't exist
+                for (List<UserLoadedCallback> callbacks : pendingCallbacks.values()) {
+                    deliver(callbacks, null);
+                }
+                pendingCallbacks.clear();
+            }
+        });
+    }
+
+    private static void deliver(List<UserLoadedCallback> callbacks, ParseUser user) {
+        if (callbacks == null) {
+            return;
+        }
+        for (UserLoadedCallback callback : callbacks) {
+            if (user != null) {
+                callback.onUserLoaded(user);
+            } else {
+                callback.onUserLoadFailed();
+            }
+        }
+    }
+}
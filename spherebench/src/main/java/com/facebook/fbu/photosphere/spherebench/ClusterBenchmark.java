@@ -0,0 +1,110 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherebench;
+
+import com.facebook.fbu.photosphere.spherelib.MarkerClusterer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The clustering work of the map: the clusters in view as the camera pans at a few zoom levels,
+ * a sphere loaded while the levels are computed, and computing a level for the first time.
+ * The spheres are spread around a few cities, as they are taken
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusterBenchmark {
+
+    // the cells of the map, in pixels
+    private static final int CELL_SIZE = 100;
+
+    private static final double[][] CITIES = new double[][]{
+            {37.48, -122.14},
+            {40.71, -74.01},
+            {51.51, -0.13},
+            {35.68, 139.69},
+            {-33.87, 151.21},
+    };
+
+    @Param({"1000", "100000"})
+    public int sphereCount;
+
+    @Param({"4", "10", "16"})
+    public int zoom;
+
+    private final List<MarkerClusterer.Cluster<Integer>> mClusters =
+            new ArrayList<MarkerClusterer.Cluster<Integer>>();
+    private MarkerClusterer<Integer> mClusterer;
+    private double[][] mPositions;
+    private double mViewWidth;
+    private double mViewHeight;
+    private int mFrame;
+    private int mNextSphere;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mPositions = new double[sphereCount][];
+        mClusterer = new MarkerClusterer<Integer>(CELL_SIZE);
+        for (int i = 0; i < sphereCount; i++) {
+            double[] city = CITIES[random.nextInt(CITIES.length)];
+            mPositions[i] = new double[]{
+                    city[0] + random.nextGaussian() * 0.5,
+                    city[1] + random.nextGaussian() * 0.5};
+            mClusterer.add(i, mPositions[i][0], mPositions[i][1]);
+        }
+        // a phone screen of about 400 by 700 pixels of the map
+        mViewWidth = 360.0 * 400 / (MarkerClusterer.TILE_SIZE * (1 << zoom));
+        mViewHeight = 1.5 * mViewWidth;
+        mClusterer.getClusters(zoom, -90, -180, 90, 180, mClusters);
+    }
+
+    // the view moves around the first city, as it does when the map is panned
+    @Benchmark
+    public int cameraMove() {
+        mFrame++;
+        double latitude = CITIES[0][0] + 0.3 * Math.sin(mFrame * 0.01);
+        double longitude = CITIES[0][1] + 0.3 * Math.cos(mFrame * 0.01);
+        mClusterer.getClusters(
+                zoom,
+                latitude - mViewHeight / 2,
+                longitude - mViewWidth / 2,
+                latitude + mViewHeight / 2,
+                longitude + mViewWidth / 2,
+                mClusters);
+        return mClusters.size();
+    }
+
+    // a sphere moved, which is removed and added again on every level computed
+    @Benchmark
+    public int loadSphere() {
+        mNextSphere = (mNextSphere + 1) % sphereCount;
+        double[] position = mPositions[mNextSphere];
+        mClusterer.add(mNextSphere, position[0], position[1]);
+        return mClusterer.size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int computeLevel() {
+        MarkerClusterer<Integer> clusterer = new MarkerClusterer<Integer>(CELL_SIZE);
+        for (int i = 0; i < sphereCount; i++) {
+            clusterer.add(i, mPositions[i][0], mPositions[i][1]);
+        }
+        clusterer.getClusters(zoom, -90, -180, 90, 180, mClusters);
+        return mClusters.size();
+    }
+}
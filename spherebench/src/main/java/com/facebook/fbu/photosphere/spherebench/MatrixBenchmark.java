@@ -0,0 +1,104 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherebench;
+
+import com.facebook.fbu.photosphere.spherelib.Mat3;
+import com.facebook.fbu.photosphere.spherelib.MatrixUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The allocating MatrixUtils against the Mat3 kernel, on the operations the hot paths use
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MatrixBenchmark {
+
+    private static final int POINT_COUNT = 1024;
+
+    private float[][] mRows;
+    private float[][] mOtherRows;
+    private float[] mMatrix = new float[9];
+    private float[] mOtherMatrix = new float[9];
+    private float[] mResult = new float[9];
+    private float[] mVector = new float[]{0.3f, -0.5f, 0.8f};
+    private float[] mVectorResult = new float[3];
+    private float[][] mPoints = new float[POINT_COUNT][];
+    private float[] mPackedPoints = new float[3 * POINT_COUNT];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mRows = new float[3][3];
+        mOtherRows = new float[3][3];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                mRows[i][j] = random.nextFloat();
+                mOtherRows[i][j] = random.nextFloat();
+            }
+        }
+        Mat3.fromRows(mRows, mMatrix);
+        Mat3.fromRows(mOtherRows, mOtherMatrix);
+        for (int i = 0; i < POINT_COUNT; i++) {
+            mPoints[i] = new float[]{random.nextFloat(), random.nextFloat(), random.nextFloat()};
+            System.arraycopy(mPoints[i], 0, mPackedPoints, 3 * i, 3);
+        }
+    }
+
+    @Benchmark
+    public float[][] matrixUtilsMultiply() {
+        return MatrixUtils.multiply(mRows, mOtherRows);
+    }
+
+    @Benchmark
+    public float[] mat3Multiply() {
+        Mat3.multiply(mMatrix, mOtherMatrix, mResult);
+        return mResult;
+    }
+
+    @Benchmark
+    public float[][] matrixUtilsTranspose() {
+        return MatrixUtils.transpose(mRows);
+    }
+
+    @Benchmark
+    public float[] mat3Transpose() {
+        Mat3.transpose(mMatrix, mResult);
+        return mResult;
+    }
+
+    @Benchmark
+    public float[] matrixUtilsRotatePoint() {
+        return MatrixUtils.multiply(mVector, mRows);
+    }
+
+    @Benchmark
+    public float[] mat3RotatePoint() {
+        Mat3.transform(mVector, mMatrix, mVectorResult);
+        return mVectorResult;
+    }
+
+    @Benchmark
+    public void matrixUtilsRotatePoints(Blackhole blackhole) {
+        for (int i = 0; i < POINT_COUNT; i++) {
+            blackhole.consume(MatrixUtils.multiply(mPoints[i], mRows));
+        }
+    }
+
+    @Benchmark
+    public float[] mat3TransformPoints() {
+        Mat3.transformPoints(mPackedPoints, mPackedPoints, POINT_COUNT, mMatrix);
+        return mPackedPoints;
+    }
+}
@@ -0,0 +1,153 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherebench;
+
+import com.facebook.fbu.photosphere.spherelib.BilinearSampler;
+import com.facebook.fbu.photosphere.spherelib.Blender;
+import com.facebook.fbu.photosphere.spherelib.FeatherBlender;
+import com.facebook.fbu.photosphere.spherelib.Mat3;
+import com.facebook.fbu.photosphere.spherelib.NearestSampler;
+import com.facebook.fbu.photosphere.spherelib.OverwriteBlender;
+import com.facebook.fbu.photosphere.spherelib.PixelBuffer;
+import com.facebook.fbu.photosphere.spherelib.Sampler;
+import com.facebook.fbu.photosphere.spherelib.SpherePicture;
+import com.facebook.fbu.photosphere.spherelib.SphereStitcher;
+import com.facebook.fbu.photosphere.spherelib.Vec3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The construction of a sphere from synthetic pictures of a known sphere, piece by piece and as
+ * a whole
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StitchBenchmark {
+
+    private static final int SPHERE_HEIGHT = 1024;
+    private static final int PICTURE_WIDTH = 480;
+    private static final int PICTURE_HEIGHT = 640;
+    private static final float FIELD_OF_VIEW = 60;
+    private static final int SAMPLE_COUNT = 1 << 16;
+
+    @Param({"nearest", "bilinear"})
+    public String sampler;
+
+    @Param({"feather", "overwrite"})
+    public String blender;
+
+    private Sampler mSampler;
+    private Blender mBlender;
+    private List<SpherePicture> mPictures;
+    private PixelBuffer mSphere;
+    private float[] mSampleCoordinates = new float[2 * SAMPLE_COUNT];
+    private int[] mDestinations = new int[SAMPLE_COUNT];
+
+    @Setup
+    public void setUp() {
+        mSampler = "bilinear".equals(sampler) ? new BilinearSampler() : new NearestSampler();
+        mBlender = "overwrite".equals(blender) ? new OverwriteBlender() : new FeatherBlender();
+        mPictures = SyntheticSphere.takePictures(
+                SyntheticSphere.createSphere(2048, 1024),
+                PICTURE_WIDTH,
+                PICTURE_HEIGHT,
+                FIELD_OF_VIEW);
+        mSphere = new PixelBuffer(2 * SPHERE_HEIGHT, SPHERE_HEIGHT);
+
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            mSampleCoordinates[2 * i] = random.nextFloat() * (PICTURE_WIDTH - 1);
+            mSampleCoordinates[2 * i + 1] = random.nextFloat() * (PICTURE_HEIGHT - 1);
+            mDestinations[i] = random.nextBoolean() ? 0 : 0xff000000 | random.nextInt();
+        }
+    }
+
+    // maps every pixel of the sphere to the plane of a picture, without reading anything
+    @Benchmark
+    public float inverseMapping() {
+        float[] inverseRotation = new float[9];
+        Mat3.transpose(mPictures.get(0).getRotation(), inverseRotation);
+        float[] point = new float[3];
+        float[] rotated = new float[3];
+        float sum = 0;
+        int width = mSphere.getWidth();
+        int height = mSphere.getHeight();
+        for (int i = 0; i < width; i++) {
+            double longitude = 2 * Math.PI * i / width;
+            for (int j = 0; j < height; j++) {
+                double latitude = Math.PI * ((double) j / height - 0.5);
+                Vec3.set(
+                        (float) Math.sin(latitude),
+                        (float) (Math.cos(longitude) * Math.cos(latitude)),
+                        (float) (Math.sin(longitude) * Math.cos(latitude)),
+                        point);
+                Mat3.transform(point, inverseRotation, rotated);
+                if (rotated[2] > 0) {
+                    sum += rotated[0] / rotated[2];
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int sampling() {
+        PixelBuffer picture = mPictures.get(0).getPixels();
+        int result = 0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            result ^= mSampler.sample(
+                    picture,
+                    mSampleCoordinates[2 * i],
+                    mSampleCoordinates[2 * i + 1]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int blending() {
+        int result = 0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            result ^= mBlender.blend(
+                    mDestinations[i],
+                    0xff808080,
+                    mSampleCoordinates[2 * i],
+                    mSampleCoordinates[2 * i + 1],
+                    PICTURE_WIDTH,
+                    PICTURE_HEIGHT);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public PixelBuffer singlePicture() {
+        Arrays.fill(mSphere.getPixels(), 0);
+        SphereStitcher stitcher = new SphereStitcher(mSphere, mSampler, mBlender);
+        stitcher.drawPicture(mPictures.get(0));
+        return mSphere;
+    }
+
+    @Benchmark
+    public PixelBuffer fullSphere() {
+        Arrays.fill(mSphere.getPixels(), 0);
+        SphereStitcher stitcher = new SphereStitcher(mSphere, mSampler, mBlender);
+        for (SpherePicture picture : mPictures) {
+            stitcher.drawPicture(picture);
+        }
+        return mSphere;
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherebench;
+
+import com.facebook.fbu.photosphere.spherelib.EquirectangularSampler;
+import com.facebook.fbu.photosphere.spherelib.Mat3;
+import com.facebook.fbu.photosphere.spherelib.PixelBuffer;
+import com.facebook.fbu.photosphere.spherelib.SpherePicture;
+import com.facebook.fbu.photosphere.spherelib.Vec3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inputs for the benchmarks that don't need a device: an equirectangular picture with a known
+ * pattern, and the pictures a camera at the center of it would take, aimed at the same reference
+ * points as CameraView
+ */
+public final class SyntheticSphere {
+
+    private SyntheticSphere() {
+    }
+
+    // a grid of colored squares, with gradients so that neighbouring pixels differ
+    public static PixelBuffer createSphere(int width, int height) {
+        PixelBuffer sphere = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = ((x / 32) + (y / 32)) % 2 == 0 ? 40 : 220;
+                sphere.setPixel(x, y, 0xff000000 | (red << 16) | (green << 8) | blue);
+            }
+        }
+        return sphere;
+    }
+
+    // the directions CameraView asks the user to aim at: 12 on the equator, 9 on each of the
+    // parallels at 45 degrees, and the two poles
+    public static List<float[]> getReferenceDirections() {
+        List<float[]> directions = new ArrayList<float[]>();
+        for (int k = 0; k < 12; k++) {
+            directions.add(getDirection(0, (float) (2 * Math.PI * k / 12)));
+        }
+        for (int k = 0; k < 9; k++) {
+            directions.add(getDirection((float) Math.PI / 4, (float) (2 * Math.PI * k / 9)));
+        }
+        for (int k = 0; k < 9; k++) {
+            directions.add(getDirection((float) -Math.PI / 4, (float) (2 * Math.PI * k / 9)));
+        }
+        directions.add(new float[]{1, 0, 0});
+        directions.add(new float[]{-1, 0, 0});
+        return directions;
+    }
+
+    // Takes one picture of the sphere per reference direction. The field of view is the
+    // vertical angle, in degrees, of a phone held in portrait mode
+    public static List<SpherePicture> takePictures(
+            PixelBuffer sphere,
+            int width,
+            int height,
+            float fieldOfView) {
+        float abstractHeight = 2 * (float) Math.tan(Math.toRadians(fieldOfView) / 2);
+        float abstractWidth = abstractHeight * width / height;
+        EquirectangularSampler sampler = new EquirectangularSampler(sphere);
+
+        List<SpherePicture> pictures = new ArrayList<SpherePicture>();
+        float[] ray = new float[3];
+        float[] direction = new float[3];
+        for (float[] center : getReferenceDirections()) {
+            float[] rotation = new float[9];
+            setRotationTowards(center, rotation);
+            PixelBuffer pixels = new PixelBuffer(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    // a point p of the sphere is seen at p * transpose(rotation), so the ray
+                    // through the pixel comes from ray * rotation
+                    Vec3.set(
+                            (x - width / 2) / (width / abstractWidth),
+                            (y - height / 2) / (height / abstractHeight),
+                            1,
+                            ray);
+                    Mat3.transform(ray, rotation, direction);
+                    pixels.setPixel(x, y, sampler.sample(direction[0], direction[1], direction[2]));
+                }
+            }
+            pictures.add(new SpherePicture(pixels, rotation, abstractWidth, abstractHeight));
+        }
+        return pictures;
+    }
+
+    // a rotation whose last row is the unit vector center, so that the camera looks at it
+    public static void setRotationTowards(float[] center, float[] rotation) {
+        float[] up = Math.abs(center[0]) > 0.9f ? new float[]{0, 1, 0} : new float[]{1, 0, 0};
+        float[] right = new float[3];
+        float[] down = new float[3];
+        Vec3.cross(center, up, right);
+        Vec3.normalize(right, right);
+        Vec3.cross(center, right, down);
+        for (int i = 0; i < 3; i++) {
+            rotation[i] = right[i];
+            rotation[3 + i] = down[i];
+            rotation[6 + i] = center[i];
+        }
+    }
+
+    private static float[] getDirection(float latitude, float longitude) {
+        return new float[]{
+                (float) Math.sin(latitude),
+                (float) (Math.cos(longitude) * Math.cos(latitude)),
+                (float) (Math.sin(longitude) * Math.cos(latitude))
+        };
+    }
+}
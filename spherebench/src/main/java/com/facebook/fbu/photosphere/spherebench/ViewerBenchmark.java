@@ -0,0 +1,103 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherebench;
+
+import com.facebook.fbu.photosphere.spherelib.CubemapConverter;
+import com.facebook.fbu.photosphere.spherelib.PixelBuffer;
+import com.facebook.fbu.photosphere.spherelib.SphereCamera;
+import com.facebook.fbu.photosphere.spherelib.SphereGrid;
+import com.facebook.fbu.photosphere.spherelib.SphereRasterizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The projection work of the viewer for one frame: walking the adaptive grid, as the mosaic
+ * renderer does before drawing, and rendering a whole frame in software
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ViewerBenchmark {
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+
+    private final SphereCamera mCamera = new SphereCamera();
+    private final SphereGrid mGrid = new SphereGrid();
+    private final CountingVisitor mVisitor = new CountingVisitor();
+    private PixelBuffer mSphere;
+    private PixelBuffer mFrame;
+    private SphereRasterizer mRasterizer;
+    private float mAngle;
+
+    @Setup
+    public void setUp() {
+        mSphere = SyntheticSphere.createSphere(4096, 2048);
+        mFrame = new PixelBuffer(VIEW_WIDTH, VIEW_HEIGHT);
+        mRasterizer = new SphereRasterizer(mSphere);
+        mCamera.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+        mCamera.setZoomFactor(0.4f);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRasterizer.shutdown();
+    }
+
+    // the camera turns a little between frames, as it does when the sphere is dragged
+    private void nextFrame() {
+        mAngle += 0.01f;
+        mCamera.setRotation(0.3f * (float) Math.sin(mAngle), mAngle);
+    }
+
+    @Benchmark
+    public int gridTraversal() {
+        nextFrame();
+        mVisitor.mCount = 0;
+        mGrid.traverse(mCamera, mVisitor);
+        return mVisitor.mCount;
+    }
+
+    @Benchmark
+    public PixelBuffer rasterizerFrame() {
+        nextFrame();
+        mRasterizer.render(mCamera, mFrame);
+        return mFrame;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public PixelBuffer[] cubemapConversion() {
+        return new CubemapConverter(CubemapConverter.getDefaultFaceSize(mSphere.getWidth()))
+                .convert(mSphere);
+    }
+
+    private static class CountingVisitor implements SphereGrid.CellVisitor {
+        private int mCount;
+
+        @Override
+        public void onCell(int depth, int column, int row, float[] quad) {
+            mCount++;
+        }
+
+        @Override
+        public void onClippedCell(
+                int depth,
+                int column,
+                int row,
+                float[] polygon,
+                float[] texture,
+                int count) {
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecli;
+
+import com.facebook.fbu.photosphere.spherelib.BilinearSampler;
+import com.facebook.fbu.photosphere.spherelib.Blender;
+import com.facebook.fbu.photosphere.spherelib.CaptureReplay;
+import com.facebook.fbu.photosphere.spherelib.CaptureSession;
+import com.facebook.fbu.photosphere.spherelib.ConstructionProfiler;
+import com.facebook.fbu.photosphere.spherelib.ConstructionStage;
+import com.facebook.fbu.photosphere.spherelib.FeatherBlender;
+import com.facebook.fbu.photosphere.spherelib.NearestSampler;
+import com.facebook.fbu.photosphere.spherelib.OverwriteBlender;
+import com.facebook.fbu.photosphere.spherelib.PixelBuffer;
+import com.facebook.fbu.photosphere.spherelib.ReplayFrameSource;
+import com.facebook.fbu.photosphere.spherelib.ReplayOrientationSource;
+import com.facebook.fbu.photosphere.spherelib.Sampler;
+import com.facebook.fbu.photosphere.spherelib.SphereCompositor;
+import com.facebook.fbu.photosphere.spherelib.SpherePicture;
+import com.facebook.fbu.photosphere.spherelib.SphereStitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stitches a capture session recorded by CameraView into an equirectangular PNG, the same way
+ * the device does, adding the pictures one by one to a SphereCompositor with the tiles of
+ * PhotoSphereConstructor, and prints the ConstructionReport of the stitching and the peak heap usage:
+ *
+ * SphereCli session output.png [--height 1000] [--sampler nearest|bilinear]
+ * [--blender feather|overwrite] [--threads n] [--write-session file]
+ *
+ * The session can also be a directory of recorded frames, as read by ReplayFrameSource, next to
+ * the ORIENTATION_FILE trace read by ReplayOrientationSource. The capture is then replayed by
+ * CaptureReplay first, and --write-session saves the session it took.
+ */
+public class SphereCli {
+
+    // the height of the sphere CameraView constructs
+    private static final int DEFAULT_HEIGHT = 1000;
+
+    // the orientation trace of a directory of recorded frames
+    private static final String ORIENTATION_FILE = "orientation.txt";
+
+    private File mSessionFile;
+    private File mOutputFile;
+    private File mWrittenSessionFile;
+    private int mHeight = DEFAULT_HEIGHT;
+    private Sampler mSampler = new NearestSampler();
+    private Blender mBlender = new FeatherBlender();
+    private int mThreadCount = Runtime.getRuntime().availableProcessors();
+
+    private final ConstructionProfiler mProfiler = new ConstructionProfiler(
+            new ConstructionProfiler.CpuClock() {
+                private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+                @Override
+                public long getThreadCpuNanos() {
+                    return mThreadMXBean.getCurrentThreadCpuTime();
+                }
+            });
+
+    public static void main(String[] args) {
+        SphereCli cli = new SphereCli();
+        try {
+            cli.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: SphereCli session output.png [--height n]"
+                    + " [--sampler nearest|bilinear] [--blender feather|overwrite] [--threads n]"
+                    + " [--write-session file]");
+            System.exit(2);
+        }
+
+        try {
+            cli.run();
+        } catch (IOException e) {
+            System.err.println("Failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                files.add(arg);
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--height")) {
+                mHeight = parsePositive(arg, value);
+            } else if (arg.equals("--threads")) {
+                mThreadCount = parsePositive(arg, value);
+            } else if (arg.equals("--sampler")) {
+                mSampler = createSampler(value);
+            } else if (arg.equals("--blender")) {
+                mBlender = createBlender(value);
+            } else if (arg.equals("--write-session")) {
+                mWrittenSessionFile = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (files.size() != 2) {
+            throw new IllegalArgumentException("Expected a session and an output file");
+        }
+        mSessionFile = new File(files.get(0));
+        mOutputFile = new File(files.get(1));
+    }
+
+    private void run() throws IOException {
+        resetPeakMemory();
+        ExecutorService executorService = Executors.newFixedThreadPool(mThreadCount);
+        try {
+            long readStartNanos = System.nanoTime();
+            CaptureSession session = mSessionFile.isDirectory()
+                    ? replaySession()
+                    : readSession();
+            if (mWrittenSessionFile != null) {
+                OutputStream outputStream = new FileOutputStream(mWrittenSessionFile);
+                try {
+                    session.write(outputStream);
+                } finally {
+                    outputStream.close();
+                }
+            }
+            long readNanos = System.nanoTime() - readStartNanos;
+
+            List<SpherePicture> pictures = new ArrayList<SpherePicture>();
+            long picturePixels = 0;
+            for (CaptureSession.Shot shot : session.getShots()) {
+                ConstructionProfiler.Section section = mProfiler.begin(ConstructionStage.DECODE);
+                PixelBuffer pixels = decode(shot);
+                section.end((long) pixels.getWidth() * pixels.getHeight());
+                picturePixels += (long) pixels.getWidth() * pixels.getHeight();
+                pictures.add(shot.toSpherePicture(pixels));
+            }
+
+            PixelBuffer sphere = new PixelBuffer(2 * mHeight, mHeight);
+            SphereStitcher stitcher = new SphereStitcher(sphere, mSampler, mBlender);
+            stitcher.setProfiler(mProfiler);
+            SphereCompositor compositor = new SphereCompositor(
+                    stitcher,
+                    SphereCompositor.DEFAULT_TILE_WIDTH,
+                    executorService);
+            for (final SpherePicture picture : pictures) {
+                compositor.add(new SphereCompositor.Layer() {
+                    @Override
+                    public SpherePicture load() {
+                        return picture;
+                    }
+                });
+            }
+
+            ConstructionProfiler.Section section = mProfiler.begin(ConstructionStage.ENCODE);
+            encode(sphere);
+            section.end((long) sphere.getWidth() * sphere.getHeight());
+
+            System.out.println(String.format(
+                    "%d pictures, %d picture pixels, sphere %dx%d, %d threads, %s, %s",
+                    pictures.size(),
+                    picturePixels,
+                    sphere.getWidth(),
+                    sphere.getHeight(),
+                    mThreadCount,
+                    mSampler.getClass().getSimpleName(),
+                    mBlender.getClass().getSimpleName()));
+            System.out.println(String.format("session read in %.1f ms", readNanos / 1e6));
+            System.out.print(mProfiler.getReport());
+            System.out.println(String.format(
+                    "peak heap %.1f MB", getPeakMemory() / (1024.0 * 1024.0)));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private CaptureSession readSession() throws IOException {
+        InputStream inputStream = new FileInputStream(mSessionFile);
+        try {
+            return CaptureSession.read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // takes the pictures of the recorded frames with the orientation of the recorded trace
+    private CaptureSession replaySession() throws IOException {
+        ReplayOrientationSource orientationSource;
+        InputStream inputStream = new FileInputStream(new File(mSessionFile, ORIENTATION_FILE));
+        try {
+            orientationSource = ReplayOrientationSource.read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        ReplayFrameSource frameSource = new ReplayFrameSource(mSessionFile);
+        try {
+            return CaptureReplay.replay(frameSource, orientationSource);
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // decodes the JPEG of the shot and turns it by its image rotation
+    private PixelBuffer decode(CaptureSession.Shot shot) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(shot.getJpegData()));
+        if (image == null) {
+            throw new IOException("Unreadable JPEG in " + mSessionFile);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] source = image.getRGB(0, 0, width, height, null, 0, width);
+
+        int turns = ((shot.getImageRotation() / 90) % 4 + 4) % 4;
+        boolean isTurned = turns % 2 == 1;
+        PixelBuffer result = new PixelBuffer(isTurned ? height : width, isTurned ? width : height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = source[y * width + x];
+                switch (turns) {
+                    case 1:
+                        result.setPixel(height - 1 - y, x, color);
+                        break;
+                    case 2:
+                        result.setPixel(width - 1 - x, height - 1 - y, color);
+                        break;
+                    case 3:
+                        result.setPixel(y, width - 1 - x, color);
+                        break;
+                    default:
+                        result.setPixel(x, y, color);
+                        break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void encode(PixelBuffer sphere) throws IOException {
+        BufferedImage image = new BufferedImage(
+                sphere.getWidth(),
+                sphere.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(
+                0,
+                0,
+                sphere.getWidth(),
+                sphere.getHeight(),
+                sphere.getPixels(),
+                0,
+                sphere.getWidth());
+        if (!ImageIO.write(image, "png", mOutputFile)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+
+    private static void resetPeakMemory() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    // sum of the peaks of the heap pools, which is an upper bound of the peak of the heap
+    private static long getPeakMemory() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static int parsePositive(String option, String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " expects a positive number, got " + value);
+    }
+
+    private static Sampler createSampler(String name) {
+        if (name.equals("nearest")) {
+            return new NearestSampler();
+        } else if (name.equals("bilinear")) {
+            return new BilinearSampler();
+        }
+        throw new IllegalArgumentException("Unknown sampler " + name);
+    }
+
+    private static Blender createBlender(String name) {
+        if (name.equals("feather")) {
+            return new FeatherBlender();
+        } else if (name.equals("overwrite")) {
+            return new OverwriteBlender();
+        }
+        throw new IllegalArgumentException("Unknown blender " + name);
+    }
+}
@@ -0,0 +1,34 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Interpolates the colors of the four pixels around the point
+ */
+public class BilinearSampler implements Sampler {
+
+    @Override
+    public int sample(PixelBuffer picture, float x, float y) {
+        int left = (int) x;
+        int top = (int) y;
+        int right = Math.min(left + 1, picture.getWidth() - 1);
+        int bottom = Math.min(top + 1, picture.getHeight() - 1);
+        // weights of the right and bottom pixels, out of 256
+        int dx = (int) ((x - left) * 256);
+        int dy = (int) ((y - top) * 256);
+
+        int topColor = mix(picture.getPixel(left, top), picture.getPixel(right, top), dx);
+        int bottomColor = mix(picture.getPixel(left, bottom), picture.getPixel(right, bottom), dx);
+        return mix(topColor, bottomColor, dy);
+    }
+
+    // Interpolates each channel of two colors, two channels at once in their own 16 bits
+    private static int mix(int first, int second, int weight) {
+        int firstWeight = 256 - weight;
+        int redBlue = ((first & 0x00ff00ff) * firstWeight
+                + (second & 0x00ff00ff) * weight) >>> 8;
+        int alphaGreen = (((first >>> 8) & 0x00ff00ff) * firstWeight
+                + ((second >>> 8) & 0x00ff00ff) * weight) >>> 8;
+        return (redBlue & 0x00ff00ff) | ((alphaGreen & 0x00ff00ff) << 8);
+    }
+}
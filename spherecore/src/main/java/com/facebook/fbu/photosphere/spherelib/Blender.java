@@ -0,0 +1,18 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Combines the color a picture brings to a pixel of the sphere with the color already there
+ */
+public interface Blender {
+    /**
+     * @param destination - the color of the sphere, fully transparent where nothing was drawn
+     * @param color       - the color sampled from the picture
+     * @param x           - where the color was sampled in the picture, in pixels
+     * @param y           - where the color was sampled in the picture, in pixels
+     * @param width       - the width of the picture
+     * @param height      - the height of the picture
+     */
+    int blend(int destination, int color, float x, float y, int width, int height);
+}
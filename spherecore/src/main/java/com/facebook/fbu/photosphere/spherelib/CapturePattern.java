@@ -0,0 +1,189 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The directions to take pictures at so that they cover the whole sphere, for a given view angle
+ * of the pictures and overlap between neighbours, and the seams between neighbours.
+ *
+ * Pictures are taken in portrait, their width along the longitude, so the width angle is the
+ * vertical view angle of the landscape camera sensor. They are laid out in rings of constant
+ * latitude: the equator, as few rings as needed on each side of it, and one picture at each
+ * pole. A ring has as many pictures as it takes to go around the sphere where it is the
+ * widest, which is its edge closest to the equator. Directions are laid out as the vertices of
+ * the sphere, {sin(latitude), cos(longitude) * cos(latitude), sin(longitude) * cos(latitude)}
+ */
+public class CapturePattern {
+
+    /**
+     * Pictures at the same latitude, evenly spread in longitude from the longitude 0
+     */
+    public static class Ring {
+        private final float mLatitude;
+        private final int mSize;
+
+        private Ring(float latitude, int size) {
+            mLatitude = latitude;
+            mSize = size;
+        }
+
+        // in radians, positive towards {1, 0, 0}
+        public float getLatitude() {
+            return mLatitude;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public boolean isPole() {
+            return mSize == 1 && Math.abs(mLatitude) == (float) (Math.PI / 2);
+        }
+
+        public float getLongitude(int index) {
+            return (float) (2 * Math.PI * index / mSize);
+        }
+
+        public void getDirection(int index, float[] result) {
+            getPoint(mLatitude, getLongitude(index), result);
+        }
+    }
+
+    /**
+     * A rectangle, as the abstract rectangles of pictures, centered on the seam between two
+     * neighbours of a ring, whose width is their overlap and whose height is the one of the ring
+     */
+    public static class Seam {
+        private final float[] mRotation;
+        private final float mWidth;
+        private final float mHeight;
+
+        private Seam(float[] rotation, float width, float height) {
+            mRotation = rotation;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        // a float[9] laid out as in Mat3, whose first row points to the north of the seam and
+        // last row to its center
+        public float[] getRotation() {
+            return mRotation;
+        }
+
+        public float getWidth() {
+            return mWidth;
+        }
+
+        public float getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final List<Ring> mRings;
+    private final List<Seam> mSeams;
+
+    /**
+     * @param widthAngle  - the view angle, in degrees, along the width of the pictures
+     * @param heightAngle - the view angle, in degrees, along the height of the pictures
+     * @param overlap     - the fraction of a picture, between 0 and 1 excluded, shared with each
+     *                    of its neighbours
+     */
+    public CapturePattern(float widthAngle, float heightAngle, float overlap) {
+        if (widthAngle <= 0 || widthAngle >= 180 || heightAngle <= 0 || heightAngle >= 180
+                || overlap < 0 || overlap >= 1) {
+            throw new RuntimeException("Illegal view angles.");
+        }
+        double width = Math.toRadians(widthAngle);
+        double height = Math.toRadians(heightAngle);
+
+        // the half of its extent each picture adds once the overlap is taken away, along the
+        // latitude for a ring and around the pole for a pole picture
+        double ringHalfHeight = height / 2 * (1 - overlap);
+        double poleRadius = Math.min(width, height) / 2 * (1 - overlap);
+
+        // the highest ring touches the area the pole picture covers, and the rings between it
+        // and the equator are evenly spread
+        double highestLatitude = Math.PI / 2 - poleRadius - ringHalfHeight;
+        int ringsPerSide = highestLatitude <= 0
+                ? 0
+                : (int) Math.ceil(highestLatitude / (2 * ringHalfHeight));
+
+        List<Ring> rings = new ArrayList<Ring>();
+        rings.add(new Ring((float) (-Math.PI / 2), 1));
+        for (int i = -ringsPerSide; i <= ringsPerSide; i++) {
+            double latitude = ringsPerSide == 0 ? 0 : highestLatitude * i / ringsPerSide;
+            double widestLatitude = Math.max(0, Math.abs(latitude) - ringHalfHeight);
+            int size = (int) Math.ceil(
+                    2 * Math.PI * Math.cos(widestLatitude) / (width * (1 - overlap)));
+            rings.add(new Ring((float) latitude, Math.max(size, 1)));
+        }
+        rings.add(new Ring((float) (Math.PI / 2), 1));
+        mRings = Collections.unmodifiableList(rings);
+
+        List<Seam> seams = new ArrayList<Seam>();
+        float seamWidth = 2 * (float) Math.tan(width * overlap / 2);
+        float seamHeight = 2 * (float) Math.tan(height / 2);
+        for (Ring ring : mRings) {
+            if (ring.isPole() || ring.getSize() < 2) {
+                continue;
+            }
+            for (int k = 0; k < ring.getSize(); k++) {
+                float longitude = (float) (ring.getLongitude(k) + Math.PI / ring.getSize());
+                seams.add(new Seam(
+                        getRotationAt(ring.getLatitude(), longitude),
+                        seamWidth,
+                        seamHeight));
+            }
+        }
+        mSeams = Collections.unmodifiableList(seams);
+    }
+
+    // from the south pole to the north pole
+    public List<Ring> getRings() {
+        return mRings;
+    }
+
+    public int getDirectionCount() {
+        int count = 0;
+        for (Ring ring : mRings) {
+            count += ring.getSize();
+        }
+        return count;
+    }
+
+    public List<Seam> getSeams() {
+        return mSeams;
+    }
+
+    private static void getPoint(float latitude, float longitude, float[] result) {
+        Vec3.set(
+                (float) Math.sin(latitude),
+                (float) (Math.cos(longitude) * Math.cos(latitude)),
+                (float) (Math.sin(longitude) * Math.cos(latitude)),
+                result);
+    }
+
+    // the rotation whose rows are the north, east and center at a point of the sphere
+    private static float[] getRotationAt(float latitude, float longitude) {
+        float[] north = new float[3];
+        float[] center = new float[3];
+        float[] east = new float[3];
+        Vec3.set(
+                (float) Math.cos(latitude),
+                (float) (-Math.cos(longitude) * Math.sin(latitude)),
+                (float) (-Math.sin(longitude) * Math.sin(latitude)),
+                north);
+        getPoint(latitude, longitude, center);
+        Vec3.cross(center, north, east);
+
+        float[] rotation = new float[9];
+        System.arraycopy(north, 0, rotation, 0, 3);
+        System.arraycopy(east, 0, rotation, 3, 3);
+        System.arraycopy(center, 0, rotation, 6, 3);
+        return rotation;
+    }
+}
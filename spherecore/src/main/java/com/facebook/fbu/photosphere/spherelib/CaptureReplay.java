@@ -0,0 +1,58 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Takes every frame of a ReplayFrameSource the way CameraController takes pictures on the
+ * device, with the rotation the OrientationTracker gives from the trace up to the time the frame
+ * was taken, and collects them in a CaptureSession that can be stitched like a recorded one
+ */
+public class CaptureReplay {
+
+    // the number of rotation vectors OrientationManager averages
+    private static final int ORIENTATION_QUEUE_SIZE = 1;
+
+    private CaptureReplay() {
+    }
+
+    public static CaptureSession replay(
+            final ReplayFrameSource frameSource,
+            ReplayOrientationSource orientationSource) {
+        final OrientationTracker orientationTracker =
+                new OrientationTracker(ORIENTATION_QUEUE_SIZE);
+        final CaptureSession session = new CaptureSession();
+
+        // the frames are in the referential of the camera, turned by the image rotation, so the
+        // vertical angle of the camera is along the width of the picture
+        final float abstractWidth = 2 * (float) Math.tan(
+                frameSource.getVerticalViewAngle() * Math.PI / 180 / 2);
+        final float abstractHeight = 2 * (float) Math.tan(
+                frameSource.getHorizontalViewAngle() * Math.PI / 180 / 2);
+
+        orientationSource.start(orientationTracker);
+        try {
+            while (frameSource.hasNextFrame()) {
+                orientationSource.advanceTo(frameSource.getNextTimestampNanos());
+                final float[] rotation = new float[9];
+                orientationTracker.getPositionRotation(rotation);
+                frameSource.takePicture(new FrameSource.Callback() {
+                    @Override
+                    public void onFrameTaken(byte[] jpegData) {
+                        session.addShot(new CaptureSession.Shot(
+                                jpegData,
+                                frameSource.getImageRotation(),
+                                rotation,
+                                abstractWidth,
+                                abstractHeight,
+                                frameSource.getHorizontalViewAngle(),
+                                frameSource.getVerticalViewAngle()));
+                    }
+                });
+            }
+        } finally {
+            orientationSource.stop();
+            frameSource.close();
+        }
+        return session;
+    }
+}
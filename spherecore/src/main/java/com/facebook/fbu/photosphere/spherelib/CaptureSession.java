@@ -0,0 +1,168 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The pictures taken for a photosphere, with everything needed to stitch them again later.
+ *
+ * The file starts with MAGIC and VERSION, followed by the number of shots. Each shot is its
+ * image rotation in degrees, its rotation matrix as 9 floats row by row, its abstract width and
+ * height, the horizontal and vertical view angles of the camera in degrees, and the length and
+ * bytes of the JPEG the camera returned. Numbers are big endian, as DataOutputStream writes them
+ */
+public class CaptureSession {
+
+    // "SPHS"
+    private static final int MAGIC = 0x53504853;
+    private static final int VERSION = 1;
+
+    /**
+     * A picture as the camera returned it, before it is decoded
+     */
+    public static class Shot {
+        private final byte[] mJpegData;
+        private final int mImageRotation;
+        private final float[] mRotation;
+        private final float mAbstractWidth;
+        private final float mAbstractHeight;
+        private final float mHorizontalViewAngle;
+        private final float mVerticalViewAngle;
+
+        /**
+         * @param imageRotation - the clockwise rotation, in degrees, to apply to the decoded JPEG
+         *                      to get the picture as it was stitched
+         * @param rotation      - the rotation of the device, a float[9] laid out as in Mat3
+         */
+        public Shot(
+                byte[] jpegData,
+                int imageRotation,
+                float[] rotation,
+                float abstractWidth,
+                float abstractHeight,
+                float horizontalViewAngle,
+                float verticalViewAngle) {
+            if (rotation.length != 9) {
+                throw new RuntimeException("Illegal dimensions.");
+            }
+            mJpegData = jpegData;
+            mImageRotation = imageRotation;
+            mRotation = rotation;
+            mAbstractWidth = abstractWidth;
+            mAbstractHeight = abstractHeight;
+            mHorizontalViewAngle = horizontalViewAngle;
+            mVerticalViewAngle = verticalViewAngle;
+        }
+
+        public byte[] getJpegData() {
+            return mJpegData;
+        }
+
+        public int getImageRotation() {
+            return mImageRotation;
+        }
+
+        public float[] getRotation() {
+            return mRotation;
+        }
+
+        public float getAbstractWidth() {
+            return mAbstractWidth;
+        }
+
+        public float getAbstractHeight() {
+            return mAbstractHeight;
+        }
+
+        public float getHorizontalViewAngle() {
+            return mHorizontalViewAngle;
+        }
+
+        public float getVerticalViewAngle() {
+            return mVerticalViewAngle;
+        }
+
+        // the picture to stitch, once the JPEG is decoded and rotated by getImageRotation()
+        public SpherePicture toSpherePicture(PixelBuffer pixels) {
+            return new SpherePicture(pixels, mRotation, mAbstractWidth, mAbstractHeight);
+        }
+    }
+
+    private final List<Shot> mShots = new ArrayList<Shot>();
+
+    public void addShot(Shot shot) {
+        mShots.add(shot);
+    }
+
+    public List<Shot> getShots() {
+        return Collections.unmodifiableList(mShots);
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(mShots.size());
+        for (Shot shot : mShots) {
+            output.writeInt(shot.mImageRotation);
+            for (float value : shot.mRotation) {
+                output.writeFloat(value);
+            }
+            output.writeFloat(shot.mAbstractWidth);
+            output.writeFloat(shot.mAbstractHeight);
+            output.writeFloat(shot.mHorizontalViewAngle);
+            output.writeFloat(shot.mVerticalViewAngle);
+            output.writeInt(shot.mJpegData.length);
+            output.write(shot.mJpegData);
+        }
+        output.flush();
+    }
+
+    public static CaptureSession read(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a capture session");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported capture session version " + version);
+        }
+
+        CaptureSession session = new CaptureSession();
+        int shotCount = input.readInt();
+        for (int i = 0; i < shotCount; i++) {
+            int imageRotation = input.readInt();
+            float[] rotation = new float[9];
+            for (int k = 0; k < 9; k++) {
+                rotation[k] = input.readFloat();
+            }
+            float abstractWidth = input.readFloat();
+            float abstractHeight = input.readFloat();
+            float horizontalViewAngle = input.readFloat();
+            float verticalViewAngle = input.readFloat();
+            int length = input.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupted capture session");
+            }
+            byte[] jpegData = new byte[length];
+            input.readFully(jpegData);
+            session.addShot(new Shot(
+                    jpegData,
+                    imageRotation,
+                    rotation,
+                    abstractWidth,
+                    abstractHeight,
+                    horizontalViewAngle,
+                    verticalViewAngle));
+        }
+        return session;
+    }
+}
@@ -0,0 +1,179 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects wall time, cpu time, pixel counts, per thread busy time and heap usage for each
+ * ConstructionStage, from any number of threads.
+ *
+ * Work is measured either with a Section, started and ended on the same thread, or reported
+ * afterwards with record(). Neither the clock for the cpu time nor the trace hook can be taken
+ * from java.lang.management or android.os here, so they are supplied by the platform
+ */
+public class ConstructionProfiler {
+
+    /**
+     * The cpu time of the current thread, in nanoseconds
+     */
+    public interface CpuClock {
+        long getThreadCpuNanos();
+    }
+
+    /**
+     * Receives nested, per thread sections, for instance to forward them to systrace
+     */
+    public interface TraceHook {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    /**
+     * Measures one piece of work of a stage on the current thread
+     */
+    public class Section {
+        private final ConstructionStage mStage;
+        private final long mStartNanos;
+        private final long mStartCpuNanos;
+
+        private Section(ConstructionStage stage) {
+            mStage = stage;
+            beginTrace(stage.getName());
+            mStartCpuNanos = getThreadCpuNanos();
+            mStartNanos = System.nanoTime();
+        }
+
+        public void end(long pixels) {
+            long endNanos = System.nanoTime();
+            long cpuNanos = getThreadCpuNanos() - mStartCpuNanos;
+            endTrace();
+            record(mStage, mStartNanos, endNanos, cpuNanos, pixels);
+        }
+    }
+
+    private static class Stage {
+        private int mCount;
+        private long mFirstNanos;
+        private long mLastNanos;
+        private long mBusyNanos;
+        private long mCpuNanos;
+        private long mPixels;
+        private long mPeakBytes;
+        private final Map<String, Long> mThreadBusyNanos = new HashMap<String, Long>();
+    }
+
+    private final CpuClock mCpuClock;
+    private volatile TraceHook mTraceHook;
+    private final Stage[] mStages = new Stage[ConstructionStage.values().length];
+
+    /**
+     * @param cpuClock - null if the platform can't measure it, cpu times are then reported as 0
+     */
+    public ConstructionProfiler(CpuClock cpuClock) {
+        mCpuClock = cpuClock;
+        reset();
+    }
+
+    public void setTraceHook(TraceHook traceHook) {
+        mTraceHook = traceHook;
+    }
+
+    public Section begin(ConstructionStage stage) {
+        return new Section(stage);
+    }
+
+    public long getThreadCpuNanos() {
+        return mCpuClock == null ? 0 : mCpuClock.getThreadCpuNanos();
+    }
+
+    public void beginTrace(String name) {
+        TraceHook traceHook = mTraceHook;
+        if (traceHook != null) {
+            traceHook.beginSection(name);
+        }
+    }
+
+    public void endTrace() {
+        TraceHook traceHook = mTraceHook;
+        if (traceHook != null) {
+            traceHook.endSection();
+        }
+    }
+
+    /**
+     * Adds work done by the current thread between startNanos and endNanos, as given by
+     * System.nanoTime(). The busy time is endNanos - startNanos unless busyNanos is smaller,
+     * for work that was interleaved with another stage
+     */
+    public void record(
+            ConstructionStage stage,
+            long startNanos,
+            long endNanos,
+            long busyNanos,
+            long cpuNanos,
+            long pixels) {
+        long usedBytes = getUsedBytes();
+        String thread = Thread.currentThread().getName();
+        synchronized (this) {
+            Stage result = mStages[stage.ordinal()];
+            if (result.mCount == 0 || startNanos < result.mFirstNanos) {
+                result.mFirstNanos = startNanos;
+            }
+            if (result.mCount == 0 || endNanos > result.mLastNanos) {
+                result.mLastNanos = endNanos;
+            }
+            result.mCount++;
+            result.mBusyNanos += busyNanos;
+            result.mCpuNanos += cpuNanos;
+            result.mPixels += pixels;
+            result.mPeakBytes = Math.max(result.mPeakBytes, usedBytes);
+            Long threadBusyNanos = result.mThreadBusyNanos.get(thread);
+            result.mThreadBusyNanos.put(
+                    thread,
+                    (threadBusyNanos == null ? 0 : threadBusyNanos) + busyNanos);
+        }
+    }
+
+    public void record(
+            ConstructionStage stage,
+            long startNanos,
+            long endNanos,
+            long cpuNanos,
+            long pixels) {
+        record(stage, startNanos, endNanos, endNanos - startNanos, cpuNanos, pixels);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new Stage();
+        }
+    }
+
+    public synchronized ConstructionReport getReport() {
+        ConstructionStage[] stages = ConstructionStage.values();
+        ConstructionReport.StageReport[] reports =
+                new ConstructionReport.StageReport[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = mStages[i];
+            reports[i] = new ConstructionReport.StageReport(
+                    stages[i],
+                    stage.mCount,
+                    stage.mLastNanos - stage.mFirstNanos,
+                    stage.mBusyNanos,
+                    stage.mCpuNanos,
+                    stage.mPixels,
+                    stage.mPeakBytes,
+                    new HashMap<String, Long>(stage.mThreadBusyNanos));
+        }
+        return new ConstructionReport(reports);
+    }
+
+    // the heap in use, sampled when work is recorded, which works the same on android
+    private static long getUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,139 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A snapshot of what ConstructionProfiler measured, one StageReport per ConstructionStage
+ */
+public class ConstructionReport {
+
+    public static class StageReport {
+        private final ConstructionStage mStage;
+        private final int mCount;
+        private final long mElapsedNanos;
+        private final long mBusyNanos;
+        private final long mCpuNanos;
+        private final long mPixels;
+        private final long mPeakBytes;
+        private final Map<String, Long> mThreadBusyNanos;
+
+        StageReport(
+                ConstructionStage stage,
+                int count,
+                long elapsedNanos,
+                long busyNanos,
+                long cpuNanos,
+                long pixels,
+                long peakBytes,
+                Map<String, Long> threadBusyNanos) {
+            mStage = stage;
+            mCount = count;
+            mElapsedNanos = elapsedNanos;
+            mBusyNanos = busyNanos;
+            mCpuNanos = cpuNanos;
+            mPixels = pixels;
+            mPeakBytes = peakBytes;
+            mThreadBusyNanos = Collections.unmodifiableMap(
+                    new TreeMap<String, Long>(threadBusyNanos));
+        }
+
+        public ConstructionStage getStage() {
+            return mStage;
+        }
+
+        public boolean isRun() {
+            return mCount > 0;
+        }
+
+        // the number of sections or records that made up the stage
+        public int getCount() {
+            return mCount;
+        }
+
+        // wall time from the start of the first piece of work to the end of the last one
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        // wall time spent in the stage, summed over the threads
+        public long getBusyNanos() {
+            return mBusyNanos;
+        }
+
+        public long getCpuNanos() {
+            return mCpuNanos;
+        }
+
+        public long getPixels() {
+            return mPixels;
+        }
+
+        // pixels per second of busy time, so that it doesn't depend on the number of threads
+        public double getPixelsPerSecond() {
+            return mBusyNanos == 0 ? 0 : mPixels * 1e9 / mBusyNanos;
+        }
+
+        // the most heap in use seen while the stage was recorded
+        public long getPeakBytes() {
+            return mPeakBytes;
+        }
+
+        public Map<String, Long> getThreadBusyNanos() {
+            return mThreadBusyNanos;
+        }
+
+        // the fraction of the elapsed time the thread spent in the stage
+        public double getThreadUtilization(String thread) {
+            Long busyNanos = mThreadBusyNanos.get(thread);
+            return busyNanos == null || mElapsedNanos == 0
+                    ? 0
+                    : (double) busyNanos / mElapsedNanos;
+        }
+    }
+
+    private final StageReport[] mStages;
+
+    ConstructionReport(StageReport[] stages) {
+        mStages = stages;
+    }
+
+    public StageReport getStage(ConstructionStage stage) {
+        return mStages[stage.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(
+                "%-10s %6s %10s %10s %10s %10s %9s%n",
+                "stage", "count", "elapsed ms", "busy ms", "cpu ms", "Mpixel/s", "peak MB"));
+        for (StageReport stage : mStages) {
+            if (!stage.isRun()) {
+                builder.append(String.format("%-10s not run%n", stage.getStage().getName()));
+                continue;
+            }
+            builder.append(String.format(
+                    "%-10s %6d %10.1f %10.1f %10.1f %10.1f %9.1f%n",
+                    stage.getStage().getName(),
+                    stage.getCount(),
+                    stage.getElapsedNanos() / 1e6,
+                    stage.getBusyNanos() / 1e6,
+                    stage.getCpuNanos() / 1e6,
+                    stage.getPixelsPerSecond() / 1e6,
+                    stage.getPeakBytes() / (1024.0 * 1024.0)));
+            if (stage.getThreadBusyNanos().size() > 1) {
+                for (String thread : stage.getThreadBusyNanos().keySet()) {
+                    builder.append(String.format(
+                            "    %-24s %5.1f%%%n",
+                            thread,
+                            100 * stage.getThreadUtilization(thread)));
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
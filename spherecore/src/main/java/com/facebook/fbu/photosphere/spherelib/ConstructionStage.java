@@ -0,0 +1,28 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * The stages of the construction of a photosphere, as reported by ConstructionProfiler.
+ *
+ * Pictures are placed with the rotation the sensors measured and drawn without exposure
+ * correction, so ALIGNMENT and GAIN_COMPENSATION are never run for now and are reported as such
+ */
+public enum ConstructionStage {
+    DECODE("decode"),
+    ALIGNMENT("alignment"),
+    GAIN_COMPENSATION("gain"),
+    WARP("warp"),
+    BLEND("blend"),
+    ENCODE("encode");
+
+    private final String mName;
+
+    ConstructionStage(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts an equirectangular photosphere to the six faces of a cube. The equirectangular
+ * picture has as many pixels on the rows near the poles as on the equator, while the faces of a
+ * cube spread their pixels almost evenly over the sphere, so they need less memory for the same
+ * quality. The faces are converted in parallel
+ */
+public class CubemapConverter {
+
+    public static final int FACE_COUNT = 6;
+
+    // FACE_AXES[face] holds the center, right and down vectors of the face, the point (s, t) of
+    // the face being center + s * right + t * down for s and t between -1 and 1. The four faces
+    // around the equator follow increasing longitudes, and down points to the south pole
+    private static final float[][][] FACE_AXES = new float[][][]{
+            {{0, 1, 0}, {0, 0, 1}, {1, 0, 0}},
+            {{0, 0, 1}, {0, -1, 0}, {1, 0, 0}},
+            {{0, -1, 0}, {0, 0, -1}, {1, 0, 0}},
+            {{0, 0, -1}, {0, 1, 0}, {1, 0, 0}},
+            {{-1, 0, 0}, {0, 0, 1}, {0, 1, 0}},
+            {{1, 0, 0}, {0, 0, 1}, {0, -1, 0}}
+    };
+
+    private final int mFaceSize;
+
+    public CubemapConverter(int faceSize) {
+        if (faceSize <= 0) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mFaceSize = faceSize;
+    }
+
+    // Faces a quarter as wide as the picture keep the resolution of its equator, with three
+    // quarters of its pixels
+    public static int getDefaultFaceSize(int width) {
+        return Math.max(1, width / 4);
+    }
+
+    // Writes in result the point (s, t) of the face, s and t being between -1 and 1
+    public static void getFacePoint(int face, float s, float t, float[] result) {
+        float[][] axes = FACE_AXES[face];
+        for (int i = 0; i < 3; i++) {
+            result[i] = axes[0][i] + s * axes[1][i] + t * axes[2][i];
+        }
+    }
+
+    public int getFaceSize() {
+        return mFaceSize;
+    }
+
+    // Returns the FACE_COUNT faces of the equirectangular picture source
+    public PixelBuffer[] convert(PixelBuffer source) {
+        final EquirectangularSampler sampler = new EquirectangularSampler(source);
+        final PixelBuffer[] faces = new PixelBuffer[FACE_COUNT];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int face = 0; face < FACE_COUNT; face++) {
+            final int currentFace = face;
+            faces[face] = new PixelBuffer(mFaceSize, mFaceSize);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    convertFace(sampler, currentFace, faces[currentFace]);
+                    return null;
+                }
+            });
+        }
+
+        int threadCount = Math.min(FACE_COUNT, Runtime.getRuntime().availableProcessors());
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Void> task : executorService.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executorService.shutdown();
+        }
+        return faces;
+    }
+
+    // Samples the picture at the center of every pixel of the face
+    public void convertFace(EquirectangularSampler sampler, int face, PixelBuffer result) {
+        if (result.getWidth() != mFaceSize || result.getHeight() != mFaceSize) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+
+        float[][] axes = FACE_AXES[face];
+        int[] pixels = result.getPixels();
+        float step = 2f / mFaceSize;
+        for (int y = 0; y < mFaceSize; y++) {
+            float t = -1 + (y + 0.5f) * step;
+            float rowX = axes[0][0] - axes[1][0] + t * axes[2][0];
+            float rowY = axes[0][1] - axes[1][1] + t * axes[2][1];
+            float rowZ = axes[0][2] - axes[1][2] + t * axes[2][2];
+            for (int x = 0; x < mFaceSize; x++) {
+                float s = (x + 0.5f) * step;
+                pixels[y * mFaceSize + x] = sampler.sample(
+                        rowX + s * axes[1][0],
+                        rowY + s * axes[1][1],
+                        rowZ + s * axes[1][2]);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Reads the color of an equirectangular picture in a given direction from the center of the
+ * sphere. Longitudes and latitudes come from a fixed point arctangent table and the bilinear
+ * sampling is done in integer arithmetic, so it can be called for every pixel of a frame
+ */
+public class EquirectangularSampler {
+
+    // angles are fixed point fractions of a full turn, TURN standing for 2 * PI
+    private static final int TURN_BITS = 24;
+    private static final int TURN = 1 << TURN_BITS;
+
+    // bits of the fractional part of texel coordinates and interpolation weights
+    private static final int FRACTION_BITS = 8;
+    private static final int FRACTION_ONE = 1 << FRACTION_BITS;
+    private static final int FRACTION_MASK = FRACTION_ONE - 1;
+
+    // ATAN_TABLE[i] is the arctangent of i / ATAN_STEPS, in units of TURN
+    private static final int ATAN_STEPS = 1024;
+    private static final int[] ATAN_TABLE = new int[ATAN_STEPS + 1];
+
+    static {
+        for (int i = 0; i <= ATAN_STEPS; i++) {
+            double angle = Math.atan((double) i / ATAN_STEPS);
+            ATAN_TABLE[i] = (int) Math.round(angle / (2 * Math.PI) * TURN);
+        }
+    }
+
+    private final PixelBuffer mSource;
+
+    public EquirectangularSampler(PixelBuffer source) {
+        mSource = source;
+    }
+
+    // Color of the picture in the direction (x, y, z), which doesn't need to be normalized
+    public int sample(float x, float y, float z) {
+        // inverse of the parametrization of the sphere by meridians and parallels, measured in
+        // fractions of a turn
+        int longitude = atan2(z, y);
+        int latitude = atan2(x, (float) Math.sqrt(y * y + z * z));
+        return sample(longitude, 2 * latitude + TURN / 2);
+    }
+
+    // Angle of the point (x, y) with the x axis, in fixed point units of TURN, between -TURN / 2
+    // and TURN / 2. The angle of the octant is read from ATAN_TABLE with linear interpolation
+    private static int atan2(float y, float x) {
+        float absX = Math.abs(x);
+        float absY = Math.abs(y);
+        if (absX == 0 && absY == 0) {
+            return 0;
+        }
+
+        int angle;
+        if (absY <= absX) {
+            angle = atan(absY / absX);
+        } else {
+            angle = TURN / 4 - atan(absX / absY);
+        }
+        if (x < 0) {
+            angle = TURN / 2 - angle;
+        }
+        return y < 0 ? -angle : angle;
+    }
+
+    // arctangent of a ratio between 0 and 1, in fixed point units of TURN
+    private static int atan(float ratio) {
+        int index = (int) (ratio * (ATAN_STEPS << FRACTION_BITS));
+        int entry = index >> FRACTION_BITS;
+        if (entry >= ATAN_STEPS) {
+            return ATAN_TABLE[ATAN_STEPS];
+        }
+        int fraction = index & FRACTION_MASK;
+        int first = ATAN_TABLE[entry];
+        return first + (((ATAN_TABLE[entry + 1] - first) * fraction) >> FRACTION_BITS);
+    }
+
+    // Bilinear sampling of the source at texture coordinates (u, v), both in fixed point units
+    // of TURN, wrapping around horizontally since the picture goes all the way around the sphere
+    private int sample(int u, int v) {
+        int width = mSource.getWidth();
+        int height = mSource.getHeight();
+
+        // texel coordinates with FRACTION_BITS bits of fraction, moved by half a texel so that
+        // the integer part is the texel to the top left of the sample
+        int halfTexel = 1 << (FRACTION_BITS - 1);
+        int x = (int) (((long) u * width) >> (TURN_BITS - FRACTION_BITS)) - halfTexel;
+        int y = (int) (((long) v * height) >> (TURN_BITS - FRACTION_BITS)) - halfTexel;
+        y = Math.max(0, Math.min((height - 1) << FRACTION_BITS, y));
+
+        int left = x >> FRACTION_BITS;
+        int top = y >> FRACTION_BITS;
+        int dx = x & FRACTION_MASK;
+        int dy = y & FRACTION_MASK;
+        int right = left + 1;
+        int bottom = Math.min(top + 1, height - 1);
+        left = (left % width + width) % width;
+        right = (right % width + width) % width;
+
+        int[] pixels = mSource.getPixels();
+        int topColor = mix(pixels[top * width + left], pixels[top * width + right], dx);
+        int bottomColor = mix(pixels[bottom * width + left], pixels[bottom * width + right], dx);
+        return mix(topColor, bottomColor, dy);
+    }
+
+    // Linear interpolation of each channel of two colors, weight being the share of the second
+    // one in units of 1 / FRACTION_ONE. Two channels are interpolated at once, each in its own
+    // 16 bits
+    private static int mix(int first, int second, int weight) {
+        int firstWeight = FRACTION_ONE - weight;
+        int redBlue = ((first & 0x00ff00ff) * firstWeight
+                + (second & 0x00ff00ff) * weight) >>> FRACTION_BITS;
+        int alphaGreen = (((first >>> 8) & 0x00ff00ff) * firstWeight
+                + ((second >>> 8) & 0x00ff00ff) * weight) >>> FRACTION_BITS;
+        return (redBlue & 0x00ff00ff) | ((alphaGreen & 0x00ff00ff) << 8);
+    }
+}
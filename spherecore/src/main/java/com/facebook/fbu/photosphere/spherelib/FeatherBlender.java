@@ -0,0 +1,44 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Fills the pixels nothing was drawn on, and elsewhere mixes the picture over the sphere with
+ * an opacity that fades from 1 in the middle rectangle of the picture to 0 a sixth of its width
+ * away from it, so that overlapping pictures blend at their borders
+ */
+public class FeatherBlender implements Blender {
+
+    @Override
+    public int blend(int destination, int color, float x, float y, int width, int height) {
+        if (destination >>> 24 == 0) {
+            return color;
+        }
+
+        int margin = width / 6;
+        if (margin == 0) {
+            return color;
+        }
+        int dx = distanceToRange((int) x, margin, width * 5 / 6);
+        int dy = distanceToRange((int) y, height / 6, height - margin);
+        int alpha = Math.max(0, 255 - 255 * (dx * dx + dy * dy) / margin / margin);
+
+        // the opacity out of 256, so that channels can be divided with a shift
+        int weight = alpha + (alpha >> 7);
+        int firstWeight = 256 - weight;
+        int redBlue = ((destination & 0x00ff00ff) * firstWeight
+                + (color & 0x00ff00ff) * weight) >>> 8;
+        int green = ((destination & 0x0000ff00) * firstWeight
+                + (color & 0x0000ff00) * weight) >>> 8;
+        return (destination & 0xff000000) | (redBlue & 0x00ff00ff) | (green & 0x0000ff00);
+    }
+
+    private static int distanceToRange(int value, int min, int max) {
+        if (value < min) {
+            return min - value;
+        } else if (value > max) {
+            return value - max;
+        }
+        return 0;
+    }
+}
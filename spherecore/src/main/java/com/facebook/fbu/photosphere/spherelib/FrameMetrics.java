@@ -0,0 +1,137 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame costs of a view, kept in histograms: the time spent drawing each frame, the interval
+ * between animation frames, and per frame the number of quads drawn, tiles decoded and cache
+ * misses reported by the renderer.
+ *
+ * A view calls onAnimationFrame() from the runnable it posts on each animation frame, and
+ * beginFrame() and endFrame() around onDraw. Renderers report work with the add methods, during
+ * the draw or from the callbacks of their loaders, work done between two frames being credited
+ * to the next one. An animation frame that comes more than JANK_INTERVAL_NANOS after the previous one
+ * means at least one vsync was missed, and is counted as jank
+ */
+public class FrameMetrics {
+
+    // one and a half frames at 60 fps
+    public static final long JANK_INTERVAL_NANOS = 25000000L;
+
+    // intervals longer than this are pauses of the animation rather than slow frames
+    private static final long MAX_INTERVAL_NANOS = 1000000000L;
+
+    private final Histogram mDrawMicros = new Histogram();
+    private final Histogram mIntervalMicros = new Histogram();
+    private final Histogram mQuads = new Histogram();
+    private final Histogram mTilesDecoded = new Histogram();
+    private final Histogram mCacheMisses = new Histogram();
+    private final AtomicLong mJankCount = new AtomicLong();
+
+    private final AtomicLong mLastAnimationFrameNanos = new AtomicLong();
+    private final AtomicInteger mFrameQuads = new AtomicInteger();
+    private final AtomicInteger mFrameTilesDecoded = new AtomicInteger();
+    private final AtomicInteger mFrameCacheMisses = new AtomicInteger();
+
+    public void onAnimationFrame() {
+        long now = System.nanoTime();
+        long last = mLastAnimationFrameNanos.getAndSet(now);
+        long interval = now - last;
+        if (last == 0 || interval > MAX_INTERVAL_NANOS) {
+            return;
+        }
+        mIntervalMicros.record(interval / 1000);
+        if (interval > JANK_INTERVAL_NANOS) {
+            mJankCount.incrementAndGet();
+        }
+    }
+
+    // returns the start of the frame, to give back to endFrame()
+    public long beginFrame() {
+        return System.nanoTime();
+    }
+
+    // records the work reported since the last frame, and starts counting it for the next
+    public void endFrame(long startNanos) {
+        mDrawMicros.record((System.nanoTime() - startNanos) / 1000);
+        mQuads.record(mFrameQuads.getAndSet(0));
+        mTilesDecoded.record(mFrameTilesDecoded.getAndSet(0));
+        mCacheMisses.record(mFrameCacheMisses.getAndSet(0));
+    }
+
+    public void addQuads(int count) {
+        mFrameQuads.addAndGet(count);
+    }
+
+    public void addTilesDecoded(int count) {
+        mFrameTilesDecoded.addAndGet(count);
+    }
+
+    public void addCacheMisses(int count) {
+        mFrameCacheMisses.addAndGet(count);
+    }
+
+    // time spent in onDraw, in microseconds
+    public Histogram getDrawMicros() {
+        return mDrawMicros;
+    }
+
+    // time between animation frames, in microseconds
+    public Histogram getIntervalMicros() {
+        return mIntervalMicros;
+    }
+
+    public Histogram getQuads() {
+        return mQuads;
+    }
+
+    public Histogram getTilesDecoded() {
+        return mTilesDecoded;
+    }
+
+    public Histogram getCacheMisses() {
+        return mCacheMisses;
+    }
+
+    public long getFrameCount() {
+        return mDrawMicros.getCount();
+    }
+
+    public long getJankCount() {
+        return mJankCount.get();
+    }
+
+    public void reset() {
+        mDrawMicros.reset();
+        mIntervalMicros.reset();
+        mQuads.reset();
+        mTilesDecoded.reset();
+        mCacheMisses.reset();
+        mJankCount.set(0);
+        mLastAnimationFrameNanos.set(0);
+        mFrameQuads.set(0);
+        mFrameTilesDecoded.set(0);
+        mFrameCacheMisses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d frames, %d janky%n"
+                        + "draw ms  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n"
+                        + "quads p50 %d  p99 %d  tiles p99 %d  misses p99 %d",
+                getFrameCount(),
+                getJankCount(),
+                mDrawMicros.getValueAtPercentile(50) / 1000f,
+                mDrawMicros.getValueAtPercentile(90) / 1000f,
+                mDrawMicros.getValueAtPercentile(99) / 1000f,
+                mDrawMicros.getMax() / 1000f,
+                mQuads.getValueAtPercentile(50),
+                mQuads.getValueAtPercentile(99),
+                mTilesDecoded.getValueAtPercentile(99),
+                mCacheMisses.getValueAtPercentile(99));
+    }
+}
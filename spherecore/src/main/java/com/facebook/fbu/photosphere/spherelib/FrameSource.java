@@ -0,0 +1,29 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Takes the pictures of a photosphere, either with the camera of the device or from frames
+ * recorded earlier, see ReplayFrameSource
+ */
+public interface FrameSource {
+
+    /**
+     * Receives the JPEG of a picture, on the thread chosen by the FrameSource
+     */
+    interface Callback {
+        void onFrameTaken(byte[] jpegData);
+    }
+
+    void takePicture(Callback callback);
+
+    // the view angles of the camera in degrees, in the referential of the frames
+    float getHorizontalViewAngle();
+
+    float getVerticalViewAngle();
+
+    // the clockwise rotation, in degrees, that turns a decoded frame the way it is stitched
+    int getImageRotation();
+
+    void close();
+}
@@ -0,0 +1,101 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A TileSource reading a package whose files were uploaded one by one, each to a url of its own,
+ * as SphereUploadService does. The manifest is the index of the package followed by a line
+ *
+ * tile <path> <url>
+ *
+ * for each tile, the path being TiledPanorama.getTilePath
+ */
+public class ManifestTileSource implements TileSource {
+
+    private static final String TILE = "tile";
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 20 * 1000;
+
+    private final String mManifestUrl;
+    // the url of each tile by its path, set once the manifest is read
+    private volatile Map<String, String> mTileUrls;
+
+    public ManifestTileSource(String manifestUrl) {
+        mManifestUrl = manifestUrl;
+    }
+
+    /**
+     * Writes the manifest of a package
+     *
+     * @param tileUrls - the url of each tile of the package by its path
+     */
+    public static void writeManifest(
+            TiledPanorama panorama,
+            Map<String, String> tileUrls,
+            OutputStream outputStream) throws IOException {
+        panorama.writeIndex(outputStream);
+        Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+        for (Map.Entry<String, String> entry : tileUrls.entrySet()) {
+            writer.write(TILE + " " + entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        writer.flush();
+    }
+
+    // reads the whole manifest, keeping the urls of the tiles, and returns the lines of the index
+    @Override
+    public InputStream openIndex() throws IOException {
+        Map<String, String> tileUrls = new HashMap<String, String>();
+        StringBuilder index = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                open(mManifestUrl),
+                "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].equals(TILE)) {
+                    if (fields.length != 3) {
+                        throw new IOException("Illegal tile line in " + mManifestUrl);
+                    }
+                    tileUrls.put(fields[1], fields[2]);
+                } else {
+                    index.append(line).append('\n');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        mTileUrls = tileUrls;
+        return new ByteArrayInputStream(index.toString().getBytes("UTF-8"));
+    }
+
+    @Override
+    public InputStream openTile(int level, int column, int row) throws IOException {
+        String path = TiledPanorama.getTilePath(level, column, row);
+        String url = mTileUrls == null ? null : mTileUrls.get(path);
+        if (url == null) {
+            throw new IOException("No url for " + path + " in " + mManifestUrl);
+        }
+        return open(url);
+    }
+
+    private static InputStream open(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection.getInputStream();
+    }
+}
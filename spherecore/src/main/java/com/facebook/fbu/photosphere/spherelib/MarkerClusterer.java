@@ -0,0 +1,262 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the items of a map, placed by latitude and longitude, in clusters for each zoom level,
+ * with no android dependency.
+ *
+ * The world is projected as the map draws it, web mercator in tiles of TILE_SIZE pixels at zoom
+ * 0, and split in square cells of cellSize pixels. The items falling in a cell form a cluster.
+ * The cells of a zoom level are only computed the first time it is asked for, and then updated
+ * as items are added and removed, so that moving the camera only costs looking up the cells in
+ * view. Items are told apart by equals. The methods are not thread safe
+ */
+public class MarkerClusterer<T> {
+
+    // the size of the tiles of the map at zoom 0
+    public static final int TILE_SIZE = 256;
+    // the zoom levels above are clustered as this one, where cells are a few meters wide
+    public static final int MAX_ZOOM = 21;
+
+    // latitude beyond which web mercator is cut
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * The items of a cell, placed at their average position
+     */
+    public static class Cluster<T> {
+        private final int mZoom;
+        private final int mColumn;
+        private final int mRow;
+        // a set, since removing an item from a large cluster has to be quick
+        private final Set<T> mItems = new LinkedHashSet<T>();
+        private double mSumX;
+        private double mSumY;
+
+        private Cluster(int zoom, int column, int row) {
+            mZoom = zoom;
+            mColumn = column;
+            mRow = row;
+        }
+
+        // identifies the cell of the cluster, the same for as long as it has items
+        public String getKey() {
+            return mZoom + "/" + mColumn + "/" + mRow;
+        }
+
+        public int getSize() {
+            return mItems.size();
+        }
+
+        // the items in the order they were added
+        public Collection<T> getItems() {
+            return Collections.unmodifiableCollection(mItems);
+        }
+
+        public double getLatitude() {
+            return toLatitude(mSumY / mItems.size());
+        }
+
+        public double getLongitude() {
+            return toLongitude(mSumX / mItems.size());
+        }
+    }
+
+    private final int mCellSize;
+    private final Map<T, double[]> mPositions = new HashMap<T, double[]>();
+    // the cells of each zoom level computed so far, by cell
+    private final List<Map<Long, Cluster<T>>> mLevels = new ArrayList<Map<Long, Cluster<T>>>();
+
+    /**
+     * @param cellSize - the width of the cells in pixels of the map
+     */
+    public MarkerClusterer(int cellSize) {
+        if (cellSize <= 0) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mCellSize = cellSize;
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            mLevels.add(null);
+        }
+    }
+
+    public int size() {
+        return mPositions.size();
+    }
+
+    public boolean contains(T item) {
+        return mPositions.containsKey(item);
+    }
+
+    // adds the item, or moves it if it was added before
+    public void add(T item, double latitude, double longitude) {
+        remove(item);
+        double[] position = new double[]{toX(longitude), toY(latitude)};
+        mPositions.put(item, position);
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            Map<Long, Cluster<T>> level = mLevels.get(zoom);
+            if (level != null) {
+                addToLevel(level, zoom, item, position);
+            }
+        }
+    }
+
+    public boolean remove(T item) {
+        double[] position = mPositions.remove(item);
+        if (position == null) {
+            return false;
+        }
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            Map<Long, Cluster<T>> level = mLevels.get(zoom);
+            if (level == null) {
+                continue;
+            }
+            double scale = getScale(zoom);
+            long cell = getCell(getColumn(position[0], scale), getRow(position[1], scale));
+            Cluster<T> cluster = level.get(cell);
+            cluster.mItems.remove(item);
+            cluster.mSumX -= position[0];
+            cluster.mSumY -= position[1];
+            if (cluster.mItems.isEmpty()) {
+                level.remove(cell);
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        mPositions.clear();
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            mLevels.set(zoom, null);
+        }
+    }
+
+    /**
+     * Finds the clusters of the cells in view at a zoom level
+     *
+     * @param west   - the west edge of the view, greater than east when it crosses the
+     *               antimeridian
+     * @param result - cleared and filled with the clusters
+     */
+    public void getClusters(
+            double zoom,
+            double south,
+            double west,
+            double north,
+            double east,
+            List<Cluster<T>> result) {
+        result.clear();
+        int level = Math.max(0, Math.min((int) zoom, MAX_ZOOM));
+        Map<Long, Cluster<T>> cells = getLevel(level);
+        double scale = getScale(level);
+        int firstRow = getRow(toY(north), scale);
+        int lastRow = getRow(toY(south), scale);
+        int firstColumn = getColumn(toX(west), scale);
+        // the east edge of the world is the end of the last column, not the start of the first
+        int lastColumn = getColumn(east >= 180 ? 1 : toX(east), scale);
+        int columnCount = (int) Math.ceil(scale);
+
+        // counts the cells in view, wrapping around the antimeridian
+        long viewColumnCount = lastColumn >= firstColumn
+                ? lastColumn - firstColumn + 1
+                : columnCount - firstColumn + lastColumn + 1;
+        long viewCellCount = viewColumnCount * (lastRow - firstRow + 1);
+
+        // looks up the cells in view, unless there are fewer clusters than that
+        if (viewCellCount < cells.size()) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (long i = 0; i < viewColumnCount; i++) {
+                    int column = (int) ((firstColumn + i) % columnCount);
+                    Cluster<T> cluster = cells.get(getCell(column, row));
+                    if (cluster != null) {
+                        result.add(cluster);
+                    }
+                }
+            }
+        } else {
+            for (Cluster<T> cluster : cells.values()) {
+                boolean isInColumns = lastColumn >= firstColumn
+                        ? cluster.mColumn >= firstColumn && cluster.mColumn <= lastColumn
+                        : cluster.mColumn >= firstColumn || cluster.mColumn <= lastColumn;
+                if (isInColumns && cluster.mRow >= firstRow && cluster.mRow <= lastRow) {
+                    result.add(cluster);
+                }
+            }
+        }
+    }
+
+    private Map<Long, Cluster<T>> getLevel(int zoom) {
+        Map<Long, Cluster<T>> level = mLevels.get(zoom);
+        if (level == null) {
+            level = new HashMap<Long, Cluster<T>>();
+            for (Map.Entry<T, double[]> entry : mPositions.entrySet()) {
+                addToLevel(level, zoom, entry.getKey(), entry.getValue());
+            }
+            mLevels.set(zoom, level);
+        }
+        return level;
+    }
+
+    private void addToLevel(Map<Long, Cluster<T>> level, int zoom, T item, double[] position) {
+        double scale = getScale(zoom);
+        int column = getColumn(position[0], scale);
+        int row = getRow(position[1], scale);
+        long cell = getCell(column, row);
+        Cluster<T> cluster = level.get(cell);
+        if (cluster == null) {
+            cluster = new Cluster<T>(zoom, column, row);
+            level.put(cell, cluster);
+        }
+        cluster.mItems.add(item);
+        cluster.mSumX += position[0];
+        cluster.mSumY += position[1];
+    }
+
+    // the number of cells across the world at a zoom level
+    private double getScale(int zoom) {
+        return (double) TILE_SIZE * (1 << zoom) / mCellSize;
+    }
+
+    private static int getColumn(double x, double scale) {
+        return (int) Math.min(Math.floor(x * scale), Math.ceil(scale) - 1);
+    }
+
+    private static int getRow(double y, double scale) {
+        return (int) Math.min(Math.floor(y * scale), Math.ceil(scale) - 1);
+    }
+
+    private static long getCell(int column, int row) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    // the position across the projected world, from 0 at the antimeridian going east to 1
+    private static double toX(double longitude) {
+        double x = (longitude + 180) / 360;
+        return x - Math.floor(x);
+    }
+
+    // the position down the projected world, from 0 at the north to 1 at the south
+    private static double toY(double latitude) {
+        double sinLatitude = Math.sin(Math.toRadians(
+                Math.max(-MAX_LATITUDE, Math.min(latitude, MAX_LATITUDE))));
+        return 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+    }
+
+    private static double toLongitude(double x) {
+        return x * 360 - 180;
+    }
+
+    private static double toLatitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh((0.5 - y) * 2 * Math.PI)));
+    }
+}
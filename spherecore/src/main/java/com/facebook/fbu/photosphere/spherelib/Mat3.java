@@ -0,0 +1,169 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Operations on 3x3 matrices stored row by row as float[9], the element of row i and column j
+ * being m[3 * i + j]. Nothing is allocated: results are written in a destination given by the
+ * caller, which may be one of the operands.
+ *
+ * Points are row vectors, as in the rest of the library, so a point p is rotated by a matrix R
+ * into p * R
+ */
+public final class Mat3 {
+
+    private Mat3() {
+    }
+
+    public static void identity(float[] dst) {
+        dst[0] = 1;
+        dst[1] = 0;
+        dst[2] = 0;
+        dst[3] = 0;
+        dst[4] = 1;
+        dst[5] = 0;
+        dst[6] = 0;
+        dst[7] = 0;
+        dst[8] = 1;
+    }
+
+    public static void copy(float[] a, float[] dst) {
+        System.arraycopy(a, 0, dst, 0, 9);
+    }
+
+    public static void fromRows(float[][] rows, float[] dst) {
+        dst[0] = rows[0][0];
+        dst[1] = rows[0][1];
+        dst[2] = rows[0][2];
+        dst[3] = rows[1][0];
+        dst[4] = rows[1][1];
+        dst[5] = rows[1][2];
+        dst[6] = rows[2][0];
+        dst[7] = rows[2][1];
+        dst[8] = rows[2][2];
+    }
+
+    public static void toRows(float[] a, float[][] dst) {
+        dst[0][0] = a[0];
+        dst[0][1] = a[1];
+        dst[0][2] = a[2];
+        dst[1][0] = a[3];
+        dst[1][1] = a[4];
+        dst[1][2] = a[5];
+        dst[2][0] = a[6];
+        dst[2][1] = a[7];
+        dst[2][2] = a[8];
+    }
+
+    public static void add(float[] a, float[] b, float[] dst) {
+        for (int i = 0; i < 9; i++) {
+            dst[i] = a[i] + b[i];
+        }
+    }
+
+    public static void subtract(float[] a, float[] b, float[] dst) {
+        for (int i = 0; i < 9; i++) {
+            dst[i] = a[i] - b[i];
+        }
+    }
+
+    public static void scale(float[] a, float s, float[] dst) {
+        for (int i = 0; i < 9; i++) {
+            dst[i] = a[i] * s;
+        }
+    }
+
+    public static void transpose(float[] a, float[] dst) {
+        float a01 = a[1];
+        float a02 = a[2];
+        float a12 = a[5];
+        dst[0] = a[0];
+        dst[1] = a[3];
+        dst[2] = a[6];
+        dst[3] = a01;
+        dst[4] = a[4];
+        dst[5] = a[7];
+        dst[6] = a02;
+        dst[7] = a12;
+        dst[8] = a[8];
+    }
+
+    // dst = a * b
+    public static void multiply(float[] a, float[] b, float[] dst) {
+        float a00 = a[0];
+        float a01 = a[1];
+        float a02 = a[2];
+        float a10 = a[3];
+        float a11 = a[4];
+        float a12 = a[5];
+        float a20 = a[6];
+        float a21 = a[7];
+        float a22 = a[8];
+        float b00 = b[0];
+        float b01 = b[1];
+        float b02 = b[2];
+        float b10 = b[3];
+        float b11 = b[4];
+        float b12 = b[5];
+        float b20 = b[6];
+        float b21 = b[7];
+        float b22 = b[8];
+        dst[0] = a00 * b00 + a01 * b10 + a02 * b20;
+        dst[1] = a00 * b01 + a01 * b11 + a02 * b21;
+        dst[2] = a00 * b02 + a01 * b12 + a02 * b22;
+        dst[3] = a10 * b00 + a11 * b10 + a12 * b20;
+        dst[4] = a10 * b01 + a11 * b11 + a12 * b21;
+        dst[5] = a10 * b02 + a11 * b12 + a12 * b22;
+        dst[6] = a20 * b00 + a21 * b10 + a22 * b20;
+        dst[7] = a20 * b01 + a21 * b11 + a22 * b21;
+        dst[8] = a20 * b02 + a21 * b12 + a22 * b22;
+    }
+
+    // dst = v * m, rotating the point v by m
+    public static void transform(float[] v, float[] m, float[] dst) {
+        float x = v[0];
+        float y = v[1];
+        float z = v[2];
+        dst[0] = x * m[0] + y * m[3] + z * m[6];
+        dst[1] = x * m[1] + y * m[4] + z * m[7];
+        dst[2] = x * m[2] + y * m[5] + z * m[8];
+    }
+
+    // dst = m * v, v being a column vector. This is the same as rotating v by the transpose of m
+    public static void transformColumn(float[] m, float[] v, float[] dst) {
+        float x = v[0];
+        float y = v[1];
+        float z = v[2];
+        dst[0] = m[0] * x + m[1] * y + m[2] * z;
+        dst[1] = m[3] * x + m[4] * y + m[5] * z;
+        dst[2] = m[6] * x + m[7] * y + m[8] * z;
+    }
+
+    // Rotates count points by m, the points being stored one after the other in src as x, y and
+    // z. src and dst may be the same array
+    public static void transformPoints(float[] src, float[] dst, int count, float[] m) {
+        float m00 = m[0];
+        float m01 = m[1];
+        float m02 = m[2];
+        float m10 = m[3];
+        float m11 = m[4];
+        float m12 = m[5];
+        float m20 = m[6];
+        float m21 = m[7];
+        float m22 = m[8];
+        for (int i = 0; i < 3 * count; i += 3) {
+            float x = src[i];
+            float y = src[i + 1];
+            float z = src[i + 2];
+            dst[i] = x * m00 + y * m10 + z * m20;
+            dst[i + 1] = x * m01 + y * m11 + z * m21;
+            dst[i + 2] = x * m02 + y * m12 + z * m22;
+        }
+    }
+
+    public static float det(float[] a) {
+        return a[0] * (a[4] * a[8] - a[5] * a[7])
+                - a[1] * (a[3] * a[8] - a[5] * a[6])
+                + a[2] * (a[3] * a[7] - a[4] * a[6]);
+    }
+}
@@ -4,12 +4,19 @@ package com.facebook.fbu.photosphere.spherelib;
 
 
 
+/**
+ * Matrix operations on jagged arrays that return newly allocated results, and allocate nothing
+ * else. Hot paths should call Mat3 and Vec3 directly with destinations they reuse
+ */
 public class MatrixUtils {
 
     public static float dot(float[] x, float[] y) {
         if (x.length != y.length)  {
             throw new RuntimeException("Illegal dimensions.");
         }
+        if (x.length == 3) {
+            return Vec3.dot(x, y);
+        }
         float sum = 0.0f;
         for (int i = 0; i < x.length; i++) {
             sum += x[i] * y[i];
@@ -22,9 +29,7 @@ public class MatrixUtils {
             throw new RuntimeException("Illegal dimensions.");
         }
         float[] z = new float[3];
-        for (int i = 0; i < x.length; i++) {
-            z[i] += x[(i + 1) % 3] * y[(i + 2) % 3] - x[(i + 2) % 3] * y[(i + 1) % 3];
-        }
+        Vec3.cross(x, y, z);
         return z;
     }
 
@@ -51,6 +56,10 @@ public class MatrixUtils {
     public static float[] add(float[] x, float[] y) {
         int m = x.length;
         float[] z = new float[m];
+        if (m == 3) {
+            Vec3.add(x, y, z);
+            return z;
+        }
         for (int i = 0; i < m; i++) {
             z[i] = x[i] + y[i];
         }
@@ -60,6 +69,10 @@ public class MatrixUtils {
     public static float[] subtract(float[] x, float[] y) {
         int m = x.length;
         float[] z = new float[m];
+        if (m == 3) {
+            Vec3.subtract(x, y, z);
+            return z;
+        }
         for (int i = 0; i < m; i++) {
             z[i] = x[i] - y[i];
         }
@@ -99,6 +112,16 @@ public class MatrixUtils {
             throw new RuntimeException("Illegal dimensions.");
         }
         float[][] C = new float[mA][nB];
+        if (is3x3(A) && is3x3(B)) {
+            // unrolled on the rows, allocating nothing but the result
+            for (int i = 0; i < 3; i++) {
+                float[] row = A[i];
+                C[i][0] = row[0] * B[0][0] + row[1] * B[1][0] + row[2] * B[2][0];
+                C[i][1] = row[0] * B[0][1] + row[1] * B[1][1] + row[2] * B[2][1];
+                C[i][2] = row[0] * B[0][2] + row[1] * B[1][2] + row[2] * B[2][2];
+            }
+            return C;
+        }
         for (int i = 0; i < mA; i++) {
             for (int j = 0; j < nB; j++) {
                 for (int k = 0; k < nA; k++) {
@@ -116,6 +139,12 @@ public class MatrixUtils {
             throw new RuntimeException("Illegal dimensions.");
         }
         float[] y = new float[m];
+        if (is3x3(A)) {
+            y[0] = A[0][0] * x[0] + A[0][1] * x[1] + A[0][2] * x[2];
+            y[1] = A[1][0] * x[0] + A[1][1] * x[1] + A[1][2] * x[2];
+            y[2] = A[2][0] * x[0] + A[2][1] * x[1] + A[2][2] * x[2];
+            return y;
+        }
         for (int i = 0; i < m; i++) {
             for (int j = 0; j < n; j++) {
                 y[i] += (A[i][j] * x[j]);
@@ -131,6 +160,12 @@ public class MatrixUtils {
             throw new RuntimeException("Illegal dimensions.");
         }
         float[] y = new float[n];
+        if (is3x3(A)) {
+            y[0] = x[0] * A[0][0] + x[1] * A[1][0] + x[2] * A[2][0];
+            y[1] = x[0] * A[0][1] + x[1] * A[1][1] + x[2] * A[2][1];
+            y[2] = x[0] * A[0][2] + x[1] * A[1][2] + x[2] * A[2][2];
+            return y;
+        }
         for (int j = 0; j < n; j++) {
             for (int i = 0; i < m; i++) {
                 y[j] += (A[i][j] * x[i]);
@@ -143,6 +178,10 @@ public class MatrixUtils {
     public static float[] multiply(float[] x, float a) {
         int m = x.length;
         float[] z = new float[m];
+        if (m == 3) {
+            Vec3.scale(x, a, z);
+            return z;
+        }
         for (int i = 0; i < m; i++) {
             z[i] = x[i] * a;
         }
@@ -205,15 +244,9 @@ public class MatrixUtils {
         if (A.length != 3 || A[0].length != 3) {
             throw new RuntimeException("This method is for 3x3 matrices only");
         }
-        float s = 0;
-        s += A[0][0] * A[1][1] * A[2][2];
-        s += A[0][1] * A[1][2] * A[2][0];
-        s += A[0][2] * A[1][0] * A[2][1];
-        s -= A[0][2] * A[1][1] * A[2][0];
-        s -= A[0][1] * A[1][0] * A[2][2];
-        s -= A[0][0] * A[1][2] * A[2][1];
-
-        return s;
+        return A[0][0] * (A[1][1] * A[2][2] - A[1][2] * A[2][1])
+                - A[0][1] * (A[1][0] * A[2][2] - A[1][2] * A[2][0])
+                + A[0][2] * (A[1][0] * A[2][1] - A[1][1] * A[2][0]);
     }
 
     public static float[][] identity(int n) {
@@ -224,4 +257,8 @@ public class MatrixUtils {
         return I;
     }
 
+    private static boolean is3x3(float[][] A) {
+        return A.length == 3 && A[0].length == 3 && A[1].length == 3 && A[2].length == 3;
+    }
+
 }
@@ -0,0 +1,14 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Takes the color of the pixel the point falls in
+ */
+public class NearestSampler implements Sampler {
+
+    @Override
+    public int sample(PixelBuffer picture, float x, float y) {
+        return picture.getPixel((int) x, (int) y);
+    }
+}
@@ -0,0 +1,22 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Reports the orientation of the device as rotation vectors, either from its sensors or from a
+ * recorded trace, see ReplayOrientationSource
+ */
+public interface OrientationSource {
+
+    /**
+     * Receives every rotation vector, a float[4] laid out as the values of the rotation vector
+     * sensors of android: x, y and z of the unit quaternion, then its scalar part
+     */
+    interface Listener {
+        void onRotationVector(long timestampNanos, float[] rotationVector);
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
@@ -0,0 +1,120 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Turns the rotation vectors of an OrientationSource into the rotation of the device, with no
+ * android dependency, so that recorded traces give the same rotations as the sensors
+ */
+public class OrientationTracker implements OrientationSource.Listener {
+
+    private final Queue<float[]> mRecentQueue = new ArrayDeque<float[]>();
+    private final float[] mAverageRotationVector = new float[4];
+    private final int mQueueSize;
+    private long mTimestampNanos;
+
+    // two of the axis come with reversed orientation, so we correct it
+    private static final float[] REVERSED_AXES = new float[]{
+            1, 0, 0,
+            0, -1, 0,
+            0, 0, -1
+    };
+
+    // these two rotation matrices give the correct starting point
+    // (I don't fully understand what is the referential that the sensor uses,
+    // but this rotation was easy to find just by trying out)
+    private static final float[] X_QUARTER_TURN = new float[9];
+    private static final float[] Z_QUARTER_TURN = new float[9];
+
+    static {
+        float angle = (float) Math.PI / 2;
+        Mat3.fromRows(new float[][]{
+                {1, 0, 0},
+                {0, (float) Math.cos(angle), -(float) Math.sin(angle)},
+                {0, (float) Math.sin(angle), (float) Math.cos(angle)}
+        }, X_QUARTER_TURN);
+
+        angle = (float) - Math.PI / 2;
+        Mat3.fromRows(new float[][]{
+                {(float) Math.cos(angle), -(float) Math.sin(angle), 0},
+                {(float) Math.sin(angle), (float) Math.cos(angle), 0},
+                {0, 0, 1}
+        }, Z_QUARTER_TURN);
+    }
+
+    /**
+     * @param queueSize - the number of recent rotation vectors averaged together
+     */
+    public OrientationTracker(int queueSize) {
+        if (queueSize <= 0) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mQueueSize = queueSize;
+        for (int i = 0; i < mQueueSize; i++) {
+            mRecentQueue.add(new float[4]);
+        }
+    }
+
+    @Override
+    public synchronized void onRotationVector(long timestampNanos, float[] rotationVector) {
+        float[] copy = new float[]{rotationVector[0], rotationVector[1],
+                rotationVector[2], rotationVector[3]};
+        mRecentQueue.add(copy);
+        float[] oldestRotationVector = mRecentQueue.remove();
+        for (int i = 0; i < 4; i++) {
+            mAverageRotationVector[i] += (copy[i] - oldestRotationVector[i]) / mQueueSize;
+        }
+        mTimestampNanos = timestampNanos;
+    }
+
+    // the timestamp of the last rotation vector received
+    public synchronized long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    // writes the rotation matrix that compensates for the current position in the float[9] dst,
+    // row by row, without allocating anything
+    public synchronized void getCorrectionRotation(float[] dst) {
+        getRotationMatrixFromVector(mAverageRotationVector, dst);
+        Mat3.multiply(dst, REVERSED_AXES, dst);
+        Mat3.multiply(X_QUARTER_TURN, dst, dst);
+        Mat3.multiply(Z_QUARTER_TURN, dst, dst);
+    }
+
+    // writes the rotation of the device in the float[9] dst, the inverse of the correction
+    public void getPositionRotation(float[] dst) {
+        getCorrectionRotation(dst);
+        Mat3.transpose(dst, dst);
+    }
+
+    // the same matrix SensorManager.getRotationMatrixFromVector gives for a float[4]
+    private static void getRotationMatrixFromVector(float[] rotationVector, float[] dst) {
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+        float q0 = rotationVector[3];
+
+        float sqQ1 = 2 * q1 * q1;
+        float sqQ2 = 2 * q2 * q2;
+        float sqQ3 = 2 * q3 * q3;
+        float q1Q2 = 2 * q1 * q2;
+        float q3Q0 = 2 * q3 * q0;
+        float q1Q3 = 2 * q1 * q3;
+        float q2Q0 = 2 * q2 * q0;
+        float q2Q3 = 2 * q2 * q3;
+        float q1Q0 = 2 * q1 * q0;
+
+        dst[0] = 1 - sqQ2 - sqQ3;
+        dst[1] = q1Q2 - q3Q0;
+        dst[2] = q1Q3 + q2Q0;
+        dst[3] = q1Q2 + q3Q0;
+        dst[4] = 1 - sqQ1 - sqQ3;
+        dst[5] = q2Q3 - q1Q0;
+        dst[6] = q1Q3 - q2Q0;
+        dst[7] = q2Q3 + q1Q0;
+        dst[8] = 1 - sqQ1 - sqQ2;
+    }
+}
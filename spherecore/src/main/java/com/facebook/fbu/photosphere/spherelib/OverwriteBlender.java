@@ -0,0 +1,14 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * The last picture drawn wins, which is the cheapest and shows the seams
+ */
+public class OverwriteBlender implements Blender {
+
+    @Override
+    public int blend(int destination, int color, float x, float y, int width, int height) {
+        return color;
+    }
+}
@@ -0,0 +1,47 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * A picture stored as a plain array of ARGB pixels, row by row, so that it can be drawn on and
+ * read from without any android class
+ */
+public class PixelBuffer {
+
+    private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+
+    public PixelBuffer(int width, int height) {
+        this(new int[width * height], width, height);
+    }
+
+    public PixelBuffer(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getPixel(int x, int y) {
+        return mPixels[y * mWidth + x];
+    }
+
+    public void setPixel(int x, int y, int color) {
+        mPixels[y * mWidth + x] = color;
+    }
+}
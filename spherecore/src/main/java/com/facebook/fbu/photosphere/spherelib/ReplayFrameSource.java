@@ -0,0 +1,147 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A FrameSource that plays back JPEG frames recorded in a directory, handing them to the
+ * callback as soon as they are asked for.
+ *
+ * The directory holds the frames and an index, FRAMES_FILE, a text file with the lines
+ *
+ * view-angles horizontal vertical
+ * image-rotation degrees
+ * timestamp file
+ *
+ * where the angles and the rotation are those of the camera that took the frames, and each
+ * timestamp line names a frame, relative to the directory, with the time it was taken in the
+ * timebase of the orientation trace, in nanoseconds. Empty lines and lines starting with # are
+ * ignored, frames are played in order
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    public static final String FRAMES_FILE = "frames.txt";
+
+    private final File mDirectory;
+    private final List<Long> mTimestamps = new ArrayList<Long>();
+    private final List<String> mFileNames = new ArrayList<String>();
+    private float mHorizontalViewAngle = Float.NaN;
+    private float mVerticalViewAngle = Float.NaN;
+    private int mImageRotation;
+    private int mNextFrame;
+
+    public ReplayFrameSource(File directory) throws IOException {
+        mDirectory = directory;
+        InputStream inputStream = new FileInputStream(new File(directory, FRAMES_FILE));
+        try {
+            readIndex(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        if (Float.isNaN(mHorizontalViewAngle)) {
+            throw new IOException("Missing view-angles in " + FRAMES_FILE);
+        }
+    }
+
+    private void readIndex(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("view-angles") && fields.length == 3) {
+                    mHorizontalViewAngle = Float.parseFloat(fields[1]);
+                    mVerticalViewAngle = Float.parseFloat(fields[2]);
+                } else if (fields[0].equals("image-rotation") && fields.length == 2) {
+                    mImageRotation = Integer.parseInt(fields[1]);
+                } else if (fields.length >= 2) {
+                    // the file name is the rest of the line, so that it can hold spaces
+                    fields = line.split("\\s+", 2);
+                    mTimestamps.add(Long.parseLong(fields[0]));
+                    mFileNames.add(fields[1]);
+                } else {
+                    throw new IOException("Unexpected line " + lineNumber + " in " + FRAMES_FILE);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Unreadable number on line " + lineNumber
+                        + " in " + FRAMES_FILE);
+            }
+        }
+    }
+
+    public int getFrameCount() {
+        return mTimestamps.size();
+    }
+
+    public boolean hasNextFrame() {
+        return mNextFrame < mTimestamps.size();
+    }
+
+    // when the next frame handed by takePicture was taken
+    public long getNextTimestampNanos() {
+        return mTimestamps.get(mNextFrame);
+    }
+
+    // reads the next frame and hands it to the callback on the calling thread
+    @Override
+    public void takePicture(Callback callback) {
+        if (!hasNextFrame()) {
+            throw new RuntimeException("No frame left to replay");
+        }
+        File file = new File(mDirectory, mFileNames.get(mNextFrame));
+        mNextFrame++;
+        byte[] jpegData;
+        try {
+            jpegData = readFile(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read " + file, e);
+        }
+        callback.onFrameTaken(jpegData);
+    }
+
+    @Override
+    public float getHorizontalViewAngle() {
+        return mHorizontalViewAngle;
+    }
+
+    @Override
+    public float getVerticalViewAngle() {
+        return mVerticalViewAngle;
+    }
+
+    @Override
+    public int getImageRotation() {
+        return mImageRotation;
+    }
+
+    @Override
+    public void close() {
+        mNextFrame = mTimestamps.size();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(data);
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+}
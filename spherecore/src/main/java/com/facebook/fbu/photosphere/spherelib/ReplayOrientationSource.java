@@ -0,0 +1,107 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An OrientationSource that plays back a recorded trace of rotation vectors, as fast as they are
+ * asked for rather than as they were recorded.
+ *
+ * The trace is a text file with one sample per line, its timestamp in nanoseconds followed by
+ * the four values of the rotation vector, separated by spaces. Empty lines and lines starting
+ * with # are ignored, timestamps must not decrease
+ */
+public class ReplayOrientationSource implements OrientationSource {
+
+    private final long[] mTimestamps;
+    private final float[][] mRotationVectors;
+    private int mNextSample;
+    private Listener mListener;
+
+    private ReplayOrientationSource(long[] timestamps, float[][] rotationVectors) {
+        mTimestamps = timestamps;
+        mRotationVectors = rotationVectors;
+    }
+
+    public static ReplayOrientationSource read(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        List<Long> timestamps = new ArrayList<Long>();
+        List<float[]> rotationVectors = new ArrayList<float[]>();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 5) {
+                throw new IOException("Expected a timestamp and 4 values on line " + lineNumber);
+            }
+            try {
+                long timestamp = Long.parseLong(fields[0]);
+                if (!timestamps.isEmpty() && timestamp < timestamps.get(timestamps.size() - 1)) {
+                    throw new IOException("Timestamp going backwards on line " + lineNumber);
+                }
+                float[] rotationVector = new float[4];
+                for (int i = 0; i < 4; i++) {
+                    rotationVector[i] = Float.parseFloat(fields[i + 1]);
+                }
+                timestamps.add(timestamp);
+                rotationVectors.add(rotationVector);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unreadable number on line " + lineNumber);
+            }
+        }
+
+        long[] timestampArray = new long[timestamps.size()];
+        for (int i = 0; i < timestampArray.length; i++) {
+            timestampArray[i] = timestamps.get(i);
+        }
+        return new ReplayOrientationSource(
+                timestampArray,
+                rotationVectors.toArray(new float[rotationVectors.size()][]));
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void stop() {
+        mListener = null;
+    }
+
+    public int getSampleCount() {
+        return mTimestamps.length;
+    }
+
+    // hands the listener every sample up to timestampNanos included, which the sensors would have
+    // reported by then, and returns how many were handed
+    public int advanceTo(long timestampNanos) {
+        int count = 0;
+        while (mNextSample < mTimestamps.length && mTimestamps[mNextSample] <= timestampNanos) {
+            if (mListener != null) {
+                mListener.onRotationVector(
+                        mTimestamps[mNextSample],
+                        mRotationVectors[mNextSample]);
+            }
+            mNextSample++;
+            count++;
+        }
+        return count;
+    }
+
+    // plays the trace back from the start
+    public void rewind() {
+        mNextSample = 0;
+    }
+}
@@ -0,0 +1,14 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Reads the color of a picture at a point that falls between its pixels
+ */
+public interface Sampler {
+    /**
+     * @param x - between 0 and the width of the picture minus 1
+     * @param y - between 0 and the height of the picture minus 1
+     */
+    int sample(PixelBuffer picture, float x, float y);
+}
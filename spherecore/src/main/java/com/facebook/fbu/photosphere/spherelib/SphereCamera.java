@@ -0,0 +1,152 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Describes how a sphere is being looked at: its rotation, the zoom factor and the size of the
+ * view it is projected onto. It holds no android state, so the projection math can be shared by
+ * every renderer of the sphere
+ */
+public class SphereCamera {
+
+    // rotation of the sphere, row by row as in Mat3
+    private final float[] mRotation = new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private final float[] mRotationStep = new float[9];
+    private float mZoomFactor = 0.4f;
+
+    private int mViewWidth;
+    private int mViewHeight;
+
+    // mZoomFactor times the view diagonal, updated whenever one of the two changes
+    private float mScale;
+
+    // unit normals of the four planes through the eye that bound what the view shows. A rotated
+    // point p lands on the screen when dot(n, p) >= 0 for all of them
+    private final float[][] mFrustumPlanes = new float[4][3];
+
+    public void setViewSize(int width, int height) {
+        if (width == mViewWidth && height == mViewHeight) {
+            return;
+        }
+        mViewWidth = width;
+        mViewHeight = height;
+        updateScale();
+    }
+
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    public float getZoomFactor() {
+        return mZoomFactor;
+    }
+
+    public void setZoomFactor(float zoomFactor) {
+        mZoomFactor = zoomFactor;
+        updateScale();
+    }
+
+    // number of pixels that one unit of the plane z = 1 takes on the screen
+    public float getScale() {
+        return mScale;
+    }
+
+    public float[][] getFrustumPlanes() {
+        return mFrustumPlanes;
+    }
+
+    // the rotation of the sphere as a float[9] laid out as in Mat3, which mustn't be modified
+    public float[] getRotation() {
+        return mRotation;
+    }
+
+    // creates a rotation based on horizontal and vertical rotation angle parameters
+    public void setRotation(float xRotation, float yRotation) {
+        float cos = (float) Math.cos(xRotation);
+        float sin = (float) Math.sin(xRotation);
+        setMatrix(mRotation,
+                1, 0, 0,
+                0, cos, -sin,
+                0, sin, cos);
+
+        cos = (float) Math.cos(yRotation);
+        sin = (float) Math.sin(yRotation);
+        setMatrix(mRotationStep,
+                cos, 0, -sin,
+                0, 1, 0,
+                sin, 0, cos);
+        Mat3.multiply(mRotation, mRotationStep, mRotation);
+
+        double angle = -Math.PI / 2;
+        cos = (float) Math.cos(angle);
+        sin = (float) Math.sin(angle);
+        setMatrix(mRotationStep,
+                cos, -sin, 0,
+                sin, cos, 0,
+                0, 0, 1);
+        Mat3.multiply(mRotation, mRotationStep, mRotation);
+    }
+
+    // Sets the rotation of the sphere to rotMatrix
+    // This rotation is not cumulative
+    public void setRotation(float[][] rotMatrix) {
+        Mat3.fromRows(rotMatrix, mRotation);
+    }
+
+    // Same as setRotation(float[][]) for a float[9] laid out as in Mat3
+    public void setRotation(float[] rotation) {
+        Mat3.copy(rotation, mRotation);
+    }
+
+    // In order to generate a 2D view of our 3D scene, we project our scene onto the plane z = 1
+    // We then expand the view with the appropriate zoom factor so it fills the view, and move the
+    // origin to the center of the view
+    // The point must already be rotated, and have a positive z coordinate
+    public void project(float[] point, float[] result) {
+        result[0] = mViewWidth / 2f + mScale * point[0] / point[2];
+        result[1] = mViewHeight / 2f + mScale * point[1] / point[2];
+    }
+
+    private void updateScale() {
+        float diameter = (float) Math.sqrt(mViewWidth * mViewWidth + mViewHeight * mViewHeight);
+        mScale = mZoomFactor * diameter;
+        if (mScale == 0) {
+            return;
+        }
+
+        // the sides of the view are at x / z = +-halfWidth and y / z = +-halfHeight
+        float halfWidth = mViewWidth / 2f / mScale;
+        float halfHeight = mViewHeight / 2f / mScale;
+        setFrustumPlane(0, 1, 0, halfWidth);
+        setFrustumPlane(1, -1, 0, halfWidth);
+        setFrustumPlane(2, 0, 1, halfHeight);
+        setFrustumPlane(3, 0, -1, halfHeight);
+    }
+
+    private static void setMatrix(
+            float[] dst,
+            float m00, float m01, float m02,
+            float m10, float m11, float m12,
+            float m20, float m21, float m22) {
+        dst[0] = m00;
+        dst[1] = m01;
+        dst[2] = m02;
+        dst[3] = m10;
+        dst[4] = m11;
+        dst[5] = m12;
+        dst[6] = m20;
+        dst[7] = m21;
+        dst[8] = m22;
+    }
+
+    private void setFrustumPlane(int plane, float x, float y, float z) {
+        float norm = (float) Math.sqrt(x * x + y * y + z * z);
+        mFrustumPlanes[plane][0] = x / norm;
+        mFrustumPlanes[plane][1] = y / norm;
+        mFrustumPlanes[plane][2] = z / norm;
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps the sphere of a SphereStitcher up to date as pictures are added and removed, one at a
+ * time, while they are being taken.
+ *
+ * The sphere is split in tiles of tileWidth columns. Adding a picture draws it tile by tile and
+ * remembers the tiles it touched, its footprint. Removing one clears its footprint and draws
+ * again, in the order they were added, the pictures that touch it, on those tiles only, so the
+ * sphere ends up as if the removed picture was never added. Both return the tiles that changed.
+ *
+ * Pictures are handed as Layers, loaded again when they have to be redrawn, so that their
+ * pixels don't have to be kept. The methods are not thread safe, they are meant to be called in
+ * order from a single thread, the executor only draws the tiles of one call in parallel
+ */
+public class SphereCompositor {
+
+    // the width of the tiles of the device, narrow enough that removing a picture redraws
+    // little of the sphere
+    public static final int DEFAULT_TILE_WIDTH = 64;
+
+    /**
+     * A picture of the sphere, loaded when it is drawn
+     */
+    public interface Layer {
+        SpherePicture load();
+    }
+
+    private static class Entry {
+        private final Layer mLayer;
+        private final BitSet mFootprint;
+
+        private Entry(Layer layer, BitSet footprint) {
+            mLayer = layer;
+            mFootprint = footprint;
+        }
+    }
+
+    private final SphereStitcher mStitcher;
+    private final int mTileWidth;
+    private final int mTileCount;
+    private final ExecutorService mExecutorService;
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    /**
+     * @param executorService - draws the tiles of a picture in parallel, null to draw them on the
+     *                        calling thread
+     */
+    public SphereCompositor(
+            SphereStitcher stitcher,
+            int tileWidth,
+            ExecutorService executorService) {
+        if (tileWidth <= 0) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mStitcher = stitcher;
+        mTileWidth = tileWidth;
+        mTileCount = (stitcher.getSphere().getWidth() + tileWidth - 1) / tileWidth;
+        mExecutorService = executorService;
+    }
+
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    public int getFirstColumn(int tile) {
+        return tile * mTileWidth;
+    }
+
+    // the first column after the tile
+    public int getLastColumn(int tile) {
+        return Math.min((tile + 1) * mTileWidth, mStitcher.getSphere().getWidth());
+    }
+
+    public int getLayerCount() {
+        return mEntries.size();
+    }
+
+    public boolean contains(Layer layer) {
+        return indexOf(layer) != -1;
+    }
+
+    // draws the layer over the sphere, and returns its footprint
+    public BitSet add(Layer layer) {
+        BitSet allTiles = new BitSet(mTileCount);
+        allTiles.set(0, mTileCount);
+        BitSet footprint = drawTiles(layer.load(), allTiles);
+        mEntries.add(new Entry(layer, footprint));
+        return (BitSet) footprint.clone();
+    }
+
+    // removes the layer from the sphere, and returns the tiles that changed, which is its
+    // footprint, or nothing if the layer wasn't added
+    public BitSet remove(Layer layer) {
+        int index = indexOf(layer);
+        if (index == -1) {
+            return new BitSet(mTileCount);
+        }
+        BitSet dirty = mEntries.remove(index).mFootprint;
+
+        int[] pixels = mStitcher.getSphere().getPixels();
+        int width = mStitcher.getSphere().getWidth();
+        int height = mStitcher.getSphere().getHeight();
+        for (int tile = dirty.nextSetBit(0); tile >= 0; tile = dirty.nextSetBit(tile + 1)) {
+            int firstColumn = getFirstColumn(tile);
+            int lastColumn = getLastColumn(tile);
+            for (int row = 0; row < height; row++) {
+                for (int column = firstColumn; column < lastColumn; column++) {
+                    pixels[row * width + column] = 0;
+                }
+            }
+        }
+
+        for (Entry entry : mEntries) {
+            if (entry.mFootprint.intersects(dirty)) {
+                BitSet tiles = (BitSet) entry.mFootprint.clone();
+                tiles.and(dirty);
+                drawTiles(entry.mLayer.load(), tiles);
+            }
+        }
+        return dirty;
+    }
+
+    private int indexOf(Layer layer) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).mLayer == layer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // draws the picture on the given tiles, and returns the ones where it drew something
+    private BitSet drawTiles(final SpherePicture picture, BitSet tiles) {
+        BitSet touched = new BitSet(mTileCount);
+        if (mExecutorService == null) {
+            for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+                if (mStitcher.drawColumns(picture, getFirstColumn(tile), getLastColumn(tile)) > 0) {
+                    touched.set(tile);
+                }
+            }
+            return touched;
+        }
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        final List<Integer> taskTiles = new ArrayList<Integer>();
+        for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+            final int firstColumn = getFirstColumn(tile);
+            final int lastColumn = getLastColumn(tile);
+            taskTiles.add(tile);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return mStitcher.drawColumns(picture, firstColumn, lastColumn);
+                }
+            });
+        }
+
+        try {
+            List<Future<Integer>> results = mExecutorService.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i).get() > 0) {
+                    touched.set(taskTiles.get(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return touched;
+    }
+}
@@ -0,0 +1,505 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Adaptive mesh of the sphere, used to decide which quadrangles to draw for a given camera.
+ *
+ * The sphere is split in meridians and parallels like a globe, starting from a coarse grid of
+ * ROOT_COLUMNS x ROOT_ROWS cells. Each cell is split in four until the straight quadrangle that
+ * replaces it on the screen is within ERROR_TOLERANCE pixels of the real projection of the cell,
+ * so cells that are small on the screen stay merged and cells that are close to the viewer get
+ * as many subdivisions as they need to look curved.
+ *
+ * Cells are culled against the view frustum of the camera before being split or drawn, testing
+ * a cone that bounds each cell against the planes of the frustum, so whole branches of the
+ * quadtree that can't be seen are skipped at once.
+ */
+public class SphereGrid {
+
+    public static final int ROOT_COLUMNS = 4;
+    public static final int ROOT_ROWS = 2;
+    public static final int MAX_DEPTH = 6;
+
+    // cells coarser than this span more than 45 degrees and are always split
+    private static final int MIN_DEPTH = 2;
+
+    // maximum distance, in pixels, between a drawn quadrangle and the cell it replaces
+    private static final float ERROR_TOLERANCE = 1.5f;
+
+    // cells smaller than this on the screen are never split
+    private static final float MIN_CELL_EXTENT = 12f;
+
+    // To avoid buggy projections at infinity we consider to be in front of us only
+    // points that have a z coordinate greater than some epsilon > 0
+    private static final float EPSILON = 0.10f;
+
+    // we never reach the poles, where every meridian meets and the cells degenerate
+    private static final float POLE_MARGIN = 0.0005f;
+
+    /**
+     * Receives the cells of the grid that should be drawn
+     */
+    public interface CellVisitor {
+        /**
+         * @param depth  - subdivision level of the cell, 0 being the root grid
+         * @param column - column of the cell among the ROOT_COLUMNS << depth columns
+         * @param row    - row of the cell among the ROOT_ROWS << depth rows
+         * @param quad   - the projected corners of the cell, in the order top left, top right,
+         *               bottom left, bottom right. Only valid during the call
+         */
+        void onCell(int depth, int column, int row, float[] quad);
+
+        /**
+         * Called instead of onCell for the cells that cross the plane z = EPSILON, with only the
+         * part of the cell that is in front of it
+         *
+         * @param polygon - the projected vertices of the clipped cell, x and y interleaved
+         * @param texture - the texture coordinates u and v of each vertex, interleaved
+         * @param count   - the number of vertices, between 3 and 5
+         */
+        void onClippedCell(
+                int depth,
+                int column,
+                int row,
+                float[] polygon,
+                float[] texture,
+                int count);
+    }
+
+    // bits of the mask of frustum planes a cell is known to be entirely inside of
+    private static final int NEAR_PLANE = 1 << 4;
+    private static final int ALL_PLANES = (1 << 5) - 1;
+
+    private final int mColumns = ROOT_COLUMNS << MAX_DEPTH;
+    private final int mRows = ROOT_ROWS << MAX_DEPTH;
+
+    // the vertices of the finest grid are computed lazily from these tables
+    private final float[] mSinLongitude = new float[mColumns + 1];
+    private final float[] mCosLongitude = new float[mColumns + 1];
+    private final float[] mSinLatitude = new float[mRows + 1];
+    private final float[] mCosLatitude = new float[mRows + 1];
+
+    // rotated coordinates and projection of each vertex, valid when its stamp is mFrame
+    private final float[] mRotated = new float[3 * (mColumns + 1) * (mRows + 1)];
+    private final float[] mProjections = new float[2 * (mColumns + 1) * (mRows + 1)];
+    private final int[] mStamps = new int[(mColumns + 1) * (mRows + 1)];
+    private int mFrame;
+
+    // sine and cosine of the half angle of a cone around the center of each cell containing it,
+    // by depth and row. Every cell of a row is the same up to a rotation around the poles
+    private final float[][] mConeSin = new float[MAX_DEPTH + 1][];
+    private final float[][] mConeCos = new float[MAX_DEPTH + 1][];
+
+    private final float[] mQuad = new float[8];
+    private final float[] mPolygon = new float[10];
+    private final float[] mPolygonTexture = new float[10];
+    private final float[] mPolygonPoint = new float[3];
+    // the corners of the cell being clipped and their texture coordinates, going around it
+    private final int[] mClipCorners = new int[4];
+    private final float[] mClipU = new float[4];
+    private final float[] mClipV = new float[4];
+    private final float[] mAxis = new float[3];
+
+    private float[][] mFrustumPlanes;
+
+    private float[] mRotation;
+    private float mScale;
+    private float mCenterX;
+    private float mCenterY;
+
+    public SphereGrid() {
+        for (int i = 0; i <= mColumns; i++) {
+            double longitude = 2 * Math.PI * i / mColumns;
+            mSinLongitude[i] = (float) Math.sin(longitude);
+            mCosLongitude[i] = (float) Math.cos(longitude);
+        }
+        for (int j = 0; j <= mRows; j++) {
+            double latitude = Math.PI * (getV(MAX_DEPTH, j) - 1.0f / 2);
+            mSinLatitude[j] = (float) Math.sin(latitude);
+            mCosLatitude[j] = (float) Math.cos(latitude);
+        }
+
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            int rows = ROOT_ROWS << depth;
+            mConeSin[depth] = new float[rows];
+            mConeCos[depth] = new float[rows];
+            for (int row = 0; row < rows; row++) {
+                double halfAngle = getHalfAngle(depth, row);
+                mConeSin[depth][row] = (float) Math.sin(halfAngle);
+                mConeCos[depth][row] = (float) Math.cos(halfAngle);
+            }
+        }
+    }
+
+    // Angle between the axis used for a cell, the normalized sum of its corners, and its farthest
+    // corner. Along both meridians and parallels the distance to the axis only grows towards the
+    // ends of the sides, so no point of the cell is farther than its corners
+    private static double getHalfAngle(int depth, int row) {
+        double[][] corners = new double[4][];
+        double longitude = 2 * Math.PI / (ROOT_COLUMNS << depth);
+        corners[0] = getDirection(0, Math.PI * (getV(depth, row) - 0.5));
+        corners[1] = getDirection(longitude, Math.PI * (getV(depth, row) - 0.5));
+        corners[2] = getDirection(0, Math.PI * (getV(depth, row + 1) - 0.5));
+        corners[3] = getDirection(longitude, Math.PI * (getV(depth, row + 1) - 0.5));
+
+        double[] axis = new double[3];
+        for (double[] corner : corners) {
+            for (int k = 0; k < 3; k++) {
+                axis[k] += corner[k];
+            }
+        }
+        double norm = Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+
+        double halfAngle = 0;
+        for (double[] corner : corners) {
+            double cos = (axis[0] * corner[0] + axis[1] * corner[1] + axis[2] * corner[2]) / norm;
+            halfAngle = Math.max(halfAngle, Math.acos(Math.min(1, cos)));
+        }
+        // leaves some room for the rounding errors of the float computations
+        return Math.min(Math.PI, halfAngle + 1e-3);
+    }
+
+    private static double[] getDirection(double longitude, double latitude) {
+        return new double[]{
+                Math.sin(latitude),
+                Math.cos(longitude) * Math.cos(latitude),
+                Math.sin(longitude) * Math.cos(latitude)
+        };
+    }
+
+    // horizontal texture coordinate, between 0 and 1, of the left side of a column
+    public static float getU(int depth, int column) {
+        return (float) column / (ROOT_COLUMNS << depth);
+    }
+
+    // vertical texture coordinate, between 0 and 1, of the top side of a row
+    public static float getV(int depth, int row) {
+        return POLE_MARGIN + (1 - 2 * POLE_MARGIN) * row / (ROOT_ROWS << depth);
+    }
+
+    /**
+     * Calls the visitor once for each cell that should be drawn to show the sphere as seen by
+     * the camera
+     */
+    public void traverse(SphereCamera camera, CellVisitor visitor) {
+        mFrame++;
+        mRotation = camera.getRotation();
+        mScale = camera.getScale();
+        mCenterX = camera.getViewWidth() / 2f;
+        mCenterY = camera.getViewHeight() / 2f;
+        mFrustumPlanes = camera.getFrustumPlanes();
+
+        for (int row = 0; row < ROOT_ROWS; row++) {
+            for (int column = 0; column < ROOT_COLUMNS; column++) {
+                visit(0, column, row, 0, visitor);
+            }
+        }
+    }
+
+    // insideMask has a bit set for each frustum plane the parent cell is entirely inside of, so
+    // the test against that plane can be skipped
+    private void visit(int depth, int column, int row, int insideMask, CellVisitor visitor) {
+        int step = 1 << (MAX_DEPTH - depth);
+        int left = column * step;
+        int right = left + step;
+        int top = row * step;
+        int bottom = top + step;
+
+        int topLeft = update(left, top);
+        int topRight = update(right, top);
+        int bottomLeft = update(left, bottom);
+        int bottomRight = update(right, bottom);
+
+        if (insideMask != ALL_PLANES) {
+            insideMask = cull(depth, row, topLeft, topRight, bottomLeft, bottomRight, insideMask);
+            if (insideMask < 0) {
+                return;
+            }
+        }
+
+        if (depth < MIN_DEPTH) {
+            subdivide(depth, column, row, insideMask, visitor);
+            return;
+        }
+
+        boolean isEntirelyFrontal = getZ(topLeft) > EPSILON
+                && getZ(topRight) > EPSILON
+                && getZ(bottomLeft) > EPSILON
+                && getZ(bottomRight) > EPSILON;
+
+        if (!isEntirelyFrontal) {
+            // the smaller children might be entirely in front of us, or outside of the view
+            if (depth < MAX_DEPTH) {
+                subdivide(depth, column, row, insideMask, visitor);
+                return;
+            }
+            int count = clip(depth, column, row, topLeft, topRight, bottomRight, bottomLeft);
+            if (count >= 3) {
+                visitor.onClippedCell(depth, column, row, mPolygon, mPolygonTexture, count);
+            }
+            return;
+        }
+
+        if (depth == MAX_DEPTH
+                || getExtent(topLeft, topRight, bottomLeft, bottomRight) < MIN_CELL_EXTENT
+                || isOffScreen(topLeft, topRight, bottomLeft, bottomRight)
+                || getError(left, right, top, bottom) <= ERROR_TOLERANCE) {
+            setQuad(topLeft, topRight, bottomLeft, bottomRight);
+            visitor.onCell(depth, column, row, mQuad);
+            return;
+        }
+
+        subdivide(depth, column, row, insideMask, visitor);
+    }
+
+    private void subdivide(int depth, int column, int row, int insideMask, CellVisitor visitor) {
+        visit(depth + 1, 2 * column, 2 * row, insideMask, visitor);
+        visit(depth + 1, 2 * column + 1, 2 * row, insideMask, visitor);
+        visit(depth + 1, 2 * column, 2 * row + 1, insideMask, visitor);
+        visit(depth + 1, 2 * column + 1, 2 * row + 1, insideMask, visitor);
+    }
+
+    // Tests the bounding cone of the cell against the frustum planes it isn't known to be inside
+    // of, and the plane z = EPSILON. Returns -1 if the cell can't be seen, and otherwise the mask
+    // of planes the cell is entirely inside of
+    private int cull(
+            int depth,
+            int row,
+            int topLeft,
+            int topRight,
+            int bottomLeft,
+            int bottomRight,
+            int insideMask) {
+        // rotating the corners and then adding them is the same as rotating the axis
+        for (int k = 0; k < 3; k++) {
+            mAxis[k] = mRotated[3 * topLeft + k]
+                    + mRotated[3 * topRight + k]
+                    + mRotated[3 * bottomLeft + k]
+                    + mRotated[3 * bottomRight + k];
+        }
+        float norm = (float) Math.sqrt(
+                mAxis[0] * mAxis[0] + mAxis[1] * mAxis[1] + mAxis[2] * mAxis[2]);
+        if (norm < 1e-6f) {
+            return insideMask;
+        }
+        mAxis[0] /= norm;
+        mAxis[1] /= norm;
+        mAxis[2] /= norm;
+
+        float sin = mConeSin[depth][row];
+        float cos = mConeCos[depth][row];
+
+        // the cone misses the half space dot(n, p) >= 0 when its axis is further away than its
+        // half angle on the wrong side of the plane, and is inside of it when on the right side
+        for (int plane = 0; plane < 4; plane++) {
+            if ((insideMask & (1 << plane)) != 0) {
+                continue;
+            }
+            float[] normal = mFrustumPlanes[plane];
+            float distance = normal[0] * mAxis[0] + normal[1] * mAxis[1] + normal[2] * mAxis[2];
+            if (distance < -sin) {
+                return -1;
+            }
+            if (distance > sin) {
+                insideMask |= 1 << plane;
+            }
+        }
+
+        // points of the sphere within the cone have z between cos(angle to z axis +- half angle)
+        if ((insideMask & NEAR_PLANE) == 0) {
+            float axisSin = (float) Math.sqrt(Math.max(0, 1 - mAxis[2] * mAxis[2]));
+            float maxZ = mAxis[2] >= cos ? 1 : mAxis[2] * cos + axisSin * sin;
+            if (maxZ <= EPSILON) {
+                return -1;
+            }
+            float minZ = mAxis[2] * cos - axisSin * sin;
+            if (minZ > EPSILON) {
+                insideMask |= NEAR_PLANE;
+            }
+        }
+        return insideMask;
+    }
+
+    // Clips the cell, whose corners are given going around it, against the plane z = EPSILON.
+    // Writes the projected vertices and texture coordinates of what is left into mPolygon and
+    // mPolygonTexture, and returns the number of vertices
+    private int clip(
+            int depth,
+            int column,
+            int row,
+            int topLeft,
+            int topRight,
+            int bottomRight,
+            int bottomLeft) {
+        int[] corners = mClipCorners;
+        corners[0] = topLeft;
+        corners[1] = topRight;
+        corners[2] = bottomRight;
+        corners[3] = bottomLeft;
+        float[] us = mClipU;
+        us[0] = getU(depth, column);
+        us[1] = getU(depth, column + 1);
+        us[2] = us[1];
+        us[3] = us[0];
+        float[] vs = mClipV;
+        vs[0] = getV(depth, row);
+        vs[1] = vs[0];
+        vs[2] = getV(depth, row + 1);
+        vs[3] = vs[2];
+
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            int current = corners[i];
+            int next = corners[(i + 1) % 4];
+            boolean isCurrentFrontal = getZ(current) > EPSILON;
+            if (isCurrentFrontal) {
+                mPolygon[2 * count] = mProjections[2 * current];
+                mPolygon[2 * count + 1] = mProjections[2 * current + 1];
+                mPolygonTexture[2 * count] = us[i];
+                mPolygonTexture[2 * count + 1] = vs[i];
+                count++;
+            }
+            if (isCurrentFrontal != getZ(next) > EPSILON) {
+                // the side crosses the plane, so we add the crossing point
+                float t = (EPSILON - getZ(current)) / (getZ(next) - getZ(current));
+                for (int k = 0; k < 3; k++) {
+                    mPolygonPoint[k] = mRotated[3 * current + k]
+                            + t * (mRotated[3 * next + k] - mRotated[3 * current + k]);
+                }
+                mPolygon[2 * count] = mCenterX + mScale * mPolygonPoint[0] / mPolygonPoint[2];
+                mPolygon[2 * count + 1] = mCenterY + mScale * mPolygonPoint[1] / mPolygonPoint[2];
+                mPolygonTexture[2 * count] = us[i] + t * (us[(i + 1) % 4] - us[i]);
+                mPolygonTexture[2 * count + 1] = vs[i] + t * (vs[(i + 1) % 4] - vs[i]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private float getZ(int index) {
+        return mRotated[3 * index + 2];
+    }
+
+    // Rotates and projects the vertex of the finest grid at (column, row), unless it was already
+    // done for this frame, and returns its index
+    private int update(int column, int row) {
+        int index = row * (mColumns + 1) + column;
+        if (mStamps[index] == mFrame) {
+            return index;
+        }
+        mStamps[index] = mFrame;
+
+        float x = mSinLatitude[row];
+        float y = mCosLongitude[column] * mCosLatitude[row];
+        float z = mSinLongitude[column] * mCosLatitude[row];
+
+        float rotatedX = x * mRotation[0] + y * mRotation[3] + z * mRotation[6];
+        float rotatedY = x * mRotation[1] + y * mRotation[4] + z * mRotation[7];
+        float rotatedZ = x * mRotation[2] + y * mRotation[5] + z * mRotation[8];
+
+        mRotated[3 * index] = rotatedX;
+        mRotated[3 * index + 1] = rotatedY;
+        mRotated[3 * index + 2] = rotatedZ;
+        if (rotatedZ > EPSILON) {
+            mProjections[2 * index] = mCenterX + mScale * rotatedX / rotatedZ;
+            mProjections[2 * index + 1] = mCenterY + mScale * rotatedY / rotatedZ;
+        }
+        return index;
+    }
+
+    // Whether the bounding box of the projected cell misses the view. Errors that can't be seen
+    // don't need to be corrected, so these cells are never split
+    private boolean isOffScreen(int topLeft, int topRight, int bottomLeft, int bottomRight) {
+        float minX = Math.min(
+                Math.min(mProjections[2 * topLeft], mProjections[2 * topRight]),
+                Math.min(mProjections[2 * bottomLeft], mProjections[2 * bottomRight]));
+        float maxX = Math.max(
+                Math.max(mProjections[2 * topLeft], mProjections[2 * topRight]),
+                Math.max(mProjections[2 * bottomLeft], mProjections[2 * bottomRight]));
+        float minY = Math.min(
+                Math.min(mProjections[2 * topLeft + 1], mProjections[2 * topRight + 1]),
+                Math.min(mProjections[2 * bottomLeft + 1], mProjections[2 * bottomRight + 1]));
+        float maxY = Math.max(
+                Math.max(mProjections[2 * topLeft + 1], mProjections[2 * topRight + 1]),
+                Math.max(mProjections[2 * bottomLeft + 1], mProjections[2 * bottomRight + 1]));
+        return maxX < 0 || minX > 2 * mCenterX || maxY < 0 || minY > 2 * mCenterY;
+    }
+
+    // size of the bounding box of the projected cell
+    private float getExtent(int topLeft, int topRight, int bottomLeft, int bottomRight) {
+        float minX = Math.min(
+                Math.min(mProjections[2 * topLeft], mProjections[2 * topRight]),
+                Math.min(mProjections[2 * bottomLeft], mProjections[2 * bottomRight]));
+        float maxX = Math.max(
+                Math.max(mProjections[2 * topLeft], mProjections[2 * topRight]),
+                Math.max(mProjections[2 * bottomLeft], mProjections[2 * bottomRight]));
+        float minY = Math.min(
+                Math.min(mProjections[2 * topLeft + 1], mProjections[2 * topRight + 1]),
+                Math.min(mProjections[2 * bottomLeft + 1], mProjections[2 * bottomRight + 1]));
+        float maxY = Math.max(
+                Math.max(mProjections[2 * topLeft + 1], mProjections[2 * topRight + 1]),
+                Math.max(mProjections[2 * bottomLeft + 1], mProjections[2 * bottomRight + 1]));
+        return Math.max(maxX - minX, maxY - minY);
+    }
+
+    // Estimates how far, in pixels, the quadrangle drawn in place of the cell is from the real
+    // projection of the cell. Meridians and parallels are curves once projected, while the sides
+    // of the quadrangle are straight, so the error is how far the real projections of the middle
+    // of each side, and of the middle meridian and parallel of the cell, bend away from the
+    // straight lines joining their ends
+    private float getError(int left, int right, int top, int bottom) {
+        int middleColumn = (left + right) / 2;
+        int middleRow = (top + bottom) / 2;
+
+        int topLeft = update(left, top);
+        int topRight = update(right, top);
+        int bottomLeft = update(left, bottom);
+        int bottomRight = update(right, bottom);
+        int center = update(middleColumn, middleRow);
+        int topMiddle = update(middleColumn, top);
+        int bottomMiddle = update(middleColumn, bottom);
+        int leftMiddle = update(left, middleRow);
+        int rightMiddle = update(right, middleRow);
+
+        if (getZ(center) <= EPSILON
+                || getZ(topMiddle) <= EPSILON
+                || getZ(bottomMiddle) <= EPSILON
+                || getZ(leftMiddle) <= EPSILON
+                || getZ(rightMiddle) <= EPSILON) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        float error = getDistanceToLine(topMiddle, topLeft, topRight);
+        error = Math.max(error, getDistanceToLine(bottomMiddle, bottomLeft, bottomRight));
+        error = Math.max(error, getDistanceToLine(leftMiddle, topLeft, bottomLeft));
+        error = Math.max(error, getDistanceToLine(rightMiddle, topRight, bottomRight));
+        error = Math.max(error, getDistanceToLine(center, leftMiddle, rightMiddle));
+        error = Math.max(error, getDistanceToLine(center, topMiddle, bottomMiddle));
+        return error;
+    }
+
+    private float getDistanceToLine(int point, int start, int end) {
+        float dx = mProjections[2 * end] - mProjections[2 * start];
+        float dy = mProjections[2 * end + 1] - mProjections[2 * start + 1];
+        float px = mProjections[2 * point] - mProjections[2 * start];
+        float py = mProjections[2 * point + 1] - mProjections[2 * start + 1];
+        float length = (float) Math.sqrt(dx * dx + dy * dy);
+        // near the poles a side of the cell can collapse to a point
+        if (length < 1e-3f) {
+            return (float) Math.sqrt(px * px + py * py);
+        }
+        return Math.abs(dx * py - dy * px) / length;
+    }
+
+    private void setQuad(int topLeft, int topRight, int bottomLeft, int bottomRight) {
+        mQuad[0] = mProjections[2 * topLeft];
+        mQuad[1] = mProjections[2 * topLeft + 1];
+        mQuad[2] = mProjections[2 * topRight];
+        mQuad[3] = mProjections[2 * topRight + 1];
+        mQuad[4] = mProjections[2 * bottomLeft];
+        mQuad[5] = mProjections[2 * bottomLeft + 1];
+        mQuad[6] = mProjections[2 * bottomRight];
+        mQuad[7] = mProjections[2 * bottomRight + 1];
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Items placed at directions of the sphere, kept in a grid of latitude and longitude buckets so
+ * that the ones inside of a cone are found without looking at the others.
+ *
+ * Directions are unit vectors laid out as the vertices of the sphere everywhere else, that is
+ * {sin(latitude), cos(longitude) * cos(latitude), sin(longitude) * cos(latitude)}. A query only
+ * allocates when the result list has to grow
+ */
+public class SphereIndex<T> {
+
+    private static class Entry<T> {
+        private final float mX;
+        private final float mY;
+        private final float mZ;
+        private final T mItem;
+
+        private Entry(float[] direction, T item) {
+            mX = direction[0];
+            mY = direction[1];
+            mZ = direction[2];
+            mItem = item;
+        }
+    }
+
+    private final int mRows;
+    private final int mColumns;
+
+    // mBuckets[row * mColumns + column], rows going from the latitude -pi / 2 to pi / 2
+    private final List<List<Entry<T>>> mBuckets;
+    private final Map<T, Integer> mBucketOfItem = new HashMap<T, Integer>();
+
+    /**
+     * @param rows - the number of latitude bands, there are twice as many longitude ones
+     */
+    public SphereIndex(int rows) {
+        if (rows <= 0) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mRows = rows;
+        mColumns = 2 * rows;
+        mBuckets = new ArrayList<List<Entry<T>>>(mRows * mColumns);
+        for (int i = 0; i < mRows * mColumns; i++) {
+            mBuckets.add(new ArrayList<Entry<T>>());
+        }
+    }
+
+    public int size() {
+        return mBucketOfItem.size();
+    }
+
+    // adds an item at a unit direction, unless it is already in the index
+    public void add(float[] direction, T item) {
+        if (mBucketOfItem.containsKey(item)) {
+            return;
+        }
+        float latitude = (float) Math.asin(Math.max(-1, Math.min(1, direction[0])));
+        float longitude = (float) Math.atan2(direction[2], direction[1]);
+        int bucket = getRow(latitude) * mColumns + getColumn(longitude);
+        mBuckets.get(bucket).add(new Entry<T>(direction, item));
+        mBucketOfItem.put(item, bucket);
+    }
+
+    public void clear() {
+        for (List<Entry<T>> entries : mBuckets) {
+            entries.clear();
+        }
+        mBucketOfItem.clear();
+    }
+
+    public void remove(T item) {
+        Integer bucket = mBucketOfItem.remove(item);
+        if (bucket == null) {
+            return;
+        }
+        List<Entry<T>> entries = mBuckets.get(bucket);
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).mItem.equals(item)) {
+                entries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of result with the items whose direction makes an angle with axis
+     * whose cosine is at least cosAngle
+     *
+     * @param axis - a unit vector
+     */
+    public void query(float[] axis, float cosAngle, List<T> result) {
+        result.clear();
+        float angle = (float) Math.acos(Math.max(-1, Math.min(1, cosAngle)));
+        float latitude = (float) Math.asin(Math.max(-1, Math.min(1, axis[0])));
+        float longitude = (float) Math.atan2(axis[2], axis[1]);
+
+        int firstRow = getRow(latitude - angle);
+        int lastRow = getRow(latitude + angle);
+
+        // away from the poles, the cone spans asin(sin(angle) / cos(latitude)) on each side of
+        // its longitude. If it contains a pole it spans every longitude
+        int firstColumn = 0;
+        int lastColumn = mColumns - 1;
+        float sinAngle = (float) Math.sin(angle);
+        float cosLatitude = (float) Math.cos(latitude);
+        if (Math.abs(latitude) + angle < Math.PI / 2 && sinAngle < cosLatitude) {
+            float halfSpan = (float) Math.asin(sinAngle / cosLatitude);
+            firstColumn = getUnwrappedColumn(longitude - halfSpan);
+            lastColumn = getUnwrappedColumn(longitude + halfSpan);
+            if (lastColumn - firstColumn >= mColumns) {
+                firstColumn = 0;
+                lastColumn = mColumns - 1;
+            }
+        }
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int wrappedColumn = ((column % mColumns) + mColumns) % mColumns;
+                List<Entry<T>> entries = mBuckets.get(row * mColumns + wrappedColumn);
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry<T> entry = entries.get(i);
+                    if (entry.mX * axis[0] + entry.mY * axis[1] + entry.mZ * axis[2] >= cosAngle) {
+                        result.add(entry.mItem);
+                    }
+                }
+            }
+        }
+    }
+
+    private int getRow(float latitude) {
+        int row = (int) Math.floor((latitude / Math.PI + 0.5) * mRows);
+        return Math.max(0, Math.min(mRows - 1, row));
+    }
+
+    private int getColumn(float longitude) {
+        return ((getUnwrappedColumn(longitude) % mColumns) + mColumns) % mColumns;
+    }
+
+    // the column of a longitude that may be outside of [-pi, pi], before wrapping it
+    private int getUnwrappedColumn(float longitude) {
+        return (int) Math.floor(longitude / (2 * Math.PI) * mColumns);
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * A picture taken from the center of the sphere, as the stitcher needs it: its pixels, the
+ * rotation of the device when it was taken and the size of the picture on the plane z = 1
+ */
+public class SpherePicture {
+
+    private final PixelBuffer mPixels;
+    private final float[] mRotation;
+    private final float mAbstractWidth;
+    private final float mAbstractHeight;
+
+    /**
+     * @param rotation       - the rotation of the device, a float[9] laid out as in Mat3. A point
+     *                       p of the sphere is seen by the camera at p * transpose(rotation)
+     * @param abstractWidth  - the width of the picture on the plane z = 1
+     * @param abstractHeight - the height of the picture on the plane z = 1
+     */
+    public SpherePicture(
+            PixelBuffer pixels,
+            float[] rotation,
+            float abstractWidth,
+            float abstractHeight) {
+        if (rotation.length != 9) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mPixels = pixels;
+        mRotation = rotation;
+        mAbstractWidth = abstractWidth;
+        mAbstractHeight = abstractHeight;
+    }
+
+    public PixelBuffer getPixels() {
+        return mPixels;
+    }
+
+    public float[] getRotation() {
+        return mRotation;
+    }
+
+    public float getAbstractWidth() {
+        return mAbstractWidth;
+    }
+
+    public float getAbstractHeight() {
+        return mAbstractHeight;
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Software renderer of a photosphere, that doesn't depend on android.
+ *
+ * Instead of drawing pieces of the picture onto quadrangles, every pixel of the frame follows
+ * the ray that goes through it back to the sphere and samples the equirectangular picture where
+ * the ray hits it, which is exact perspective-correct texture mapping. Rays are stepped from
+ * pixel to pixel and handed to an EquirectangularSampler. Bands of rows of the frame are rendered
+ * in parallel
+ */
+public class SphereRasterizer implements SphereRenderer<PixelBuffer> {
+
+    // number of rows rendered by each task, small enough to balance the work between threads
+    private static final int BAND_HEIGHT = 16;
+    // the threads stop after being idle this long, so that a rasterizer that isn't drawing
+    // holds none
+    private static final long KEEP_ALIVE_MS = 2000;
+
+    private final EquirectangularSampler mSampler;
+    private final ThreadPoolExecutor mExecutorService;
+
+    public SphereRasterizer(PixelBuffer source) {
+        this(source, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SphereRasterizer(PixelBuffer source, int threadCount) {
+        mSampler = new EquirectangularSampler(source);
+        mExecutorService = new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SphereRasterizer");
+                        // rendering threads shouldn't keep a command line tool from exiting
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutorService.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void render(final SphereCamera camera, final PixelBuffer frame) {
+        if (frame.getWidth() != camera.getViewWidth()
+                || frame.getHeight() != camera.getViewHeight()) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+
+        List<Callable<Void>> bands = new ArrayList<Callable<Void>>();
+        for (int row = 0; row < frame.getHeight(); row += BAND_HEIGHT) {
+            final int firstRow = row;
+            final int lastRow = Math.min(row + BAND_HEIGHT, frame.getHeight());
+            bands.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    renderRows(camera, frame, firstRow, lastRow);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> band : mExecutorService.invokeAll(bands)) {
+                band.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // stops the rendering threads, the rasterizer can't be used after this
+    public void shutdown() {
+        mExecutorService.shutdown();
+    }
+
+    private void renderRows(SphereCamera camera, PixelBuffer frame, int firstRow, int lastRow) {
+        float[] rotation = camera.getRotation();
+        float scale = camera.getScale();
+        int width = frame.getWidth();
+        int[] pixels = frame.getPixels();
+
+        // a rotated point p is the point p * rotation of the sphere, so the ray (rayX, rayY, 1)
+        // comes from the point rotation * ray. It is linear in the pixel coordinates, so moving
+        // one pixel right or down always adds the same vector to it
+        float stepX0 = rotation[0] / scale;
+        float stepX1 = rotation[3] / scale;
+        float stepX2 = rotation[6] / scale;
+        float stepY0 = rotation[1] / scale;
+        float stepY1 = rotation[4] / scale;
+        float stepY2 = rotation[7] / scale;
+        float firstX = 0.5f - width / 2f;
+        float firstY = firstRow + 0.5f - frame.getHeight() / 2f;
+        float rowStart0 = rotation[2] + firstX * stepX0 + firstY * stepY0;
+        float rowStart1 = rotation[5] + firstX * stepX1 + firstY * stepY1;
+        float rowStart2 = rotation[8] + firstX * stepX2 + firstY * stepY2;
+
+        for (int y = firstRow; y < lastRow; y++) {
+            float sphereX = rowStart0;
+            float sphereY = rowStart1;
+            float sphereZ = rowStart2;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[offset + x] = mSampler.sample(sphereX, sphereY, sphereZ);
+
+                sphereX += stepX0;
+                sphereY += stepX1;
+                sphereZ += stepX2;
+            }
+            rowStart0 += stepY0;
+            rowStart1 += stepY1;
+            rowStart2 += stepY2;
+        }
+    }
+}
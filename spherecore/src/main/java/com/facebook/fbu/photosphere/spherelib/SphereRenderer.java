@@ -0,0 +1,16 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Draws a photosphere as seen by a SphereCamera onto a target, which is a Canvas for the
+ * renderers used on the device and a PixelBuffer for the ones that can run anywhere
+ */
+public interface SphereRenderer<T> {
+
+    /**
+     * @param camera - the camera looking at the sphere, whose view size is the size of target
+     * @param target - what to draw the view of the sphere on
+     */
+    void render(SphereCamera camera, T target);
+}
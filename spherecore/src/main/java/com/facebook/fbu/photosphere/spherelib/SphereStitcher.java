@@ -0,0 +1,239 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Draws pictures taken from the center of the sphere onto an equirectangular picture of the
+ * sphere, with no android dependency.
+ *
+ * Every pixel of the sphere is mapped back to the picture, and the color read there by the
+ * Sampler is combined with the sphere by the Blender. Most of the sphere isn't covered by a
+ * given picture, so columns are scanned by jumps until the picture is found.
+ *
+ * Each column is warped, mapped and sampled, before it is blended, so that a
+ * ConstructionProfiler can tell the two stages apart
+ */
+public class SphereStitcher {
+
+    // number of pixels skipped at once when outside of the picture
+    private static final int JUMP_SIZE = 15;
+
+    private final PixelBuffer mSphere;
+    private final Sampler mSampler;
+    private final Blender mBlender;
+    private ConstructionProfiler mProfiler;
+
+    // sines and cosines of the longitude of each column and the latitude of each row
+    private final float[] mSinLongitude;
+    private final float[] mCosLongitude;
+    private final float[] mSinLatitude;
+    private final float[] mCosLatitude;
+
+    public SphereStitcher(PixelBuffer sphere, Sampler sampler, Blender blender) {
+        mSphere = sphere;
+        mSampler = sampler;
+        mBlender = blender;
+
+        int width = sphere.getWidth();
+        int height = sphere.getHeight();
+        mSinLongitude = new float[width];
+        mCosLongitude = new float[width];
+        for (int i = 0; i < width; i++) {
+            float longitude = (float) (2 * Math.PI * (float) i / width);
+            mSinLongitude[i] = (float) Math.sin(longitude);
+            mCosLongitude[i] = (float) Math.cos(longitude);
+        }
+        mSinLatitude = new float[height];
+        mCosLatitude = new float[height];
+        for (int j = 0; j < height; j++) {
+            float latitude = (float) (Math.PI * (((float) j / height) - 1.0f / 2));
+            mSinLatitude[j] = (float) Math.sin(latitude);
+            mCosLatitude[j] = (float) Math.cos(latitude);
+        }
+    }
+
+    public PixelBuffer getSphere() {
+        return mSphere;
+    }
+
+    public void setProfiler(ConstructionProfiler profiler) {
+        mProfiler = profiler;
+    }
+
+    public void drawPicture(SpherePicture picture) {
+        drawColumns(picture, 0, mSphere.getWidth());
+    }
+
+    // Splits the columns of the sphere in taskCount ranges drawn on the executor, and returns
+    // when they are all drawn
+    public void drawPicture(
+            final SpherePicture picture,
+            ExecutorService executorService,
+            int taskCount) {
+        int width = mSphere.getWidth();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int task = 0; task < taskCount; task++) {
+            final int firstColumn = width * task / taskCount;
+            final int lastColumn = width * (task + 1) / taskCount;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    drawColumns(picture, firstColumn, lastColumn);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> task : executorService.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Draws the picture on the columns of the sphere from firstColumn to lastColumn excluded, and
+    // returns the number of pixels drawn. Disjoint ranges of columns can be drawn from different
+    // threads
+    public int drawColumns(SpherePicture picture, int firstColumn, int lastColumn) {
+        ConstructionProfiler profiler = mProfiler;
+        long startNanos = 0;
+        long startCpuNanos = 0;
+        if (profiler != null) {
+            profiler.beginTrace("stitch");
+            startCpuNanos = profiler.getThreadCpuNanos();
+            startNanos = System.nanoTime();
+        }
+
+        PixelBuffer pixels = picture.getPixels();
+        int pictureWidth = pixels.getWidth();
+        int pictureHeight = pixels.getHeight();
+        float scaleX = pictureWidth / picture.getAbstractWidth();
+        float scaleY = pictureHeight / picture.getAbstractHeight();
+
+        // the inverse of the rotation of the picture is its transpose
+        float[] inverseRotation = new float[9];
+        Mat3.transpose(picture.getRotation(), inverseRotation);
+        float[] pointInSphere = new float[3];
+        float[] rotated = new float[3];
+
+        int[] sphere = mSphere.getPixels();
+        int sphereWidth = mSphere.getWidth();
+        int sphereHeight = mSphere.getHeight();
+
+        // the rows of the column inside of the picture, where they fall in it and their color
+        int[] rows = new int[sphereHeight];
+        float[] xs = new float[sphereHeight];
+        float[] ys = new float[sphereHeight];
+        int[] colors = new int[sphereHeight];
+
+        long warpNanos = 0;
+        long blendNanos = 0;
+        long pixelCount = 0;
+        for (int i = firstColumn; i < lastColumn; i++) {
+            long columnStartNanos = profiler != null ? System.nanoTime() : 0;
+            int rowCount = 0;
+            // each column is scanned from its top, so that it is drawn the same whatever range
+            // of columns it is drawn with
+            boolean moveFast = false;
+            int count = 0;
+            for (int j = 0; j < sphereHeight - 1; j++) {
+                Vec3.set(
+                        mSinLatitude[j],
+                        mCosLongitude[i] * mCosLatitude[j],
+                        mSinLongitude[i] * mCosLatitude[j],
+                        pointInSphere);
+                Mat3.transform(pointInSphere, inverseRotation, rotated);
+
+                boolean gotInside = rotated[2] > 0;
+                if (gotInside) {
+                    float x = rotated[0] / rotated[2] * scaleX + pictureWidth / 2;
+                    float y = rotated[1] / rotated[2] * scaleY + pictureHeight / 2;
+                    gotInside = x >= 0 && x < pictureWidth - 1 && y >= 0 && y < pictureHeight - 1;
+                    if (gotInside) {
+                        rows[rowCount] = j;
+                        xs[rowCount] = x;
+                        ys[rowCount] = y;
+                        colors[rowCount] = mSampler.sample(pixels, x, y);
+                        rowCount++;
+                    }
+                }
+
+                // after enough pixels outside of the picture we move by jumps, and step back
+                // when a jump lands inside of it. Unless it is the first one, the row it landed
+                // on is found again after stepping back, so it is dropped
+                if (!moveFast && !gotInside) {
+                    count++;
+                }
+                if (count > JUMP_SIZE + 1) {
+                    count = 0;
+                    moveFast = true;
+                }
+                if (moveFast && gotInside) {
+                    moveFast = false;
+                    if (j > 0) {
+                        rowCount--;
+                    }
+                    j = Math.max(j - JUMP_SIZE, 0);
+                }
+                if (moveFast) {
+                    j = j + JUMP_SIZE;
+                }
+            }
+
+            long columnWarpedNanos = profiler != null ? System.nanoTime() : 0;
+            for (int k = 0; k < rowCount; k++) {
+                int index = rows[k] * sphereWidth + i;
+                sphere[index] = mBlender.blend(
+                        sphere[index],
+                        colors[k],
+                        xs[k],
+                        ys[k],
+                        pictureWidth,
+                        pictureHeight);
+            }
+            pixelCount += rowCount;
+
+            if (profiler != null) {
+                long columnEndNanos = System.nanoTime();
+                warpNanos += columnWarpedNanos - columnStartNanos;
+                blendNanos += columnEndNanos - columnWarpedNanos;
+            }
+        }
+
+        if (profiler != null) {
+            long endNanos = System.nanoTime();
+            long cpuNanos = profiler.getThreadCpuNanos() - startCpuNanos;
+            profiler.endTrace();
+            // the cpu time isn't measured per column, it is split as the wall time was
+            long cpuWarpNanos = warpNanos + blendNanos == 0
+                    ? 0
+                    : cpuNanos * warpNanos / (warpNanos + blendNanos);
+            profiler.record(
+                    ConstructionStage.WARP,
+                    startNanos,
+                    endNanos,
+                    warpNanos,
+                    cpuWarpNanos,
+                    pixelCount);
+            profiler.record(
+                    ConstructionStage.BLEND,
+                    startNanos,
+                    endNanos,
+                    blendNanos,
+                    cpuNanos - cpuWarpNanos,
+                    pixelCount);
+        }
+        return (int) pixelCount;
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the files of a TiledPanorama package, from wherever it is stored. The streams are opened
+ * on the threads of the loader, one tile at a time per thread, and closed by it
+ */
+public interface TileSource {
+
+    InputStream openIndex() throws IOException;
+
+    // the JPEG of the tile, see TiledPanorama.getTilePath
+    InputStream openTile(int level, int column, int row) throws IOException;
+}
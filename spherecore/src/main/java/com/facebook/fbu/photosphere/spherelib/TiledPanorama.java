@@ -0,0 +1,158 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * The layout of a photosphere stored as a pyramid of tiles, so that a viewer only fetches the
+ * tiles it shows, at the resolution it shows them.
+ *
+ * The levels are those of the mosaic of MosaicRenderer: level l has (ROOT_COLUMNS << l) x
+ * (ROOT_ROWS << l) tiles bounded by SphereGrid.getU and SphereGrid.getV, each level having half
+ * the resolution of the next one, and the finest level having the resolution of the picture.
+ * Every tile of a level is covered by a tile of each coarser level, and the coarsest level is a
+ * handful of small tiles enough to show the whole sphere.
+ *
+ * A package is a directory holding the tiles, each a JPEG at getTilePath, and an index,
+ * INDEX_FILE, a text file with the lines
+ *
+ * size width height
+ * finest-level level
+ *
+ * where the size is that of the picture. Empty lines and lines starting with # are ignored. The
+ * index is written last, so a package with an index is complete
+ */
+public class TiledPanorama {
+
+    public static final String INDEX_FILE = "tiles.txt";
+
+    // the largest width, in pixels, of the tiles of a package, a few kilobytes each. A 2000 wide
+    // sphere of the camera gets three levels, the coarsest one 500 pixels wide
+    public static final int TILE_SIZE = 128;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFinestLevel;
+
+    // the layout of a package of a picture of the given size, whose finest level is the first
+    // one with tiles no wider than TILE_SIZE
+    public static TiledPanorama forSize(int width, int height) {
+        int finestLevel = 0;
+        while (finestLevel < SphereGrid.MAX_DEPTH
+                && width > (long) TILE_SIZE * (SphereGrid.ROOT_COLUMNS << finestLevel)) {
+            finestLevel++;
+        }
+        return new TiledPanorama(width, height, finestLevel);
+    }
+
+    public TiledPanorama(int width, int height, int finestLevel) {
+        if (width <= 0 || height <= 0 || finestLevel < 0 || finestLevel > SphereGrid.MAX_DEPTH) {
+            throw new RuntimeException("Illegal dimensions.");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFinestLevel = finestLevel;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFinestLevel() {
+        return mFinestLevel;
+    }
+
+    public int getColumnCount(int level) {
+        return SphereGrid.ROOT_COLUMNS << level;
+    }
+
+    public int getRowCount(int level) {
+        return SphereGrid.ROOT_ROWS << level;
+    }
+
+    // the width of the picture at the resolution of the level
+    public int getLevelWidth(int level) {
+        return mWidth >> (mFinestLevel - level);
+    }
+
+    public int getLevelHeight(int level) {
+        return mHeight >> (mFinestLevel - level);
+    }
+
+    /**
+     * Sets the bounds of a tile in the pixels of the picture, which are scaled down by
+     * 2 ^ (finest level - level) in the tile
+     *
+     * @param bounds - receives left, top, right and bottom
+     */
+    public void getTileBounds(int level, int column, int row, int[] bounds) {
+        int columns = getColumnCount(level);
+        bounds[0] = (int) ((long) mWidth * column / columns);
+        bounds[1] = (int) (mHeight * SphereGrid.getV(level, row));
+        bounds[2] = (int) ((long) mWidth * (column + 1) / columns);
+        bounds[3] = (int) (mHeight * SphereGrid.getV(level, row + 1));
+    }
+
+    // the file of a tile, relative to the package
+    public static String getTilePath(int level, int column, int row) {
+        return level + "/" + row + "_" + column + ".jpg";
+    }
+
+    // a number identifying a tile among those of every level
+    public static long getTileKey(int level, int column, int row) {
+        return ((long) level << 48) | ((long) row << 24) | column;
+    }
+
+    public void writeIndex(OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+        writer.write("size " + mWidth + " " + mHeight + "\n");
+        writer.write("finest-level " + mFinestLevel + "\n");
+        writer.flush();
+    }
+
+    public static TiledPanorama readIndex(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        int width = 0;
+        int height = 0;
+        int finestLevel = -1;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("size") && fields.length == 3) {
+                    width = Integer.parseInt(fields[1]);
+                    height = Integer.parseInt(fields[2]);
+                } else if (fields[0].equals("finest-level") && fields.length == 2) {
+                    finestLevel = Integer.parseInt(fields[1]);
+                } else {
+                    throw new IOException("Unexpected line " + lineNumber + " in " + INDEX_FILE);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Unreadable number on line " + lineNumber
+                        + " in " + INDEX_FILE);
+            }
+        }
+        if (width <= 0 || height <= 0 || finestLevel < 0
+                || finestLevel > SphereGrid.MAX_DEPTH) {
+            throw new IOException("Missing or illegal size in " + INDEX_FILE);
+        }
+        return new TiledPanorama(width, height, finestLevel);
+    }
+}
@@ -0,0 +1,43 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * A TileSource reading a package from a base url, over http for a package that is served, or
+ * from a file url for one written by PhotoSphereConstructor. Each tile is a request of its own,
+ * so only the tiles asked for are transferred
+ */
+public class UrlTileSource implements TileSource {
+
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 20 * 1000;
+
+    private final String mBaseUrl;
+
+    // the url of the directory of the package, with or without a trailing slash
+    public UrlTileSource(String baseUrl) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    @Override
+    public InputStream openIndex() throws IOException {
+        return open(TiledPanorama.INDEX_FILE);
+    }
+
+    @Override
+    public InputStream openTile(int level, int column, int row) throws IOException {
+        return open(TiledPanorama.getTilePath(level, column, row));
+    }
+
+    private InputStream open(String path) throws IOException {
+        URLConnection connection = new URL(mBaseUrl + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection.getInputStream();
+    }
+}
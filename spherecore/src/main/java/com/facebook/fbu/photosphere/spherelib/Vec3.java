@@ -0,0 +1,74 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Operations on 3-vectors stored as float[3]. Nothing is allocated: results are written in a
+ * destination given by the caller, which may be one of the operands
+ */
+public final class Vec3 {
+
+    private Vec3() {
+    }
+
+    public static void set(float x, float y, float z, float[] dst) {
+        dst[0] = x;
+        dst[1] = y;
+        dst[2] = z;
+    }
+
+    public static void copy(float[] a, float[] dst) {
+        dst[0] = a[0];
+        dst[1] = a[1];
+        dst[2] = a[2];
+    }
+
+    public static float dot(float[] a, float[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    public static void cross(float[] a, float[] b, float[] dst) {
+        float x = a[1] * b[2] - a[2] * b[1];
+        float y = a[2] * b[0] - a[0] * b[2];
+        float z = a[0] * b[1] - a[1] * b[0];
+        dst[0] = x;
+        dst[1] = y;
+        dst[2] = z;
+    }
+
+    public static void add(float[] a, float[] b, float[] dst) {
+        dst[0] = a[0] + b[0];
+        dst[1] = a[1] + b[1];
+        dst[2] = a[2] + b[2];
+    }
+
+    public static void subtract(float[] a, float[] b, float[] dst) {
+        dst[0] = a[0] - b[0];
+        dst[1] = a[1] - b[1];
+        dst[2] = a[2] - b[2];
+    }
+
+    public static void scale(float[] a, float s, float[] dst) {
+        dst[0] = a[0] * s;
+        dst[1] = a[1] * s;
+        dst[2] = a[2] * s;
+    }
+
+    public static float normSquared(float[] a) {
+        return a[0] * a[0] + a[1] * a[1] + a[2] * a[2];
+    }
+
+    public static float norm(float[] a) {
+        return (float) Math.sqrt(normSquared(a));
+    }
+
+    // scales a to unit length, leaving the zero vector unchanged
+    public static void normalize(float[] a, float[] dst) {
+        float norm = norm(a);
+        if (norm == 0) {
+            copy(a, dst);
+            return;
+        }
+        scale(a, 1 / norm, dst);
+    }
+}
@@ -0,0 +1,247 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Replays the recorded capture in REPLAY_DIRECTORY, four frames of one color each taken while
+ * the device turns by a quarter turn around its x axis, checks the rotations the trace gives the
+ * shots, and stitches the session, written and read back, into a sphere saved as a PNG, the way
+ * SphereCli does
+ */
+public class CaptureReplayTest {
+
+    private static final String REPLAY_DIRECTORY = "replay";
+    private static final String ORIENTATION_FILE = "orientation.txt";
+
+    private static final int FRAME_COUNT = 4;
+    private static final int SAMPLE_COUNT = 6;
+    private static final int IMAGE_ROTATION = 90;
+    // the color of each frame, and the angle the device is turned by around its x axis
+    private static final int[] FRAME_COLORS = {0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffff00};
+    private static final double[] FRAME_ANGLES = {0, Math.PI / 2, Math.PI, 3 * Math.PI / 2};
+
+    // the rotation of the device when the sensor gives the identity, from the quarter turns and
+    // the reversed axes of OrientationTracker
+    private static final float[] IDENTITY_POSITION = {
+            0, -1, 0,
+            0, 0, -1,
+            1, 0, 0};
+    private static final float[] REVERSED_AXES = {
+            1, 0, 0,
+            0, -1, 0,
+            0, 0, -1};
+
+    private static final int SPHERE_HEIGHT = 90;
+    // JPEG doesn't keep the colors exactly
+    private static final int CHANNEL_TOLERANCE = 16;
+    private static final float ROTATION_TOLERANCE = 1e-5f;
+
+    @Test
+    public void replaysTrace() throws IOException, URISyntaxException {
+        ReplayFrameSource frameSource = new ReplayFrameSource(getReplayDirectory());
+        ReplayOrientationSource orientationSource = readOrientation();
+        assertEquals(FRAME_COUNT, frameSource.getFrameCount());
+        assertEquals(SAMPLE_COUNT, orientationSource.getSampleCount());
+
+        CaptureSession session = CaptureReplay.replay(frameSource, orientationSource);
+
+        assertEquals(FRAME_COUNT, session.getShots().size());
+        assertTrue(!frameSource.hasNextFrame());
+        // the sample after the last frame is left, and the listener is gone
+        assertEquals(1, orientationSource.advanceTo(Long.MAX_VALUE));
+        orientationSource.rewind();
+        assertEquals(SAMPLE_COUNT, orientationSource.advanceTo(Long.MAX_VALUE));
+
+        // the frames are turned by the image rotation, so the width spans the vertical angle
+        float[] abstractSize = {
+                2 * (float) Math.tan(Math.toRadians(45) / 2),
+                2 * (float) Math.tan(Math.toRadians(60) / 2)};
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            CaptureSession.Shot shot = session.getShots().get(i);
+            assertEquals(IMAGE_ROTATION, shot.getImageRotation());
+            assertTrue(shot.getJpegData().length > 0);
+            assertClose(
+                    "abstract size",
+                    abstractSize,
+                    new float[] {shot.getAbstractWidth(), shot.getAbstractHeight()});
+            assertClose("shot " + i, getExpectedPosition(FRAME_ANGLES[i]), shot.getRotation());
+        }
+    }
+
+    @Test
+    public void stitchesReplayToSphere() throws IOException, URISyntaxException {
+        CaptureSession replayed = CaptureReplay.replay(
+                new ReplayFrameSource(getReplayDirectory()),
+                readOrientation());
+        File sessionFile = File.createTempFile("replay", ".session");
+        File sphereFile = File.createTempFile("replay", ".png");
+        try {
+            OutputStream outputStream = new FileOutputStream(sessionFile);
+            try {
+                replayed.write(outputStream);
+            } finally {
+                outputStream.close();
+            }
+            CaptureSession session;
+            InputStream inputStream = new FileInputStream(sessionFile);
+            try {
+                session = CaptureSession.read(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            assertEquals(FRAME_COUNT, session.getShots().size());
+
+            PixelBuffer sphere = new PixelBuffer(2 * SPHERE_HEIGHT, SPHERE_HEIGHT);
+            SphereCompositor compositor = new SphereCompositor(
+                    new SphereStitcher(sphere, new NearestSampler(), new FeatherBlender()),
+                    SphereCompositor.DEFAULT_TILE_WIDTH,
+                    null);
+            for (CaptureSession.Shot shot : session.getShots()) {
+                final SpherePicture picture = shot.toSpherePicture(decode(shot));
+                compositor.add(new SphereCompositor.Layer() {
+                    @Override
+                    public SpherePicture load() {
+                        return picture;
+                    }
+                });
+            }
+            writePng(sphere, sphereFile);
+
+            PixelBuffer saved = readPng(sphereFile);
+            assertEquals(sphere.getWidth(), saved.getWidth());
+            assertEquals(sphere.getHeight(), saved.getHeight());
+            // every frame lands somewhere on the sphere, none hidden by another
+            for (int color : FRAME_COLORS) {
+                assertTrue(
+                        "no pixel of color " + Integer.toHexString(color),
+                        countPixels(saved, color) > 0);
+            }
+        } finally {
+            sessionFile.delete();
+            sphereFile.delete();
+        }
+    }
+
+    // the device turned by the angle around its x axis, which turns the identity position around
+    // the same axis of the sphere once the reversed axes are put back
+    private static float[] getExpectedPosition(double angle) {
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        float[] sensorRotation = {
+                1, 0, 0,
+                0, cos, -sin,
+                0, sin, cos};
+        float[] position = new float[9];
+        Mat3.transpose(sensorRotation, position);
+        Mat3.multiply(REVERSED_AXES, position, position);
+        Mat3.multiply(position, REVERSED_AXES, position);
+        Mat3.multiply(position, IDENTITY_POSITION, position);
+        return position;
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(
+                    message + ": expected " + expected[i] + " at " + i + " but was " + actual[i],
+                    Math.abs(expected[i] - actual[i]) <= ROTATION_TOLERANCE);
+        }
+    }
+
+    private File getReplayDirectory() throws URISyntaxException {
+        URL url = getClass().getResource(REPLAY_DIRECTORY + "/" + ReplayFrameSource.FRAMES_FILE);
+        assertNotNull("missing " + REPLAY_DIRECTORY, url);
+        return new File(url.toURI()).getParentFile();
+    }
+
+    private ReplayOrientationSource readOrientation() throws IOException {
+        InputStream inputStream =
+                getClass().getResourceAsStream(REPLAY_DIRECTORY + "/" + ORIENTATION_FILE);
+        assertNotNull("missing " + ORIENTATION_FILE, inputStream);
+        try {
+            return ReplayOrientationSource.read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // decodes the JPEG of the shot and turns it clockwise by its image rotation, a quarter turn
+    private static PixelBuffer decode(CaptureSession.Shot shot) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(shot.getJpegData()));
+        assertNotNull("unreadable JPEG", image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer result = new PixelBuffer(height, width);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                result.setPixel(height - 1 - y, x, image.getRGB(x, y));
+            }
+        }
+        return result;
+    }
+
+    private static int countPixels(PixelBuffer pixels, int color) {
+        int count = 0;
+        for (int pixel : pixels.getPixels()) {
+            if (isClose(pixel, color)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isClose(int first, int second) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int difference = ((first >>> shift) & 0xff) - ((second >>> shift) & 0xff);
+            if (Math.abs(difference) > CHANNEL_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static PixelBuffer readPng(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        assertNotNull("unreadable " + file, image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return new PixelBuffer(image.getRGB(0, 0, width, height, null, 0, width), width, height);
+    }
+
+    private static void writePng(PixelBuffer pixels, File file) throws IOException {
+        BufferedImage image = new BufferedImage(
+                pixels.getWidth(),
+                pixels.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(
+                0,
+                0,
+                pixels.getWidth(),
+                pixels.getHeight(),
+                pixels.getPixels(),
+                0,
+                pixels.getWidth());
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+}
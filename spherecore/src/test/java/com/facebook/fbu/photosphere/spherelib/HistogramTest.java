@@ -0,0 +1,102 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the bucket a value falls in through the highest value the histogram reports for it, at
+ * the boundaries of the buckets up to the last one holding Long.MAX_VALUE, and the percentiles
+ * of a known distribution
+ */
+public class HistogramTest {
+
+    // the relative width of the buckets past the ones holding a single value
+    private static final int SUB_BUCKETS = 32;
+
+    @Test
+    public void smallValuesHaveBucketEach() {
+        for (long value = 0; value < 2 * SUB_BUCKETS; value++) {
+            assertEquals(value, getBucketEnd(value));
+        }
+    }
+
+    @Test
+    public void bucketsSplitPowersOfTwo() {
+        // the first buckets two values wide, then four
+        assertEquals(65, getBucketEnd(64));
+        assertEquals(65, getBucketEnd(65));
+        assertEquals(67, getBucketEnd(66));
+        assertEquals(127, getBucketEnd(126));
+        assertEquals(127, getBucketEnd(127));
+        assertEquals(131, getBucketEnd(128));
+
+        for (int bit = 6; bit < 63; bit++) {
+            for (long value : new long[] {(1L << bit) - 1, 1L << bit, (1L << bit) + 1}) {
+                long end = getBucketEnd(value);
+                assertTrue("bucket of " + value + " ends at " + end, end >= value);
+                assertTrue(
+                        "bucket of " + value + " ends at " + end,
+                        end - value <= value / SUB_BUCKETS);
+                // the bucket holds its highest value, and the next one starts right after
+                assertEquals(end, getBucketEnd(end));
+                if (end < Long.MAX_VALUE) {
+                    assertTrue("bucket after " + end, getBucketEnd(end + 1) > end);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lastBucketHoldsMaxValue() {
+        long lastBucketStart = (long) (2 * SUB_BUCKETS - 1) << 57;
+        assertEquals(Long.MAX_VALUE, getBucketEnd(lastBucketStart));
+        assertEquals(Long.MAX_VALUE, getBucketEnd(Long.MAX_VALUE - 1));
+        assertEquals(lastBucketStart - 1, getBucketEnd(lastBucketStart - 1));
+
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        // negative values count as 0
+        histogram.record(-5);
+
+        assertEquals(10001, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+        for (int percentile : new int[] {1, 10, 50, 90, 99}) {
+            long value = histogram.getValueAtPercentile(percentile);
+            long expected = (long) Math.ceil(percentile / 100.0 * 10001) - 1;
+            assertTrue(
+                    percentile + "th percentile " + value,
+                    value >= expected && value - expected <= expected / SUB_BUCKETS);
+        }
+        assertTrue(Math.abs(histogram.getMean() - 50005000.0 / 10001) < 1e-6);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    // the highest value of the bucket of the value, recorded under a larger one so that the
+    // maximum doesn't cap it
+    private static long getBucketEnd(long value) {
+        Histogram histogram = new Histogram();
+        histogram.record(value);
+        histogram.record(Long.MAX_VALUE);
+        return histogram.getValueAtPercentile(50);
+    }
+}
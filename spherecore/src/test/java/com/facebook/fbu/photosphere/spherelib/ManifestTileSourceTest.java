@@ -0,0 +1,79 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the manifest of a package whose tiles are files, and reads the package back through it,
+ * a tile missing from the manifest failing to open
+ */
+public class ManifestTileSourceTest {
+
+    @Test
+    public void readsPackageThroughManifest() throws IOException {
+        File directory = File.createTempFile("manifest", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            TiledPanorama panorama = TiledPanorama.forSize(1000, 500);
+            File tileFile = new File(directory, "tile.jpg");
+            write(tileFile, new byte[] {1, 2, 3});
+            Map<String, String> tileUrls = new HashMap<String, String>();
+            tileUrls.put(TiledPanorama.getTilePath(1, 2, 3), tileFile.toURI().toString());
+            File manifestFile = new File(directory, "manifest.txt");
+            OutputStream outputStream = new FileOutputStream(manifestFile);
+            try {
+                ManifestTileSource.writeManifest(panorama, tileUrls, outputStream);
+            } finally {
+                outputStream.close();
+            }
+
+            ManifestTileSource source = new ManifestTileSource(manifestFile.toURI().toString());
+            InputStream indexStream = source.openIndex();
+            TiledPanorama readPanorama = TiledPanorama.readIndex(indexStream);
+            indexStream.close();
+            InputStream tileStream = source.openTile(1, 2, 3);
+            int firstByte = tileStream.read();
+            tileStream.close();
+
+            assertEquals(panorama.getWidth(), readPanorama.getWidth());
+            assertEquals(panorama.getFinestLevel(), readPanorama.getFinestLevel());
+            assertEquals(1, firstByte);
+            assertTrue(isMissing(source, 0, 0, 0));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static boolean isMissing(TileSource source, int level, int column, int row) {
+        try {
+            source.openTile(level, column, row).close();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
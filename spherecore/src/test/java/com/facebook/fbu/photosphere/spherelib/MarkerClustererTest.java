@@ -0,0 +1,152 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Clusters items on either side of the antimeridian with a view crossing it, whether the cells in
+ * view are looked up one by one or every cluster is checked, and checks that removing the last
+ * item of a cell drops its cluster and that a level computed after the items are added holds the
+ * same clusters as a level kept up to date while they are
+ */
+public class MarkerClustererTest {
+
+    // 4 cells across the world at zoom 0, 32 at zoom 3, each 11.25 degrees wide
+    private static final int CELL_SIZE = 64;
+    private static final int ZOOM = 3;
+
+    // a view a few cells wide, from 170 east to 170 west
+    private static final double SOUTH = -10;
+    private static final double WEST = 170;
+    private static final double NORTH = 10;
+    private static final double EAST = -170;
+
+    private static final double DEGREE_TOLERANCE = 1e-9;
+
+    @Test
+    public void viewWrapsAroundAntimeridian() {
+        MarkerClusterer<String> clusterer = new MarkerClusterer<String>(CELL_SIZE);
+        addAroundAntimeridian(clusterer);
+
+        List<MarkerClusterer.Cluster<String>> clusters =
+                new ArrayList<MarkerClusterer.Cluster<String>>();
+        clusterer.getClusters(ZOOM, SOUTH, WEST, NORTH, EAST, clusters);
+
+        assertEquals(Arrays.asList("east", "west"), getItems(clusters));
+        assertEquals(2, clusters.size());
+        for (MarkerClusterer.Cluster<String> cluster : clusters) {
+            String item = cluster.getItems().iterator().next();
+            double longitude = item.equals("east") ? 179 : -179;
+            assertEquals(longitude, cluster.getLongitude(), DEGREE_TOLERANCE);
+            assertEquals(0, cluster.getLatitude(), DEGREE_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void lookupsFindSameClusters() {
+        // fewer clusters than cells in view, so every cluster is checked
+        MarkerClusterer<String> few = new MarkerClusterer<String>(CELL_SIZE);
+        addAroundAntimeridian(few);
+        // many more clusters than cells in view, so the cells in view are looked up
+        MarkerClusterer<String> many = new MarkerClusterer<String>(CELL_SIZE);
+        addAroundAntimeridian(many);
+        for (int longitude = -150; longitude <= 150; longitude += 30) {
+            many.add("far " + longitude, -60, longitude);
+        }
+
+        List<MarkerClusterer.Cluster<String>> clusters =
+                new ArrayList<MarkerClusterer.Cluster<String>>();
+        few.getClusters(ZOOM, SOUTH, WEST, NORTH, EAST, clusters);
+        List<String> fewItems = getItems(clusters);
+        many.getClusters(ZOOM, SOUTH, WEST, NORTH, EAST, clusters);
+
+        assertEquals(Arrays.asList("east", "west"), fewItems);
+        assertEquals(fewItems, getItems(clusters));
+        // the whole world, ending at the end of the last column
+        many.getClusters(ZOOM, -90, -180, 90, 180, clusters);
+        assertEquals(many.size(), clusters.size());
+    }
+
+    @Test
+    public void removingLastItemDropsCluster() {
+        MarkerClusterer<String> clusterer = new MarkerClusterer<String>(CELL_SIZE);
+        clusterer.add("first", 1, 1);
+        clusterer.add("second", 2, 2);
+        clusterer.add("alone", 1, 60);
+        List<MarkerClusterer.Cluster<String>> clusters =
+                new ArrayList<MarkerClusterer.Cluster<String>>();
+        clusterer.getClusters(ZOOM, -90, -180, 90, 180, clusters);
+        assertEquals(2, clusters.size());
+
+        assertTrue(clusterer.remove("alone"));
+        assertTrue(clusterer.remove("second"));
+        assertFalse(clusterer.remove("alone"));
+        clusterer.getClusters(ZOOM, -90, -180, 90, 180, clusters);
+
+        assertEquals(Collections.singletonList("first"), getItems(clusters));
+        assertEquals(1, clusters.get(0).getLatitude(), DEGREE_TOLERANCE);
+        assertEquals(1, clusters.get(0).getLongitude(), DEGREE_TOLERANCE);
+        assertFalse(clusterer.contains("alone"));
+        assertEquals(1, clusterer.size());
+    }
+
+    @Test
+    public void levelComputedLaterMatchesUpdatedLevel() {
+        MarkerClusterer<String> clusterer = new MarkerClusterer<String>(CELL_SIZE);
+        List<MarkerClusterer.Cluster<String>> clusters =
+                new ArrayList<MarkerClusterer.Cluster<String>>();
+        clusterer.add("moved", 40, 100);
+        // computes the level before the other items are added and the first one moves
+        clusterer.getClusters(ZOOM, -90, -180, 90, 180, clusters);
+        addAroundAntimeridian(clusterer);
+        clusterer.add("moved", -0.5, 179.5);
+        clusterer.getClusters(ZOOM, -90, -180, 90, 180, clusters);
+        List<String> updatedItems = getItems(clusters);
+
+        MarkerClusterer<String> later = new MarkerClusterer<String>(CELL_SIZE);
+        addAroundAntimeridian(later);
+        later.add("moved", -0.5, 179.5);
+        later.getClusters(ZOOM, -90, -180, 90, 180, clusters);
+
+        assertEquals(getItems(clusters), updatedItems);
+        assertTrue(updatedItems.contains("east,moved"));
+        // a level no one asked for yet is computed from every item
+        clusterer.getClusters(0, -90, -180, 90, 180, clusters);
+        assertEquals(Arrays.asList("east,moved", "middle", "up", "west"), getItems(clusters));
+    }
+
+    // one item on either side of the antimeridian, at the equator and further north in the
+    // same column, and one on the prime meridian
+    private static void addAroundAntimeridian(MarkerClusterer<String> clusterer) {
+        clusterer.add("east", 0, 179);
+        clusterer.add("west", 0, -179);
+        clusterer.add("up", 60, 179);
+        clusterer.add("middle", 0, 0);
+    }
+
+    // the items of each cluster, sorted and joined, for the clusters in sorted order
+    private static List<String> getItems(List<MarkerClusterer.Cluster<String>> clusters) {
+        List<String> result = new ArrayList<String>();
+        for (MarkerClusterer.Cluster<String> cluster : clusters) {
+            List<String> items = new ArrayList<String>(cluster.getItems());
+            Collections.sort(items);
+            StringBuilder builder = new StringBuilder();
+            for (String item : items) {
+                builder.append(builder.length() == 0 ? "" : ",").append(item);
+            }
+            result.add(builder.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,259 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stitches synthetic pictures the way PhotoSphereConstructor does on the device, adding and
+ * removing them through a SphereCompositor, and compares the sphere with a golden image.
+ *
+ * When the stitching changes on purpose, the golden image is written again from the current code
+ * by running the tests with -PupdateGolden, and checked by looking at it
+ */
+public class SphereCompositorTest {
+
+    private static final String GOLDEN_FILE = "compositor_golden.png";
+    private static final String GOLDEN_DIRECTORY =
+            "src/test/resources/com/facebook/fbu/photosphere/spherelib";
+
+    private static final int SPHERE_HEIGHT = 90;
+    private static final int PICTURE_WIDTH = 80;
+    private static final int PICTURE_HEIGHT = 60;
+    private static final int PICTURE_COUNT = 6;
+    // the picture taken out in the tests of removal
+    private static final int REMOVED_PICTURE = 2;
+
+    // a pixel differs from the golden image when a channel is further than this, which happens
+    // on the edges of pictures if the trigonometry of the JVM rounds differently
+    private static final int CHANNEL_TOLERANCE = 8;
+    private static final float MAX_DIFFERENT_PIXEL_RATIO = 0.002f;
+
+    @Test
+    public void removedPictureLeavesNoTrace() {
+        List<SphereCompositor.Layer> layers = createLayers();
+        PixelBuffer expected = newSphere();
+        SphereCompositor compositor = newCompositor(expected, SphereCompositor.DEFAULT_TILE_WIDTH);
+        for (int i = 0; i < layers.size(); i++) {
+            if (i != REMOVED_PICTURE) {
+                compositor.add(layers.get(i));
+            }
+        }
+
+        assertArrayEquals(expected.getPixels(), composeAndRemove(layers, null).getPixels());
+    }
+
+    @Test
+    public void tilesDontChangeSphere() {
+        List<SphereCompositor.Layer> layers = createLayers();
+        PixelBuffer expected = newSphere();
+        SphereStitcher stitcher = new SphereStitcher(
+                expected,
+                new NearestSampler(),
+                new FeatherBlender());
+        for (SphereCompositor.Layer layer : layers) {
+            stitcher.drawPicture(layer.load());
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            for (int tileWidth : new int[] {1, 7, SphereCompositor.DEFAULT_TILE_WIDTH, 1000}) {
+                PixelBuffer sphere = newSphere();
+                SphereCompositor compositor = new SphereCompositor(
+                        new SphereStitcher(sphere, new NearestSampler(), new FeatherBlender()),
+                        tileWidth,
+                        executorService);
+                for (SphereCompositor.Layer layer : layers) {
+                    compositor.add(layer);
+                }
+                assertArrayEquals(
+                        "tile width " + tileWidth,
+                        expected.getPixels(),
+                        sphere.getPixels());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void removingMissingPictureChangesNothing() {
+        List<SphereCompositor.Layer> layers = createLayers();
+        PixelBuffer sphere = newSphere();
+        SphereCompositor compositor = newCompositor(sphere, SphereCompositor.DEFAULT_TILE_WIDTH);
+        compositor.add(layers.get(0));
+        int[] pixels = sphere.getPixels().clone();
+
+        assertTrue(compositor.remove(layers.get(1)).isEmpty());
+        assertArrayEquals(pixels, sphere.getPixels());
+    }
+
+    @Test
+    public void matchesGoldenImage() throws IOException {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        PixelBuffer sphere;
+        try {
+            sphere = composeAndRemove(createLayers(), executorService);
+        } finally {
+            executorService.shutdown();
+        }
+
+        if (Boolean.getBoolean("updateGolden")) {
+            writePng(sphere, new File(GOLDEN_DIRECTORY, GOLDEN_FILE));
+            return;
+        }
+        PixelBuffer golden = readPng(GOLDEN_FILE);
+        assertTrue(golden.getWidth() == sphere.getWidth()
+                && golden.getHeight() == sphere.getHeight());
+        int differentPixels = 0;
+        for (int i = 0; i < golden.getPixels().length; i++) {
+            if (!isClose(golden.getPixels()[i], sphere.getPixels()[i])) {
+                differentPixels++;
+            }
+        }
+        assertTrue(
+                differentPixels + " pixels differ from " + GOLDEN_FILE,
+                differentPixels <= MAX_DIFFERENT_PIXEL_RATIO * golden.getPixels().length);
+    }
+
+    // adds every picture, then takes one out, as when the user pops a picture on the device
+    private static PixelBuffer composeAndRemove(
+            List<SphereCompositor.Layer> layers,
+            ExecutorService executorService) {
+        PixelBuffer sphere = newSphere();
+        SphereCompositor compositor = new SphereCompositor(
+                new SphereStitcher(sphere, new NearestSampler(), new FeatherBlender()),
+                SphereCompositor.DEFAULT_TILE_WIDTH,
+                executorService);
+        for (SphereCompositor.Layer layer : layers) {
+            compositor.add(layer);
+        }
+        compositor.remove(layers.get(REMOVED_PICTURE));
+        return sphere;
+    }
+
+    private static PixelBuffer newSphere() {
+        return new PixelBuffer(2 * SPHERE_HEIGHT, SPHERE_HEIGHT);
+    }
+
+    private static SphereCompositor newCompositor(PixelBuffer sphere, int tileWidth) {
+        return new SphereCompositor(
+                new SphereStitcher(sphere, new NearestSampler(), new FeatherBlender()),
+                tileWidth,
+                null);
+    }
+
+    // overlapping pictures around the horizon, and one looking up, each with its own gradient
+    private static List<SphereCompositor.Layer> createLayers() {
+        List<SphereCompositor.Layer> layers = new ArrayList<SphereCompositor.Layer>();
+        for (int i = 0; i < PICTURE_COUNT; i++) {
+            double yaw = i == PICTURE_COUNT - 1 ? 0.5 : i * Math.PI / 4;
+            double pitch = i == PICTURE_COUNT - 1 ? Math.PI / 3 : 0;
+            final SpherePicture picture = new SpherePicture(
+                    createPixels(i),
+                    createRotation(yaw, pitch),
+                    2 * (float) Math.tan(Math.toRadians(30)),
+                    2 * (float) Math.tan(Math.toRadians(22.5)));
+            layers.add(new SphereCompositor.Layer() {
+                @Override
+                public SpherePicture load() {
+                    return picture;
+                }
+            });
+        }
+        return layers;
+    }
+
+    private static PixelBuffer createPixels(int index) {
+        PixelBuffer pixels = new PixelBuffer(PICTURE_WIDTH, PICTURE_HEIGHT);
+        for (int y = 0; y < PICTURE_HEIGHT; y++) {
+            for (int x = 0; x < PICTURE_WIDTH; x++) {
+                int red = (index * 40) & 0xff;
+                int green = x * 255 / PICTURE_WIDTH;
+                int blue = y * 255 / PICTURE_HEIGHT;
+                pixels.setPixel(x, y, 0xff000000 | (red << 16) | (green << 8) | blue);
+            }
+        }
+        return pixels;
+    }
+
+    // the rotation turning the camera by the yaw around the vertical axis of the sphere, x, then
+    // tilting it by the pitch
+    private static float[] createRotation(double yaw, double pitch) {
+        float cosYaw = (float) Math.cos(yaw);
+        float sinYaw = (float) Math.sin(yaw);
+        float cosPitch = (float) Math.cos(pitch);
+        float sinPitch = (float) Math.sin(pitch);
+        float[] yawRotation = {
+                1, 0, 0,
+                0, cosYaw, -sinYaw,
+                0, sinYaw, cosYaw};
+        float[] pitchRotation = {
+                cosPitch, 0, -sinPitch,
+                0, 1, 0,
+                sinPitch, 0, cosPitch};
+        float[] rotation = new float[9];
+        Mat3.multiply(yawRotation, pitchRotation, rotation);
+        return rotation;
+    }
+
+    private static boolean isClose(int first, int second) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int difference = ((first >>> shift) & 0xff) - ((second >>> shift) & 0xff);
+            if (Math.abs(difference) > CHANNEL_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private PixelBuffer readPng(String name) throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream(name);
+        assertNotNull("missing " + name + ", run the tests with -PupdateGolden", inputStream);
+        BufferedImage image;
+        try {
+            image = ImageIO.read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return new PixelBuffer(image.getRGB(0, 0, width, height, null, 0, width), width, height);
+    }
+
+    private static void writePng(PixelBuffer pixels, File file) throws IOException {
+        BufferedImage image = new BufferedImage(
+                pixels.getWidth(),
+                pixels.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(
+                0,
+                0,
+                pixels.getWidth(),
+                pixels.getHeight(),
+                pixels.getPixels(),
+                0,
+                pixels.getWidth());
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Could not create " + file.getParentFile());
+        }
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+}
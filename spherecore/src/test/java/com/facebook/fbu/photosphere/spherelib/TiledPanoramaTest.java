@@ -0,0 +1,56 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Checks the levels a package gets for the sizes of the spheres of the camera, and that its
+ * index reads back as it was written
+ */
+public class TiledPanoramaTest {
+
+    @Test
+    public void cameraSphereHasSeveralLevels() {
+        TiledPanorama panorama = TiledPanorama.forSize(2000, 1000);
+
+        assertEquals(2, panorama.getFinestLevel());
+        assertEquals(500, panorama.getLevelWidth(0));
+    }
+
+    @Test
+    public void tilesAreNoWiderThanTileSize() {
+        for (int width : new int[] {64, 512, 513, 1000, 2000, 4096, 8000}) {
+            TiledPanorama panorama = TiledPanorama.forSize(width, width / 2);
+            int[] bounds = new int[4];
+            panorama.getTileBounds(panorama.getFinestLevel(), 0, 0, bounds);
+            assertTrue("width " + width, bounds[2] - bounds[0] <= TiledPanorama.TILE_SIZE);
+        }
+    }
+
+    @Test
+    public void smallPictureHasOneLevel() {
+        assertEquals(0, TiledPanorama.forSize(400, 200).getFinestLevel());
+    }
+
+    @Test
+    public void indexReadsBack() throws IOException {
+        TiledPanorama panorama = TiledPanorama.forSize(2000, 1000);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        panorama.writeIndex(outputStream);
+
+        TiledPanorama readPanorama = TiledPanorama.readIndex(
+                new ByteArrayInputStream(outputStream.toByteArray()));
+
+        assertEquals(panorama.getWidth(), readPanorama.getWidth());
+        assertEquals(panorama.getHeight(), readPanorama.getHeight());
+        assertEquals(panorama.getFinestLevel(), readPanorama.getFinestLevel());
+    }
+}
@@ -6,33 +6,45 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
-import android.graphics.Point;
-import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A single of this class is created by a CameraView to handle the camera
+ * A single of this class is created by a CameraView to handle the camera, or the FrameSource
+ * it is given instead
  */
 public class CameraController {
 
     private static final String TAG = CameraController.class.getSimpleName();
+    private static final long KEEP_ALIVE_MS = 1000;
 
-    private Camera mCamera;
+    private FrameSource mFrameSource;
     private Context mContext;
 
     private OrientationManager mOrientationManager;
 
     private CameraView.Picture mCurrentPicture;
-    private CameraView.ReferencePoint mCurrentReferencePoint;
     private CameraView mParentCameraView;
 
     private PhotoSphereConstructor mPhotoSphereConstructor;
-    private SurfaceTexture msurfaceTexture;
-    
+
     private boolean mBusy = false;
 
+    // decodes the pictures taken, one at a time, off the main thread, whose thread ends when it
+    // has nothing left to decode
+    private final ThreadPoolExecutor mDecodeExecutor = new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_MS,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     public static CameraController getNewInstance(
             Context context,
             OrientationManager orientationManager,
@@ -40,12 +52,11 @@ public class CameraController {
             PhotoSphereConstructor photoSphereConstructor) {
         CameraController cameraController = null;
         try {
-            Camera camera = Camera.open();
             cameraController = new CameraController(context,
                     orientationManager,
                     parentCameraView,
                     photoSphereConstructor,
-                    camera);
+                    new CameraFrameSource());
         } catch (Exception e) {
             Log.e(TAG, "Unable to open camera", e);
         }
@@ -53,58 +64,35 @@ public class CameraController {
         return cameraController;
     }
 
+    public static CameraController getNewInstance(
+            Context context,
+            OrientationManager orientationManager,
+            CameraView parentCameraView,
+            PhotoSphereConstructor photoSphereConstructor,
+            FrameSource frameSource) {
+        return new CameraController(context,
+                orientationManager,
+                parentCameraView,
+                photoSphereConstructor,
+                frameSource);
+    }
+
     private CameraController(Context context,
                              OrientationManager orientationManager,
                              CameraView parentCameraView,
                              PhotoSphereConstructor photoSphereConstructor,
-                             Camera camera) {
+                             FrameSource frameSource) {
 
         mParentCameraView = parentCameraView;
         mContext = context;
         mPhotoSphereConstructor = photoSphereConstructor;
-        mCamera = camera;
-        msurfaceTexture = new SurfaceTexture(MODE_PRIVATE);
-        List<Camera.Size> sizeList = mCamera.getParameters().getSupportedPictureSizes();
-        Point chosenSize = new Point(-1, -1);
-        // we choose the camera size to be the minimum size with width at least 1000
-        // I point out here that width > height, because the camera uses landscape as reference
-        for (Camera.Size size : sizeList) {
-            if (size.width > 1000 && (size.width < chosenSize.x || chosenSize.x == -1)) {
-                chosenSize.set(size.width, size.height);
-            }
-        }
-
-        // if no size above 1000 is available we don't change it and go with the default,
-        // which is the maximum one
-        if (chosenSize.x != -1) {
-            Camera.Parameters params = mCamera.getParameters();
-            params.setPictureSize(chosenSize.x, chosenSize.y);
-            mCamera.setParameters(params);
-        }
-        
+        mFrameSource = frameSource;
         mOrientationManager = orientationManager;
-
+        mDecodeExecutor.allowCoreThreadTimeOut(true);
     }
 
     public void close() {
-        mCamera.stopPreview();
-        mCamera.release();
-        try {
-            mCamera.stopPreview();
-            mCamera.release();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-    
-    
-   private void previewCamera(){
-        try {
-            mCamera.setPreviewTexture(msurfaceTexture);
-            mCamera.startPreview();
-       } catch (IOException e) {
-            e.printStackTrace();
-        }
+        mFrameSource.close();
     }
 
     public CameraView.Picture takePicture(
@@ -115,49 +103,97 @@ public class CameraController {
         }
         mBusy = true;
         mCurrentPicture = mParentCameraView.getNewPicture();
-        mCurrentReferencePoint = referencePoint;
+        // set at once, as the picture can be popped before it is decoded
+        mCurrentPicture.setReferencePoint(referencePoint);
         mCurrentPicture.setRotationMatrix(mOrientationManager.getPositionRotMatrix());
-        previewCamera();
-        mCamera.takePicture(null, null, new Camera.PictureCallback() {
+        mFrameSource.takePicture(new FrameSource.Callback() {
             @Override
-            public void onPictureTaken(byte[] data, Camera camera) {
-                previewCamera();
-                mCamera.takePicture(null, null, new Camera.PictureCallback() {
+            public void onFrameTaken(final byte[] data) {
+                final CameraView.Picture picture = mCurrentPicture;
+                final int imageRotation = mFrameSource.getImageRotation();
+                final float horizontalViewAngle = mFrameSource.getHorizontalViewAngle();
+                final float verticalViewAngle = mFrameSource.getVerticalViewAngle();
+                final boolean isRecordingSession = mParentCameraView.isRecordingSession();
+                final float overlayScale = mParentCameraView.getOverlayScale();
+                mDecodeExecutor.execute(new Runnable() {
                     @Override
-                    public void onPictureTaken(byte[] data, Camera camera) {
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-
-                        Matrix matrix = new Matrix();
-                        matrix.postRotate(90);
-
-                        mCurrentPicture.setBitmap(Bitmap.createBitmap(
-                                bitmap,
-                                0,
-                                0,
-                                bitmap.getWidth(),
-                                bitmap.getHeight(),
-                                matrix,
-                                false));
-                        mCurrentPicture.setVertices(mCamera.getParameters());
-                        mCurrentPicture.setReferencePoint(mCurrentReferencePoint);
-                        mCurrentPicture.setIsSaved(true);
-                        if (mPhotoSphereConstructor != null) {
-                            mPhotoSphereConstructor.drawPicture();
-                        }
-
-                        System.gc();
+                    public void run() {
+                        decodePicture(
+                                picture,
+                                data,
+                                imageRotation,
+                                horizontalViewAngle,
+                                verticalViewAngle,
+                                isRecordingSession,
+                                overlayScale);
+                        // the picture is only drawn once it is saved, on the main thread
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onPictureDecoded(picture);
+                            }
+                        });
                     }
                 });
-
-                mBusy = false;
             }
         });
 
         return mCurrentPicture;
     }
 
-    public Camera.Parameters getCameraParams() {
-        return mCamera.getParameters();
+    // Sets the bitmap of the picture, turned from the JPEG the camera took, and the overlay
+    // bitmap drawn by the CameraView, so that the main thread only has to draw them
+    private void decodePicture(
+            CameraView.Picture picture,
+            byte[] data,
+            int imageRotation,
+            float horizontalViewAngle,
+            float verticalViewAngle,
+            boolean isRecordingSession,
+            float overlayScale) {
+        ConstructionProfiler.Section section = mPhotoSphereConstructor != null
+                ? mPhotoSphereConstructor.getProfiler().begin(ConstructionStage.DECODE)
+                : null;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+
+        Matrix matrix = new Matrix();
+        matrix.postRotate(imageRotation);
+        if (isRecordingSession) {
+            picture.setJpegData(data, imageRotation);
+        }
+
+        picture.setBitmap(Bitmap.createBitmap(
+                bitmap,
+                0,
+                0,
+                bitmap.getWidth(),
+                bitmap.getHeight(),
+                matrix,
+                false));
+        picture.setVertices(horizontalViewAngle, verticalViewAngle);
+        picture.createOverlayBitmap(overlayScale);
+        if (section != null) {
+            section.end(bitmap.getWidth() * bitmap.getHeight());
+        }
+    }
+
+    private void onPictureDecoded(CameraView.Picture picture) {
+        picture.setIsSaved(true);
+        if (mPhotoSphereConstructor != null) {
+            mPhotoSphereConstructor.drawPicture(picture);
+        }
+
+        mBusy = false;
+        System.gc();
+    }
+
+    // the view angles of the camera in degrees, in its landscape referential
+    public float getHorizontalViewAngle() {
+        return mFrameSource.getHorizontalViewAngle();
+    }
+
+    public float getVerticalViewAngle() {
+        return mFrameSource.getVerticalViewAngle();
     }
 
 }
@@ -0,0 +1,112 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Point;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The FrameSource of the device, its back camera, previewed into a texture nobody draws since
+ * the camera can only take pictures while previewing
+ */
+public class CameraFrameSource implements FrameSource {
+
+    private static final String TAG = CameraFrameSource.class.getSimpleName();
+
+    // the camera takes landscape pictures, which are turned to portrait
+    private static final int IMAGE_ROTATION = 90;
+
+    private final Camera mCamera;
+    private final SurfaceTexture mSurfaceTexture;
+    private final float mHorizontalViewAngle;
+    private final float mVerticalViewAngle;
+
+    // opens the camera, throwing a RuntimeException if it is unavailable
+    public CameraFrameSource() {
+        mCamera = Camera.open();
+        if (mCamera == null) {
+            throw new RuntimeException("No back camera");
+        }
+        mSurfaceTexture = new SurfaceTexture(0);
+
+        Camera.Parameters params = mCamera.getParameters();
+        List<Camera.Size> sizeList = params.getSupportedPictureSizes();
+        Point chosenSize = new Point(-1, -1);
+        // we choose the camera size to be the minimum size with width at least 1000
+        // I point out here that width > height, because the camera uses landscape as reference
+        for (Camera.Size size : sizeList) {
+            if (size.width > 1000 && (size.width < chosenSize.x || chosenSize.x == -1)) {
+                chosenSize.set(size.width, size.height);
+            }
+        }
+
+        // if no size above 1000 is available we don't change it and go with the default,
+        // which is the maximum one
+        if (chosenSize.x != -1) {
+            params.setPictureSize(chosenSize.x, chosenSize.y);
+            mCamera.setParameters(params);
+        }
+
+        mHorizontalViewAngle = params.getHorizontalViewAngle();
+        mVerticalViewAngle = params.getVerticalViewAngle();
+    }
+
+    private void previewCamera() {
+        try {
+            mCamera.setPreviewTexture(mSurfaceTexture);
+            mCamera.startPreview();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start the preview", e);
+        }
+    }
+
+    // the callback is called on the main thread
+    @Override
+    public void takePicture(final Callback callback) {
+        previewCamera();
+        // the first picture after the preview starts isn't exposed yet, so a second one is taken
+        mCamera.takePicture(null, null, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                previewCamera();
+                mCamera.takePicture(null, null, new Camera.PictureCallback() {
+                    @Override
+                    public void onPictureTaken(byte[] data, Camera camera) {
+                        callback.onFrameTaken(data);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public float getHorizontalViewAngle() {
+        return mHorizontalViewAngle;
+    }
+
+    @Override
+    public float getVerticalViewAngle() {
+        return mVerticalViewAngle;
+    }
+
+    @Override
+    public int getImageRotation() {
+        return IMAGE_ROTATION;
+    }
+
+    @Override
+    public void close() {
+        try {
+            mCamera.stopPreview();
+            mCamera.release();
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to release the camera", e);
+        }
+        mSurfaceTexture.release();
+    }
+}
@@ -11,13 +11,15 @@ import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.drawable.Drawable;
-import android.hardware.Camera;
 import android.os.Vibrator;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Gallery;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -44,8 +46,30 @@ public class CameraView extends View {
     private static final float ZOOM_FACTOR = 0.35f;
     private static final double MAXIMUM_ALLOWED_DEVICE_ROTATION = Math.PI / 20;
 
+    // view angles, in degrees, of the pictures when the camera doesn't report them
+    private static final float DEFAULT_WIDTH_ANGLE = 40f;
+    private static final float DEFAULT_HEIGHT_ANGLE = 60f;
+
+    // the FeatherBlender fades a picture over a sixth of its width on each side, so neighbours
+    // overlap by a bit more than that
+    private static final float CAPTURE_OVERLAP = 0.2f;
+
+    // latitude bands of the index of reference points
+    private static final int REFERENCE_INDEX_ROWS = 8;
+
     private final List<Picture> mPictures = new ArrayList<Picture>();
     private final List<ReferencePoint> mReferencePoints = new ArrayList<ReferencePoint>();
+
+    // the reference points whose picture isn't taken yet, and the ones of them in view, which
+    // are the only ones checked and drawn each frame
+    private final SphereIndex<ReferencePoint> mPendingReferencePoints =
+            new SphereIndex<ReferencePoint>(REFERENCE_INDEX_ROWS);
+    private List<ReferencePoint> mVisibleReferencePoints = new ArrayList<ReferencePoint>();
+    // the points of the previous frame, swapped with mVisibleReferencePoints on each frame
+    private List<ReferencePoint> mPreviousReferencePoints = new ArrayList<ReferencePoint>();
+    // counts the frames, to tell the points of the current one
+    private int mFrameNumber;
+    private final float[] mViewAxis = new float[3];
     private final List<MergingRectangle> mMergingRectangles = new ArrayList<MergingRectangle>();
 
     private final Vibrator mVibrator = (Vibrator) getContext().getSystemService(Context.VIBRATOR_SERVICE);
@@ -56,10 +80,26 @@ public class CameraView extends View {
 
     private float mViewDiameter;
 
+    // when set, the JPEG of each picture is kept so that the session can be written
+    private boolean mIsRecordingSession = false;
+
+    // rotation that compensates for the position of the device, read once per frame, and a
+    // point rotated by it
+    private final float[] mCorrectionRotation = new float[9];
+    private final float[] mCorrectedPoint = new float[3];
+
     private Paint mPaint = new Paint();
+
+    // the paints the pictures are drawn with on the overlay, first behind what is there and then
+    // blended over it
+    private final Paint mOverlayBehindPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mOverlayBlendPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
     
     private boolean mIsPaused;
 
+    private final FrameMetrics mFrameMetrics = new FrameMetrics();
+    private FrameMetricsOverlay mFrameMetricsOverlay;
+
     private long mAlignmentAnimationOldTime;
     private int mRightAlpha;
     private int mLeftAlpha;
@@ -76,16 +116,42 @@ public class CameraView extends View {
     private int mFrameBottom;
 
     public CameraView(Context context) {
+        this(context, null, null);
+    }
+
+    // takes the pictures from frameSource and the orientation from orientationSource, so that a
+    // recorded capture can be replayed, or from the camera and the sensors when they are null
+    public CameraView(
+            Context context,
+            FrameSource frameSource,
+            OrientationSource orientationSource) {
         super(context);
 
-        mOrientationManager = new OrientationManager(context);
-        mCameraController = CameraController.getNewInstance(
-                context,
-                mOrientationManager,
-                this,
-                mPhotoSphereConstructor);
+        mOrientationManager = orientationSource != null
+                ? new OrientationManager(orientationSource)
+                : new OrientationManager(context);
+        // the photosphere is constructed as pictures are taken
+        mPhotoSphereConstructor =
+                PhotoSphereConstructor.getInstance(CameraView.this, DEFAULT_SPHERE_HEIGHT);
+        if (frameSource != null) {
+            mCameraController = CameraController.getNewInstance(
+                    context,
+                    mOrientationManager,
+                    this,
+                    mPhotoSphereConstructor,
+                    frameSource);
+        } else {
+            mCameraController = CameraController.getNewInstance(
+                    context,
+                    mOrientationManager,
+                    this,
+                    mPhotoSphereConstructor);
+        }
 
         mPaint.setStrokeWidth(getResources().getDimension(R.dimen.stroke_width));
+        mOverlayBehindPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
+        mOverlayBlendPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER));
+        mOverlayBlendPaint.setAlpha(255 / 2);
 
         // sets the default layout params
         this.setLayoutParams(new Gallery.LayoutParams(
@@ -95,44 +161,16 @@ public class CameraView extends View {
         this.setKeepScreenOn(true);
 
 
-        // creates 12 equator reference points
-        for (int k = 0; k < 12; k++) {
-            mReferencePoints.add(new ReferencePoint(new float[]{0,
-                    (float) Math.cos(2 * Math.PI * k / 12),
-                    (float) Math.sin(2 * Math.PI * k / 12)},
-                    PointType.EQUATOR));
-        }
-
-        // creates north and south meridian reference points (9 of each)
-        for (int k = 0; k < 9; k++) {
-            float angle = (float) Math.PI / 4;
-            float[] beforeRot = new float[]{(float) Math.sin(angle),
-                    (float) (Math.cos(2 * Math.PI * (k / 9.0f)) * Math.cos(angle)),
-                    (float) (Math.sin(2 * Math.PI * (k / 9.0f)) * Math.cos(angle))};
-            mReferencePoints.add(new ReferencePoint(beforeRot, PointType.NORTH_TROPIC));
-        }
-        for (int k = 0; k < 9; k++) {
-            float angle = (float) -Math.PI / 4;
-            float[] beforeRot = new float[]{(float) Math.sin(angle),
-                    (float) (Math.cos(2 * Math.PI * (k / 9.0f)) * Math.cos(angle)),
-                    (float) (Math.sin(2 * Math.PI * (k / 9.0f)) * Math.cos(angle))};
-            mReferencePoints.add(new ReferencePoint(beforeRot, PointType.SOUTH_TROPIC));
-        }
-
-        // creates the south and north pole reference points
-        mReferencePoints.add(new ReferencePoint(new float[]{1, 0, 0}, PointType.NORTH_POLE));
-        mReferencePoints.add(new ReferencePoint(new float[]{-1, 0, 0}, PointType.SOUTH_POLE));
-
-        // creates 12 merging rectangles at the equator
-        // these are not useful for now, but will be used to correct picture locations later
-        for (int k = 0; k < 12; k++) {
-            double angle = Math.PI / 12 + 2 * Math.PI * k / 12;
-            mMergingRectangles.add(new MergingRectangle(new float[][]{
-                    {1, 0, 0},
-                    {0, (float) Math.cos(angle), -(float) Math.sin(angle)},
-                    {0, (float) Math.sin(angle), (float) Math.cos(angle)}
-            }, 0.13f, 1f));
+        // creates the reference points and merging rectangles for the view angles of the camera.
+        // Pictures are taken in portrait, and the sensor of the camera is landscape, so the
+        // vertical angle of the camera is along the width of the pictures
+        float widthAngle = DEFAULT_WIDTH_ANGLE;
+        float heightAngle = DEFAULT_HEIGHT_ANGLE;
+        if (mCameraController != null) {
+            widthAngle = mCameraController.getVerticalViewAngle();
+            heightAngle = mCameraController.getHorizontalViewAngle();
         }
+        setCapturePattern(new CapturePattern(widthAngle, heightAngle, CAPTURE_OVERLAP));
 
         mPictureFrame = getResources().getDrawable(R.drawable.picture_frame);
         mReferencePointDrawable = getResources().getDrawable(R.drawable.camera_view_dot);
@@ -159,9 +197,9 @@ public class CameraView extends View {
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-        float abstractWidth = (float) Math.tan((mCameraController.getCameraParams().getVerticalViewAngle()
+        float abstractWidth = (float) Math.tan((mCameraController.getVerticalViewAngle()
                 * Math.PI / 180 / 2));
-        float abstractHeight = (float) Math.tan((mCameraController.getCameraParams().getHorizontalViewAngle()
+        float abstractHeight = (float) Math.tan((mCameraController.getHorizontalViewAngle()
                 * Math.PI / 180 / 2));
         mFrameLeft = (int) (getWidth() / 2 - abstractWidth * ZOOM_FACTOR * mViewDiameter);
         mFrameRight = (int) (getWidth() / 2 + abstractWidth * ZOOM_FACTOR * mViewDiameter);
@@ -189,6 +227,10 @@ public class CameraView extends View {
 
         mOrientationManager.stop();
         mCameraController.close();
+        // the constructor finishes what it was asked for, and is still read by the upload
+        if (mPhotoSphereConstructor != null) {
+            mPhotoSphereConstructor.release();
+        }
 
         System.gc();
     }
@@ -218,6 +260,7 @@ public class CameraView extends View {
                 return;
             }
             postOnAnimation(mSetFrame);
+            mFrameMetrics.onAnimationFrame();
             CameraView.this.invalidate();
             if (areAllPicturesTaken()) {
                 onDoneTakingPhotosphere();
@@ -228,10 +271,13 @@ public class CameraView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        long frameStart = mFrameMetrics.beginFrame();
 
         // updates the diameter, in case there were changes
         mViewDiameter = (float) Math.sqrt(getWidth() * getWidth() + getHeight() * getHeight());
 
+        mOrientationManager.getCorrectionRotation(mCorrectionRotation);
+
         // sets the background to transparent
         canvas.drawColor(0, PorterDuff.Mode.CLEAR);
 
@@ -241,10 +287,35 @@ public class CameraView extends View {
             }
         }
 
-        for (ReferencePoint point : mReferencePoints) {
+        // a point is on the screen when its projection is closer to the center than half of the
+        // diagonal, plus the radius it is drawn with. The device looks at the direction rotated
+        // onto {0, 0, 1}, the last column of the correction rotation
+        float maxTangent = (mViewDiameter / 2
+                + 2 * getResources().getDimension(R.dimen.inner_circle_radius))
+                / (ZOOM_FACTOR * mViewDiameter);
+        Vec3.set(mCorrectionRotation[2], mCorrectionRotation[5], mCorrectionRotation[8], mViewAxis);
+        List<ReferencePoint> previousReferencePoints = mVisibleReferencePoints;
+        mVisibleReferencePoints = mPreviousReferencePoints;
+        mPreviousReferencePoints = previousReferencePoints;
+        mPendingReferencePoints.query(
+                mViewAxis,
+                (float) (1 / Math.sqrt(1 + maxTangent * maxTangent)),
+                mVisibleReferencePoints);
+        mFrameNumber++;
+        for (int i = 0; i < mVisibleReferencePoints.size(); i++) {
+            ReferencePoint point = mVisibleReferencePoints.get(i);
+            point.mLastVisibleFrame = mFrameNumber;
             point.checkIn();
             point.drawPoint(canvas);
         }
+        // a point that left the cone isn't aimed at anymore, so its hover starts over when it
+        // comes back
+        for (int i = 0; i < mPreviousReferencePoints.size(); i++) {
+            ReferencePoint point = mPreviousReferencePoints.get(i);
+            if (point.mLastVisibleFrame != mFrameNumber) {
+                point.resetHover();
+            }
+        }
 
         mPaint.setARGB(50, 255, 255, 255);
         mPaint.setStyle(Paint.Style.STROKE);
@@ -258,6 +329,11 @@ public class CameraView extends View {
 
         // sets the background color to a light grey
         canvas.drawColor(getResources().getColor(R.color.light_grey), PorterDuff.Mode.DST_OVER);
+
+        mFrameMetrics.endFrame(frameStart);
+        if (mFrameMetricsOverlay != null) {
+            mFrameMetricsOverlay.draw(canvas);
+        }
     }
 
     // these are the reference point (circles) on the screen that tell the user where to take
@@ -269,9 +345,16 @@ public class CameraView extends View {
         private boolean mIsPictureTaken; // whether the picture associated to this point has been
         private int mFramesInside; // counts the number of frames the user has been aiming this point
         private long mInitHoverTime;
+        // the last frame the point was in the cone of the view
+        private int mLastVisibleFrame;
 
         private PointType mType;
 
+        // where the point is on the screen relative to its center, before the zoom, set by
+        // checkIn when the point is in front of the device
+        private final float[] mProjection = new float[2];
+        private boolean mIsInFront;
+
         public ReferencePoint(float[] coordinates, PointType type) {
             mCoordinates = coordinates;
             mType = type;
@@ -280,23 +363,24 @@ public class CameraView extends View {
         // every time a point is drawn, this checkIn method is called to tell whether the user
         // is aiming at this point, and if so for how long
         public int checkIn() {
+            mIsInFront = false;
             if (mIsPictureTaken) {
                 return 0;
             }
 
-            float[][] correctionMatrix = mOrientationManager.getCorrectionRotMatrix();
-            if (!isFrontal(correctionMatrix)) {
+            Mat3.transform(mCoordinates, mCorrectionRotation, mCorrectedPoint);
+            if (mCorrectedPoint[2] <= 0) {
                 return 0;
             }
-
-            float[] correctedLocation = MatrixUtils.multiply(mCoordinates, correctionMatrix);
-            float[] p = project(correctedLocation);
-            p[0] *= ZOOM_FACTOR * mViewDiameter;
-            p[1] *= ZOOM_FACTOR * mViewDiameter;
+            mIsInFront = true;
+            mProjection[0] = mCorrectedPoint[0] / mCorrectedPoint[2];
+            mProjection[1] = mCorrectedPoint[1] / mCorrectedPoint[2];
+            float distance = (float) Math.hypot(mProjection[0], mProjection[1])
+                    * ZOOM_FACTOR * mViewDiameter;
 
             // if the aim is close enough to our point, we increment mFramesInside,
             // otherwise we reset it
-            if (MatrixUtils.norm(p) < getResources().getDimension(R.dimen.dist_to_trigger)
+            if (distance < getResources().getDimension(R.dimen.dist_to_trigger)
                     && (getCurrentDeviceAlignment() == DeviceAlignment.CORRECT
                     || mType == PointType.SOUTH_POLE
                     || mType == PointType.NORTH_POLE)) {
@@ -306,11 +390,16 @@ public class CameraView extends View {
                 mFramesInside++;
 
                 // after 30 frames aiming the point, we take a picture
+                // the controller takes no picture while it decodes the last one, and the point
+                // is tried again on the next frame
                 if (System.currentTimeMillis() > mInitHoverTime + HOVER_TIME_TO_CAPTURE) {
-                    mIsPictureTaken = true;
-                    Log.i("info_", "taking picutre from " + Float.toString(mCoordinates[2]));
-                    mVibrator.vibrate(20);
-                    mPictures.add(mCameraController.takePicture("muito showz man", this));
+                    Picture picture = mCameraController.takePicture("muito showz man", this);
+                    if (picture != null) {
+                        setIsPictureTaken(true);
+                        Log.i("info_", "taking picutre from " + Float.toString(mCoordinates[2]));
+                        mVibrator.vibrate(20);
+                        mPictures.add(picture);
+                    }
                 }
 
             } else {
@@ -320,21 +409,23 @@ public class CameraView extends View {
             return mFramesInside;
         }
 
+        // forgets how long the point was aimed at
+        private void resetHover() {
+            mFramesInside = 0;
+            mInitHoverTime = 0;
+            mIsInFront = false;
+        }
 
-        public void drawPoint(Canvas canvas) {
-            if (mIsPictureTaken) {
-                return;
-            }
 
-            float[][] correctionMatrix = mOrientationManager.getCorrectionRotMatrix();
-            if (!isFrontal(correctionMatrix)) {
+        // draws the point where the last checkIn found it
+        public void drawPoint(Canvas canvas) {
+            if (mIsPictureTaken || !mIsInFront) {
                 return;
             }
 
             mPaint.setStyle(Paint.Style.FILL);
 
-            float[] correctedLocation = MatrixUtils.multiply(mCoordinates, correctionMatrix);
-            float[] p = project(correctedLocation);
+            float[] p = mProjection;
             mPaint.setAlpha(255);
             mPaint.setColor(getResources().getColor(R.color.facebook_blue));
             float circleXCoord = p[0] * ZOOM_FACTOR * mViewDiameter + getWidth() / 2;
@@ -361,17 +452,13 @@ public class CameraView extends View {
             mReferencePointFadeDrawable.draw(canvas);
         }
 
-        private float[] project(float[] point) {
-            return new float[]{point[0] / point[2], point[1] / point[2]};
-        }
-
-        private boolean isFrontal(float[][] correctionMatrix) {
-            float[] correctLocation = MatrixUtils.multiply(mCoordinates, correctionMatrix);
-            return correctLocation[2] > 0;
-        }
-
         public void setIsPictureTaken(boolean isPictureTaken) {
             mIsPictureTaken = isPictureTaken;
+            if (isPictureTaken) {
+                mPendingReferencePoints.remove(this);
+            } else {
+                mPendingReferencePoints.add(mCoordinates, this);
+            }
         }
     }
 
@@ -497,9 +584,20 @@ public class CameraView extends View {
         private boolean mIsSaved = false;
 
         private float mAbstractWidth, mAbstractHeight;
+        private float mHorizontalViewAngle, mVerticalViewAngle;
         private float[][] mVertices;
 
+        // the data the camera returned, only kept when recording the session
+        private byte[] mJpegData;
+        private int mImageRotation;
+
         private Matrix mMatrix = new Matrix();
+        private final float[][] mRotatedVertices = new float[4][3];
+        private final float[] mQuad = new float[8];
+        private final float[] mSourceCorners = new float[8];
+
+        // the bitmap at the size it is drawn on the overlay, see createOverlayBitmap
+        private Bitmap mOverlayBitmap;
 
         private ReferencePoint mReferencePoint;
 
@@ -507,18 +605,19 @@ public class CameraView extends View {
             return mVertices;
         }
 
-        public void setVertices(Camera.Parameters cameraParameters) {
+        // the view angles of the camera in degrees, in its landscape referential
+        public void setVertices(float horizontalViewAngle, float verticalViewAngle) {
             if (mBitmap == null || mRotationMatrix == null) {
                 throw new RuntimeException("Bitmap and rotation matrix must be both set before" +
                         " setting the vertices");
             }
 
             float[][] vertices = new float[4][3];
+            mHorizontalViewAngle = horizontalViewAngle;
+            mVerticalViewAngle = verticalViewAngle;
             // Horizontal means vertical for the camera, because portrait mode is its referential
-            mAbstractWidth = 2 * (float) Math.tan((cameraParameters.getVerticalViewAngle()
-                    * Math.PI / 180 / 2));
-            mAbstractHeight = 2 * (float) Math.tan((cameraParameters.getHorizontalViewAngle()
-                    * Math.PI / 180 / 2));
+            mAbstractWidth = 2 * (float) Math.tan((verticalViewAngle * Math.PI / 180 / 2));
+            mAbstractHeight = 2 * (float) Math.tan((horizontalViewAngle * Math.PI / 180 / 2));
 
             vertices[0] = new float[]{-mAbstractWidth / 2, -mAbstractHeight / 2, 1};
             vertices[1] = new float[]{mAbstractWidth / 2, -mAbstractHeight / 2, 1};
@@ -554,6 +653,7 @@ public class CameraView extends View {
 
         public void setBitmap(Bitmap bitmap) {
             mBitmap = bitmap;
+            mOverlayBitmap = null;
             Log.i("info_", "bitmap set");
         }
 
@@ -577,93 +677,99 @@ public class CameraView extends View {
             return mAbstractHeight;
         }
 
+        public float getHorizontalViewAngle() {
+            return mHorizontalViewAngle;
+        }
+
+        public float getVerticalViewAngle() {
+            return mVerticalViewAngle;
+        }
+
+        public byte[] getJpegData() {
+            return mJpegData;
+        }
+
+        public int getImageRotation() {
+            return mImageRotation;
+        }
+
+        // imageRotation is the clockwise rotation, in degrees, that turns the JPEG into the bitmap
+        public void setJpegData(byte[] jpegData, int imageRotation) {
+            mJpegData = jpegData;
+            mImageRotation = imageRotation;
+        }
+
         public void draw(Canvas canvas) {
-            float[][] currentRotation = mOrientationManager.getCorrectionRotMatrix();
+            if (!isFrontal()) {
+                return;
+            }
+
             float[][] vertices = getVertices();
-            float[][] rotatedVertices = new float[4][3];
+            float[][] rotatedVertices = mRotatedVertices;
 
             // rotates the vertices to the device referential
             for (int i = 0; i < 4; i++) {
-                rotatedVertices[i] = MatrixUtils.multiply(vertices[i], currentRotation);
-            }
-
-            // projects the vertices onto z = 1 and scales them onto the view size
-            float[] p0 = project(rotatedVertices[0]);
-            float[] p1 = project(rotatedVertices[1]);
-            float[] p2 = project(rotatedVertices[2]);
-            float[] p3 = project(rotatedVertices[3]);
-            float[] quad = new float[]{
-                    p0[0] * ZOOM_FACTOR * mViewDiameter, p0[1] * ZOOM_FACTOR * mViewDiameter,
-                    p1[0] * ZOOM_FACTOR * mViewDiameter, p1[1] * ZOOM_FACTOR * mViewDiameter,
-                    p2[0] * ZOOM_FACTOR * mViewDiameter, p2[1] * ZOOM_FACTOR * mViewDiameter,
-                    p3[0] * ZOOM_FACTOR * mViewDiameter, p3[1] * ZOOM_FACTOR * mViewDiameter,
-            };
-
-
-            // this solves the bug of the disappearing images
-            if (rotatedVertices[0][2] < 0) {
-                for (int i = 0; i < 8; i++) {
-                    quad = new float[]{
-                            p3[0] * ZOOM_FACTOR * mViewDiameter, p3[1] * ZOOM_FACTOR * mViewDiameter,
-                            p2[0] * ZOOM_FACTOR * mViewDiameter, p2[1] * ZOOM_FACTOR * mViewDiameter,
-                            p1[0] * ZOOM_FACTOR * mViewDiameter, p1[1] * ZOOM_FACTOR * mViewDiameter,
-                            p0[0] * ZOOM_FACTOR * mViewDiameter, p0[1] * ZOOM_FACTOR * mViewDiameter,
-                    };
-                }
+                Mat3.transform(vertices[i], mCorrectionRotation, rotatedVertices[i]);
             }
 
-            if (Math.random() < 1.0 / 60) {
-                Log.i("info__", Float.toString(rotatedVertices[0][0]) + ", " +
-                        Float.toString(rotatedVertices[0][1]) + ", " +
-                        Float.toString(rotatedVertices[0][2]));
+            // projects the vertices onto z = 1 and scales them onto the view size. This solves
+            // the bug of the disappearing images: when the first vertex is behind, the quad is
+            // taken in the reverse order and the bitmap turned around below
+            boolean isReversed = rotatedVertices[0][2] < 0;
+            float scale = getOverlayScale();
+            for (int i = 0; i < 4; i++) {
+                float[] vertex = rotatedVertices[isReversed ? 3 - i : i];
+                mQuad[2 * i] = vertex[0] / vertex[2] * scale;
+                mQuad[2 * i + 1] = vertex[1] / vertex[2] * scale;
             }
 
             // draws the quadrangular bitmap onto the quadrangle that the rotated vertices form
-            if (isFrontal(currentRotation)) {// we reuse the same Matrix object to draw every rectangle
-                mMatrix.setPolyToPoly(
-                        new float[]{
-                                0, 0,
-                                getBitmap().getWidth(), 0,
-                                0, getBitmap().getHeight(),
-                                getBitmap().getWidth(), getBitmap().getHeight()
-                        },
-                        0,
-                        quad,
-                        0,
-                        4);
-                mMatrix.postTranslate(getWidth() / 2, getHeight() / 2);
-
-                if (rotatedVertices[0][2] < 0) {
-                    mMatrix.preTranslate(getBitmap().getWidth() / 2, getBitmap().getHeight() / 2);
-                    mMatrix.preScale(-1, -1);
-                    mMatrix.preTranslate(-getBitmap().getWidth() / 2, -getBitmap().getHeight() / 2);
-                }
-
-                Paint paint = new Paint();
+            Bitmap overlay = mOverlayBitmap != null ? mOverlayBitmap : mBitmap;
+            int width = overlay.getWidth();
+            int height = overlay.getHeight();
+            mSourceCorners[2] = width;
+            mSourceCorners[5] = height;
+            mSourceCorners[6] = width;
+            mSourceCorners[7] = height;
+            // we reuse the same Matrix object to draw every rectangle
+            mMatrix.setPolyToPoly(mSourceCorners, 0, mQuad, 0, 4);
+            mMatrix.postTranslate(getWidth() / 2, getHeight() / 2);
+
+            if (isReversed) {
+                mMatrix.preTranslate(width / 2, height / 2);
+                mMatrix.preScale(-1, -1);
+                mMatrix.preTranslate(-width / 2, -height / 2);
+            }
 
-                // we first draw our picture behind everything that has been drawn
-                paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
-                canvas.drawBitmap(getBitmap(), mMatrix, paint);
+            // we first draw our picture behind everything that has been drawn
+            canvas.drawBitmap(overlay, mMatrix, mOverlayBehindPaint);
 
-                // and then draw in front, with .5 alpha, to get a blend at the intersections
-                paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER));
-                paint.setAlpha(255 / 2);
-                canvas.drawBitmap(getBitmap(), mMatrix, paint);
-            }
+            // and then draw in front, with .5 alpha, to get a blend at the intersections
+            canvas.drawBitmap(overlay, mMatrix, mOverlayBlendPaint);
+            mFrameMetrics.addQuads(1);
         }
 
-        private boolean isFrontal(float[][] currentRotation) {
-            float[] vec = new float[]{0, 0, 1};
-            vec = MatrixUtils.multiply(vec, getRotationMatrix());
-            vec = MatrixUtils.multiply(vec, currentRotation);
-            return vec[2] > 0;
+        /**
+         * Scales the bitmap down to about the size the picture has on the screen, so that the
+         * overlay doesn't warp the whole picture every frame. It is called once the bitmap and
+         * the vertices are set, off the main thread, before the picture is saved. Scaling up is
+         * never needed
+         *
+         * @param scale - the projection of the view, see getOverlayScale
+         */
+        public void createOverlayBitmap(float scale) {
+            int width = Math.min(mBitmap.getWidth(), (int) Math.ceil(mAbstractWidth * scale));
+            int height = Math.min(mBitmap.getHeight(), (int) Math.ceil(mAbstractHeight * scale));
+            mOverlayBitmap = width == mBitmap.getWidth() && height == mBitmap.getHeight()
+                    ? mBitmap
+                    : Bitmap.createScaledBitmap(mBitmap, width, height, true);
         }
 
-
-        private float[] project(float[] point) {
-            return new float[]{point[0] / point[2], point[1] / point[2]};
+        private boolean isFrontal() {
+            // the center of the picture, {0, 0, 1} rotated, is the last row of its rotation
+            Mat3.transform(getRotationMatrix()[2], mCorrectionRotation, mCorrectedPoint);
+            return mCorrectedPoint[2] > 0;
         }
-
     }
 
 
@@ -671,14 +777,62 @@ public class CameraView extends View {
         return mPictures;
     }
 
+    public void setIsRecordingSession(boolean isRecordingSession) {
+        mIsRecordingSession = isRecordingSession;
+    }
+
+    public boolean isRecordingSession() {
+        return mIsRecordingSession;
+    }
+
+    // draw times and frame intervals of the capture screen, each picture drawn being a quad
+    public FrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    public void setIsFrameMetricsOverlayShown(boolean isShown) {
+        mFrameMetricsOverlay = isShown ? new FrameMetricsOverlay(mFrameMetrics) : null;
+    }
+
+    public boolean isFrameMetricsOverlayShown() {
+        return mFrameMetricsOverlay != null;
+    }
+
+    // Writes the pictures taken so far as a CaptureSession, so that they can be stitched again
+    // away from the device. Only pictures taken while recording the session are written
+    public void writeCaptureSession(OutputStream outputStream) throws IOException {
+        CaptureSession session = new CaptureSession();
+        for (Picture picture : mPictures) {
+            if (!picture.isSaved() || picture.getJpegData() == null) {
+                continue;
+            }
+            float[] rotation = new float[9];
+            Mat3.fromRows(picture.getRotationMatrix(), rotation);
+            session.addShot(new CaptureSession.Shot(
+                    picture.getJpegData(),
+                    picture.getImageRotation(),
+                    rotation,
+                    picture.getAbstractWidth(),
+                    picture.getAbstractHeight(),
+                    picture.getHorizontalViewAngle(),
+                    picture.getVerticalViewAngle()));
+        }
+        session.write(outputStream);
+    }
+
+    // the factor from the tangents of the camera to pixels of the view
+    public float getOverlayScale() {
+        return ZOOM_FACTOR * mViewDiameter;
+    }
+
     public PhotoSphereConstructor getPhotoSphereConstructor() {
         return mPhotoSphereConstructor;
     }
 
+    // the pictures are already being drawn, this only tells the constructor there are no more
     public void startConstruction() {
-        mPhotoSphereConstructor = PhotoSphereConstructor.getInstance(CameraView.this, DEFAULT_SPHERE_HEIGHT);
-        for (Picture picture : mPictures) {
-            mPhotoSphereConstructor.drawPicture();
+        if (mPhotoSphereConstructor != null) {
+            mPhotoSphereConstructor.finishConstruction();
         }
     }
 
@@ -693,6 +847,18 @@ public class CameraView extends View {
         }
     }
 
+    // also writes the photosphere as a TiledPanorama package in the directory once it is done
+    public void saveTiledPanoramaWhenDone(File directory) {
+        if (mPhotoSphereConstructor == null) {
+            return;
+        }
+
+        mPhotoSphereConstructor.setTiledOutputDirectory(directory);
+        if (mPhotoSphereConstructor.isConstructionDone()) {
+            mPhotoSphereConstructor.saveTiledPanorama();
+        }
+    }
+
 
     private DeviceAlignment getCurrentDeviceAlignment() {
         float[] vector = MatrixUtils.multiply(new float[]{0, 0, 1}, mOrientationManager.getPositionRotMatrix());
@@ -713,15 +879,51 @@ public class CameraView extends View {
         }
         Picture picture = mPictures.remove(mPictures.size() - 1);
         picture.getReferencePoint().setIsPictureTaken(false);
+        if (mPhotoSphereConstructor != null) {
+            mPhotoSphereConstructor.removePicture(picture);
+        }
         return true;
     }
 
     private boolean areAllPicturesTaken() {
-        boolean areTaken = true;
-        for (ReferencePoint referencePoint : mReferencePoints) {
-            areTaken = areTaken && referencePoint.mIsPictureTaken;
+        return mPendingReferencePoints.size() == 0;
+    }
+
+    // Replaces the reference points and merging rectangles by the ones of the pattern. Rings
+    // other than the equator are tropics, whatever their latitude
+    private void setCapturePattern(CapturePattern pattern) {
+        mReferencePoints.clear();
+        mPendingReferencePoints.clear();
+        mMergingRectangles.clear();
+        for (CapturePattern.Ring ring : pattern.getRings()) {
+            PointType type;
+            if (ring.isPole()) {
+                type = ring.getLatitude() > 0 ? PointType.NORTH_POLE : PointType.SOUTH_POLE;
+            } else if (ring.getLatitude() == 0) {
+                type = PointType.EQUATOR;
+            } else {
+                type = ring.getLatitude() > 0 ? PointType.NORTH_TROPIC : PointType.SOUTH_TROPIC;
+            }
+            for (int k = 0; k < ring.getSize(); k++) {
+                float[] direction = new float[3];
+                ring.getDirection(k, direction);
+                addReferencePoint(direction, type);
+            }
         }
-        return areTaken;
+
+        // these are not useful for now, but will be used to correct picture locations later
+        for (CapturePattern.Seam seam : pattern.getSeams()) {
+            float[][] rotation = new float[3][3];
+            Mat3.toRows(seam.getRotation(), rotation);
+            mMergingRectangles.add(
+                    new MergingRectangle(rotation, seam.getWidth(), seam.getHeight()));
+        }
+    }
+
+    private void addReferencePoint(float[] coordinates, PointType type) {
+        ReferencePoint point = new ReferencePoint(coordinates, type);
+        mReferencePoints.add(point);
+        mPendingReferencePoints.add(coordinates, point);
     }
 
     public void onDoneTakingPhotosphere() {
@@ -0,0 +1,335 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Canvas renderer of a photosphere stored as the six faces of a cube, laid out as described in
+ * CubemapConverter.
+ *
+ * The faces are flat, so the map of a face onto the screen is exactly projective and no
+ * subdivision is needed to make it look right. Faces are still drawn as FACE_DIVISIONS x
+ * FACE_DIVISIONS patches, so that the patches crossing the plane z = EPSILON stay small. Faces
+ * and patches that are outside of the view frustum are skipped.
+ *
+ * A face is only loaded the first time it is seen, in the background, and drawn from the next
+ * frame after it is there, so the UI thread never waits for a face. The faces of an
+ * equirectangular picture are all converted at once instead, so that the picture can be dropped
+ */
+public class CubemapRenderer implements SphereRenderer<Canvas> {
+
+    /**
+     * Provides the faces of the cube, each one a square bitmap. Faces are asked for one at a
+     * time on a background thread, each at most once
+     */
+    public interface FaceSource {
+        Bitmap getFace(int face);
+    }
+
+    private static final int FACE_DIVISIONS = 4;
+    // the thread loading faces stops after being idle this long
+    private static final long KEEP_ALIVE_MS = 1000;
+
+    // the corners of a quadrangle in the order they are met walking around it
+    private static final int[] CORNER_CYCLE = {0, 1, 3, 2};
+
+    // To avoid buggy projections at infinity we consider to be in front of us only
+    // points that have a z coordinate greater than some epsilon > 0
+    private static final float EPSILON = 0.10f;
+
+    private final FaceSource mFaceSource;
+    private final Bitmap[] mFaces = new Bitmap[CubemapConverter.FACE_COUNT];
+    private final boolean[] mIsFaceRequested = new boolean[CubemapConverter.FACE_COUNT];
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mFaceExecutor = new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_MS,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private Runnable mFaceLoadedCallback;
+    private volatile boolean mIsReleased;
+
+    // rotated corners of the face being drawn, x, y and z interleaved, in the order top left,
+    // top right, bottom left, bottom right
+    private final float[] mFaceCorners = new float[12];
+    private final float[] mPatchCorners = new float[12];
+    private final float[] mPoint = new float[3];
+    private final float[] mProjection = new float[2];
+
+    // vertices of the patch clipped at z = EPSILON, on the screen and on the face bitmap
+    private final float[] mPolygon = new float[10];
+    private final float[] mPolygonTexture = new float[10];
+
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSourceRect = new Rect();
+    private final RectF mDestinationRect = new RectF();
+    private final Path mPath = new Path();
+
+    private SphereCamera mCamera;
+    private Canvas mCanvas;
+
+    private FrameMetrics mFrameMetrics;
+
+    public CubemapRenderer(FaceSource faceSource) {
+        mFaceSource = faceSource;
+        mFaceExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Converts an equirectangular picture to faces of the default size in the background,
+    // keeping no reference to the picture once they are
+    public CubemapRenderer(Bitmap bitmap) {
+        this(new EquirectangularFaceSource(bitmap));
+        for (int face = 0; face < CubemapConverter.FACE_COUNT; face++) {
+            requestFace(face);
+        }
+    }
+
+    // called on the UI thread each time a face is loaded, so that the view is drawn again
+    public void setFaceLoadedCallback(Runnable callback) {
+        mFaceLoadedCallback = callback;
+    }
+
+    // drops the faces not loaded yet, the renderer can't be used after this
+    public void release() {
+        mIsReleased = true;
+        mFaceExecutor.shutdownNow();
+    }
+
+    // patches drawn are counted as quads, and faces loaded as cache misses and decoded tiles,
+    // null to stop counting
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    @Override
+    public void render(SphereCamera camera, Canvas canvas) {
+        mCamera = camera;
+        mCanvas = canvas;
+        for (int face = 0; face < CubemapConverter.FACE_COUNT; face++) {
+            for (int corner = 0; corner < 4; corner++) {
+                CubemapConverter.getFacePoint(
+                        face,
+                        corner % 2 == 0 ? -1 : 1,
+                        corner < 2 ? -1 : 1,
+                        mPoint);
+                System.arraycopy(mPoint, 0, mFaceCorners, 3 * corner, 3);
+            }
+            Mat3.transformPoints(mFaceCorners, mFaceCorners, 4, camera.getRotation());
+            if (isCulled(mFaceCorners)) {
+                continue;
+            }
+
+            Bitmap bitmap = mFaces[face];
+            if (bitmap == null) {
+                requestFace(face);
+                continue;
+            }
+            for (int row = 0; row < FACE_DIVISIONS; row++) {
+                for (int column = 0; column < FACE_DIVISIONS; column++) {
+                    drawPatch(bitmap, column, row);
+                }
+            }
+        }
+        mCamera = null;
+        mCanvas = null;
+    }
+
+    // loads the face in the background, unless it was asked for before
+    private void requestFace(final int face) {
+        if (mIsFaceRequested[face] || mIsReleased) {
+            return;
+        }
+        mIsFaceRequested[face] = true;
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addCacheMisses(1);
+        }
+        mFaceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = mFaceSource.getFace(face);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mIsReleased) {
+                            return;
+                        }
+                        mFaces[face] = bitmap;
+                        if (mFrameMetrics != null) {
+                            mFrameMetrics.addTilesDecoded(1);
+                        }
+                        if (mFaceLoadedCallback != null) {
+                            mFaceLoadedCallback.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void drawPatch(Bitmap bitmap, int column, int row) {
+        // the face is flat, so its points are bilinear in the rotated corners
+        for (int corner = 0; corner < 4; corner++) {
+            float s = (float) (column + corner % 2) / FACE_DIVISIONS;
+            float t = (float) (row + corner / 2) / FACE_DIVISIONS;
+            for (int k = 0; k < 3; k++) {
+                float top = mFaceCorners[k] + s * (mFaceCorners[3 + k] - mFaceCorners[k]);
+                float bottom = mFaceCorners[6 + k]
+                        + s * (mFaceCorners[9 + k] - mFaceCorners[6 + k]);
+                mPatchCorners[3 * corner + k] = top + t * (bottom - top);
+            }
+        }
+        if (isCulled(mPatchCorners)) {
+            return;
+        }
+
+        int size = bitmap.getWidth();
+        mSourceRect.set(
+                size * column / FACE_DIVISIONS,
+                size * row / FACE_DIVISIONS,
+                size * (column + 1) / FACE_DIVISIONS,
+                size * (row + 1) / FACE_DIVISIONS);
+
+        // walk around the patch, clipping it at z = EPSILON
+        int count = 0;
+        boolean isCut = false;
+        for (int i = 0; i < 4; i++) {
+            int current = CORNER_CYCLE[i];
+            int next = CORNER_CYCLE[(i + 1) % 4];
+            float currentZ = mPatchCorners[3 * current + 2];
+            float nextZ = mPatchCorners[3 * next + 2];
+            if (currentZ > EPSILON) {
+                addVertex(count, current, next, 0);
+                count++;
+            }
+            if (currentZ > EPSILON != nextZ > EPSILON) {
+                addVertex(count, current, next, (EPSILON - currentZ) / (nextZ - currentZ));
+                count++;
+                isCut = true;
+            }
+        }
+        if (count < 3) {
+            return;
+        }
+
+        // the map of the bitmap onto the screen is projective, so it is set by any four of the
+        // vertices, and the canvas is clipped to the polygon when the patch was cut
+        if (!mMatrix.setPolyToPoly(mPolygonTexture, 0, mPolygon, 0, Math.min(count, 4))) {
+            return;
+        }
+        mCanvas.save();
+        if (isCut) {
+            mPath.rewind();
+            mPath.moveTo(mPolygon[0], mPolygon[1]);
+            for (int i = 1; i < count; i++) {
+                mPath.lineTo(mPolygon[2 * i], mPolygon[2 * i + 1]);
+            }
+            mPath.close();
+            mCanvas.clipPath(mPath);
+        }
+        mCanvas.concat(mMatrix);
+        mDestinationRect.set(mSourceRect);
+        mCanvas.drawBitmap(bitmap, mSourceRect, mDestinationRect, mPaint);
+        mCanvas.restore();
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addQuads(1);
+        }
+    }
+
+    // Adds to the polygon the point at t between two corners of the patch
+    private void addVertex(int index, int corner, int otherCorner, float t) {
+        for (int k = 0; k < 3; k++) {
+            mPoint[k] = mPatchCorners[3 * corner + k]
+                    + t * (mPatchCorners[3 * otherCorner + k] - mPatchCorners[3 * corner + k]);
+        }
+        mCamera.project(mPoint, mProjection);
+        mPolygon[2 * index] = mProjection[0];
+        mPolygon[2 * index + 1] = mProjection[1];
+
+        float cornerX = corner % 2 == 0 ? mSourceRect.left : mSourceRect.right;
+        float cornerY = corner < 2 ? mSourceRect.top : mSourceRect.bottom;
+        float otherX = otherCorner % 2 == 0 ? mSourceRect.left : mSourceRect.right;
+        float otherY = otherCorner < 2 ? mSourceRect.top : mSourceRect.bottom;
+        mPolygonTexture[2 * index] = cornerX + t * (otherX - cornerX);
+        mPolygonTexture[2 * index + 1] = cornerY + t * (otherY - cornerY);
+    }
+
+    // Converts the six faces of an equirectangular picture in parallel when the first one is
+    // asked for, then drops the picture and the copy of its pixels. Each face is handed over
+    // once, and only kept by the renderer after that
+    private static class EquirectangularFaceSource implements FaceSource {
+        private Bitmap mBitmap;
+        private final CubemapConverter mConverter;
+        private Bitmap[] mFaces;
+
+        private EquirectangularFaceSource(Bitmap bitmap) {
+            mBitmap = bitmap;
+            mConverter = new CubemapConverter(
+                    CubemapConverter.getDefaultFaceSize(bitmap.getWidth()));
+        }
+
+        @Override
+        public synchronized Bitmap getFace(int face) {
+            if (mFaces == null) {
+                convertFaces();
+            }
+            Bitmap bitmap = mFaces[face];
+            mFaces[face] = null;
+            return bitmap;
+        }
+
+        private void convertFaces() {
+            int width = mBitmap.getWidth();
+            int height = mBitmap.getHeight();
+            int[] pixels = new int[width * height];
+            mBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            mBitmap = null;
+            PixelBuffer[] faces = mConverter.convert(new PixelBuffer(pixels, width, height));
+            int size = mConverter.getFaceSize();
+            mFaces = new Bitmap[CubemapConverter.FACE_COUNT];
+            for (int face = 0; face < CubemapConverter.FACE_COUNT; face++) {
+                mFaces[face] = Bitmap.createBitmap(
+                        faces[face].getPixels(),
+                        size,
+                        size,
+                        Bitmap.Config.ARGB_8888);
+                faces[face] = null;
+            }
+        }
+    }
+
+    // A quadrangle can't be seen when its four corners are behind the plane z = EPSILON, or
+    // outside of the same plane of the view frustum
+    private boolean isCulled(float[] corners) {
+        if (corners[2] <= EPSILON && corners[5] <= EPSILON
+                && corners[8] <= EPSILON && corners[11] <= EPSILON) {
+            return true;
+        }
+        for (float[] normal : mCamera.getFrustumPlanes()) {
+            boolean isOutside = true;
+            for (int corner = 0; corner < 4 && isOutside; corner++) {
+                isOutside = normal[0] * corners[3 * corner]
+                        + normal[1] * corners[3 * corner + 1]
+                        + normal[2] * corners[3 * corner + 2] < 0;
+            }
+            if (isOutside) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Draws the percentiles of a FrameMetrics in the top left corner of a view. The text is only
+ * formatted again every REFRESH_FRAMES frames, so that the overlay doesn't cost much more than
+ * what it measures
+ */
+public class FrameMetricsOverlay {
+
+    private static final int REFRESH_FRAMES = 30;
+    private static final float TEXT_SIZE = 28f;
+    private static final float MARGIN = 12f;
+
+    private final FrameMetrics mFrameMetrics;
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBackgroundPaint = new Paint();
+
+    private String[] mLines = new String[0];
+    private int mFramesSinceRefresh = REFRESH_FRAMES;
+
+    public FrameMetricsOverlay(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(TEXT_SIZE);
+        mBackgroundPaint.setARGB(160, 0, 0, 0);
+    }
+
+    public void draw(Canvas canvas) {
+        if (mFramesSinceRefresh++ >= REFRESH_FRAMES) {
+            mFramesSinceRefresh = 0;
+            mLines = mFrameMetrics.toString().split("\n");
+        }
+
+        float lineHeight = mTextPaint.getFontSpacing();
+        float width = 0;
+        for (String line : mLines) {
+            width = Math.max(width, mTextPaint.measureText(line));
+        }
+        canvas.drawRect(
+                0,
+                0,
+                width + 2 * MARGIN,
+                mLines.length * lineHeight + 2 * MARGIN,
+                mBackgroundPaint);
+        for (int i = 0; i < mLines.length; i++) {
+            canvas.drawText(mLines[i], MARGIN, MARGIN + (i + 1) * lineHeight, mTextPaint);
+        }
+    }
+}
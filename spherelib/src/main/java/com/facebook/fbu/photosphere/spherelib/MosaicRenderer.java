@@ -0,0 +1,314 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Canvas renderer of a photosphere. The picture is sliced in a mosaic of tiles, and each cell of
+ * an adaptive SphereGrid is drawn by mapping the matching piece of a tile onto the quadrangle the
+ * cell is projected to.
+ *
+ * The tiles are either sliced from a bitmap, or loaded from a TiledPanorama package by a
+ * TileLoader as they come into view, a cell whose tile isn't loaded yet being drawn from the
+ * coarser tile that covers it
+ */
+public class MosaicRenderer implements SphereRenderer<Canvas>, SphereGrid.CellVisitor {
+    // approximate size, in pixels, of the tiles of the finest level of the mosaic
+    private static final int TILE_SIZE = 128;
+
+    private final SphereGrid mGrid = new SphereGrid();
+
+    private int mPhotoSphereWidth;
+    private int mPhotoSphereHeight;
+
+    // mMosaic[level] holds the (ROOT_COLUMNS << level) x (ROOT_ROWS << level) tiles of the
+    // picture, row by row, each level having half the resolution of the next one
+    private Bitmap[][] mMosaic;
+    private int mFinestLevel;
+    // the tiles are taken from the loader instead of mMosaic if it is set
+    private TileLoader mTileLoader;
+
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final float[] mSourcePoints = new float[8];
+    private final Rect mSourceRect = new Rect();
+    private final RectF mDestinationRect = new RectF();
+    private final Path mPath = new Path();
+
+    // the canvas being drawn on and the center of the view, only set during render
+    private Canvas mCanvas;
+    private float mCenterX;
+    private float mCenterY;
+
+    private FrameMetrics mFrameMetrics;
+
+    public MosaicRenderer(Bitmap bitmap) {
+        mPhotoSphereWidth = bitmap.getWidth();
+        mPhotoSphereHeight = bitmap.getHeight();
+        setMosaic(bitmap);
+    }
+
+    // draws the tiles of the loader, whose index must be loaded
+    public MosaicRenderer(TileLoader tileLoader) {
+        TiledPanorama panorama = tileLoader.getPanorama();
+        mPhotoSphereWidth = panorama.getWidth();
+        mPhotoSphereHeight = panorama.getHeight();
+        mFinestLevel = panorama.getFinestLevel();
+        mTileLoader = tileLoader;
+    }
+
+    // Gets a rectangular region of a bitmap and draws it in a general quadrangle via the
+    // unique appropriate projection
+    private void drawBitmapInQuadrangle(
+            Bitmap bitmap,
+            Canvas canvas,
+            Rect region,
+            float[] points) {
+        mSourcePoints[0] = region.left;
+        mSourcePoints[1] = region.top;
+        mSourcePoints[2] = region.right;
+        mSourcePoints[3] = region.top;
+        mSourcePoints[4] = region.left;
+        mSourcePoints[5] = region.bottom;
+        mSourcePoints[6] = region.right;
+        mSourcePoints[7] = region.bottom;
+        // we reuse the same Matrix object to draw every rectangle
+        if (!mMatrix.setPolyToPoly(mSourcePoints, 0, points, 0, 4)) {
+            return;
+        }
+
+        if (region.width() == bitmap.getWidth() && region.height() == bitmap.getHeight()) {
+            canvas.drawBitmap(bitmap, mMatrix, mPaint);
+            return;
+        }
+
+        canvas.save();
+        canvas.concat(mMatrix);
+        mDestinationRect.set(region);
+        canvas.drawBitmap(bitmap, region, mDestinationRect, mPaint);
+        canvas.restore();
+    }
+
+    // every tile drawn is counted as a quad, null to stop counting
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    // Slices the picture in a pyramid of tiles. The finest level keeps the resolution of the
+    // picture, and coarser levels are used for cells that are small on the screen
+    public void setMosaic(Bitmap bitmap) {
+        mFinestLevel = 0;
+        while (mFinestLevel < SphereGrid.MAX_DEPTH && mPhotoSphereWidth
+                / (SphereGrid.ROOT_COLUMNS << (mFinestLevel + 1)) >= TILE_SIZE) {
+            mFinestLevel++;
+        }
+
+        mMosaic = new Bitmap[mFinestLevel + 1][];
+        for (int level = 0; level <= mFinestLevel; level++) {
+            int columns = SphereGrid.ROOT_COLUMNS << level;
+            int rows = SphereGrid.ROOT_ROWS << level;
+            float scale = 1f / (1 << (mFinestLevel - level));
+            Matrix matrix = new Matrix();
+            matrix.setScale(scale, scale);
+
+            mMosaic[level] = new Bitmap[columns * rows];
+            for (int row = 0; row < rows; row++) {
+                int top = (int) (mPhotoSphereHeight * SphereGrid.getV(level, row));
+                int bottom = (int) (mPhotoSphereHeight * SphereGrid.getV(level, row + 1));
+                for (int column = 0; column < columns; column++) {
+                    int left = mPhotoSphereWidth * column / columns;
+                    int right = mPhotoSphereWidth * (column + 1) / columns;
+                    mMosaic[level][row * columns + column] = Bitmap.createBitmap(
+                            bitmap,
+                            left,
+                            top,
+                            right - left,
+                            bottom - top,
+                            matrix,
+                            true);
+                }
+            }
+        }
+    }
+
+    // Draws the 2D view of the sphere onto the canvas
+    @Override
+    public void render(SphereCamera camera, Canvas canvas) {
+        if (mMosaic == null && mTileLoader == null) {
+            throw new RuntimeException("No mosaic is set");
+        }
+
+        mCanvas = canvas;
+        mCenterX = camera.getViewWidth() / 2f;
+        mCenterY = camera.getViewHeight() / 2f;
+        mGrid.traverse(camera, this);
+        mCanvas = null;
+        if (mTileLoader != null) {
+            mTileLoader.endFrame();
+        }
+    }
+
+    @Override
+    public void onCell(int depth, int column, int row, float[] quad) {
+        int level = getLoadedLevel(depth, column, row, getMosaicLevel(depth, quad), quad, 4);
+        if (level < 0) {
+            return;
+        }
+        Bitmap tile = getTile(depth, column, row, level);
+        drawBitmapInQuadrangle(tile, mCanvas, mSourceRect, quad);
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addQuads(1);
+        }
+    }
+
+    // Only the part of the cell in front of us is drawn. The map of the bitmap onto the
+    // screen is still projective, so it is set by any four of the vertices left, and the
+    // canvas is clipped to the polygon they form
+    @Override
+    public void onClippedCell(
+            int depth,
+            int column,
+            int row,
+            float[] polygon,
+            float[] texture,
+            int count) {
+        int level = getLoadedLevel(
+                depth,
+                column,
+                row,
+                Math.min(depth, mFinestLevel),
+                polygon,
+                count);
+        if (level < 0) {
+            return;
+        }
+        Bitmap tile = getTile(depth, column, row, level);
+
+        int shift = depth - level;
+        float tileLeft = SphereGrid.getU(level, column >> shift);
+        float tileRight = SphereGrid.getU(level, (column >> shift) + 1);
+        float tileTop = SphereGrid.getV(level, row >> shift);
+        float tileBottom = SphereGrid.getV(level, (row >> shift) + 1);
+        int points = Math.min(count, 4);
+        for (int i = 0; i < points; i++) {
+            mSourcePoints[2 * i] = tile.getWidth()
+                    * (texture[2 * i] - tileLeft) / (tileRight - tileLeft);
+            mSourcePoints[2 * i + 1] = tile.getHeight()
+                    * (texture[2 * i + 1] - tileTop) / (tileBottom - tileTop);
+        }
+        if (!mMatrix.setPolyToPoly(mSourcePoints, 0, polygon, 0, points)) {
+            return;
+        }
+
+        mPath.rewind();
+        mPath.moveTo(polygon[0], polygon[1]);
+        for (int i = 1; i < count; i++) {
+            mPath.lineTo(polygon[2 * i], polygon[2 * i + 1]);
+        }
+        mPath.close();
+
+        mCanvas.save();
+        mCanvas.clipPath(mPath);
+        mCanvas.concat(mMatrix);
+        mDestinationRect.set(mSourceRect);
+        mCanvas.drawBitmap(tile, mSourceRect, mDestinationRect, mPaint);
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addQuads(1);
+        }
+        mCanvas.restore();
+    }
+
+    // Returns the tile of the given mosaic level that contains the cell, and sets
+    // mSourceRect to the region of the tile covered by the cell. The cell is a piece of the
+    // tile when the grid is finer than the mosaic level
+    private Bitmap getTile(int depth, int column, int row, int level) {
+        int shift = depth - level;
+        int tileColumn = column >> shift;
+        int tileRow = row >> shift;
+        Bitmap tile = mTileLoader != null
+                ? mTileLoader.getTile(level, tileColumn, tileRow)
+                : mMosaic[level][tileRow * (SphereGrid.ROOT_COLUMNS << level) + tileColumn];
+
+        int cells = 1 << shift;
+        int cellColumn = column - (tileColumn << shift);
+        int cellRow = row - (tileRow << shift);
+        mSourceRect.set(
+                tile.getWidth() * cellColumn / cells,
+                tile.getHeight() * cellRow / cells,
+                tile.getWidth() * (cellColumn + 1) / cells,
+                tile.getHeight() * (cellRow + 1) / cells);
+        return tile;
+    }
+
+    // Returns the finest level up to the given one whose tile covering the cell is loaded, or -1
+    // if there is none. The tile of the level and the one of the coarsest level are asked for if
+    // they are missing, so that the view is soon covered and then sharpened
+    private int getLoadedLevel(
+            int depth,
+            int column,
+            int row,
+            int level,
+            float[] points,
+            int count) {
+        if (mTileLoader == null) {
+            return level;
+        }
+        int loadedLevel = level;
+        while (loadedLevel >= 0 && mTileLoader.getTile(
+                loadedLevel,
+                column >> (depth - loadedLevel),
+                row >> (depth - loadedLevel)) == null) {
+            loadedLevel--;
+        }
+        if (loadedLevel < level) {
+            float distance = getDistanceToCenter(points, count);
+            mTileLoader.request(level, column >> (depth - level), row >> (depth - level), distance);
+            if (loadedLevel < 0 && level > 0) {
+                mTileLoader.request(0, column >> depth, row >> depth, distance);
+            }
+        }
+        return loadedLevel;
+    }
+
+    // the distance from the center of the view to the centroid of the points
+    private float getDistanceToCenter(float[] points, int count) {
+        float x = 0;
+        float y = 0;
+        for (int i = 0; i < count; i++) {
+            x += points[2 * i];
+            y += points[2 * i + 1];
+        }
+        return (float) Math.hypot(x / count - mCenterX, y / count - mCenterY);
+    }
+
+    // Picks the coarsest level of the mosaic that doesn't need to be stretched to cover the
+    // cell on the screen. The level can't be finer than the cell, or the cell would span
+    // several tiles
+    private int getMosaicLevel(int depth, float[] quad) {
+        float width = Math.max(getDistance(quad, 0, 1), getDistance(quad, 2, 3));
+        float height = Math.max(getDistance(quad, 0, 2), getDistance(quad, 1, 3));
+        int maxLevel = Math.min(depth, mFinestLevel);
+        for (int level = 0; level < maxLevel; level++) {
+            int levelWidth = mPhotoSphereWidth >> (mFinestLevel - level);
+            int levelHeight = mPhotoSphereHeight >> (mFinestLevel - level);
+            if (levelWidth >= width * (SphereGrid.ROOT_COLUMNS << depth)
+                    && levelHeight >= height * (SphereGrid.ROOT_ROWS << depth)) {
+                return level;
+            }
+        }
+        return maxLevel;
+    }
+
+    private float getDistance(float[] quad, int first, int second) {
+        float dx = quad[2 * first] - quad[2 * second];
+        float dy = quad[2 * first + 1] - quad[2 * second + 1];
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
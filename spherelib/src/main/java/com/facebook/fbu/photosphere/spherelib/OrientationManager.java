@@ -3,60 +3,34 @@
 package com.facebook.fbu.photosphere.spherelib;
 
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
-
 /**
  * A single instance of this class is created by a SphereView or a CameraView to get orientation
- * information
+ * information, from the sensors of the device unless another OrientationSource is given
  */
-public class OrientationManager implements SensorEventListener {
-    private SensorManager mSensorManager;
-
-    private Sensor mSensor;
+public class OrientationManager {
 
-    private final Queue<float[]> mRecentQueue = new ArrayDeque<float[]>();
-    private float[] mAverageRotationVector = new float[4];
-    private final int mQueueSize = 1;
+    // the number of recent rotation vectors averaged together
+    private static final int QUEUE_SIZE = 1;
 
+    private final OrientationSource mOrientationSource;
+    private final OrientationTracker mOrientationTracker = new OrientationTracker(QUEUE_SIZE);
 
     public OrientationManager(Context context) {
-        for (int i = 0; i < mQueueSize; i++) {
-            mRecentQueue.add(new float[4]);
-        }
+        this(new SensorOrientationSource(context));
+    }
 
-        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+    public OrientationManager(OrientationSource orientationSource) {
+        mOrientationSource = orientationSource;
     }
 
     public void start() {
-        mSensorManager.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_FASTEST);
+        mOrientationSource.start(mOrientationTracker);
     }
 
     public void stop() {
-        mSensorManager.unregisterListener(this);
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int i) {
-
-    }
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        float[] rotationVector = new float[]{event.values[0], event.values[1],
-                event.values[2], event.values[3]};
-        mRecentQueue.add(rotationVector);
-        mAverageRotationVector = MatrixUtils.add(
-                mAverageRotationVector,
-                MatrixUtils.multiply(
-                        MatrixUtils.subtract(rotationVector, mRecentQueue.remove()),
-                        1f / mQueueSize));
+        mOrientationSource.stop();
     }
 
     // not used yet, will be useful for starting at the correct starting position when switching
@@ -115,41 +89,15 @@ public class OrientationManager implements SensorEventListener {
 
     // returns the rotation matrix that compensates for the current position
     public float[][] getCorrectionRotMatrix() {
-
         float[] rotation = new float[9];
-        SensorManager.getRotationMatrixFromVector(rotation, mAverageRotationVector);
-
-        float[][] rotationMatrix = MatrixUtils.linearToRectangular(rotation, 3, 3);
+        getCorrectionRotation(rotation);
+        return MatrixUtils.linearToRectangular(rotation, 3, 3);
+    }
 
-        // two of the axis come with reversed orientation, so we correct it
-        rotationMatrix = MatrixUtils.multiply (rotationMatrix, new float[][]{
-                {1, 0, 0},
-                {0, -1, 0},
-                {0, 0, -1}
-        });
-
-        // these two rotation matrices give the correct starting point
-        // (I don't fully understand what is the referential that the sensor uses,
-        // but this rotation was easy to find just by trying out)
-        float angle = (float) Math.PI / 2;
-        rotationMatrix = MatrixUtils.multiply (
-                new float[][]{
-                        {1, 0, 0},
-                        {0, (float) Math.cos(angle), -(float) Math.sin(angle)},
-                        {0, (float) Math.sin(angle), (float) Math.cos(angle)}
-                },
-                rotationMatrix);
-
-        angle = (float) - Math.PI / 2;
-        rotationMatrix = MatrixUtils.multiply(
-                new float[][]{
-                        {(float) Math.cos(angle), -(float) Math.sin(angle), 0},
-                        {(float) Math.sin(angle), (float) Math.cos(angle), 0},
-                        {0, 0, 1}
-                },
-                rotationMatrix);
-
-        return rotationMatrix;
+    // writes the rotation matrix that compensates for the current position in the float[9] dst,
+    // row by row, without allocating anything
+    public void getCorrectionRotation(float[] dst) {
+        mOrientationTracker.getCorrectionRotation(dst);
     }
 
 }
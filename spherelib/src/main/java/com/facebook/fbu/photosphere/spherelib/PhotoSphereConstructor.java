@@ -3,10 +3,7 @@
 package com.facebook.fbu.photosphere.spherelib;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.os.Debug;
 import android.os.Environment;
 import android.util.Log;
 
@@ -15,30 +12,67 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * Created by rangelo on 7/29/15.
+ *
+ * Constructs the photosphere while it is being taken: each picture is drawn as soon as it is
+ * decoded, and a picture popped by the user is taken out by redrawing the tiles it covered, so
+ * that little is left to do when the capture is finished
  */
 public class PhotoSphereConstructor {
 
+    private static final String TAG = PhotoSphereConstructor.class.getSimpleName();
+
     private CameraView mCameraView;
     private int mWidth;
     private int mHeight;
-    private int mNumOfPicturesDrawn = 0;
+    private volatile int mNumOfPicturesDrawn = 0;
 
     private Bitmap mBitmap;
-    private Canvas mCanvas;
+
+    // the sphere is stitched in mSphere, and the tiles each picture changed are copied to
+    // mBitmap, which is shown while the capture goes on. mSphere is dropped once the
+    // construction is done, leaving mBitmap the only copy
+    private PixelBuffer mSphere;
+    private SphereStitcher mStitcher;
+    private SphereCompositor mCompositor;
+
+    // the pictures drawn, and the ones popped before they could be, only touched by the thread
+    // of mExecutorService
+    private final List<PictureLayer> mLayers = new ArrayList<PictureLayer>();
+    private final Set<CameraView.Picture> mRemovedPictures = new HashSet<CameraView.Picture>();
+
+    // measures every stage of the construction, see getConstructionReport()
+    private final ConstructionProfiler mProfiler = new ConstructionProfiler(
+            new ConstructionProfiler.CpuClock() {
+                @Override
+                public long getThreadCpuNanos() {
+                    return Debug.threadCpuTimeNanos();
+                }
+            });
 
     private String mDestinationFile;
     private File mFile;
-    private boolean mIsConstructionDone;
+    // where the photosphere is also written as a TiledPanorama package, if set
+    private File mTiledOutputDirectory;
+    private volatile boolean mIsConstructionDone;
 
-    // manages the drawing processes in at most two threads
-    private ExecutorService mExecutorService = Executors.newFixedThreadPool(2);
+    // runs the additions and removals of pictures one after the other, in the order they come,
+    // and the tiles of each one are drawn in at most two threads. Tasks are only submitted
+    // through execute(), under the lock of mExecutorService
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    private final ExecutorService mTileExecutorService = Executors.newFixedThreadPool(2);
 
-    private boolean mIsFileSaved;
+    private volatile boolean mIsFileSaved;
+    private volatile boolean mIsTiledPanoramaSaved;
 
     private static PhotoSphereConstructor sInstance;
 
@@ -47,6 +81,10 @@ public class PhotoSphereConstructor {
     }
 
     public static PhotoSphereConstructor getInstance(CameraView cameraView, int height) {
+        // the constructor of a previous capture is done with, whether or not it was released
+        if (sInstance != null) {
+            sInstance.release();
+        }
         try {
             sInstance = new PhotoSphereConstructor(cameraView, height);
         } catch (Exception e) {
@@ -65,7 +103,13 @@ public class PhotoSphereConstructor {
         mWidth = 2 * height;
 
         mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
+        mSphere = new PixelBuffer(mWidth, mHeight);
+        mStitcher = new SphereStitcher(mSphere, new NearestSampler(), new FeatherBlender());
+        mStitcher.setProfiler(mProfiler);
+        mCompositor = new SphereCompositor(
+                mStitcher,
+                SphereCompositor.DEFAULT_TILE_WIDTH,
+                mTileExecutorService);
 
     }
 
@@ -73,159 +117,205 @@ public class PhotoSphereConstructor {
         return mBitmap;
     }
 
-    public void drawPicture() {
-        final Runnable mDrawPictureRunnable = new Runnable() {
+    /**
+     * Stops the threads of the constructor once the work already asked for is done, so a
+     * construction that was finished is still saved. The photosphere stays readable, but no
+     * picture can be added or removed after this
+     */
+    public void release() {
+        synchronized (mExecutorService) {
+            mExecutorService.shutdown();
+            mTileExecutorService.shutdown();
+        }
+    }
+
+    // runs the task on mExecutorService, or returns false if the constructor was released, the
+    // check and the submission being done under the lock of release()
+    private boolean execute(Runnable task) {
+        synchronized (mExecutorService) {
+            if (mExecutorService.isShutdown()) {
+                return false;
+            }
+            mExecutorService.execute(task);
+            return true;
+        }
+    }
+
+    // Draws the picture in the background, it must have its bitmap and vertices set. A picture
+    // decoded as the camera was closed comes after the release, and is dropped
+    public void drawPicture(final CameraView.Picture picture) {
+        execute(new Runnable() {
             @Override
             public void run() {
-                mNumOfPicturesDrawn++;
-                drawPictureProcess(mCameraView.getPictures().get(mNumOfPicturesDrawn - 1));
-                if (mNumOfPicturesDrawn == mCameraView.getPictures().size()) {
-                    if (mDestinationFile != null) {
-                        savePictureToFile();
-                    }
-                    mIsConstructionDone = true;
+                // the picture may have been popped before it was decoded
+                if (mRemovedPictures.remove(picture) || mCompositor == null) {
+                    return;
                 }
+                PictureLayer layer = new PictureLayer(picture);
+                mLayers.add(layer);
+                copyTiles(mCompositor.add(layer));
+                mNumOfPicturesDrawn = mCompositor.getLayerCount();
             }
-        };
-
-        mExecutorService.execute(mDrawPictureRunnable);
+        });
     }
 
-    public void drawPictureProcess(CameraView.Picture picture) {
-
-        Rect rect = new Rect(picture.getBitmap().getWidth() / 6, picture.getBitmap().getWidth()
-                * 5 / 6, picture.getBitmap().getHeight() / 6, picture.getBitmap().getHeight()
-                - picture.getBitmap().getWidth() / 6);
-
-
-        int jumpSize = 15;
-        boolean moveFast = false;
-        int count = 0;
-
-        boolean gotInside;
-
-        Paint dstOverPaint = new Paint();
-        dstOverPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
-
-        Paint srcOverPaint = new Paint();
-        srcOverPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER));
-
-        Paint helperPaint = new Paint();
-        helperPaint.setARGB(50, 255, 0, 0);
-
-        int color;
-        int alpha;
-
-
-        for (int i = 0; i < mWidth; i++) {
-            for (int j = 0; j < mHeight - 1; j++) {
-                float xAngle = (float) (2 * Math.PI * (float) i / mWidth);
-                float yAngle = (float) (Math.PI * (((float) j / mHeight) - 1.0f / 2));
-                float[] pointInSphere = new float[]{
-                        (float) Math.sin(yAngle),
-                        (float) (Math.cos(xAngle) * Math.cos(yAngle)),
-                        (float) (Math.sin(xAngle) * Math.cos(yAngle))
-                };
-
-
-                float[] rotated = MatrixUtils.multiply(
-                        pointInSphere,
-                        MatrixUtils.transpose(picture.getRotationMatrix()));
-
-                gotInside = rotated[2] > 0;
-
-                if (gotInside) {
-
-                    float[] projected = project(rotated);
-
-
-                    projected[0] *= picture.getBitmap().getWidth()
-                            / picture.getAbstractWidth();
-                    projected[0] += picture.getBitmap().getWidth() / 2;
-                    projected[1] *= picture.getBitmap().getHeight()
-                            / picture.getAbstractHeight();
-                    projected[1] += picture.getBitmap().getHeight() / 2;
-
-                    gotInside = (projected[0] >= 0
-                            && projected[0] < picture.getBitmap().getWidth() - 1
-                            && projected[1] >= 0
-                            && projected[1] < picture.getBitmap().getHeight() - 1);
-
-                    if (gotInside) {
-                        color = picture.getBitmap().getPixel(
-                                (int) projected[0],
-                                (int) projected[1]);
-
-                        dstOverPaint.setColor(color);
-                        mCanvas.drawPoint(i, j, dstOverPaint);
-
-                        alpha = Math.max(
-                                0,
-                                255
-                                        - (255 * rect.distanceSquaredTo(
-                                        (int) projected[0],
-                                        (int) projected[1])) / (picture.getBitmap().getWidth() / 6)
-                                        / (picture.getBitmap().getWidth() / 6));
-
-
-                        srcOverPaint.setColor(color);
-                        srcOverPaint.setAlpha(alpha);
-                        mCanvas.drawPoint(i, j, srcOverPaint);
-                    }
-
-
-                }
-
-
-                if ((!moveFast) && (!gotInside)) {
-                    count++;
+    // Takes a picture out of the photosphere in the background, drawn or not yet
+    public void removePicture(final CameraView.Picture picture) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mCompositor == null) {
+                    return;
                 }
-
-                if (count > jumpSize + 1) {
-                    count = 0;
-                    moveFast = true;
+                PictureLayer layer = findLayer(picture);
+                if (layer == null) {
+                    mRemovedPictures.add(picture);
+                    return;
                 }
+                mLayers.remove(layer);
+                copyTiles(mCompositor.remove(layer));
+                mNumOfPicturesDrawn = mCompositor.getLayerCount();
+            }
+        });
+    }
 
-                if (moveFast && gotInside) {
-                    moveFast = false;
-                    j = Math.max(j - jumpSize, 0);
+    // Called when the capture is over. The construction is done once the pictures drawn before
+    // are, and the photosphere is saved then if a destination file or a tiled output directory
+    // is set. After a release there is nothing more to construct, and the construction is only
+    // marked as done, so that nobody waits for it
+    public void finishConstruction() {
+        boolean isExecuted = execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDestinationFile != null) {
+                    savePictureToFile();
                 }
-
-                if (moveFast) {
-                    j = j + jumpSize;
+                if (mTiledOutputDirectory != null) {
+                    saveTiledPanorama();
                 }
+                releaseSphere();
+                mIsConstructionDone = true;
+                Log.d(TAG, "Construction done\n" + mProfiler.getReport());
+            }
+        });
+        if (!isExecuted) {
+            mIsConstructionDone = true;
+        }
+    }
 
+    // no picture can be added or removed once the construction is done, so only mBitmap is kept
+    private void releaseSphere() {
+        mLayers.clear();
+        mRemovedPictures.clear();
+        mCompositor = null;
+        mStitcher = null;
+        mSphere = null;
+    }
 
+    // a picture is drawn at most once, so it has at most one layer
+    private PictureLayer findLayer(CameraView.Picture picture) {
+        for (PictureLayer layer : mLayers) {
+            if (layer.mPicture == picture) {
+                return layer;
             }
         }
+        return null;
+    }
+
+    // copies the columns of the tiles from mSphere to mBitmap
+    private void copyTiles(BitSet tiles) {
+        for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+            int firstColumn = mCompositor.getFirstColumn(tile);
+            int lastColumn = mCompositor.getLastColumn(tile);
+            mBitmap.setPixels(
+                    mSphere.getPixels(),
+                    firstColumn,
+                    mWidth,
+                    firstColumn,
+                    0,
+                    lastColumn - firstColumn,
+                    mHeight);
+        }
+    }
+
+    // A picture of the CameraView, whose pixels are read from its bitmap each time it is drawn,
+    // and dropped once it is, since a capture holds too many pictures to keep a copy of each
+    private class PictureLayer implements SphereCompositor.Layer {
+        private final CameraView.Picture mPicture;
+        private final float[] mRotation = new float[9];
+
+        private PictureLayer(CameraView.Picture picture) {
+            mPicture = picture;
+            Mat3.fromRows(picture.getRotationMatrix(), mRotation);
+        }
+
+        @Override
+        public SpherePicture load() {
+            Bitmap bitmap = mPicture.getBitmap();
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            return new SpherePicture(
+                    new PixelBuffer(pixels, width, height),
+                    mRotation,
+                    mPicture.getAbstractWidth(),
+                    mPicture.getAbstractHeight());
+        }
     }
 
     public void savePictureToFile() {
+        ConstructionProfiler.Section section = mProfiler.begin(ConstructionStage.ENCODE);
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         mBitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
         byte[] data = stream.toByteArray();
+        section.end(mWidth * mHeight);
+        mFile = getNewFile(mDestinationFile);
+        if (mFile == null) {
+            return;
+        }
         try {
-            mFile = getNewFile(mDestinationFile);
             FileOutputStream fos = new FileOutputStream(mFile);
             fos.write(data);
             fos.close();
+            mIsFileSaved = true;
         } catch (FileNotFoundException fnfe) {
             fnfe.printStackTrace();
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
-        mIsFileSaved = true;
     }
 
-    public float requestProgress() {
-        return (float) mNumOfPicturesDrawn / mCameraView.getPictures().size();
+    public void saveTiledPanorama() {
+        ConstructionProfiler.Section section = mProfiler.begin(ConstructionStage.ENCODE);
+        try {
+            TiledPanoramaWriter.write(mBitmap, mTiledOutputDirectory);
+            mIsTiledPanoramaSaved = true;
+        } catch (IOException ioe) {
+            Log.e(TAG, "error when saving tiled panorama: " + ioe);
+        }
+        section.end(mWidth * mHeight);
+    }
+
+    // the profiler also measures the decoding done by CameraController
+    public ConstructionProfiler getProfiler() {
+        return mProfiler;
     }
 
+    public ConstructionReport getConstructionReport() {
+        return mProfiler.getReport();
+    }
 
-    private float[] project(float[] point) {
-        return new float[]{point[0] / point[2], point[1] / point[2]};
+    // for instance a SystraceHook, null to stop tracing
+    public void setTraceHook(ConstructionProfiler.TraceHook traceHook) {
+        mProfiler.setTraceHook(traceHook);
     }
 
+    public float requestProgress() {
+        return (float) mNumOfPicturesDrawn / mCameraView.getPictures().size();
+    }
+
+
     private File getNewFile(String fileName) {
         File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_PICTURES), mCameraView.getContext().getPackageName());
@@ -241,40 +331,22 @@ public class PhotoSphereConstructor {
                 "IMG_" + fileName + ".jpg");
     }
 
-    private class Rect {
-        private int xmin;
-        private int xmax;
-        private int ymin;
-        private int ymax;
-
-        Rect(int l, int r, int b, int t) {
-            xmin = l;
-            xmax = r;
-            ymin = b;
-            ymax = t;
-        }
-
-        public int distanceSquaredTo(int x, int y) {
-            int dx = 0, dy = 0;
-            if (x < xmin) {
-                dx = x - xmin;
-            } else if (x > xmax) {
-                dx = x - xmax;
-            }
-
-            if (y < ymin) {
-                dy = y - ymin;
-            } else if (y > ymax) {
-                dy = y - ymax;
-            }
+    public void setDestinationFile(String destinationFile) {
+        mDestinationFile = destinationFile;
+    }
 
-            return dx * dx + dy * dy;
-        }
+    // optionally writes the photosphere as a package of tiles in the directory, for viewers that
+    // only fetch what they show, see SphereView.setTileSource
+    public void setTiledOutputDirectory(File directory) {
+        mTiledOutputDirectory = directory;
+    }
 
+    public boolean isTiledPanoramaSaved() {
+        return mIsTiledPanoramaSaved;
     }
 
-    public void setDestinationFile(String destinationFile) {
-        mDestinationFile = destinationFile;
+    public File getTiledOutputDirectory() {
+        return mTiledOutputDirectory;
     }
 
     public boolean isConstructionDone() {
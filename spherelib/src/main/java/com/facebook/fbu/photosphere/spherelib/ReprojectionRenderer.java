@@ -0,0 +1,59 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+/**
+ * Canvas renderer of a photosphere that reprojects the equirectangular picture pixel by pixel
+ * with a SphereRasterizer, then copies the frame to the canvas in a single draw call
+ */
+public class ReprojectionRenderer implements SphereRenderer<Canvas> {
+
+    private final SphereRasterizer mRasterizer;
+
+    // the frame is rendered in mFrame, then copied to mFrameBitmap to be drawn
+    private PixelBuffer mFrame;
+    private Bitmap mFrameBitmap;
+
+    public ReprojectionRenderer(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        mRasterizer = new SphereRasterizer(new PixelBuffer(pixels, width, height));
+    }
+
+    @Override
+    public void render(SphereCamera camera, Canvas canvas) {
+        int width = camera.getViewWidth();
+        int height = camera.getViewHeight();
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        if (mFrame == null || mFrame.getWidth() != width || mFrame.getHeight() != height) {
+            mFrame = new PixelBuffer(width, height);
+            mFrameBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        mRasterizer.render(camera, mFrame);
+        mFrameBitmap.setPixels(mFrame.getPixels(), 0, width, 0, 0, width, height);
+        canvas.drawBitmap(mFrameBitmap, 0, 0, null);
+    }
+
+    // drops the frame until the next render, while the view isn't shown
+    public void releaseFrame() {
+        if (mFrameBitmap != null) {
+            mFrameBitmap.recycle();
+        }
+        mFrame = null;
+        mFrameBitmap = null;
+    }
+
+    // stops the rendering threads, the renderer can't be used after this
+    public void release() {
+        mRasterizer.shutdown();
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+/**
+ * The OrientationSource of the device, its game rotation vector sensor
+ */
+public class SensorOrientationSource implements OrientationSource, SensorEventListener {
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final float[] mRotationVector = new float[4];
+    private Listener mListener;
+
+    public SensorOrientationSource(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        mSensorManager.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_FASTEST);
+    }
+
+    @Override
+    public void stop() {
+        mSensorManager.unregisterListener(this);
+        mListener = null;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int i) {
+
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        // the listener copies the values, so the same array is handed every time
+        for (int i = 0; i < 4; i++) {
+            mRotationVector[i] = event.values[i];
+        }
+        listener.onRotationVector(event.timestamp, mRotationVector);
+    }
+}
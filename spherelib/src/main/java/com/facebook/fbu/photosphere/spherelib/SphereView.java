@@ -20,11 +20,11 @@ import android.widget.Gallery;
 import com.squareup.picasso.Picasso;
 import com.squareup.picasso.Target;
 
+import java.util.Map;
+import java.util.TreeMap;
 
-public class SphereView extends View {
-    private static final int GRID_WIDTH = 30;
-    private static final int GRID_HEIGHT = 30;
 
+public class SphereView extends View {
     private static final float MIN_ZOOM = 0.18f;
     private static final float INITIAL_ZOOM = 0.4f;
     private static final float MAX_ZOOM = 0.8f;
@@ -54,10 +54,34 @@ public class SphereView extends View {
 
     private SphereViewMode mMode;
 
+    // MOSAIC draws tiles of the picture warped onto the cells of a grid, REPROJECTION computes
+    // every pixel of the view from the picture, which is exact but needs a fast enough CPU, and
+    // CUBEMAP converts the picture to the faces of a cube, which need less memory for the same
+    // quality and are drawn without distortion
+    public enum RenderMode {
+        MOSAIC,
+        REPROJECTION,
+        CUBEMAP
+    }
+
+    private RenderMode mRenderMode = RenderMode.MOSAIC;
+
 
     private boolean mIsFingerOnScreen = false;
 
-    private Sphere mSphere;
+    private final SphereCamera mCamera = new SphereCamera();
+    private final float[] mCorrectionRotation = new float[9];
+    private SphereRenderer<Canvas> mRenderer;
+    private final FrameMetrics mFrameMetrics = new FrameMetrics();
+    private FrameMetricsOverlay mFrameMetricsOverlay;
+    private Bitmap mBitmap;
+    // the images of the sphere by width set by setImageUrls, and the width of the one loading or
+    // loaded, which only grows as the view is zoomed in
+    private final TreeMap<Integer, String> mImageUrls = new TreeMap<Integer, String>();
+    private int mImageWidth;
+    private int mLoadedImageWidth;
+    // the loader of the tiles of the sphere set by setTileSource, drawn instead of mBitmap
+    private TileLoader mTileLoader;
     private OrientationManager mOrientationManager;
     private Context mContext;
 
@@ -97,18 +121,18 @@ public class SphereView extends View {
                         if (!mIsZoomAllowed) {
                             return false;
                         }
-                        float newZoomFactor = mSphere.getZoomFactor() * detector.getCurrentSpan()
+                        float newZoomFactor = mCamera.getZoomFactor() * detector.getCurrentSpan()
                                 / detector.getPreviousSpan();
                         // restrict zooming to allowed zoom interval
                         if (newZoomFactor >= MIN_ZOOM && newZoomFactor <= MAX_ZOOM) {
-                            mSphere.setZoomFactor(newZoomFactor);
+                            mCamera.setZoomFactor(newZoomFactor);
                         }
                         return true;
                     }
 
                     @Override
                     public void onScaleEnd(ScaleGestureDetector detector) {
-
+                        loadImageForZoom();
                     }
                 });
 
@@ -193,11 +217,23 @@ public class SphereView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         // check to see if it bitmap is drawn before drawing mosaic
-        if (mIsBitmapSet) {
-            mSphere.drawMosaic(canvas);
+        if (mIsBitmapSet && mRenderer != null) {
+            long frameStart = mFrameMetrics.beginFrame();
+            mCamera.setViewSize(getWidth(), getHeight());
+            mRenderer.render(mCamera, canvas);
+            mFrameMetrics.endFrame(frameStart);
+        }
+        if (mFrameMetricsOverlay != null) {
+            mFrameMetricsOverlay.draw(canvas);
         }
     }
 
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        loadImageForZoom();
+    }
+
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
@@ -206,12 +242,20 @@ public class SphereView extends View {
                     ViewGroup.LayoutParams.MATCH_PARENT));
         }
         mOrientationManager.start();
+        if (mIsBitmapSet && mRenderer == null) {
+            setRenderer(createRenderer(mBitmap));
+        }
     }
 
     @Override
     protected  void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mOrientationManager.stop();
+        // the renderer keeps the picture, so that it isn't prepared again when the view is
+        // attached again, but not the frame it draws
+        if (mRenderer instanceof ReprojectionRenderer) {
+            ((ReprojectionRenderer) mRenderer).releaseFrame();
+        }
     }
 
 
@@ -219,10 +263,12 @@ public class SphereView extends View {
         public void run() {
 
             postOnAnimation(mSetFrame);
+            mFrameMetrics.onAnimationFrame();
 
             switch (mMode) {
                 case COMPASS:
-                    mSphere.rotate(mOrientationManager.getCorrectionRotMatrix());
+                    mOrientationManager.getCorrectionRotation(mCorrectionRotation);
+                    mCamera.setRotation(mCorrectionRotation);
                     break;
                 case TOUCH:
                     handleAnimatedCoordinates();
@@ -230,7 +276,7 @@ public class SphereView extends View {
                             "info_",
                             Integer.toString(mContext.getResources().getConfiguration()
                                     .orientation));
-                    mSphere.rotate(mXRotation, mYRotation);
+                    mCamera.setRotation(mXRotation, mYRotation);
                     break;
                 case PREVIEW:
                     mVelocityX = PREVIEW_INITIAL_VELOCITY;
@@ -272,6 +318,82 @@ public class SphereView extends View {
         return mMode;
     }
 
+    public void setRenderMode(RenderMode renderMode) {
+        if (renderMode == mRenderMode) {
+            return;
+        }
+        mRenderMode = renderMode;
+        if (mIsBitmapSet && mBitmap == null && mTileLoader == null) {
+            // dropped by the cubemap, the image shown is loaded again, and replaces the faces as
+            // a larger image would
+            mImageWidth = 0;
+            loadImageForZoom();
+        } else if (mIsBitmapSet) {
+            setRenderer(createRenderer(mBitmap));
+            postInvalidate();
+        }
+    }
+
+    public RenderMode getRenderMode() {
+        return mRenderMode;
+    }
+
+    // draw times, frame intervals and work of the renderer, to compare render modes on devices
+    public FrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    public void setIsFrameMetricsOverlayShown(boolean isShown) {
+        mFrameMetricsOverlay = isShown ? new FrameMetricsOverlay(mFrameMetrics) : null;
+        postInvalidate();
+    }
+
+    public boolean isFrameMetricsOverlayShown() {
+        return mFrameMetricsOverlay != null;
+    }
+
+    private SphereRenderer<Canvas> createRenderer(Bitmap bitmap) {
+        // only the mosaic is drawn from tiles
+        if (mTileLoader != null) {
+            MosaicRenderer mosaicRenderer = new MosaicRenderer(mTileLoader);
+            mosaicRenderer.setFrameMetrics(mFrameMetrics);
+            return mosaicRenderer;
+        }
+        switch (mRenderMode) {
+            case REPROJECTION:
+                return new ReprojectionRenderer(bitmap);
+            case CUBEMAP:
+                CubemapRenderer cubemapRenderer = new CubemapRenderer(bitmap);
+                // the renderer drops the picture once it has its faces, and another mode loads
+                // it again, unless it can't be
+                if (!mImageUrls.isEmpty()) {
+                    mBitmap = null;
+                }
+                cubemapRenderer.setFrameMetrics(mFrameMetrics);
+                cubemapRenderer.setFaceLoadedCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        invalidate();
+                    }
+                });
+                return cubemapRenderer;
+            default:
+                MosaicRenderer mosaicRenderer = new MosaicRenderer(bitmap);
+                mosaicRenderer.setFrameMetrics(mFrameMetrics);
+                return mosaicRenderer;
+        }
+    }
+
+    // replaces the renderer, releasing the threads of the previous one if it has any
+    private void setRenderer(SphereRenderer<Canvas> renderer) {
+        if (mRenderer instanceof ReprojectionRenderer) {
+            ((ReprojectionRenderer) mRenderer).release();
+        } else if (mRenderer instanceof CubemapRenderer) {
+            ((CubemapRenderer) mRenderer).release();
+        }
+        mRenderer = renderer;
+    }
+
     public void setIsDoubleClickSwitchAllowed(boolean doubleClickSwitchAllowed) {
         this.mIsDoubleClickSwitchAllowed = doubleClickSwitchAllowed;
     }
@@ -281,21 +403,142 @@ public class SphereView extends View {
     }
 
     public void setBitmap(Bitmap bitmap) {
+        releaseTileLoader();
+        mBitmap = bitmap;
+        showSphere();
+    }
+
+    // draws the sphere set from its initial point of view
+    private void showSphere() {
         mIsBitmapSet = true;
-        mSphere = new Sphere(GRID_WIDTH, GRID_HEIGHT, bitmap);
-        mSphere.setZoomFactor(INITIAL_ZOOM);
+        setRenderer(createRenderer(mBitmap));
+        mCamera.setRotation(0, 0);
+        mCamera.setZoomFactor(INITIAL_ZOOM);
         mOldTime = System.currentTimeMillis();
 
         postOnAnimation(mSetFrame);
         postInvalidate();
     }
 
+    /**
+     * loads the smallest of the images of a sphere wide enough for the view at its zoom, and
+     * larger ones as it is zoomed in
+     *
+     * @param imageUrls - the urls of the same sphere scaled to different widths, by width
+     */
+    public void setImageUrls(Map<Integer, String> imageUrls) {
+        mImageUrls.clear();
+        mImageUrls.putAll(imageUrls);
+        mImageWidth = 0;
+        mLoadedImageWidth = 0;
+        loadImageForZoom();
+    }
+
+    // the width of the image that has as many pixels across the horizontal view angle as the
+    // view has across its width, the view showing viewWidth / viewAngle pixels per radian
+    private int getRequiredImageWidth() {
+        float diameter = (float) Math.hypot(getWidth(), getHeight());
+        float zoomFactor = mIsBitmapSet ? mCamera.getZoomFactor() : INITIAL_ZOOM;
+        double viewAngle = 2 * Math.atan(getWidth() / 2f / (zoomFactor * diameter));
+        return (int) Math.ceil(2 * Math.PI * getWidth() / viewAngle);
+    }
+
+    // loads a larger image if the view needs one, once it has a size
+    private void loadImageForZoom() {
+        if (mImageUrls.isEmpty() || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        Map.Entry<Integer, String> entry = mImageUrls.ceilingEntry(getRequiredImageWidth());
+        if (entry == null) {
+            entry = mImageUrls.lastEntry();
+        }
+        if (entry.getKey() <= mImageWidth) {
+            return;
+        }
+        final int imageWidth = entry.getKey();
+        mImageWidth = imageWidth;
+        Target loadTarget = new Target() {
+            @Override
+            public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
+                // a smaller image loaded late, or an image of a sphere set before
+                if (imageWidth != mImageWidth) {
+                    return;
+                }
+                if (mLoadedImageWidth == 0) {
+                    setBitmap(bitmap);
+                } else {
+                    // a larger image of the same sphere, seen as it was
+                    mBitmap = bitmap;
+                    setRenderer(createRenderer(bitmap));
+                    postInvalidate();
+                }
+                mLoadedImageWidth = imageWidth;
+            }
+
+            @Override
+            public void onBitmapFailed(Drawable errorDrawable) {
+                // the image loaded before stays, and is tried again on the next zoom
+                if (imageWidth == mImageWidth) {
+                    mImageWidth = mLoadedImageWidth;
+                }
+            }
+
+            @Override
+            public void onPrepareLoad(Drawable placeHolderDrawable) {
+
+            }
+        };
+        setTag(loadTarget);
+        Picasso.with(mContext).load(entry.getValue()).into(loadTarget);
+    }
+
+    /**
+     * shows a sphere stored as a TiledPanorama package, loading only the tiles in view at the
+     * resolution they are seen at, the nearest to the center of the view first
+     *
+     * @param tileSource - where the package is read from, for instance a UrlTileSource
+     */
+    public void setTileSource(TileSource tileSource) {
+        mImageUrls.clear();
+        mImageWidth = 0;
+        Object tag = getTag();
+        if (tag instanceof Target) {
+            Picasso.with(mContext).cancelRequest((Target) tag);
+        }
+        releaseTileLoader();
+        // nothing is drawn until the index is read, which is small
+        mIsBitmapSet = false;
+        setRenderer(null);
+        mTileLoader = new TileLoader(tileSource, new TileLoader.Listener() {
+            @Override
+            public void onIndexLoaded(TiledPanorama panorama) {
+                mBitmap = null;
+                showSphere();
+            }
+
+            @Override
+            public void onTilesChanged() {
+                invalidate();
+            }
+        });
+        mTileLoader.setFrameMetrics(mFrameMetrics);
+    }
+
+    private void releaseTileLoader() {
+        if (mTileLoader != null) {
+            mTileLoader.release();
+            mTileLoader = null;
+        }
+    }
+
     /**
      * loads a bitmap into a sphereview using picasso
      *
      * @param url - the url to get the bitmap from
      */
     public void setImageUrl(final String url) {
+        mImageUrls.clear();
+        mImageWidth = 0;
         Target loadTarget = new Target() {
             @Override
             public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
@@ -340,186 +583,4 @@ public class SphereView extends View {
         return bitmap;
     }
 
-    private class Sphere {
-        float[][][] mVertices;
-        float[][][] mRotatedVertices;
-
-        int mGridWidth, mGridHeight;
-        float[] mHorizontalBreakingPoints;
-        float[] mVerticalBreakingPoints;
-
-        private int mPhotoSphereWidth;
-        private int mPhotoSphereHeight;
-        private Bitmap[][] mMosaic;
-
-        private float mZoomFactor = 0.4f;
-
-        private final Matrix mMatrix = new Matrix();
-
-        public Sphere(int gridWidth, int gridHeight, Bitmap bitmap) {
-            mGridWidth = gridWidth;
-            mGridHeight = gridHeight;
-            mVertices = new float[gridWidth][gridHeight][3];
-            mRotatedVertices = new float[gridWidth][gridHeight][3];
-
-            mPhotoSphereWidth = bitmap.getWidth();
-            mPhotoSphereHeight = bitmap.getHeight();
-            setMosaic(bitmap);
-
-            // Creates the mVertices[][] array, that contains the points that tell us where
-            // each rectangle of the mosaic will be mapped on the sphere
-            // Notice that this choice of points doesn't look like a regular polyhedron,
-            // but instead it looks like meridians and parallels of a globe, so they work out
-            // perfectly to undistort the bitmap representation of a sphere
-            for (int j = 0; j < gridHeight; j++) {
-                for (int i = 0; i < gridWidth; i++) {
-                    float xAngle = (float) (2 * Math.PI * mHorizontalBreakingPoints[i]);
-                    float yAngle = (float) (Math.PI * (mVerticalBreakingPoints[j] - 1.0f / 2));
-                    float vertex[] = {
-                            (float) Math.sin(yAngle),
-                            (float) (Math.cos(xAngle) * Math.cos(yAngle)),
-                            (float) (Math.sin(xAngle) * Math.cos(yAngle))
-                    };
-                    mVertices[i][j] = vertex;
-                }
-            }
-            rotate(0, 0);
-        }
-
-        // Gets a rectangular bitmap and draws it in a general quadrangle via the unique
-        // appropriate projection
-        private void drawBitmapInQuadrangle(Bitmap bitmap, Canvas canvas, float[] points) {
-            // we reuse the same Matrix object to draw every rectangle
-            mMatrix.setPolyToPoly(
-                    new float[]{
-                            0, 0,
-                            bitmap.getWidth(), 0,
-                            0, bitmap.getHeight(),
-                            bitmap.getWidth(), bitmap.getHeight()
-                    },
-                    0,
-                    points,
-                    0,
-                    4);
-            mMatrix.postTranslate(getWidth() / 2, getHeight() / 2);
-            canvas.drawBitmap(bitmap, mMatrix, null);
-        }
-
-        // In order to generate a 2D view of our 3D scene, we project our scene onto the plane z = 1
-        // We then expand the view with the appropriate zoom factor so it fills the view
-        private float[] project(float[] point) {
-            float diameter = (float) Math.sqrt(getWidth() * getWidth() + getHeight() * getHeight());
-            return new float[]{
-                    mZoomFactor * diameter * point[0] / point[2],
-                    mZoomFactor * diameter * point[1] / point[2]
-            };
-        }
-
-        // Slices the picture in a Bitmap[][] mosaic
-        public void setMosaic(Bitmap bitmap) {
-            setBreakingPoints();
-            mMosaic = new Bitmap[mGridWidth][mGridHeight];
-            for (int i = 0; i < mGridWidth; i++) {
-                for (int j = 0; j < mGridHeight - 1; j++) {
-                    mMosaic[i][j] = Bitmap.createBitmap(
-                            bitmap,
-                            (int) (mPhotoSphereWidth * mHorizontalBreakingPoints[i]),
-                            (int) (mPhotoSphereHeight * mVerticalBreakingPoints[j]),
-                            (int) (mPhotoSphereWidth * (mHorizontalBreakingPoints[i + 1]
-                                    - mHorizontalBreakingPoints[i])),
-                            (int) (mPhotoSphereHeight * (mVerticalBreakingPoints[j + 1]
-                                    - mVerticalBreakingPoints[j])));
-                }
-            }
-        }
-
-        // Draws the 2D view of the sphere onto the canvas
-        public void drawMosaic(Canvas canvas) {
-            if (mMosaic == null) {
-                throw new RuntimeException("No mosaic is set");
-            }
-
-            for (int j = 0; j < mGridHeight - 1; j++) {
-                for (int i = 0; i < mGridWidth; i++) {
-                    if (isEntirelyFrontal(i, j)) {
-                        float[] p1 = project(mRotatedVertices[i][j]);
-                        float[] p2 = project(mRotatedVertices[(i + 1) % mGridWidth][j]);
-                        float[] p3 = project(mRotatedVertices[(i + 1) % mGridWidth][j + 1]);
-                        float[] p4 = project(mRotatedVertices[i][j + 1]);
-                        float[] quad = new float[]{p1[0], p1[1], p2[0], p2[1], p4[0], p4[1], p3[0],
-                                p3[1]};
-                        drawBitmapInQuadrangle(mMosaic[i][j], canvas, quad);
-                    }
-                }
-            }
-        }
-
-        // creates arrays saying in which proportion to break down the initial bitmap and where to
-        // create the matching points on the sphere
-        // for now the breaking is uniform, but later this can have smarter breaking points
-        private void setBreakingPoints() {
-            mHorizontalBreakingPoints = new float[mGridWidth + 1];
-            mVerticalBreakingPoints = new float[mGridHeight];
-            for (int i = 0; i < mGridWidth + 1; i++) {
-                mHorizontalBreakingPoints[i] = i * 1.0f / mGridWidth;
-            }
-
-            for (int j = 0; j < mGridHeight; j++) {
-                mVerticalBreakingPoints[j] = 0.0005f + j * 0.999f / (mGridHeight - 1);
-            }
-        }
-
-        // creates a call to rotate() based on horizontal and vertical rotation angle parameters
-        public void rotate(float xRotation, float yRotation) {
-            float[][] rotMatrix = new float[][]{
-                    {1, 0, 0},
-                    {0, (float) Math.cos(xRotation), -(float) Math.sin(xRotation)},
-                    {0, (float) Math.sin(xRotation), (float) Math.cos(xRotation)}
-            };
-
-            rotMatrix = MatrixUtils.multiply(rotMatrix, new float[][]{
-                    {(float) Math.cos(yRotation), 0, -(float) Math.sin(yRotation)},
-                    {0, 1, 0},
-                    {(float) Math.sin(yRotation), 0, (float) Math.cos(yRotation)}
-            });
-
-            double angle = -Math.PI / 2;
-            rotMatrix = MatrixUtils.multiply(rotMatrix, new float[][]{
-                    {(float) Math.cos(angle), -(float) Math.sin(angle), 0},
-                    {(float) Math.sin(angle), (float) Math.cos(angle), 0},
-                    {0, 0, 1}
-            });
-            rotate(rotMatrix);
-        }
-
-        // Sets the rotated vertices to be in a rotation of rotMatrix
-        // This rotation is not cumulative
-        public void rotate(float[][] rotMatrix) {
-            for (int j = 0; j < mGridHeight; j++) {
-                for (int i = 0; i < mGridWidth; i++) {
-                    mRotatedVertices[i][j] = MatrixUtils.multiply(mVertices[i][j], rotMatrix);
-                }
-            }
-        }
-
-        // Checks if rotated rectangle is entiraly in the region z > 0
-        private boolean isEntirelyFrontal(int i, int j) {
-            // To avoid buggy projections at infinity we consider to be in front of us only
-            // points that have a z coordinate greater than some epsilon > 0
-            float epsilon = 0.10f;
-            return (mRotatedVertices[i][j][2] > epsilon &&
-                    mRotatedVertices[(i + 1) % mGridWidth][j][2] > epsilon &&
-                    mRotatedVertices[(i + 1) % mGridWidth][j + 1][2] > epsilon &&
-                    mRotatedVertices[i][j + 1][2] > epsilon);
-        }
-
-        public float getZoomFactor() {
-            return mZoomFactor;
-        }
-
-        public void setZoomFactor(float zoomFactor) {
-            mZoomFactor = zoomFactor;
-        }
-    }
-
 }
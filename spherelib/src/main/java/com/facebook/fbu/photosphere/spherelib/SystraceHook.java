@@ -0,0 +1,30 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Shows the sections of a ConstructionProfiler in systrace. Trace only exists from API 18, so
+ * sections are dropped on older devices
+ */
+public class SystraceHook implements ConstructionProfiler.TraceHook {
+
+    private static final boolean IS_SUPPORTED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    @Override
+    public void beginSection(String name) {
+        if (IS_SUPPORTED) {
+            Trace.beginSection("Sphere:" + name);
+        }
+    }
+
+    @Override
+    public void endSection() {
+        if (IS_SUPPORTED) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the tiles of a TiledPanorama from a TileSource for a MosaicRenderer, which asks for the
+ * tiles it is missing while it draws a frame. Only the tiles of the last frame are loaded, the
+ * coarsest level first, so that the whole view is shown from a few small tiles, then by their
+ * distance to the center of the view, which sharpens first where the user looks.
+ *
+ * The methods are to be called on the main thread, where the listener is called back. The tiles
+ * of the coarsest level are kept until the loader is released, so there is always something to
+ * draw. The others are dropped once more than MAX_TILE_COUNT are loaded, the ones least recently
+ * drawn first, never those of the frame being drawn
+ */
+public class TileLoader {
+
+    public interface Listener {
+        void onIndexLoaded(TiledPanorama panorama);
+
+        // a tile was loaded, so the view can be drawn sharper, or a tile that couldn't be read can
+        // be asked for again, so the view is to be drawn again
+        void onTilesChanged();
+    }
+
+    private static final String TAG = TileLoader.class.getSimpleName();
+    // the number of tiles read at once, which hides the latency of the requests
+    private static final int THREAD_COUNT = 3;
+    private static final long KEEP_ALIVE_MS = 1000;
+    // the tiles kept beyond the coarsest level, about four screens of tiles of
+    // TiledPanorama.TILE_SIZE, so that looking back doesn't load them again
+    private static final int MAX_TILE_COUNT = 128;
+    // the delay before a tile that couldn't be read is asked for again, doubled for each failure
+    // in a row up to MAX_RETRY_DELAY_MS
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000L;
+
+    private final TileSource mSource;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(
+            THREAD_COUNT,
+            THREAD_COUNT,
+            KEEP_ALIVE_MS,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private TiledPanorama mPanorama;
+    // mTiles[level] holds the tiles loaded, row by row like the mosaic of MosaicRenderer, and
+    // mTileFrames the last frame each one was drawn in
+    private Bitmap[][] mTiles;
+    private int[][] mTileFrames;
+    // the frame being drawn, and the number of tiles loaded beyond the coarsest level
+    private int mFrame;
+    private int mTileCount;
+    private final List<Long> mEvictedTiles = new ArrayList<Long>();
+    // the tiles that couldn't be read, until one of their reads succeeds
+    private final Map<Long, Failure> mFailedTiles = new HashMap<Long, Failure>();
+    // the tiles asked for by the frame being drawn
+    private final Map<Long, Request> mFrameRequests = new HashMap<Long, Request>();
+
+    // the requests of the last frame not taken by a worker yet, the most urgent first, the tiles
+    // being read and the number of workers, all guarded by mPendingRequests
+    private final List<Request> mPendingRequests = new ArrayList<Request>();
+    private final Set<Long> mLoadingTiles = new HashSet<Long>();
+    private int mWorkerCount;
+    private volatile boolean mIsReleased;
+    private FrameMetrics mFrameMetrics;
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final Request request;
+                synchronized (mPendingRequests) {
+                    if (mPendingRequests.isEmpty() || mIsReleased) {
+                        mWorkerCount--;
+                        return;
+                    }
+                    request = mPendingRequests.remove(0);
+                    mLoadingTiles.add(request.mKey);
+                }
+                final Bitmap tile = readTile(request);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileRead(request, tile);
+                    }
+                });
+            }
+        }
+    };
+
+    // draws the view again once a tile that failed can be asked for again
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsReleased) {
+                mListener.onTilesChanged();
+            }
+        }
+    };
+
+    // starts reading the index of the package, the listener being called once it is read
+    public TileLoader(TileSource source, Listener listener) {
+        mSource = source;
+        mListener = listener;
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TiledPanorama panorama = readIndex();
+                if (panorama == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onIndexRead(panorama);
+                    }
+                });
+            }
+        });
+    }
+
+    // every tile read is counted as decoded, and every tile missing from a frame as a cache miss,
+    // null to stop counting
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    // the panorama, null until the index is loaded
+    public TiledPanorama getPanorama() {
+        return mPanorama;
+    }
+
+    // the tile if it is loaded, or null, which is then marked as drawn in the frame
+    public Bitmap getTile(int level, int column, int row) {
+        if (mTiles == null) {
+            return null;
+        }
+        int index = row * mPanorama.getColumnCount(level) + column;
+        Bitmap tile = mTiles[level][index];
+        if (tile != null) {
+            mTileFrames[level][index] = mFrame;
+        }
+        return tile;
+    }
+
+    /**
+     * Asks for a tile missing from the frame being drawn, unless its last read failed too
+     * recently
+     *
+     * @param distance - how far from the center of the view the tile is needed, in pixels
+     */
+    public void request(int level, int column, int row, float distance) {
+        long key = TiledPanorama.getTileKey(level, column, row);
+        Failure failure = mFailedTiles.get(key);
+        if (failure != null && SystemClock.uptimeMillis() < failure.mRetryTimeMs) {
+            return;
+        }
+        Request request = mFrameRequests.get(key);
+        if (request == null) {
+            mFrameRequests.put(key, new Request(level, column, row, key, distance));
+            if (mFrameMetrics != null) {
+                mFrameMetrics.addCacheMisses(1);
+            }
+        } else {
+            request.mDistance = Math.min(request.mDistance, distance);
+        }
+    }
+
+    // replaces the requests of the previous frame with those of the frame drawn, dropping the
+    // tiles that went out of the view before they were read, and the tiles out of the view if
+    // there are too many
+    public void endFrame() {
+        if (mTileCount > MAX_TILE_COUNT) {
+            evictTiles();
+        }
+        mFrame++;
+        synchronized (mPendingRequests) {
+            mPendingRequests.clear();
+            for (Request request : mFrameRequests.values()) {
+                if (!mLoadingTiles.contains(request.mKey)) {
+                    mPendingRequests.add(request);
+                }
+            }
+            Collections.sort(mPendingRequests);
+            while (mWorkerCount < THREAD_COUNT && mWorkerCount < mPendingRequests.size()) {
+                mWorkerCount++;
+                mExecutor.execute(mWorker);
+            }
+        }
+        mFrameRequests.clear();
+    }
+
+    // drops the tiles least recently drawn beyond the coarsest level, down to MAX_TILE_COUNT,
+    // keeping those of the frame just drawn
+    private void evictTiles() {
+        mEvictedTiles.clear();
+        for (int level = 1; level < mTiles.length; level++) {
+            for (int index = 0; index < mTiles[level].length; index++) {
+                if (mTiles[level][index] != null && mTileFrames[level][index] != mFrame) {
+                    // the frame in the high bits, so that the tiles sort by it
+                    mEvictedTiles.add(((long) mTileFrames[level][index] << 32)
+                            | (level << 24) | index);
+                }
+            }
+        }
+        Collections.sort(mEvictedTiles);
+        for (int i = 0; i < mEvictedTiles.size() && mTileCount > MAX_TILE_COUNT; i++) {
+            long tile = mEvictedTiles.get(i);
+            int level = (int) (tile >>> 24) & 0xff;
+            int index = (int) tile & 0xffffff;
+            mTiles[level][index] = null;
+            mTileCount--;
+        }
+    }
+
+    // stops loading, the tiles being read are dropped
+    public void release() {
+        mIsReleased = true;
+        mMainHandler.removeCallbacks(mRetry);
+        synchronized (mPendingRequests) {
+            mPendingRequests.clear();
+        }
+    }
+
+    private TiledPanorama readIndex() {
+        try {
+            InputStream inputStream = mSource.openIndex();
+            try {
+                return TiledPanorama.readIndex(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error when reading tile index: " + e);
+            return null;
+        }
+    }
+
+    private void onIndexRead(TiledPanorama panorama) {
+        if (mIsReleased) {
+            return;
+        }
+        mPanorama = panorama;
+        mTiles = new Bitmap[panorama.getFinestLevel() + 1][];
+        mTileFrames = new int[panorama.getFinestLevel() + 1][];
+        for (int level = 0; level <= panorama.getFinestLevel(); level++) {
+            mTiles[level] = new Bitmap[panorama.getColumnCount(level)
+                    * panorama.getRowCount(level)];
+            mTileFrames[level] = new int[mTiles[level].length];
+        }
+        mListener.onIndexLoaded(panorama);
+    }
+
+    // the tile, or null if it couldn't be read
+    private Bitmap readTile(Request request) {
+        try {
+            InputStream inputStream = mSource.openTile(
+                    request.mLevel,
+                    request.mColumn,
+                    request.mRow);
+            try {
+                return BitmapFactory.decodeStream(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error when reading tile "
+                    + TiledPanorama.getTilePath(request.mLevel, request.mColumn, request.mRow)
+                    + ": " + e);
+            return null;
+        }
+    }
+
+    private void onTileRead(Request request, Bitmap tile) {
+        synchronized (mPendingRequests) {
+            mLoadingTiles.remove(request.mKey);
+        }
+        if (mIsReleased) {
+            return;
+        }
+        if (tile == null) {
+            // the coarser tiles are drawn in its place until a frame asks for it after the delay
+            Failure failure = mFailedTiles.get(request.mKey);
+            if (failure == null) {
+                failure = new Failure();
+                mFailedTiles.put(request.mKey, failure);
+            }
+            failure.mDelayMs = failure.mDelayMs == 0
+                    ? RETRY_DELAY_MS
+                    : Math.min(2 * failure.mDelayMs, MAX_RETRY_DELAY_MS);
+            failure.mRetryTimeMs = SystemClock.uptimeMillis() + failure.mDelayMs;
+            mMainHandler.postDelayed(mRetry, failure.mDelayMs);
+            return;
+        }
+        mFailedTiles.remove(request.mKey);
+        int index = request.mRow * mPanorama.getColumnCount(request.mLevel) + request.mColumn;
+        if (request.mLevel > 0 && mTiles[request.mLevel][index] == null) {
+            mTileCount++;
+        }
+        mTiles[request.mLevel][index] = tile;
+        mTileFrames[request.mLevel][index] = mFrame;
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addTilesDecoded(1);
+        }
+        mListener.onTilesChanged();
+    }
+
+    private static final class Failure {
+        private long mDelayMs;
+        private long mRetryTimeMs;
+    }
+
+    private static final class Request implements Comparable<Request> {
+        private final int mLevel;
+        private final int mColumn;
+        private final int mRow;
+        private final long mKey;
+        private float mDistance;
+
+        private Request(int level, int column, int row, long key, float distance) {
+            mLevel = level;
+            mColumn = column;
+            mRow = row;
+            mKey = key;
+            mDistance = distance;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mLevel != other.mLevel) {
+                return mLevel < other.mLevel ? -1 : 1;
+            }
+            return Float.compare(mDistance, other.mDistance);
+        }
+    }
+}
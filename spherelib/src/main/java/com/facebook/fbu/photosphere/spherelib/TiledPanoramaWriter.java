@@ -0,0 +1,82 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a photosphere as a TiledPanorama package, to be shown by SphereView.setTileSource
+ */
+public class TiledPanoramaWriter {
+
+    private static final int JPEG_QUALITY = 85;
+
+    private TiledPanoramaWriter() {
+    }
+
+    /**
+     * Slices the picture in the tiles of every level, each scaled down from the picture, then
+     * writes the index, so that a package interrupted on the way has none
+     *
+     * @param directory - the directory of the package, created if needed
+     * @return the layout of the package
+     */
+    public static TiledPanorama write(Bitmap bitmap, File directory) throws IOException {
+        TiledPanorama panorama = TiledPanorama.forSize(bitmap.getWidth(), bitmap.getHeight());
+        int[] bounds = new int[4];
+        for (int level = 0; level <= panorama.getFinestLevel(); level++) {
+            File levelDirectory = new File(directory, Integer.toString(level));
+            if (!levelDirectory.isDirectory() && !levelDirectory.mkdirs()) {
+                throw new IOException("Could not create " + levelDirectory);
+            }
+            float scale = 1f / (1 << (panorama.getFinestLevel() - level));
+            Matrix matrix = new Matrix();
+            matrix.setScale(scale, scale);
+
+            for (int row = 0; row < panorama.getRowCount(level); row++) {
+                for (int column = 0; column < panorama.getColumnCount(level); column++) {
+                    panorama.getTileBounds(level, column, row, bounds);
+                    Bitmap tile = Bitmap.createBitmap(
+                            bitmap,
+                            bounds[0],
+                            bounds[1],
+                            bounds[2] - bounds[0],
+                            bounds[3] - bounds[1],
+                            matrix,
+                            true);
+                    OutputStream outputStream = new FileOutputStream(new File(
+                            directory,
+                            TiledPanorama.getTilePath(level, column, row)));
+                    try {
+                        tile.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+                    } finally {
+                        outputStream.close();
+                        if (tile != bitmap) {
+                            tile.recycle();
+                        }
+                    }
+                }
+            }
+        }
+
+        File indexFile = new File(directory, TiledPanorama.INDEX_FILE);
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        OutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            panorama.writeIndex(outputStream);
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(indexFile)) {
+            temporaryFile.delete();
+            throw new IOException("Could not write " + indexFile);
+        }
+        return panorama;
+    }
+}